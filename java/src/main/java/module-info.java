@@ -3,8 +3,10 @@ module ktximageio {
     exports org.ktximageio.itu;
     exports org.ktximageio.output;
     exports org.ktximageio.awt;
+    exports org.ktximageio.zstd;
 
     requires org.eclipse.jdt.annotation;
     requires com.luciad.imageio.webp;
     requires java.desktop;
+    requires jdk.unsupported;
 }
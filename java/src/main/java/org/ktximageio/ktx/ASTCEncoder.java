@@ -0,0 +1,527 @@
+package org.ktximageio.ktx;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Encoder for ASTC with block footprints from 4 x 4 to 8 x 8, all blocks are 16 bytes.
+ * The LDR profile, VK_FORMAT_ASTC_4x4_UNORM_BLOCK to VK_FORMAT_ASTC_8x8_SRGB_BLOCK, is used for 8 bit sources and
+ * the HDR profile, VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK to VK_FORMAT_ASTC_8x8_SFLOAT_BLOCK, for {@link FloatImageBuffer}.
+ * Blocks are encoded with one partition and one weight plane, the weight grid is the footprint or a decimated grid
+ * that is interpolated by the decoder. Weights use 1 to 5 bits and endpoints 8 bits, LDR blocks use direct RGB or
+ * RGBA endpoints (mode 8 and 12) and HDR blocks the direct HDR RGB endpoints (mode 11) - alpha is 1 in HDR blocks.
+ * Blocks of one color are stored as void extent blocks.
+ * {@link BlockEncoder.Quality#FAST} uses the weight grid with most weight bits and refines the endpoints once,
+ * {@link BlockEncoder.Quality#NORMAL} tries 3 weight grids and adjusts the weights and
+ * {@link BlockEncoder.Quality#HIGH} tries 8 weight grids and refines the endpoints more.
+ */
+public class ASTCEncoder extends BlockEncoder {
+
+    /**
+     * Largest footprint, width and height, that can be encoded
+     */
+    public static final int MAX_FOOTPRINT = 8;
+
+    /**
+     * The weight grids that can be used for a footprint and endpoint value count, best first
+     */
+    private static final ConcurrentHashMap<Integer, Grid[]> GRIDS = new ConcurrentHashMap<>();
+
+    /**
+     * One weight grid with bits per weight, the block mode and the grid points and factors, summing to 16, used
+     * to interpolate the weight of each texel.
+     */
+    private static final class Grid {
+        private final int width;
+        private final int height;
+        private final int bits;
+        private final int blockMode;
+        private final int[] points;
+        private final int[] factors;
+
+        private Grid(int blockWidth, int blockHeight, int width, int height, int bits, int blockMode) {
+            this.width = width;
+            this.height = height;
+            this.bits = bits;
+            this.blockMode = blockMode;
+            points = new int[blockWidth * blockHeight * 4];
+            factors = new int[blockWidth * blockHeight * 4];
+            ASTCFormat.getInfill(blockWidth, blockHeight, width, height, points, factors);
+        }
+
+        private int getCount() {
+            return width * height;
+        }
+    }
+
+    /**
+     * One encoding of a block, the 8 bit endpoints and the quantized grid weights
+     */
+    private static final class Encoding {
+        private final int[] endpoints = new int[8];
+        private int[] weights;
+        private Grid grid;
+        private double error = Double.MAX_VALUE;
+
+        private void set(Grid g, int[] e, int[] w, double err) {
+            grid = g;
+            System.arraycopy(e, 0, endpoints, 0, endpoints.length);
+            weights = w.clone();
+            error = err;
+        }
+    }
+
+    /**
+     * Creates an encoder using {@link BlockEncoder.Quality#NORMAL}
+     *
+     * @param executor
+     */
+    public ASTCEncoder(@NonNull Executor executor) {
+        this(executor, Quality.NORMAL);
+    }
+
+    /**
+     * Creates an encoder
+     *
+     * @param executor Executor for the tiles
+     * @param quality
+     */
+    public ASTCEncoder(@NonNull Executor executor, @NonNull Quality quality) {
+        super(executor, quality);
+    }
+
+    @Override
+    public boolean isSupported(@NonNull ImageFormat format) {
+        return format.isASTC() && format.getBlockWidth() <= MAX_FOOTPRINT
+                && format.getBlockHeight() <= MAX_FOOTPRINT;
+    }
+
+    @Override
+    protected void encodeBlock(float[] texels, ImageFormat format, byte[] block) {
+        boolean hdr = format.isASTCHDR();
+        boolean srgb = format.isSRGB();
+        int blockWidth = format.getBlockWidth();
+        int blockHeight = format.getBlockHeight();
+        int count = blockWidth * blockHeight;
+        // Values in the 16 bit domain where endpoints are interpolated, for HDR this is the logarithmic domain
+        float[] values = new float[count * 4];
+        int[] constant = new int[4];
+        boolean isConstant = true;
+        boolean opaque = true;
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < 4; c++) {
+                float texel = texels[i * 4 + c];
+                int value;
+                if (hdr) {
+                    value = c < 3 ? BC6HFormat.toHalf(texel, false) : ASTCFormat.HALF_ONE;
+                    values[i * 4 + c] = c < 3 ? toLNS(value) : ASTCFormat.HDR_ALPHA;
+                } else {
+                    value = Math.round(Math.max(0, Math.min(1, texel)) * 255);
+                    values[i * 4 + c] = srgb && c < 3 ? Math.max(0, Math.min(1, texel)) * 65280 + 128
+                            : Math.max(0, Math.min(1, texel)) * 65535;
+                    opaque &= c < 3 || value == 255;
+                }
+                isConstant &= i == 0 || value == constant[c];
+                constant[c] = value;
+            }
+        }
+        if (isConstant) {
+            packVoidExtent(hdr, constant, block);
+            return;
+        }
+        int channels = hdr || opaque ? 3 : 4;
+        Grid[] grids = getGrids(blockWidth, blockHeight, channels * 2);
+        int gridCount = Math.min(grids.length, quality == Quality.FAST ? 1 : quality == Quality.NORMAL ? 3 : 8);
+        int refinements = quality == Quality.FAST ? 1 : quality == Quality.NORMAL ? 2 : 4;
+        float[] start = principalEndpoints(values, count, channels);
+        Encoding best = new Encoding();
+        for (int g = 0; g < gridCount; g++) {
+            fit(grids[g], values, count, channels, hdr, srgb, start, refinements, best);
+        }
+        pack(best, channels, hdr, block);
+    }
+
+    /**
+     * Fits endpoints and weights using the grid, starting at the endpoints and refining the endpoints using
+     * least squares. The result is stored in best if the error is less than the error of best.
+     */
+    private void fit(Grid grid, float[] values, int count, int channels, boolean hdr, boolean srgb, float[] start,
+            int refinements, Encoding best) {
+        float[] line = start.clone();
+        int[] endpoints = new int[8];
+        int[] expanded = new int[8];
+        int[] weights = new int[grid.getCount()];
+        int[] texelWeights = new int[count];
+        for (int i = 0; i <= refinements; i++) {
+            quantizeEndpoints(line, channels, hdr, srgb, endpoints, expanded);
+            selectWeights(grid, values, count, channels, expanded, weights);
+            double error = getError(grid, values, count, channels, expanded, weights, texelWeights);
+            if (quality != Quality.FAST) {
+                error = adjustWeights(grid, values, count, channels, expanded, weights, texelWeights, error);
+            }
+            if (error < best.error) {
+                best.set(grid, endpoints, weights, error);
+            }
+            if (error == 0 || i == refinements) {
+                break;
+            }
+            getTexelWeights(grid, weights, texelWeights);
+            leastSquares(values, count, channels, texelWeights, line);
+        }
+    }
+
+    /**
+     * Returns the endpoints, in the interpolation domain, at the ends of the principal axis of the values
+     */
+    private float[] principalEndpoints(float[] values, int count, int channels) {
+        float[] mean = new float[4];
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < channels; c++) {
+                mean[c] += values[i * 4 + c] / count;
+            }
+        }
+        float[] covariance = new float[16];
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < channels; c++) {
+                for (int d = 0; d < channels; d++) {
+                    covariance[c * 4 + d] += (values[i * 4 + c] - mean[c]) * (values[i * 4 + d] - mean[d]);
+                }
+            }
+        }
+        float[] axis = new float[] { 1, 1, 1, channels == 4 ? 1 : 0 };
+        for (int iteration = 0; iteration < 8; iteration++) {
+            float[] next = new float[4];
+            float length = 0;
+            for (int c = 0; c < channels; c++) {
+                for (int d = 0; d < channels; d++) {
+                    next[c] += covariance[c * 4 + d] * axis[d];
+                }
+                length += next[c] * next[c];
+            }
+            if (length == 0) {
+                break;
+            }
+            length = (float) Math.sqrt(length);
+            for (int c = 0; c < channels; c++) {
+                axis[c] = next[c] / length;
+            }
+        }
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < count; i++) {
+            float t = 0;
+            for (int c = 0; c < channels; c++) {
+                t += (values[i * 4 + c] - mean[c]) * axis[c];
+            }
+            min = Math.min(min, t);
+            max = Math.max(max, t);
+        }
+        float[] line = new float[8];
+        for (int c = 0; c < channels; c++) {
+            line[c] = mean[c] + axis[c] * min;
+            line[4 + c] = mean[c] + axis[c] * max;
+        }
+        return line;
+    }
+
+    /**
+     * Quantizes the endpoints to 8 bits and expands them to the interpolation domain. For LDR blocks the endpoints
+     * are swapped if needed so that the decoder does not use blue contraction.
+     */
+    private void quantizeEndpoints(float[] line, int channels, boolean hdr, boolean srgb, int[] endpoints,
+            int[] expanded) {
+        for (int e = 0; e < 2; e++) {
+            for (int c = 0; c < 4; c++) {
+                float value = line[e * 4 + c];
+                int max = hdr && c == 2 ? 127 : 255;
+                int quantized;
+                if (c >= channels) {
+                    quantized = max;
+                } else if (hdr) {
+                    quantized = Math.round(value / (c == 2 ? 512 : 256));
+                } else {
+                    quantized = Math.round(srgb && c < 3 ? (value - 128) / 256 : value / 257);
+                }
+                endpoints[e * 4 + c] = Math.max(0, Math.min(max, quantized));
+            }
+        }
+        if (!hdr && endpoints[4] + endpoints[5] + endpoints[6] < endpoints[0] + endpoints[1] + endpoints[2]) {
+            for (int c = 0; c < 4; c++) {
+                int endpoint = endpoints[c];
+                endpoints[c] = endpoints[4 + c];
+                endpoints[4 + c] = endpoint;
+            }
+        }
+        for (int i = 0; i < 8; i++) {
+            expanded[i] = ASTCFormat.expand(endpoints[i], i & 3, hdr, srgb);
+        }
+    }
+
+    /**
+     * Selects the grid weights from the projection of the values onto the endpoints, the weight of a grid point
+     * is the average of the texels it contributes to.
+     */
+    private void selectWeights(Grid grid, float[] values, int count, int channels, int[] expanded, int[] weights) {
+        float[] direction = new float[4];
+        float length = 0;
+        for (int c = 0; c < channels; c++) {
+            direction[c] = expanded[4 + c] - expanded[c];
+            length += direction[c] * direction[c];
+        }
+        float[] sums = new float[grid.getCount()];
+        float[] factors = new float[grid.getCount()];
+        for (int i = 0; i < count; i++) {
+            float t = 0;
+            if (length > 0) {
+                for (int c = 0; c < channels; c++) {
+                    t += (values[i * 4 + c] - expanded[c]) * direction[c];
+                }
+                t = Math.max(0, Math.min(64, t * 64 / length));
+            }
+            for (int k = 0; k < 4; k++) {
+                sums[grid.points[i * 4 + k]] += t * grid.factors[i * 4 + k];
+                factors[grid.points[i * 4 + k]] += grid.factors[i * 4 + k];
+            }
+        }
+        for (int g = 0; g < weights.length; g++) {
+            weights[g] = quantizeWeight(factors[g] > 0 ? sums[g] / factors[g] : 0, grid.bits);
+        }
+    }
+
+    /**
+     * Moves each grid weight one step up or down if that lowers the error, returns the error
+     */
+    private double adjustWeights(Grid grid, float[] values, int count, int channels, int[] expanded,
+            int[] weights, int[] texelWeights, double error) {
+        int max = (1 << grid.bits) - 1;
+        for (int g = 0; g < weights.length && error > 0; g++) {
+            int weight = weights[g];
+            for (int step = -1; step <= 1; step += 2) {
+                if (weight + step < 0 || weight + step > max) {
+                    continue;
+                }
+                weights[g] = weight + step;
+                double adjusted = getError(grid, values, count, channels, expanded, weights, texelWeights);
+                if (adjusted < error) {
+                    error = adjusted;
+                    break;
+                }
+                weights[g] = weight;
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Returns the squared error, in the interpolation domain, of the decoded block
+     */
+    private double getError(Grid grid, float[] values, int count, int channels, int[] expanded, int[] weights,
+            int[] texelWeights) {
+        getTexelWeights(grid, weights, texelWeights);
+        double error = 0;
+        for (int i = 0; i < count; i++) {
+            int w = texelWeights[i];
+            for (int c = 0; c < channels; c++) {
+                float delta = ASTCFormat.interpolate(expanded[c], expanded[4 + c], w) - values[i * 4 + c];
+                error += delta * delta;
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Solves the least squares endpoints for the texel weights, per channel. Endpoints are not changed for
+     * channels where all weights are the same.
+     */
+    private void leastSquares(float[] values, int count, int channels, int[] texelWeights, float[] line) {
+        float a11 = 0;
+        float a12 = 0;
+        float a22 = 0;
+        float[] b1 = new float[4];
+        float[] b2 = new float[4];
+        for (int i = 0; i < count; i++) {
+            float t = texelWeights[i] / 64f;
+            a11 += (1 - t) * (1 - t);
+            a12 += t * (1 - t);
+            a22 += t * t;
+            for (int c = 0; c < channels; c++) {
+                b1[c] += (1 - t) * values[i * 4 + c];
+                b2[c] += t * values[i * 4 + c];
+            }
+        }
+        float determinant = a11 * a22 - a12 * a12;
+        if (Math.abs(determinant) < 1e-6f) {
+            return;
+        }
+        for (int c = 0; c < channels; c++) {
+            line[c] = (a22 * b1[c] - a12 * b2[c]) / determinant;
+            line[4 + c] = (a11 * b2[c] - a12 * b1[c]) / determinant;
+        }
+    }
+
+    /**
+     * Writes the block, with one partition and one weight plane
+     */
+    private static void pack(Encoding encoding, int channels, boolean hdr, byte[] block) {
+        long[] bits = new long[2];
+        int cem = hdr ? ASTCFormat.CEM_HDR_RGB : channels == 4 ? ASTCFormat.CEM_LDR_RGBA : ASTCFormat.CEM_LDR_RGB;
+        put(bits, 0, encoding.grid.blockMode, 11);
+        put(bits, 13, cem, 4);
+        int position = ASTCFormat.COLOR_OFFSET;
+        for (int c = 0; c < channels; c++) {
+            // The direct HDR mode is flagged by the top bits of the blue values
+            int flag = hdr && c == 2 ? 0x80 : 0;
+            position = put(bits, position, encoding.endpoints[c] | flag, 8);
+            position = put(bits, position, encoding.endpoints[4 + c] | flag, 8);
+        }
+        // Weights are stored with reversed bit order from the end of the block
+        int[] weights = encoding.weights;
+        for (int i = 0; i < weights.length; i++) {
+            for (int b = 0; b < encoding.grid.bits; b++) {
+                put(bits, 127 - (i * encoding.grid.bits + b), weights[i] >> b, 1);
+            }
+        }
+        toBytes(bits, block);
+    }
+
+    /**
+     * Writes a void extent block, values are 8 bit LDR values or half floats
+     */
+    private static void packVoidExtent(boolean hdr, int[] values, byte[] block) {
+        long[] bits = new long[2];
+        // Void extent block mode, HDR flag, reserved bits and all extent coordinates set
+        bits[0] = 0xfffffffffffffdfcL | (hdr ? 0x200 : 0);
+        for (int c = 0; c < 4; c++) {
+            put(bits, 64 + c * 16, hdr ? values[c] : values[c] * 257, 16);
+        }
+        toBytes(bits, block);
+    }
+
+    /**
+     * Returns the block mode for the weight grid with the quantization mode, without dual plane, or -1 if the
+     * grid can not be encoded
+     */
+    static int getBlockMode(int width, int height, int quant) {
+        int high = quant >= 6 ? 1 : 0;
+        int range = quant - 6 * high + 2;
+        int low = ((range >> 1) & 3) | ((range & 1) << 4) | (high << 9);
+        if (width >= 4 && width <= 7 && height >= 2 && height <= 5) {
+            return low | ((width - 4) << 7) | ((height - 2) << 5);
+        } else if (width >= 8 && width <= 11 && height >= 2 && height <= 5) {
+            return low | (1 << 2) | ((width - 8) << 7) | ((height - 2) << 5);
+        } else if (width >= 2 && width <= 5 && height >= 8 && height <= 11) {
+            return low | (2 << 2) | ((height - 8) << 7) | ((width - 2) << 5);
+        } else if (width >= 2 && width <= 5 && height >= 6 && height <= 7) {
+            return low | (3 << 2) | ((height - 6) << 7) | ((width - 2) << 5);
+        } else if (width >= 2 && width <= 3 && height >= 2 && height <= 5) {
+            return low | (3 << 2) | 0x100 | ((width - 2) << 7) | ((height - 2) << 5);
+        } else if (width >= 6 && width <= 9 && height >= 6 && height <= 9 && high == 0) {
+            return ((range >> 1) << 2) | ((range & 1) << 4) | (2 << 7) | ((width - 6) << 5) | ((height - 6) << 9);
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the weight grids for the footprint, where values endpoint values fit as 8 bits, sorted so that
+     * grids with more texels and at least 3 bits per weight come first
+     */
+    private static Grid[] getGrids(int blockWidth, int blockHeight, int values) {
+        return GRIDS.computeIfAbsent((blockWidth << 16) | (blockHeight << 8) | values, key -> {
+            List<Grid> grids = new ArrayList<Grid>();
+            for (int height = 2; height <= blockHeight; height++) {
+                for (int width = 2; width <= blockWidth; width++) {
+                    for (int bits = 1; bits <= ASTCFormat.WEIGHT_QUANT.length; bits++) {
+                        int weightBits = width * height * bits;
+                        int blockMode = getBlockMode(width, height, ASTCFormat.WEIGHT_QUANT[bits - 1]);
+                        if (width * height <= 64 && weightBits >= 24 && weightBits <= 111 - values * 8
+                                && blockMode >= 0) {
+                            grids.add(new Grid(blockWidth, blockHeight, width, height, bits, blockMode));
+                        }
+                    }
+                }
+            }
+            grids.sort((g1, g2) -> {
+                int score1 = g1.getCount() * Math.min(3, g1.bits);
+                int score2 = g2.getCount() * Math.min(3, g2.bits);
+                return score1 != score2 ? score2 - score1 : g2.getCount() * g2.bits - g1.getCount() * g1.bits;
+            });
+            return grids.toArray(new Grid[0]);
+        });
+    }
+
+    /**
+     * Interpolates the grid weights to the texel weights, 0 to 64
+     */
+    private static void getTexelWeights(Grid grid, int[] weights, int[] texelWeights) {
+        for (int i = 0; i < texelWeights.length; i++) {
+            int sum = 8;
+            for (int k = 0; k < 4; k++) {
+                sum += unquantizeWeight(weights[grid.points[i * 4 + k]], grid.bits) * grid.factors[i * 4 + k];
+            }
+            texelWeights[i] = sum >> 4;
+        }
+    }
+
+    /**
+     * Returns the weight, with the number of bits, that is closest to the weight in the range 0 to 64
+     */
+    private static int quantizeWeight(float weight, int bits) {
+        int max = (1 << bits) - 1;
+        int quantized = Math.max(0, Math.min(max, Math.round(weight * max / 64)));
+        float error = Math.abs(unquantizeWeight(quantized, bits) - weight);
+        for (int step = -1; step <= 1; step += 2) {
+            int next = quantized + step;
+            if (next >= 0 && next <= max && Math.abs(unquantizeWeight(next, bits) - weight) < error) {
+                return next;
+            }
+        }
+        return quantized;
+    }
+
+    /**
+     * Returns the weight in the range 0 to 64, by replicating the bits to 6 bits
+     */
+    private static int unquantizeWeight(int weight, int bits) {
+        int replicated = 0;
+        for (int shift = 6 - bits; shift > -bits; shift -= bits) {
+            replicated |= shift >= 0 ? weight << shift : weight >> -shift;
+        }
+        return replicated > 32 ? replicated + 1 : replicated;
+    }
+
+    /**
+     * Returns the logarithmic value, used to interpolate HDR endpoints, of the half float
+     */
+    private static int toLNS(int half) {
+        int mantissa = ((half & 0x3ff) << 3) + 4;
+        if (mantissa < 1536) {
+            mantissa = mantissa / 3;
+        } else if (mantissa < 5632) {
+            mantissa = (mantissa + 512) >> 2;
+        } else {
+            mantissa = (mantissa + 2048) / 5;
+        }
+        return ((half >> 10) << 11) | mantissa;
+    }
+
+    private static int put(long[] bits, int position, int value, int count) {
+        long masked = value & ((1L << count) - 1);
+        bits[position >> 6] |= masked << (position & 63);
+        if ((position & 63) + count > 64) {
+            bits[1] |= masked >>> (64 - (position & 63));
+        }
+        return position + count;
+    }
+
+    private static void toBytes(long[] bits, byte[] block) {
+        for (int i = 0; i < 16; i++) {
+            block[i] = (byte) (bits[i >> 3] >>> ((i & 7) * 8));
+        }
+    }
+
+}
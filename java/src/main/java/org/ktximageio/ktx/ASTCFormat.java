@@ -0,0 +1,211 @@
+package org.ktximageio.ktx;
+
+/**
+ * Integer sequence encoding ranges, unquantization tables, partition selection and weight infill of the ASTC format,
+ * used by {@link ASTCEncoder}, {@link BlockDecoder} and {@link BasisTranscoder}
+ *
+ */
+final class ASTCFormat {
+
+    private ASTCFormat() {
+    }
+
+    /**
+     * The color endpoint modes used by the encoder
+     */
+    static final int CEM_LDR_RGB = 8;
+    static final int CEM_HDR_RGB = 11;
+    static final int CEM_LDR_RGBA = 12;
+    /**
+     * Bit position of the endpoint values in a block with one partition
+     */
+    static final int COLOR_OFFSET = 17;
+    /**
+     * Alpha of the HDR endpoint modes without alpha, in the interpolation domain, and the half float 1
+     */
+    static final int HDR_ALPHA = 0x7800;
+    static final int HALF_ONE = 0x3c00;
+    /**
+     * The weight quantization modes that are stored as bits only, for 1 to 5 bits
+     */
+    static final int[] WEIGHT_QUANT = { 0, 2, 5, 8, 11 };
+
+    /**
+     * The ranges of the integer sequence encoding, indexed by quantization mode, the first 12 are used for weights
+     */
+    static final int[] ISE_RANGES = { 2, 3, 4, 5, 6, 8, 10, 12, 16, 20, 24, 32, 40, 48, 64, 80, 96, 128,
+            160, 192, 256 };
+    private static final int WEIGHT_RANGE_COUNT = 12;
+    /**
+     * The bit patterns and multipliers used to unquantize trit and quint values with 1 to 6 bits
+     */
+    private static final String[][] COLOR_PATTERNS = {
+            { "000000000", "b000b0bb0", "cb000cbcb", "dcb000dcb", "edcb000ed", "fedcb000f" },
+            { "000000000", "b0000bb00", "cb0000cbc", "dcb0000dc", "edcb0000e" } };
+    private static final int[][] COLOR_MULTIPLIERS = { { 204, 93, 44, 22, 11, 5 }, { 113, 54, 26, 13, 6 } };
+    private static final String[][] WEIGHT_PATTERNS = { { "0000000", "b000b0b", "cb000cb" },
+            { "0000000", "b0000b0" } };
+    private static final int[][] WEIGHT_MULTIPLIERS = { { 50, 23, 11 }, { 28, 13 } };
+    static final int[][] COLOR_UNQUANTIZATION = createUnquantization(true);
+    static final int[][] WEIGHT_UNQUANTIZATION = createUnquantization(false);
+
+    /**
+     * Returns the partition of the texel, using the partition seed
+     */
+    static int selectPartition(int seed, int x, int y, int partitions, boolean small) {
+        if (small) {
+            x <<= 1;
+            y <<= 1;
+        }
+        seed += (partitions - 1) * 1024;
+        int rnum = hash52(seed);
+        int[] seeds = new int[12];
+        for (int i = 0; i < 8; i++) {
+            seeds[i] = (rnum >>> (i * 4)) & 0x0f;
+        }
+        seeds[8] = (rnum >>> 18) & 0x0f;
+        seeds[9] = (rnum >>> 22) & 0x0f;
+        seeds[10] = (rnum >>> 26) & 0x0f;
+        seeds[11] = ((rnum >>> 30) | (rnum << 2)) & 0x0f;
+        int sh1;
+        int sh2;
+        if ((seed & 1) != 0) {
+            sh1 = (seed & 2) != 0 ? 4 : 5;
+            sh2 = partitions == 3 ? 6 : 5;
+        } else {
+            sh1 = partitions == 3 ? 6 : 5;
+            sh2 = (seed & 2) != 0 ? 4 : 5;
+        }
+        int sh3 = (seed & 0x10) != 0 ? sh1 : sh2;
+        for (int i = 0; i < 12; i++) {
+            seeds[i] = (seeds[i] * seeds[i]) >> (i >= 8 ? sh3 : (i & 1) == 0 ? sh1 : sh2);
+        }
+        // z is 0 for 2D blocks
+        int a = (seeds[0] * x + seeds[1] * y + (rnum >>> 14)) & 0x3f;
+        int b = (seeds[2] * x + seeds[3] * y + (rnum >>> 10)) & 0x3f;
+        int c = partitions < 3 ? 0 : (seeds[4] * x + seeds[5] * y + (rnum >>> 6)) & 0x3f;
+        int d = partitions < 4 ? 0 : (seeds[6] * x + seeds[7] * y + (rnum >>> 2)) & 0x3f;
+        if (a >= b && a >= c && a >= d) {
+            return 0;
+        } else if (b >= c && b >= d) {
+            return 1;
+        }
+        return c >= d ? 2 : 3;
+    }
+
+    private static int hash52(int value) {
+        value ^= value >>> 15;
+        value *= 0xeede0891;
+        value ^= value >>> 5;
+        value += value << 16;
+        value ^= value >>> 7;
+        value ^= value >>> 3;
+        value ^= value << 6;
+        value ^= value >>> 17;
+        return value;
+    }
+
+    /**
+     * Returns the number of bits used to store count values with the integer sequence encoding of the range
+     */
+    static int getISEBitCount(int count, int range) {
+        int bits = 31 - Integer.numberOfLeadingZeros(range % 3 == 0 ? range / 3 : range % 5 == 0 ? range / 5 : range);
+        int total = count * bits;
+        if (range % 3 == 0) {
+            total += (count * 8 + 4) / 5;
+        } else if (range % 5 == 0) {
+            total += (count * 7 + 2) / 3;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the unquantization table of each range, for colors to 0 to 255 and for weights to 0 to 64.
+     * Trit and quint ranges use the bit patterns and multipliers of the specification, the bits of a value are
+     * named a (lowest) to f.
+     */
+    private static int[][] createUnquantization(boolean color) {
+        int[][] tables = new int[color ? ISE_RANGES.length : WEIGHT_RANGE_COUNT][];
+        for (int i = 0; i < tables.length; i++) {
+            int range = ISE_RANGES[i];
+            int[] table = new int[range];
+            boolean trits = range % 3 == 0;
+            boolean quints = range % 5 == 0;
+            int n = 31 - Integer.numberOfLeadingZeros(trits ? range / 3 : quints ? range / 5 : range);
+            int size = color ? 9 : 7;
+            for (int value = 0; value < range; value++) {
+                int m = value & ((1 << n) - 1);
+                int digit = value >> n;
+                if (!trits && !quints) {
+                    int replicated = 0;
+                    for (int shift = size - 1 - n; shift > -n; shift -= n) {
+                        replicated |= shift >= 0 ? m << shift : m >> -shift;
+                    }
+                    table[value] = color || replicated <= 32 ? replicated : replicated + 1;
+                } else if (n == 0) {
+                    table[value] = digit * (color ? 255 : 64) / (range - 1);
+                } else {
+                    String pattern = (color ? COLOR_PATTERNS : WEIGHT_PATTERNS)[trits ? 0 : 1][n - 1];
+                    int b = 0;
+                    for (int k = 0; k < pattern.length(); k++) {
+                        char bit = pattern.charAt(k);
+                        b = (b << 1) | (bit == '0' ? 0 : (m >> (bit - 'a')) & 1);
+                    }
+                    int a = (m & 1) != 0 ? (1 << size) - 1 : 0;
+                    int multiplier = (color ? COLOR_MULTIPLIERS : WEIGHT_MULTIPLIERS)[trits ? 0 : 1][n - 1];
+                    int t = (digit * multiplier + b) ^ a;
+                    t = (a & (1 << (size - 2))) | (t >> 2);
+                    table[value] = color || t <= 32 ? t : t + 1;
+                }
+            }
+            tables[i] = table;
+        }
+        return tables;
+    }
+
+    /**
+     * Calculates the grid points and factors used to interpolate the weight of each texel from the weight grid
+     */
+    static void getInfill(int blockWidth, int blockHeight, int width, int height, int[] points,
+            int[] factors) {
+        int ds = (1024 + blockWidth / 2) / (blockWidth - 1);
+        int dt = (1024 + blockHeight / 2) / (blockHeight - 1);
+        for (int t = 0; t < blockHeight; t++) {
+            for (int s = 0; s < blockWidth; s++) {
+                int gs = (ds * s * (width - 1) + 32) >> 6;
+                int gt = (dt * t * (height - 1) + 32) >> 6;
+                int fs = gs & 15;
+                int ft = gt & 15;
+                int point = (gs >> 4) + (gt >> 4) * width;
+                int w11 = (fs * ft + 8) >> 4;
+                int index = (t * blockWidth + s) * 4;
+                factors[index] = 16 - fs - ft + w11;
+                factors[index + 1] = fs - w11;
+                factors[index + 2] = ft - w11;
+                factors[index + 3] = w11;
+                points[index] = point;
+                points[index + 1] = factors[index + 1] > 0 ? point + 1 : point;
+                points[index + 2] = factors[index + 2] > 0 ? point + width : point;
+                points[index + 3] = factors[index + 3] > 0 ? point + width + 1 : point;
+            }
+        }
+    }
+
+    /**
+     * Expands an 8 bit endpoint value to the 16 bit interpolation domain, HDR blue endpoints have 7 bits
+     */
+    static int expand(int value, int channel, boolean hdr, boolean srgb) {
+        if (hdr) {
+            return channel == 3 ? HDR_ALPHA : value << (channel == 2 ? 9 : 8);
+        }
+        return srgb && channel < 3 ? (value << 8) | 0x80 : (value << 8) | value;
+    }
+
+    /**
+     * Interpolates the 16 bit endpoints with the weight, 0 to 64
+     */
+    static int interpolate(int endpoint0, int endpoint1, int weight) {
+        return (endpoint0 * (64 - weight) + endpoint1 * weight + 32) >> 6;
+    }
+
+}
@@ -0,0 +1,220 @@
+package org.ktximageio.ktx;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.Orientation;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+import org.ktximageio.ktx.KTX.SuperCompression;
+
+/**
+ * Packs many equally sized images, or cubemaps, into the layers of one KTX2 texture array or cubemap array.
+ * The layers are read and converted on the executor while the previous layers are compressed and written, at most
+ * maxLayers layers are kept in memory. When writing to a file each layer is written as soon as it is compressed,
+ * to a channel that is not seekable the compressed layers are kept until the header has been written.
+ *
+ */
+public class ArrayPacker {
+
+    /**
+     * Default max number of layers in memory
+     */
+    public static final int DEFAULT_MAX_LAYERS = 4;
+
+    private final Executor executor;
+    private final int maxLayers;
+    private final KTXSerializer serializer = new KTXSerializer();
+
+    /**
+     * Creates a packer using {@link #DEFAULT_MAX_LAYERS}
+     *
+     * @param executor Executor that reads and converts the layers, for instance
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     */
+    public ArrayPacker(@NonNull Executor executor) {
+        this(executor, DEFAULT_MAX_LAYERS);
+    }
+
+    /**
+     * Creates a packer
+     *
+     * @param executor Executor that reads and converts the layers
+     * @param maxLayers Max number of layers read or in use at the same time, 1 reads one layer at a time
+     */
+    public ArrayPacker(@NonNull Executor executor, int maxLayers) {
+        if (maxLayers < 1) {
+            throw new IllegalArgumentException("INVALID VALUE, maxLayers " + maxLayers);
+        }
+        this.executor = executor;
+        this.maxLayers = maxLayers;
+    }
+
+    /**
+     * Packs the images into one texture array, one layer per image in the order of the list.
+     * If the images are cubemaps, such as KTX2 files with 6 faces, a cubemap array is written.
+     * Images must match in format, size and number of faces.
+     *
+     * @param destination
+     * @param images The image files, the reader is selected by file extension
+     * @param superCompression
+     * @throws IOException If an image could not be read or the file could not be written
+     * @throws IllegalArgumentException If the images does not match
+     */
+    public void packArray(@NonNull Path destination, @NonNull List<Path> images,
+            @NonNull SuperCompression superCompression) throws IOException {
+        try (FileChannel out = open(destination)) {
+            packArray(out, images, superCompression);
+        }
+    }
+
+    /**
+     * Packs the images into a texture array written to the channel, as
+     * {@link #packArray(Path, List, SuperCompression)} - the channel is not closed. If the channel is not a
+     * {@link java.nio.channels.SeekableByteChannel} the compressed layers are kept in memory until all are packed.
+     *
+     * @param channel
+     * @param images
+     * @param superCompression
+     * @throws IOException
+     */
+    public void packArray(@NonNull WritableByteChannel channel, @NonNull List<Path> images,
+            @NonNull SuperCompression superCompression) throws IOException {
+        if (images.isEmpty()) {
+            throw new IllegalArgumentException("INVALID VALUE, no images");
+        }
+        List<Supplier<ImageBuffer[]>> tasks = new ArrayList<Supplier<ImageBuffer[]>>();
+        for (Path image : images) {
+            tasks.add(() -> new ImageBuffer[] { read(image, ImageFormat.VK_FORMAT_R16G16B16_SFLOAT) });
+        }
+        Iterator<ImageBuffer[]> layers = new PipelinedIterator<ImageBuffer[]>(tasks, executor, maxLayers);
+        try {
+            // The number of faces is known when the first layer is read
+            ImageBuffer[] first = layers.next();
+            serializer.serializeLayers(channel, flatten(first, layers), first[0].faceCount, superCompression);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Converts each panorama (equirectangular) image to a cubemap, using {@link PanoramaToCubemap}, and packs the
+     * cubemaps into one cubemap array. HDR panoramas are stored as VK_FORMAT_R16G16B16_SFLOAT, others as
+     * VK_FORMAT_R8G8B8_UNORM.
+     *
+     * @param destination
+     * @param panoramas The panorama files, must be the same size
+     * @param superCompression
+     * @throws IOException If a panorama could not be read or the file could not be written
+     */
+    public void packCubemapArray(@NonNull Path destination, @NonNull List<Path> panoramas,
+            @NonNull SuperCompression superCompression) throws IOException {
+        try (FileChannel out = open(destination)) {
+            packCubemapArray(out, panoramas, superCompression);
+        }
+    }
+
+    /**
+     * Converts the panoramas and packs the cubemaps into a cubemap array written to the channel, as
+     * {@link #packCubemapArray(Path, List, SuperCompression)} - the channel is not closed.
+     *
+     * @param channel
+     * @param panoramas
+     * @param superCompression
+     * @throws IOException
+     */
+    public void packCubemapArray(@NonNull WritableByteChannel channel, @NonNull List<Path> panoramas,
+            @NonNull SuperCompression superCompression) throws IOException {
+        if (panoramas.isEmpty()) {
+            throw new IllegalArgumentException("INVALID VALUE, no panoramas");
+        }
+        PanoramaToCubemap ptc = new PanoramaToCubemap();
+        List<Supplier<ImageBuffer[]>> tasks = new ArrayList<Supplier<ImageBuffer[]>>();
+        for (Path panorama : panoramas) {
+            tasks.add(() -> {
+                ImageBuffer input = read(panorama, ImageFormat.VK_FORMAT_R16G16B16_SFLOAT);
+                try {
+                    ImageFormat format = input.getFormat().isFloatFormat() ? ImageFormat.VK_FORMAT_R16G16B16_SFLOAT
+                            : ImageFormat.VK_FORMAT_R8G8B8_UNORM;
+                    float[] sourceData = input.getAsFloatArray(0);
+                    Orientation[] orientations = Orientation.values();
+                    ImageBuffer[] faces = new ImageBuffer[orientations.length];
+                    for (int i = 0; i < faces.length; i++) {
+                        faces[i] = ptc.createCubeMapFace(input, sourceData, orientations[i], format);
+                    }
+                    return faces;
+                } finally {
+                    input.destroy();
+                }
+            });
+        }
+        Iterator<ImageBuffer> faces = flatten(null, new PipelinedIterator<ImageBuffer[]>(tasks, executor,
+                maxLayers));
+        try {
+            serializer.serializeLayers(channel, faces, Orientation.values().length, superCompression);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    private ImageBuffer read(Path path, ImageFormat format) {
+        ImageReader reader = ImageReader.getImageReader(path.toString(), format);
+        if (reader == null) {
+            throw new IllegalArgumentException("INVALID VALUE, no reader for " + path);
+        }
+        try {
+            ImageHeader header = reader.read(path);
+            try {
+                return header.getData();
+            } finally {
+                header.destroy();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the images of each layer in order, starting with the images of first if not null
+     */
+    private Iterator<ImageBuffer> flatten(ImageBuffer[] first, Iterator<ImageBuffer[]> layers) {
+        return new Iterator<ImageBuffer>() {
+
+            private ImageBuffer[] current = first;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return (current != null && index < current.length) || layers.hasNext();
+            }
+
+            @Override
+            public ImageBuffer next() {
+                if (current == null || index >= current.length) {
+                    if (!layers.hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    current = layers.next();
+                    index = 0;
+                }
+                return current[index++];
+            }
+        };
+    }
+
+}
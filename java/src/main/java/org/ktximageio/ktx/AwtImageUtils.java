@@ -14,6 +14,7 @@ import java.awt.image.DataBufferByte;
 import java.awt.image.Raster;
 import java.awt.image.WritableRaster;
 import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
 
 import org.ktximageio.ktx.FloatImageBuffer.Tonemap;
 import org.ktximageio.ktx.ImageReader.ImageFormat;
@@ -252,6 +253,9 @@ public class AwtImageUtils {
 
     public static void displayBuffer(ImageBuffer buffer, WindowListener listener, int windowX, int windowY, String... titles) {
         int screenWidth = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice().getDisplayMode().getWidth();
+        if (buffer.format.isBlockCompressed()) {
+            buffer = new BlockDecoder(ForkJoinPool.commonPool()).decode(buffer);
+        }
         for (int i = 0; i < buffer.faceCount; i++) {
             String title = titles != null && titles.length > i ? titles[i] : "Face " + i;
             TonemappWindow window = new TonemappWindow(title, null, listener);
@@ -0,0 +1,316 @@
+package org.ktximageio.ktx;
+
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Encoder for BC6H, VK_FORMAT_BC6H_UFLOAT_BLOCK and VK_FORMAT_BC6H_SFLOAT_BLOCK, where HDR RGB texels are stored in
+ * 4 x 4 blocks of 16 bytes - 8 bits per texel instead of 48 for VK_FORMAT_R16G16B16_SFLOAT.
+ * Blocks are encoded using the one region modes, with 10 bit endpoints or an 11, 12 or 16 bit endpoint and delta,
+ * and 4 bit indices. Endpoints are fitted to the half float bits of the texels, so that the error is relative to
+ * the value as with the half float format. The two region modes are only decoded, by {@link BlockDecoder}.
+ * {@link BlockEncoder.Quality#FAST} uses the principal axis of the texels and 10 bit endpoints,
+ * {@link BlockEncoder.Quality#NORMAL} tries all one region modes and refines the endpoints once and
+ * {@link BlockEncoder.Quality#HIGH} refines the endpoints more and also starts from the bounding box of the texels.
+ * Negative values are clamped to 0 for VK_FORMAT_BC6H_UFLOAT_BLOCK and values are clamped to the max half float.
+ */
+public class BC6HEncoder extends BlockEncoder {
+
+    private static final int INDEX_OFFSET = 65;
+
+    /**
+     * Creates an encoder using {@link BlockEncoder.Quality#NORMAL}
+     *
+     * @param executor
+     */
+    public BC6HEncoder(@NonNull Executor executor) {
+        this(executor, Quality.NORMAL);
+    }
+
+    /**
+     * Creates an encoder
+     *
+     * @param executor Executor for the tiles
+     * @param quality
+     */
+    public BC6HEncoder(@NonNull Executor executor, @NonNull Quality quality) {
+        super(executor, quality);
+    }
+
+    @Override
+    public boolean isSupported(@NonNull ImageFormat format) {
+        return format == ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK || format == ImageFormat.VK_FORMAT_BC6H_SFLOAT_BLOCK;
+    }
+
+    @Override
+    protected void encodeBlock(float[] texels, ImageFormat format, byte[] block) {
+        boolean signed = format == ImageFormat.VK_FORMAT_BC6H_SFLOAT_BLOCK;
+        int[] halfs = new int[48];
+        float[] values = new float[48];
+        float scale = signed ? 32f / 31 : 64f / 31;
+        for (int i = 0; i < 16; i++) {
+            for (int c = 0; c < 3; c++) {
+                halfs[i * 3 + c] = BC6HFormat.toHalf(texels[i * 4 + c], signed);
+                values[i * 3 + c] = halfs[i * 3 + c] * scale;
+            }
+        }
+        int modeCount = quality == Quality.FAST ? 1 : BC6HFormat.MODES.length;
+        int iterations = quality == Quality.FAST ? 0 : quality == Quality.NORMAL ? 1 : 4;
+        float[][] starts = quality == Quality.HIGH ? new float[][] { principalEndpoints(values, signed),
+                boundingBoxEndpoints(values) } : new float[][] { principalEndpoints(values, signed) };
+        int[] endpoints = new int[6];
+        int[] indices = new int[16];
+        int[] bestEndpoints = new int[6];
+        int[] bestIndices = new int[16];
+        int bestMode = 0;
+        long bestError = Long.MAX_VALUE;
+        for (float[] start : starts) {
+            for (int mode = 0; mode < modeCount && bestError > 0; mode++) {
+                float[] refined = start.clone();
+                for (int i = 0; i <= iterations; i++) {
+                    long error = fit(BC6HFormat.MODES[mode], refined, signed, halfs, endpoints, indices);
+                    if (error < bestError) {
+                        bestError = error;
+                        bestMode = mode;
+                        System.arraycopy(endpoints, 0, bestEndpoints, 0, endpoints.length);
+                        System.arraycopy(indices, 0, bestIndices, 0, indices.length);
+                    }
+                    if (error == 0 || i == iterations || !leastSquares(values, indices, refined, signed)) {
+                        break;
+                    }
+                }
+            }
+        }
+        pack(BC6HFormat.MODES[bestMode], bestEndpoints, bestIndices, block);
+    }
+
+    /**
+     * Quantizes the endpoints, 6 values in the unquantized domain, for the mode and selects the indices.
+     * Returns the squared error in the half float domain.
+     */
+    private long fit(int[] mode, float[] start, boolean signed, int[] halfs, int[] endpoints, int[] indices) {
+        for (int i = 0; i < 6; i++) {
+            endpoints[i] = quantize(start[i], mode[1], signed);
+        }
+        clampDelta(mode, endpoints);
+        long error = selectIndices(mode, endpoints, signed, halfs, indices, 16);
+        if (indices[0] >= 8) {
+            // The msb of the first index is not stored, swap endpoints so that the first index is < 8
+            for (int c = 0; c < 3; c++) {
+                int endpoint = endpoints[c];
+                endpoints[c] = endpoints[3 + c];
+                endpoints[3 + c] = endpoint;
+            }
+            clampDelta(mode, endpoints);
+            error = selectIndices(mode, endpoints, signed, halfs, indices, 8);
+        }
+        return error;
+    }
+
+    /**
+     * Moves the second endpoint towards the first if the difference does not fit in the delta bits
+     */
+    private void clampDelta(int[] mode, int[] endpoints) {
+        if (mode[2] > 0) {
+            int limit = 1 << (mode[2] - 1);
+            for (int c = 0; c < 3; c++) {
+                int delta = Math.max(-limit, Math.min(limit - 1, endpoints[3 + c] - endpoints[c]));
+                endpoints[3 + c] = endpoints[c] + delta;
+            }
+        }
+    }
+
+    /**
+     * Selects the index with least error for each texel, the first texel is restricted to the first firstCount indices.
+     * Returns the squared error in the half float domain.
+     */
+    private long selectIndices(int[] mode, int[] endpoints, boolean signed, int[] halfs, int[] indices,
+            int firstCount) {
+        int[] palette = BC6HFormat.createPalette(mode[1], endpoints, signed);
+        long total = 0;
+        for (int i = 0; i < 16; i++) {
+            long best = Long.MAX_VALUE;
+            int count = i == 0 ? firstCount : 16;
+            for (int index = 0; index < count; index++) {
+                long error = 0;
+                for (int c = 0; c < 3; c++) {
+                    long diff = palette[index * 3 + c] - halfs[i * 3 + c];
+                    error += diff * diff;
+                }
+                if (error < best) {
+                    best = error;
+                    indices[i] = index;
+                }
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    /**
+     * Refits the endpoints to the texels using the indices, returns false if the endpoints could not be solved.
+     */
+    private boolean leastSquares(float[] values, int[] indices, float[] endpoints, boolean signed) {
+        float aa = 0;
+        float bb = 0;
+        float ab = 0;
+        for (int i = 0; i < 16; i++) {
+            float t = BC6HFormat.WEIGHTS[indices[i]] / 64f;
+            aa += (1 - t) * (1 - t);
+            bb += t * t;
+            ab += t * (1 - t);
+        }
+        float det = aa * bb - ab * ab;
+        if (Math.abs(det) < 1e-6f) {
+            return false;
+        }
+        for (int c = 0; c < 3; c++) {
+            float ax = 0;
+            float bx = 0;
+            for (int i = 0; i < 16; i++) {
+                float t = BC6HFormat.WEIGHTS[indices[i]] / 64f;
+                ax += (1 - t) * values[i * 3 + c];
+                bx += t * values[i * 3 + c];
+            }
+            endpoints[c] = clamp((ax * bb - bx * ab) / det, signed);
+            endpoints[3 + c] = clamp((bx * aa - ax * ab) / det, signed);
+        }
+        return true;
+    }
+
+    /**
+     * Returns endpoints at the extent of the texels along the principal axis
+     */
+    private float[] principalEndpoints(float[] values, boolean signed) {
+        float[] mean = new float[3];
+        float[] min = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE };
+        float[] max = new float[] { -Float.MAX_VALUE, -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = 0; i < 16; i++) {
+            for (int c = 0; c < 3; c++) {
+                float value = values[i * 3 + c];
+                mean[c] += value / 16;
+                min[c] = Math.min(min[c], value);
+                max[c] = Math.max(max[c], value);
+            }
+        }
+        float[] covariance = new float[6];
+        for (int i = 0; i < 16; i++) {
+            float r = values[i * 3] - mean[0];
+            float g = values[i * 3 + 1] - mean[1];
+            float b = values[i * 3 + 2] - mean[2];
+            covariance[0] += r * r;
+            covariance[1] += r * g;
+            covariance[2] += r * b;
+            covariance[3] += g * g;
+            covariance[4] += g * b;
+            covariance[5] += b * b;
+        }
+        float[] axis = new float[] { max[0] - min[0], max[1] - min[1], max[2] - min[2] };
+        for (int i = 0; i < 8; i++) {
+            float r = covariance[0] * axis[0] + covariance[1] * axis[1] + covariance[2] * axis[2];
+            float g = covariance[1] * axis[0] + covariance[3] * axis[1] + covariance[4] * axis[2];
+            float b = covariance[2] * axis[0] + covariance[4] * axis[1] + covariance[5] * axis[2];
+            float length = (float) Math.sqrt(r * r + g * g + b * b);
+            if (length < 1e-6f) {
+                break;
+            }
+            axis[0] = r / length;
+            axis[1] = g / length;
+            axis[2] = b / length;
+        }
+        float minT = 0;
+        float maxT = 0;
+        for (int i = 0; i < 16; i++) {
+            float t = (values[i * 3] - mean[0]) * axis[0] + (values[i * 3 + 1] - mean[1]) * axis[1]
+                    + (values[i * 3 + 2] - mean[2]) * axis[2];
+            minT = Math.min(minT, t);
+            maxT = Math.max(maxT, t);
+        }
+        float[] endpoints = new float[6];
+        for (int c = 0; c < 3; c++) {
+            endpoints[c] = clamp(mean[c] + axis[c] * minT, signed);
+            endpoints[3 + c] = clamp(mean[c] + axis[c] * maxT, signed);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Returns the min and max of each channel as endpoints
+     */
+    private float[] boundingBoxEndpoints(float[] values) {
+        float[] endpoints = new float[] { Float.MAX_VALUE, Float.MAX_VALUE, Float.MAX_VALUE, -Float.MAX_VALUE,
+                -Float.MAX_VALUE, -Float.MAX_VALUE };
+        for (int i = 0; i < 16; i++) {
+            for (int c = 0; c < 3; c++) {
+                endpoints[c] = Math.min(endpoints[c], values[i * 3 + c]);
+                endpoints[3 + c] = Math.max(endpoints[3 + c], values[i * 3 + c]);
+            }
+        }
+        return endpoints;
+    }
+
+    private static float clamp(float value, boolean signed) {
+        return signed ? Math.max(-0x7fff, Math.min(0x7fff, value)) : Math.max(0, Math.min(0xffff, value));
+    }
+
+    /**
+     * Returns the quantized endpoint, with the bits of the mode, that is unquantized closest to value
+     */
+    private static int quantize(float value, int bits, boolean signed) {
+        int max = signed ? (1 << (bits - 1)) - 1 : (1 << bits) - 1;
+        int min = signed ? -max : 0;
+        int estimate = Math.round(signed ? value * (max + 1) / 0x8000 : value * (max + 1) / 0x10000);
+        int best = 0;
+        float bestError = Float.MAX_VALUE;
+        for (int q = Math.max(min, estimate - 1); q <= Math.min(max, estimate + 1); q++) {
+            float error = Math.abs(BC6HFormat.unquantize(q, bits, signed) - value);
+            if (error < bestError) {
+                bestError = error;
+                best = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Writes the block using the one region mode, endpoints are the quantized first and second endpoint.
+     */
+    private static void pack(int[] mode, int[] endpoints, int[] indices, byte[] block) {
+        long[] bits = new long[2];
+        int position = put(bits, 0, mode[0], BC6HFormat.MODE_BITS);
+        for (int c = 0; c < 3; c++) {
+            position = put(bits, position, endpoints[c], 10);
+        }
+        for (int c = 0; c < 3; c++) {
+            int base = endpoints[c];
+            if (mode[2] == 0) {
+                position = put(bits, position, endpoints[3 + c], 10);
+            } else {
+                position = put(bits, position, endpoints[3 + c] - base, mode[2]);
+                for (int bit : BC6HFormat.getHighBits(mode[1])) {
+                    position = put(bits, position, base >> bit, 1);
+                }
+            }
+        }
+        if (position != INDEX_OFFSET) {
+            throw new IllegalArgumentException("INVALID STATE, index offset " + position);
+        }
+        position = put(bits, position, indices[0], 3);
+        for (int i = 1; i < 16; i++) {
+            position = put(bits, position, indices[i], 4);
+        }
+        for (int i = 0; i < 16; i++) {
+            block[i] = (byte) (bits[i >> 3] >>> ((i & 7) * 8));
+        }
+    }
+
+    private static int put(long[] bits, int position, int value, int count) {
+        for (int i = 0; i < count; i++, position++) {
+            bits[position >> 6] |= ((long) (value >>> i) & 1) << (position & 63);
+        }
+        return position;
+    }
+
+}
@@ -0,0 +1,110 @@
+package org.ktximageio.ktx;
+
+/**
+ * Modes, weights and endpoint unquantization of the BC6H format, used by {@link BC6HEncoder} and
+ * {@link BlockDecoder}
+ *
+ */
+final class BC6HFormat {
+
+    private BC6HFormat() {
+    }
+
+    /**
+     * The weights of the 4 bit indices
+     */
+    static final int[] WEIGHTS = { 0, 4, 9, 13, 17, 21, 26, 30, 34, 38, 43, 47, 51, 55, 60, 64 };
+    /**
+     * The one region modes: mode bits, endpoint bits and delta bits, 0 if endpoints are not transformed
+     */
+    static final int[][] MODES = { { 0x03, 10, 0 }, { 0x07, 11, 9 }, { 0x0b, 12, 8 }, { 0x0f, 16, 4 } };
+    private static final int MAX_HALF = 0x7bff;
+    static final int MODE_BITS = 5;
+
+    /**
+     * Returns the 16 interpolated colors, as half float values with sign, for the quantized endpoints
+     */
+    static int[] createPalette(int bits, int[] endpoints, boolean signed) {
+        return createPalette(bits, endpoints, 0, signed, WEIGHTS);
+    }
+
+    /**
+     * Returns the interpolated colors for the weights, using the endpoints starting at offset
+     */
+    static int[] createPalette(int bits, int[] endpoints, int offset, boolean signed, int[] weights) {
+        int[] palette = new int[weights.length * 3];
+        for (int c = 0; c < 3; c++) {
+            int a = unquantize(endpoints[offset + c], bits, signed);
+            int b = unquantize(endpoints[offset + 3 + c], bits, signed);
+            for (int index = 0; index < weights.length; index++) {
+                int value = (a * (64 - weights[index]) + b * weights[index] + 32) >> 6;
+                palette[index * 3 + c] = finishUnquantize(value, signed);
+            }
+        }
+        return palette;
+    }
+
+    /**
+     * Expands the quantized endpoint to 16 bits, unsigned or signed
+     */
+    static int unquantize(int value, int bits, boolean signed) {
+        if (!signed) {
+            if (bits >= 15 || value == 0) {
+                return value;
+            }
+            return value == (1 << bits) - 1 ? 0xffff : ((value << 16) + 0x8000) >> bits;
+        }
+        if (bits >= 16) {
+            return value;
+        }
+        int magnitude = Math.abs(value);
+        int unquantized = magnitude == 0 ? 0
+                : magnitude >= (1 << (bits - 1)) - 1 ? 0x7fff : ((magnitude << 15) + 0x4000) >> (bits - 1);
+        return value < 0 ? -unquantized : unquantized;
+    }
+
+    /**
+     * Scales the interpolated value to half float bits, negative if the value is negative
+     */
+    static int finishUnquantize(int value, boolean signed) {
+        if (!signed) {
+            return (value * 31) >> 6;
+        }
+        return value < 0 ? -(((-value) * 31) >> 5) : (value * 31) >> 5;
+    }
+
+    /**
+     * Returns the half float bits of the value, without sign bit and negative if value is negative, rounded to
+     * nearest and clamped to the largest half float. NaN and, for unsigned formats, negative values return 0.
+     */
+    static int toHalf(float value, boolean signed) {
+        if (Float.isNaN(value) || value == 0 || (!signed && value < 0)) {
+            return 0;
+        }
+        int bits = Float.floatToRawIntBits(Math.abs(value));
+        int exponent = ((bits >>> 23) & 0xff) - 127 + 15;
+        int half;
+        if (exponent >= 31) {
+            half = MAX_HALF;
+        } else if (exponent <= 0) {
+            int shift = 14 - exponent;
+            half = shift > 24 ? 0 : (((bits & 0x7fffff) | 0x800000) + (1 << (shift - 1))) >> shift;
+        } else {
+            half = Math.min(MAX_HALF, (exponent << 10) + (((bits & 0x7fffff) + 0x1000) >> 13));
+        }
+        return value < 0 ? -half : half;
+    }
+
+    /**
+     * Returns the order that the bits above the first 10 of the base endpoint are stored in after the delta,
+     * reversed for 12 and 16 bit endpoints.
+     */
+    static int[] getHighBits(int bits) {
+        int[] order = new int[bits - 10];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = bits > 11 ? bits - 1 - i : 10 + i;
+        }
+        return order;
+    }
+
+}
@@ -0,0 +1,488 @@
+package org.ktximageio.ktx;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.BC7Format.Mode;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Encoder for BC7, VK_FORMAT_BC7_UNORM_BLOCK and VK_FORMAT_BC7_SRGB_BLOCK, where 8 bit RGBA texels are stored in
+ * 4 x 4 blocks of 16 bytes - 8 bits per texel instead of 32 for VK_FORMAT_R8G8B8A8_UNORM.
+ * Texels are encoded as stored in the source, sRGB values are not linearized.
+ * {@link BlockEncoder.Quality#FAST} uses mode 6, one subset with 4 bit indices.
+ * {@link BlockEncoder.Quality#NORMAL} also tries mode 5 and the two subset modes, 1 and 3 for opaque blocks or 7
+ * for blocks with alpha, using the 4 partitions with the least estimated error, and refines the endpoints once.
+ * {@link BlockEncoder.Quality#HIGH} also tries mode 4 and the channel rotations of mode 4 and 5, uses the 16 best
+ * partitions and refines the endpoints more.
+ * The three subset modes, 0 and 2, are not used by the encoder but are handled by {@link BlockDecoder}.
+ */
+public class BC7Encoder extends BlockEncoder {
+
+    private static final int[] RGB = { 0, 1, 2 };
+    private static final int[] RGBA = { 0, 1, 2, 3 };
+    private static final int[] ALPHA = { 3 };
+
+    /**
+     * One encoding of a block, endpoints are the quantized values without p-bit stored as
+     * [subset * 8 + endpoint * 4 + channel], channels are rotated.
+     */
+    private static final class Encoding {
+        private final Mode mode;
+        private final int partition;
+        private final int rotation;
+        private final int indexSelection;
+        private final int[] endpoints = new int[24];
+        private final int[] pBits = new int[6];
+        private final int[] colorIndices = new int[16];
+        private final int[] alphaIndices = new int[16];
+        private long error;
+
+        private Encoding(Mode mode, int partition, int rotation, int indexSelection) {
+            this.mode = mode;
+            this.partition = partition;
+            this.rotation = rotation;
+            this.indexSelection = indexSelection;
+        }
+
+        private int getSubset(int texel) {
+            return BC7Format.getSubset(mode.subsets, partition, texel);
+        }
+
+        private int getAnchor(int subset) {
+            return BC7Format.getAnchor(mode.subsets, partition, subset);
+        }
+
+        private int getColorIndexBits() {
+            return indexSelection == 0 ? mode.indexBits : mode.secondIndexBits;
+        }
+
+        private int getAlphaIndexBits() {
+            return indexSelection == 0 ? mode.secondIndexBits : mode.indexBits;
+        }
+    }
+
+    /**
+     * Creates an encoder using {@link BlockEncoder.Quality#NORMAL}
+     *
+     * @param executor
+     */
+    public BC7Encoder(@NonNull Executor executor) {
+        this(executor, Quality.NORMAL);
+    }
+
+    /**
+     * Creates an encoder
+     *
+     * @param executor Executor for the tiles
+     * @param quality
+     */
+    public BC7Encoder(@NonNull Executor executor, @NonNull Quality quality) {
+        super(executor, quality);
+    }
+
+    @Override
+    public boolean isSupported(@NonNull ImageFormat format) {
+        return format == ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK || format == ImageFormat.VK_FORMAT_BC7_SRGB_BLOCK;
+    }
+
+    @Override
+    protected void encodeBlock(float[] texels, ImageFormat format, byte[] block) {
+        int[] values = new int[64];
+        boolean opaque = true;
+        for (int i = 0; i < values.length; i++) {
+            values[i] = Math.round(Math.max(0, Math.min(1, texels[i])) * 255);
+            opaque &= (i & 3) != 3 || values[i] == 255;
+        }
+        int iterations = quality == Quality.FAST ? 0 : quality == Quality.NORMAL ? 1 : 3;
+        Encoding best = encode(BC7Format.MODES[6], values, 0, 0, 0, iterations);
+        if (quality != Quality.FAST) {
+            int rotations = quality == Quality.HIGH ? 4 : 1;
+            for (int rotation = 0; rotation < rotations && best.error > 0; rotation++) {
+                best = getBest(best, encode(BC7Format.MODES[5], values, 0, rotation, 0, iterations));
+                if (quality == Quality.HIGH) {
+                    for (int indexSelection = 0; indexSelection < 2; indexSelection++) {
+                        best = getBest(best, encode(BC7Format.MODES[4], values, 0, rotation, indexSelection,
+                                iterations));
+                    }
+                }
+            }
+            int[] modes = opaque ? new int[] { 1, 3 } : new int[] { 7 };
+            for (int partition : selectPartitions(values, quality == Quality.HIGH ? 16 : 4)) {
+                for (int mode : modes) {
+                    if (best.error > 0) {
+                        best = getBest(best, encode(BC7Format.MODES[mode], values, partition, 0, 0, iterations));
+                    }
+                }
+            }
+        }
+        pack(best, block);
+    }
+
+    private static Encoding getBest(Encoding best, Encoding encoding) {
+        return encoding.error < best.error ? encoding : best;
+    }
+
+    /**
+     * Fits the endpoints and indices of each subset using the mode, partition, rotation and index selection.
+     */
+    private Encoding encode(Mode mode, int[] values, int partition, int rotation, int indexSelection,
+            int iterations) {
+        Encoding encoding = new Encoding(mode, partition, rotation, indexSelection);
+        int[] rotated = values;
+        if (rotation > 0) {
+            rotated = values.clone();
+            for (int i = 0; i < 16; i++) {
+                rotated[i * 4 + 3] = values[i * 4 + rotation - 1];
+                rotated[i * 4 + rotation - 1] = values[i * 4 + 3];
+            }
+        }
+        for (int subset = 0; subset < mode.subsets; subset++) {
+            int[] members = new int[16];
+            int count = 0;
+            for (int i = 0; i < 16; i++) {
+                if (encoding.getSubset(i) == subset) {
+                    members[count++] = i;
+                }
+            }
+            members = Arrays.copyOf(members, count);
+            if (mode.secondIndexBits == 0) {
+                encoding.error += fitSubset(encoding, subset, rotated, members, mode.alphaBits > 0 ? RGBA : RGB,
+                        mode.colorBits, mode.pBits, encoding.getColorIndexBits(), encoding.colorIndices,
+                        iterations);
+                if (mode.alphaBits == 0) {
+                    for (int i : members) {
+                        encoding.error += (255 - rotated[i * 4 + 3]) * (255 - rotated[i * 4 + 3]);
+                    }
+                }
+            } else {
+                encoding.error += fitSubset(encoding, subset, rotated, members, RGB, mode.colorBits, BC7Format.P_NONE,
+                        encoding.getColorIndexBits(), encoding.colorIndices, iterations);
+                encoding.error += fitSubset(encoding, subset, rotated, members, ALPHA, mode.alphaBits, BC7Format.P_NONE,
+                        encoding.getAlphaIndexBits(), encoding.alphaIndices, iterations);
+            }
+        }
+        return encoding;
+    }
+
+    /**
+     * Fits the endpoints of the channels of one subset, tries all p-bit combinations and stores the best endpoints,
+     * p-bits and indices in the encoding. Endpoints are swapped if the msb of the anchor index is set.
+     * Returns the squared error of the channels.
+     */
+    private long fitSubset(Encoding encoding, int subset, int[] values, int[] members, int[] channels, int bits,
+            int pMode, int indexBits, int[] indices, int iterations) {
+        int[] weights = BC7Format.getWeights(indexBits);
+        float[] start = principalEndpoints(values, members, channels);
+        int[] codes = new int[8];
+        int[] expanded = new int[8];
+        int[] selected = new int[16];
+        long bestError = Long.MAX_VALUE;
+        int pCount = pMode == BC7Format.P_NONE ? 1 : pMode == BC7Format.P_SHARED ? 2 : 4;
+        for (int iteration = 0; iteration <= iterations; iteration++) {
+            for (int p = 0; p < pCount; p++) {
+                int p0 = pMode == BC7Format.P_NONE ? -1 : p & 1;
+                int p1 = pMode == BC7Format.P_NONE ? -1 : pMode == BC7Format.P_SHARED ? p0 : p >> 1;
+                for (int c : channels) {
+                    codes[c] = quantize(start[c], bits, p0);
+                    codes[4 + c] = quantize(start[4 + c], bits, p1);
+                    expanded[c] = BC7Format.expand(codes[c], bits, p0);
+                    expanded[4 + c] = BC7Format.expand(codes[4 + c], bits, p1);
+                }
+                long error = selectIndices(values, members, channels, expanded, weights, selected);
+                if (error < bestError) {
+                    bestError = error;
+                    for (int c : channels) {
+                        encoding.endpoints[subset * 8 + c] = codes[c];
+                        encoding.endpoints[subset * 8 + 4 + c] = codes[4 + c];
+                    }
+                    if (pMode != BC7Format.P_NONE) {
+                        encoding.pBits[subset * 2] = p0;
+                        encoding.pBits[subset * 2 + 1] = p1;
+                    }
+                    for (int i : members) {
+                        indices[i] = selected[i];
+                    }
+                }
+            }
+            if (bestError == 0 || iteration == iterations || !leastSquares(values, members, channels, indices,
+                    weights, start)) {
+                break;
+            }
+        }
+        int anchor = encoding.getAnchor(subset);
+        if (indices[anchor] >= weights.length / 2) {
+            // The msb of the anchor index is not stored, swap endpoints and invert the indices
+            for (int c : channels) {
+                int endpoint = encoding.endpoints[subset * 8 + c];
+                encoding.endpoints[subset * 8 + c] = encoding.endpoints[subset * 8 + 4 + c];
+                encoding.endpoints[subset * 8 + 4 + c] = endpoint;
+            }
+            int p = encoding.pBits[subset * 2];
+            encoding.pBits[subset * 2] = encoding.pBits[subset * 2 + 1];
+            encoding.pBits[subset * 2 + 1] = p;
+            for (int i : members) {
+                indices[i] = weights.length - 1 - indices[i];
+            }
+        }
+        return bestError;
+    }
+
+    /**
+     * Selects the index with least error for each member texel, expanded holds the 8 bit endpoints as
+     * [endpoint * 4 + channel]. Returns the squared error.
+     */
+    private static long selectIndices(int[] values, int[] members, int[] channels, int[] expanded, int[] weights,
+            int[] indices) {
+        int[] palette = new int[weights.length * 4];
+        for (int index = 0; index < weights.length; index++) {
+            for (int c : channels) {
+                palette[index * 4 + c] = BC7Format.interpolate(expanded[c], expanded[4 + c], weights[index]);
+            }
+        }
+        long total = 0;
+        for (int i : members) {
+            int best = Integer.MAX_VALUE;
+            for (int index = 0; index < weights.length; index++) {
+                int error = 0;
+                for (int c : channels) {
+                    int diff = palette[index * 4 + c] - values[i * 4 + c];
+                    error += diff * diff;
+                }
+                if (error < best) {
+                    best = error;
+                    indices[i] = index;
+                }
+            }
+            total += best;
+        }
+        return total;
+    }
+
+    /**
+     * Refits the endpoints to the member texels using the indices, returns false if the endpoints could not be
+     * solved.
+     */
+    private static boolean leastSquares(int[] values, int[] members, int[] channels, int[] indices, int[] weights,
+            float[] endpoints) {
+        float aa = 0;
+        float bb = 0;
+        float ab = 0;
+        for (int i : members) {
+            float t = weights[indices[i]] / 64f;
+            aa += (1 - t) * (1 - t);
+            bb += t * t;
+            ab += t * (1 - t);
+        }
+        float det = aa * bb - ab * ab;
+        if (Math.abs(det) < 1e-6f) {
+            return false;
+        }
+        for (int c : channels) {
+            float ax = 0;
+            float bx = 0;
+            for (int i : members) {
+                float t = weights[indices[i]] / 64f;
+                ax += (1 - t) * values[i * 4 + c];
+                bx += t * values[i * 4 + c];
+            }
+            endpoints[c] = clamp((ax * bb - bx * ab) / det);
+            endpoints[4 + c] = clamp((bx * aa - ax * ab) / det);
+        }
+        return true;
+    }
+
+    /**
+     * Returns endpoints, as [endpoint * 4 + channel], at the extent of the member texels along the principal axis
+     */
+    private static float[] principalEndpoints(int[] values, int[] members, int[] channels) {
+        float[] mean = new float[4];
+        float[] axis = new float[4];
+        for (int c : channels) {
+            int min = 255;
+            int max = 0;
+            for (int i : members) {
+                mean[c] += (float) values[i * 4 + c] / members.length;
+                min = Math.min(min, values[i * 4 + c]);
+                max = Math.max(max, values[i * 4 + c]);
+            }
+            axis[c] = max - min;
+        }
+        float[] covariance = getCovariance(values, members, channels, mean);
+        powerIteration(covariance, channels, axis);
+        float minT = 0;
+        float maxT = 0;
+        for (int i : members) {
+            float t = 0;
+            for (int c : channels) {
+                t += (values[i * 4 + c] - mean[c]) * axis[c];
+            }
+            minT = Math.min(minT, t);
+            maxT = Math.max(maxT, t);
+        }
+        float[] endpoints = new float[8];
+        for (int c : channels) {
+            endpoints[c] = clamp(mean[c] + axis[c] * minT);
+            endpoints[4 + c] = clamp(mean[c] + axis[c] * maxT);
+        }
+        return endpoints;
+    }
+
+    /**
+     * Returns the 4 x 4 covariance matrix of the channels of the member texels
+     */
+    private static float[] getCovariance(int[] values, int[] members, int[] channels, float[] mean) {
+        float[] covariance = new float[16];
+        for (int i : members) {
+            for (int c0 : channels) {
+                for (int c1 : channels) {
+                    covariance[c0 * 4 + c1] += (values[i * 4 + c0] - mean[c0]) * (values[i * 4 + c1] - mean[c1]);
+                }
+            }
+        }
+        return covariance;
+    }
+
+    /**
+     * Turns axis into the normalized principal axis of the covariance, returns the variance along the axis.
+     */
+    private static float powerIteration(float[] covariance, int[] channels, float[] axis) {
+        float[] next = new float[4];
+        float length = 0;
+        for (int iteration = 0; iteration < 8; iteration++) {
+            length = 0;
+            for (int c0 : channels) {
+                next[c0] = 0;
+                for (int c1 : channels) {
+                    next[c0] += covariance[c0 * 4 + c1] * axis[c1];
+                }
+                length += next[c0] * next[c0];
+            }
+            length = (float) Math.sqrt(length);
+            if (length < 1e-6f) {
+                return 0;
+            }
+            for (int c : channels) {
+                axis[c] = next[c] / length;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Returns the two subset partitions with the least estimated error, the variance that is not along the
+     * principal axis of each subset.
+     */
+    private static int[] selectPartitions(int[] values, int count) {
+        float[] estimates = new float[BC7Format.PARTITIONS.length];
+        for (int partition = 0; partition < BC7Format.PARTITIONS.length; partition++) {
+            for (int subset = 0; subset < 2; subset++) {
+                int[] members = new int[16];
+                int size = 0;
+                for (int i = 0; i < 16; i++) {
+                    if (((BC7Format.PARTITIONS[partition] >>> i) & 1) == subset) {
+                        members[size++] = i;
+                    }
+                }
+                members = Arrays.copyOf(members, size);
+                float[] mean = new float[4];
+                for (int c : RGBA) {
+                    for (int i : members) {
+                        mean[c] += (float) values[i * 4 + c] / size;
+                    }
+                }
+                float[] covariance = getCovariance(values, members, RGBA, mean);
+                float[] axis = new float[] { 1, 1, 1, 1 };
+                estimates[partition] += covariance[0] + covariance[5] + covariance[10] + covariance[15]
+                        - powerIteration(covariance, RGBA, axis);
+            }
+        }
+        int[] partitions = new int[count];
+        boolean[] used = new boolean[BC7Format.PARTITIONS.length];
+        for (int i = 0; i < count; i++) {
+            int best = -1;
+            for (int partition = 0; partition < BC7Format.PARTITIONS.length; partition++) {
+                if (!used[partition] && (best < 0 || estimates[partition] < estimates[best])) {
+                    best = partition;
+                }
+            }
+            used[best] = true;
+            partitions[i] = best;
+        }
+        return partitions;
+    }
+
+    private static float clamp(float value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Returns the quantized value, with bits and p-bit, that is expanded closest to value. p is -1 if there is no
+     * p-bit.
+     */
+    private static int quantize(float value, int bits, int p) {
+        int max = (1 << bits) - 1;
+        int estimate = p < 0 ? Math.round(value * max / 255)
+                : Math.round((value * ((1 << (bits + 1)) - 1) / 255 - p) / 2);
+        int best = 0;
+        float bestError = Float.MAX_VALUE;
+        for (int q = Math.max(0, estimate - 1); q <= Math.min(max, estimate + 1); q++) {
+            float error = Math.abs(BC7Format.expand(q, bits, p) - value);
+            if (error < bestError) {
+                bestError = error;
+                best = q;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Writes the encoding to the block
+     */
+    private static void pack(Encoding encoding, byte[] block) {
+        Mode mode = encoding.mode;
+        long[] bits = new long[2];
+        int position = put(bits, 0, 1 << mode.number, mode.number + 1);
+        position = put(bits, position, encoding.partition, mode.partitionBits);
+        position = put(bits, position, encoding.rotation, mode.rotationBits);
+        position = put(bits, position, encoding.indexSelection, mode.indexSelectionBits);
+        for (int c = 0; c < 4; c++) {
+            int channelBits = c < 3 ? mode.colorBits : mode.alphaBits;
+            for (int endpoint = 0; endpoint < mode.subsets * 2; endpoint++) {
+                position = put(bits, position, encoding.endpoints[endpoint * 4 + c], channelBits);
+            }
+        }
+        if (mode.pBits != BC7Format.P_NONE) {
+            int step = mode.pBits == BC7Format.P_SHARED ? 2 : 1;
+            for (int endpoint = 0; endpoint < mode.subsets * 2; endpoint += step) {
+                position = put(bits, position, encoding.pBits[endpoint], 1);
+            }
+        }
+        int[] first = encoding.indexSelection == 0 ? encoding.colorIndices : encoding.alphaIndices;
+        for (int i = 0; i < 16; i++) {
+            boolean anchor = i == encoding.getAnchor(encoding.getSubset(i));
+            position = put(bits, position, first[i], anchor ? mode.indexBits - 1 : mode.indexBits);
+        }
+        if (mode.secondIndexBits > 0) {
+            int[] second = encoding.indexSelection == 0 ? encoding.alphaIndices : encoding.colorIndices;
+            for (int i = 0; i < 16; i++) {
+                position = put(bits, position, second[i], i == 0 ? mode.secondIndexBits - 1 : mode.secondIndexBits);
+            }
+        }
+        if (position != 128) {
+            throw new IllegalArgumentException("INVALID STATE, block size " + position);
+        }
+        for (int i = 0; i < 16; i++) {
+            block[i] = (byte) (bits[i >> 3] >>> ((i & 7) * 8));
+        }
+    }
+
+    private static int put(long[] bits, int position, int value, int count) {
+        for (int i = 0; i < count; i++, position++) {
+            bits[position >> 6] |= ((long) (value >>> i) & 1) << (position & 63);
+        }
+        return position;
+    }
+
+}
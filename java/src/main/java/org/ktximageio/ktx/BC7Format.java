@@ -0,0 +1,157 @@
+package org.ktximageio.ktx;
+
+/**
+ * Modes, partitions, weights and endpoint expansion of the BC7 format, used by {@link BC7Encoder} and
+ * {@link BlockDecoder}
+ *
+ */
+final class BC7Format {
+
+    private BC7Format() {
+    }
+
+    /**
+     * No p-bits, one shared p-bit per subset or one p-bit per endpoint
+     */
+    static final int P_NONE = 0;
+    static final int P_SHARED = 1;
+    static final int P_ENDPOINT = 2;
+
+    /**
+     * The modes, indexed by mode number, the three subset modes 0 and 2 are only decoded
+     */
+    static final Mode[] MODES = { new Mode(0, 3, 4, 0, 0, 4, 0, P_ENDPOINT, 3, 0),
+            new Mode(1, 2, 6, 0, 0, 6, 0, P_SHARED, 3, 0),
+            new Mode(2, 3, 6, 0, 0, 5, 0, P_NONE, 2, 0),
+            new Mode(3, 2, 6, 0, 0, 7, 0, P_ENDPOINT, 2, 0),
+            new Mode(4, 1, 0, 2, 1, 5, 6, P_NONE, 2, 3),
+            new Mode(5, 1, 0, 2, 0, 7, 8, P_NONE, 2, 2),
+            new Mode(6, 1, 0, 0, 0, 7, 7, P_ENDPOINT, 4, 0),
+            new Mode(7, 2, 6, 0, 0, 5, 5, P_ENDPOINT, 2, 0) };
+
+    /**
+     * The weights of the 2, 3 and 4 bit indices
+     */
+    private static final int[] WEIGHTS2 = { 0, 21, 43, 64 };
+    private static final int[] WEIGHTS3 = { 0, 9, 18, 27, 37, 46, 55, 64 };
+    private static final int[] WEIGHTS4 = { 0, 4, 9, 13, 17, 21, 26, 30, 34, 38, 43, 47, 51, 55, 60, 64 };
+
+    /**
+     * The two subset partitions, bit n is set if texel n belongs to the second subset
+     */
+    static final int[] PARTITIONS = { 0xcccc, 0x8888, 0xeeee, 0xecc8, 0xc880, 0xfeec, 0xfec8, 0xec80,
+            0xc800, 0xffec, 0xfe80, 0xe800, 0xffe8, 0xff00, 0xfff0, 0xf000, 0xf710, 0x008e, 0x7100, 0x08ce, 0x008c,
+            0x7310, 0x3100, 0x8cce, 0x088c, 0x3110, 0x6666, 0x366c, 0x17e8, 0x0ff0, 0x718e, 0x399c, 0xaaaa, 0xf0f0,
+            0x5a5a, 0x33cc, 0x3c3c, 0x55aa, 0x9696, 0xa55a, 0x73ce, 0x13c8, 0x324c, 0x3bdc, 0x6996, 0xc33c, 0x9966,
+            0x0660, 0x0272, 0x04e4, 0x4e40, 0x2720, 0xc936, 0x936c, 0x39c6, 0x639c, 0x9336, 0x9cc6, 0x817e, 0xe718,
+            0xccf0, 0x0fcc, 0x7744, 0xee22 };
+
+    /**
+     * The anchor texel of the second subset for each two subset partition, the anchor of the first subset is texel 0
+     */
+    static final int[] ANCHORS = { 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 2, 8,
+            2, 2, 8, 8, 15, 2, 8, 2, 2, 8, 8, 2, 2, 15, 15, 6, 8, 2, 8, 15, 15, 2, 8, 2, 2, 2, 15, 15, 6, 6, 2, 6, 8,
+            15, 15, 2, 2, 15, 15, 15, 15, 15, 2, 2, 15 };
+
+    /**
+     * The three subset partitions, 2 bits per texel holding the subset of the texel
+     */
+    static final int[] PARTITIONS3 = { 0xaa685050, 0x6a5a5040, 0x5a5a4200, 0x5450a0a8, 0xa5a50000,
+            0xa0a05050, 0x5555a0a0, 0x5a5a5050, 0xaa550000, 0xaa555500, 0xaaaa5500, 0x90909090, 0x94949494,
+            0xa4a4a4a4, 0xa9a59450, 0x2a0a4250, 0xa5945040, 0x0a425054, 0xa5a5a500, 0x55a0a0a0, 0xa8a85454,
+            0x6a6a4040, 0xa4a45000, 0x1a1a0500, 0x0050a4a4, 0xaaa59090, 0x14696914, 0x69691400, 0xa08585a0,
+            0xaa821414, 0x50a4a450, 0x6a5a0200, 0xa9a58000, 0x5090a0a8, 0xa8a09050, 0x24242424, 0x00aa5500,
+            0x24924924, 0x24499224, 0x50a50a50, 0x500aa550, 0xaaaa4444, 0x66660000, 0xa5a0a5a0, 0x50a050a0,
+            0x69286928, 0x44aaaa44, 0x66666600, 0xaa444444, 0x54a854a8, 0x95809580, 0x96969600, 0xa85454a8,
+            0x80959580, 0xaa141414, 0x96960000, 0xaaaa1414, 0xa05050a0, 0xa0a5a5a0, 0x96000000, 0x40804080,
+            0xa9a8a9a8, 0xaaaaaa44, 0x2a4a5254 };
+
+    /**
+     * The anchor texels of the second and third subset for each three subset partition
+     */
+    static final int[] ANCHORS3_SECOND = { 3, 3, 15, 15, 8, 3, 15, 15, 8, 8, 6, 6, 6, 5, 3, 3, 3, 3, 8,
+            15, 3, 3, 6, 10, 5, 8, 8, 6, 8, 5, 15, 15, 8, 15, 3, 5, 6, 10, 8, 15, 15, 3, 15, 5, 15, 15, 15, 15, 3,
+            15, 5, 5, 5, 8, 5, 10, 5, 10, 8, 13, 15, 12, 3, 3 };
+    static final int[] ANCHORS3_THIRD = { 15, 8, 8, 3, 15, 15, 3, 8, 15, 15, 15, 15, 15, 15, 15, 8, 15, 8,
+            15, 3, 15, 8, 15, 8, 3, 15, 6, 10, 15, 15, 10, 8, 15, 3, 15, 10, 10, 8, 9, 10, 6, 15, 8, 15, 3, 6, 6, 8,
+            15, 3, 15, 15, 15, 15, 15, 15, 15, 15, 15, 15, 3, 15, 15, 8 };
+
+    /**
+     * Description of a BC7 mode
+     */
+    static final class Mode {
+        final int number;
+        final int subsets;
+        final int partitionBits;
+        final int rotationBits;
+        final int indexSelectionBits;
+        final int colorBits;
+        final int alphaBits;
+        final int pBits;
+        final int indexBits;
+        /**
+         * Bits of the second set of indices, 0 if alpha uses the same indices as color
+         */
+        final int secondIndexBits;
+
+        private Mode(int number, int subsets, int partitionBits, int rotationBits, int indexSelectionBits,
+                int colorBits, int alphaBits, int pBits, int indexBits, int secondIndexBits) {
+            this.number = number;
+            this.subsets = subsets;
+            this.partitionBits = partitionBits;
+            this.rotationBits = rotationBits;
+            this.indexSelectionBits = indexSelectionBits;
+            this.colorBits = colorBits;
+            this.alphaBits = alphaBits;
+            this.pBits = pBits;
+            this.indexBits = indexBits;
+            this.secondIndexBits = secondIndexBits;
+        }
+    }
+
+    /**
+     * Returns the subset of the texel for the partition, with 1 to 3 subsets
+     */
+    static int getSubset(int subsets, int partition, int texel) {
+        if (subsets == 3) {
+            return (PARTITIONS3[partition] >>> (texel * 2)) & 3;
+        }
+        return subsets == 1 ? 0 : (PARTITIONS[partition] >>> texel) & 1;
+    }
+
+    /**
+     * Returns the anchor texel, where the highest index bit is not stored, of the subset for the partition
+     */
+    static int getAnchor(int subsets, int partition, int subset) {
+        if (subsets == 3 && subset > 0) {
+            return subset == 1 ? ANCHORS3_SECOND[partition] : ANCHORS3_THIRD[partition];
+        }
+        return subset == 0 ? 0 : ANCHORS[partition];
+    }
+
+    /**
+     * Returns the weights of the indices with indexBits
+     */
+    static int[] getWeights(int indexBits) {
+        return indexBits == 2 ? WEIGHTS2 : indexBits == 3 ? WEIGHTS3 : WEIGHTS4;
+    }
+
+    /**
+     * Interpolates the 8 bit endpoints with the weight, 0 to 64
+     */
+    static int interpolate(int e0, int e1, int weight) {
+        return (e0 * (64 - weight) + e1 * weight + 32) >> 6;
+    }
+
+    /**
+     * Expands the quantized value, with the p-bit if p is not -1, to 8 bits
+     */
+    static int expand(int value, int bits, int p) {
+        if (p >= 0) {
+            value = (value << 1) | p;
+            bits++;
+        }
+        return ((value << (8 - bits)) | (value >> (2 * bits - 8))) & 0xff;
+    }
+
+}
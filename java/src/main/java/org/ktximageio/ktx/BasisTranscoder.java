@@ -0,0 +1,932 @@
+package org.ktximageio.ktx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.BlockEncoder.Quality;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+import org.ktximageio.ktx.KTX.KTXHeader;
+
+/**
+ * Transcoder for Basis Universal textures, KTX2 files with VK_FORMAT_UNDEFINED that use the ETC1S color model with
+ * BasisLZ supercompression or the UASTC color model. One file can then be shipped for all targets and be transcoded
+ * when it is loaded, to the first of the target formats that the texture can be written to.
+ * The slices of a level, one per layer, face and depth slice, are decoded at the same time using the executor.
+ * ETC1S is transcoded to ETC2 RGB by copying the ETC1 blocks, the other block compressed targets are encoded from
+ * the decoded texels using {@link BC7Encoder}, {@link ETC2Encoder} or {@link ASTCEncoder}.
+ * Use {@link KTXHeader#setTranscodeFormats(ImageFormat...)} to select the formats that levels are transcoded to when
+ * they are fetched from the header.
+ */
+public class BasisTranscoder {
+
+    /**
+     * The formats Basis Universal textures can be transcoded to, ETC2 RGB only if the texture has no alpha
+     */
+    public static final ImageFormat[] TARGET_FORMATS = new ImageFormat[] { ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK,
+            ImageFormat.VK_FORMAT_ASTC_4x4_SRGB_BLOCK, ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK,
+            ImageFormat.VK_FORMAT_BC7_SRGB_BLOCK, ImageFormat.VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK,
+            ImageFormat.VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK, ImageFormat.VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK,
+            ImageFormat.VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK, ImageFormat.VK_FORMAT_R8G8B8A8_UNORM,
+            ImageFormat.VK_FORMAT_R8G8B8A8_SRGB };
+
+    /**
+     * Size of the BasisLZ global data header and of one image description
+     */
+    private static final int BASISLZ_HEADER_SIZE = 20;
+    private static final int IMAGE_DESC_SIZE = 20;
+    private static final int ETC1S_P_FRAME = 0x02;
+
+    /**
+     * The Huffman tables, code sizes are sent using the code length codes in the order of CODE_LENGTH_ORDER
+     */
+    private static final int MAX_SYMBOLS_BITS = 14;
+    private static final int MAX_CODE_SIZE = 16;
+    private static final int SMALL_ZERO_RUN = 17;
+    private static final int BIG_ZERO_RUN = 18;
+    private static final int SMALL_REPEAT = 19;
+    private static final int[] CODE_LENGTH_ORDER = { 17, 18, 19, 20, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14,
+            1, 15, 16 };
+
+    /**
+     * The ETC1S slice symbols, the endpoint predictions of 2 x 2 blocks are sent as one symbol
+     */
+    private static final int COLOR5_PAL0_PREV_HI = 9;
+    private static final int COLOR5_PAL1_PREV_HI = 21;
+    private static final int ENDPOINT_PRED_REPEAT_LAST_SYMBOL = 256;
+    private static final int ENDPOINT_PRED_COUNT_VLC_BITS = 4;
+    private static final int ENDPOINT_PRED_MIN_REPEAT_COUNT = 3;
+    private static final int SELECTOR_HISTORY_RLE_COUNT_THRESHOLD = 3;
+    private static final int SELECTOR_HISTORY_RLE_COUNT_TOTAL = 64;
+    private static final int SELECTOR_HISTORY_RLE_VLC_BITS = 7;
+
+    /**
+     * The ETC1 pixel index of the ETC1S selectors, selectors go from the most negative to the most positive modifier
+     */
+    private static final int[] SELECTOR_TO_ETC1 = { 3, 2, 0, 1 };
+
+    /**
+     * The UASTC modes: prefix code and size, weight bits, endpoint quantization mode, subsets, planes and number of
+     * components. Mode 8 is a solid color.
+     */
+    static final int UASTC_MODE_SOLID = 8;
+    static final int[][] UASTC_MODE_CODES = { { 0x1, 4 }, { 0x35, 6 }, { 0x1d, 5 }, { 0x3, 5 }, { 0x13, 5 },
+            { 0xb, 5 }, { 0x1b, 5 }, { 0x7, 5 }, { 0x17, 5 }, { 0xf, 5 }, { 0x2, 3 }, { 0x0, 2 }, { 0x6, 3 },
+            { 0x1f, 5 }, { 0xd, 5 }, { 0x5, 7 }, { 0x15, 6 }, { 0x25, 6 }, { 0x9, 4 } };
+    static final int[] UASTC_WEIGHT_BITS = { 4, 2, 3, 2, 2, 3, 2, 2, 0, 2, 4, 2, 3, 1, 2, 4, 2, 2, 5 };
+    static final int[] UASTC_ENDPOINT_RANGES = { 19, 20, 8, 7, 12, 20, 18, 12, 0, 8, 13, 13, 19, 20, 20, 20, 20, 20,
+            11 };
+    static final int[] UASTC_SUBSETS = { 1, 1, 2, 3, 2, 1, 1, 2, 0, 2, 1, 1, 1, 1, 1, 1, 2, 1, 1 };
+    static final int[] UASTC_PLANES = { 1, 1, 1, 1, 1, 1, 2, 1, 0, 1, 1, 2, 1, 2, 1, 1, 1, 2, 1 };
+    static final int[] UASTC_COMPONENTS = { 3, 3, 3, 3, 3, 3, 3, 3, 4, 4, 4, 4, 4, 4, 4, 2, 2, 2, 3 };
+    /**
+     * The transcoding hints of each mode, the number of BC1 hint bits and if the 5 bit ETC1 bias is stored. All
+     * modes store the ETC1 flip and differential bits and the two ETC1 intensity tables, modes with alpha also store
+     * 8 bits of EAC hints.
+     */
+    static final int[] UASTC_BC1_HINTS = { 2, 2, 2, 2, 2, 2, 2, 2, 0, 2, 1, 1, 1, 2, 2, 2, 2, 2, 2 };
+    static final int[] UASTC_ETC1_BIAS = { 1, 1, 1, 1, 1, 1, 1, 1, 0, 1, 0, 0, 0, 1, 1, 1, 1, 1, 1 };
+    static final int UASTC_FIRST_ALPHA_MODE = 9;
+    /**
+     * The ASTC partition seeds of the UASTC partition patterns, these are the patterns that ASTC has in common with
+     * the BC7 two and three subset patterns, and the BC7 three subset patterns that ASTC can store using two subsets
+     */
+    static final int[] UASTC_SEEDS2 = { 28, 20, 16, 29, 91, 9, 107, 72, 149, 204, 50, 114, 496, 17, 78, 39, 252, 828,
+            43, 156, 116, 210, 476, 273, 684, 359, 246, 195, 694, 524 };
+    static final int[] UASTC_SEEDS3 = { 260, 74, 32, 156, 183, 15, 745, 0, 335, 902, 254 };
+    static final int[] UASTC_SEEDS2_FROM3 = { 36, 48, 61, 137, 161, 183, 226, 281, 302, 307, 479, 495, 593, 594, 605,
+            799, 812, 988, 993 };
+    static final int[][] UASTC_PATTERNS2 = createPatterns(UASTC_SEEDS2, 2);
+    static final int[][] UASTC_PATTERNS3 = createPatterns(UASTC_SEEDS3, 3);
+    static final int[][] UASTC_PATTERNS2_FROM3 = createPatterns(UASTC_SEEDS2_FROM3, 2);
+    private static final int[] UASTC_MODES = createModeTable();
+
+    /**
+     * Huffman decoding table, codes are canonical and are stored most significant bit first
+     */
+    private static final class HuffmanTable {
+        private final int[] counts = new int[MAX_CODE_SIZE + 1];
+        private final int[] symbols;
+
+        private HuffmanTable(int[] codeSizes) {
+            int[] offsets = new int[MAX_CODE_SIZE + 2];
+            for (int size : codeSizes) {
+                counts[size]++;
+            }
+            counts[0] = 0;
+            for (int size = 1; size <= MAX_CODE_SIZE; size++) {
+                offsets[size + 1] = offsets[size] + counts[size];
+            }
+            symbols = new int[offsets[MAX_CODE_SIZE + 1]];
+            for (int symbol = 0; symbol < codeSizes.length; symbol++) {
+                if (codeSizes[symbol] > 0) {
+                    symbols[offsets[codeSizes[symbol]]++] = symbol;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads bits from the least significant bit of each byte, bits after the end of the data are read as 0
+     */
+    private static final class BitReader {
+        private final ByteBuffer data;
+        private int position;
+        private long bits;
+        private int available;
+
+        private BitReader(ByteBuffer data) {
+            this.data = data;
+        }
+
+        private int getBits(int count) {
+            while (available < count) {
+                bits |= (long) (position < data.limit() ? data.get(position) & 0xff : 0) << available;
+                position++;
+                available += 8;
+            }
+            int result = (int) (bits & ((1L << count) - 1));
+            bits >>>= count;
+            available -= count;
+            return result;
+        }
+
+        private int decodeHuffman(HuffmanTable table) {
+            int code = 0;
+            int first = 0;
+            int index = 0;
+            for (int size = 1; size <= MAX_CODE_SIZE; size++) {
+                code |= getBits(1);
+                int count = table.counts[size];
+                if (code - count < first) {
+                    return table.symbols[index + code - first];
+                }
+                index += count;
+                first = (first + count) << 1;
+                code <<= 1;
+            }
+            throw new IllegalArgumentException("INVALID VALUE, Huffman code not found");
+        }
+
+        /**
+         * Decodes a variable length value, stored as chunks of chunkBits with a continuation bit after each chunk
+         */
+        private int decodeVLC(int chunkBits) {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += chunkBits) {
+                int chunk = getBits(chunkBits + 1);
+                value |= (chunk & ((1 << chunkBits) - 1)) << shift;
+                if ((chunk >> chunkBits) == 0) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("INVALID VALUE, variable length value too large");
+        }
+
+        private HuffmanTable readHuffmanTable() {
+            int symbolCount = getBits(MAX_SYMBOLS_BITS);
+            if (symbolCount == 0) {
+                throw new IllegalArgumentException("INVALID VALUE, Huffman table without symbols");
+            }
+            int codeLengthCount = getBits(5);
+            if (codeLengthCount < 1 || codeLengthCount > CODE_LENGTH_ORDER.length) {
+                throw new IllegalArgumentException("INVALID VALUE, Huffman code length count " + codeLengthCount);
+            }
+            int[] codeLengthSizes = new int[CODE_LENGTH_ORDER.length];
+            for (int i = 0; i < codeLengthCount; i++) {
+                codeLengthSizes[CODE_LENGTH_ORDER[i]] = getBits(3);
+            }
+            HuffmanTable codeLengths = new HuffmanTable(codeLengthSizes);
+            int[] codeSizes = new int[symbolCount];
+            int current = 0;
+            while (current < symbolCount) {
+                int code = decodeHuffman(codeLengths);
+                if (code <= MAX_CODE_SIZE) {
+                    codeSizes[current++] = code;
+                    continue;
+                }
+                int run;
+                if (code == SMALL_ZERO_RUN) {
+                    run = getBits(3) + 3;
+                } else if (code == BIG_ZERO_RUN) {
+                    run = getBits(7) + 11;
+                } else {
+                    run = code == SMALL_REPEAT ? getBits(2) + 3 : getBits(7) + 7;
+                    if (current == 0 || codeSizes[current - 1] == 0) {
+                        throw new IllegalArgumentException("INVALID VALUE, Huffman code size repeat");
+                    }
+                }
+                if (current + run > symbolCount) {
+                    throw new IllegalArgumentException("INVALID VALUE, Huffman code size run " + run);
+                }
+                Arrays.fill(codeSizes, current, current + run, code >= SMALL_REPEAT ? codeSizes[current - 1] : 0);
+                current += run;
+            }
+            return new HuffmanTable(codeSizes);
+        }
+    }
+
+    /**
+     * The BasisLZ supercompression global data, the codebooks and Huffman tables shared by all ETC1S slices.
+     * Endpoints are stored as red, green, blue (5 bits each) and intensity table, selectors as 2 bits per texel row
+     * by row.
+     */
+    private static final class GlobalData {
+        private final int[] endpoints;
+        private final int[] selectors;
+        private final HuffmanTable endpointPredictions;
+        private final HuffmanTable endpointDeltas;
+        private final HuffmanTable selectorSymbols;
+        private final HuffmanTable selectorRuns;
+        private final int historySize;
+        private final ByteBuffer imageDescriptions;
+
+        private GlobalData(ByteBuffer sgd, int imageCount) {
+            int endpointCount = sgd.getShort(0) & 0xffff;
+            int selectorCount = sgd.getShort(2) & 0xffff;
+            int endpointsLength = sgd.getInt(4);
+            int selectorsLength = sgd.getInt(8);
+            int tablesLength = sgd.getInt(12);
+            int offset = BASISLZ_HEADER_SIZE + imageCount * IMAGE_DESC_SIZE;
+            if (endpointCount == 0 || selectorCount == 0 || endpointsLength < 0 || selectorsLength < 0
+                    || tablesLength < 0 || (long) offset + endpointsLength + selectorsLength + tablesLength > sgd
+                            .limit()) {
+                throw new IllegalArgumentException("INVALID VALUE, BasisLZ global data, endpoints " + endpointCount
+                        + ", selectors " + selectorCount + ", size " + sgd.limit());
+            }
+            imageDescriptions = slice(sgd, BASISLZ_HEADER_SIZE, imageCount * IMAGE_DESC_SIZE);
+            endpoints = readEndpoints(new BitReader(slice(sgd, offset, endpointsLength)), endpointCount);
+            offset += endpointsLength;
+            selectors = readSelectors(new BitReader(slice(sgd, offset, selectorsLength)), selectorCount);
+            offset += selectorsLength;
+            BitReader tables = new BitReader(slice(sgd, offset, tablesLength));
+            endpointPredictions = tables.readHuffmanTable();
+            endpointDeltas = tables.readHuffmanTable();
+            selectorSymbols = tables.readHuffmanTable();
+            selectorRuns = tables.readHuffmanTable();
+            historySize = tables.getBits(13);
+        }
+
+        /**
+         * Reads the endpoint codebook, colors and intensities are delta coded from the previous endpoint
+         */
+        private static int[] readEndpoints(BitReader reader, int count) {
+            HuffmanTable[] colorDeltas = new HuffmanTable[] { reader.readHuffmanTable(), reader.readHuffmanTable(),
+                    reader.readHuffmanTable() };
+            HuffmanTable intensityDeltas = reader.readHuffmanTable();
+            boolean grayscale = reader.getBits(1) != 0;
+            int[] result = new int[count * 4];
+            int[] previous = new int[] { 16, 16, 16 };
+            int intensity = 0;
+            for (int i = 0; i < count; i++) {
+                intensity = (reader.decodeHuffman(intensityDeltas) + intensity) & 7;
+                result[i * 4 + 3] = intensity;
+                for (int c = 0; c < 3; c++) {
+                    if (c == 0 || !grayscale) {
+                        int model = previous[c] <= COLOR5_PAL0_PREV_HI ? 0
+                                : previous[c] <= COLOR5_PAL1_PREV_HI ? 1 : 2;
+                        previous[c] = (previous[c] + reader.decodeHuffman(colorDeltas[model])) & 0x1f;
+                    }
+                    result[i * 4 + c] = grayscale ? previous[0] : previous[c];
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Reads the selector codebook, the rows of each selector are stored raw or xor coded with the previous
+         * selector
+         */
+        private static int[] readSelectors(BitReader reader, int count) {
+            if (reader.getBits(1) != 0 || reader.getBits(1) != 0) {
+                throw new IllegalArgumentException("Not implemented for ETC1S global and hybrid selector codebooks");
+            }
+            boolean raw = reader.getBits(1) != 0;
+            HuffmanTable deltas = raw ? null : reader.readHuffmanTable();
+            int[] result = new int[count];
+            int[] previous = new int[4];
+            for (int i = 0; i < count; i++) {
+                int selector = 0;
+                for (int row = 0; row < 4; row++) {
+                    int bits = raw || i == 0 ? reader.getBits(8) : reader.decodeHuffman(deltas) ^ previous[row];
+                    previous[row] = bits;
+                    selector |= bits << (row * 8);
+                }
+                result[i] = selector;
+            }
+            return result;
+        }
+
+        private int getImageDescription(int image, int field) {
+            return imageDescriptions.getInt(image * IMAGE_DESC_SIZE + field * 4);
+        }
+    }
+
+    protected final Executor executor;
+
+    /**
+     * Creates the transcoder
+     *
+     * @param executor Executor for the slices and block encoding, for instance
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     */
+    public BasisTranscoder(@NonNull Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns true if the header is a Basis Universal texture, ETC1S or UASTC
+     *
+     * @param header
+     * @return
+     */
+    public static boolean isBasisUniversal(@NonNull KTXHeader header) {
+        if (header.vkFormat != ImageFormat.VK_FORMAT_UNDEFINED.value || header.getDFDBlocks().length == 0) {
+            return false;
+        }
+        int model = header.getDFDBlocks()[0].getColorModel();
+        return model == KTX.KHR_DF_MODEL_ETC1S || model == KTX.KHR_DF_MODEL_UASTC;
+    }
+
+    /**
+     * Returns true if the Basis Universal texture has alpha
+     *
+     * @param header
+     * @return
+     */
+    public static boolean hasAlpha(@NonNull KTXHeader header) {
+        KTX.DataFormatDescriptorBlock dfd = header.getDFDBlocks()[0];
+        if (dfd.getColorModel() == KTX.KHR_DF_MODEL_ETC1S) {
+            return dfd.getSampleCount() > 1;
+        }
+        int channel = dfd.getSampleChannel(0);
+        return channel == KTX.KHR_DF_CHANNEL_UASTC_RGBA || channel == KTX.KHR_DF_CHANNEL_UASTC_RRRG;
+    }
+
+    /**
+     * Returns the first of the target formats that the texture can be transcoded to, the target must have the same
+     * transfer function as the texture and ETC2 RGB is only used if the texture has no alpha.
+     *
+     * @param header A Basis Universal texture
+     * @param targets The formats supported by the destination, in order of preference
+     * @return The format to transcode to
+     * @throws IllegalArgumentException If the header is not a Basis Universal texture or no target can be used
+     */
+    public static ImageFormat getTargetFormat(@NonNull KTXHeader header, @NonNull ImageFormat... targets) {
+        if (!isBasisUniversal(header)) {
+            throw new IllegalArgumentException("INVALID VALUE, not a Basis Universal texture");
+        }
+        boolean srgb = header.getDFDBlocks()[0].getTransferFunction() == KTX.KHR_DF_TRANSFER_SRGB;
+        boolean alpha = hasAlpha(header);
+        for (ImageFormat target : targets) {
+            if (Arrays.asList(TARGET_FORMATS).contains(target) && target.isSRGB() == srgb
+                    && (!alpha || !isETC2RGB(target))) {
+                return target;
+            }
+        }
+        throw new IllegalArgumentException("INVALID VALUE, no target format in " + Arrays.toString(targets)
+                + (srgb ? " for sRGB" : " for linear") + (alpha ? " with alpha" : ""));
+    }
+
+    private static boolean isETC2RGB(ImageFormat format) {
+        return format == ImageFormat.VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK
+                || format == ImageFormat.VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK;
+    }
+
+    /**
+     * Transcodes all layers, faces and depth slices of one level
+     *
+     * @param header A Basis Universal texture
+     * @param level The mip-level
+     * @param targets The formats supported by the destination, in order of preference, see
+     * {@link #getTargetFormat(KTXHeader, ImageFormat...)}
+     * @return The transcoded level
+     * @throws IllegalArgumentException If the header is not a Basis Universal texture, no target can be used or the
+     * level data is not valid
+     */
+    public ImageBuffer transcode(@NonNull KTXHeader header, int level, @NonNull ImageFormat... targets) {
+        ImageFormat format = getTargetFormat(header, targets);
+        long start = System.currentTimeMillis();
+        boolean etc1s = header.getDFDBlocks()[0].getColorModel() == KTX.KHR_DF_MODEL_ETC1S;
+        int[] dimension = header.getLevelDimension(level);
+        int width = dimension[0];
+        int height = Math.max(1, dimension[1]);
+        int imageCount = Math.max(1, header.layerCount) * Math.max(1, header.faceCount) * Math.max(1, dimension[2]);
+        ImageFormat decoded = etc1s && isETC2RGB(format) ? format
+                : format.isSRGB() ? ImageFormat.VK_FORMAT_R8G8B8A8_SRGB : ImageFormat.VK_FORMAT_R8G8B8A8_UNORM;
+        int imageSize = KTX.toBufferSize(decoded.getImageSize(width, height), "image");
+        ByteBuffer pixels = ByteBuffer.allocateDirect(KTX.toBufferSize((long) imageSize * imageCount, "images"))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        SharedBuffer owner = new SharedBuffer(pixels);
+        ImageBuffer result = null;
+        try {
+            CompletableFuture<?>[] slices = new CompletableFuture<?>[imageCount];
+            if (etc1s) {
+                GlobalData data = new GlobalData(header.getSupercompressionGlobalData(), getImageCount(header));
+                ByteBuffer levelData = header.getLevelData(level);
+                int first = getImageCount(header, level);
+                for (int i = 0; i < imageCount; i++) {
+                    int image = i;
+                    slices[i] = CompletableFuture.runAsync(() -> transcodeETC1S(data, levelData, first + image,
+                            width, height, decoded, pixels.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+                            image * imageSize), executor);
+                }
+                join(slices);
+            } else {
+                ByteBuffer levelData = header.getUncompressedLevelData(level);
+                int blocksSize = KTX.toBufferSize(ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK.getImageSize(width,
+                        height), "image");
+                if (levelData.limit() < (long) blocksSize * imageCount) {
+                    throw new IllegalArgumentException("INVALID VALUE, UASTC level " + level + " size "
+                            + levelData.limit());
+                }
+                try {
+                    for (int i = 0; i < imageCount; i++) {
+                        int image = i;
+                        slices[i] = CompletableFuture.runAsync(() -> transcodeUASTC(levelData, image * blocksSize,
+                                width, height, pixels.duplicate().order(ByteOrder.LITTLE_ENDIAN),
+                                image * imageSize), executor);
+                    }
+                    join(slices);
+                } finally {
+                    if (header.getSuperCompression() != KTX.SuperCompression.None) {
+                        SharedBuffer.free(levelData);
+                    }
+                }
+            }
+            result = decoded.isBlockCompressed()
+                    ? new BlockImageBuffer(pixels, decoded, header.layerCount, header.faceCount, dimension, null,
+                            null)
+                    : ImageBuffer.create(pixels, decoded, header.layerCount, header.faceCount, width, height,
+                            dimension[2]);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        } finally {
+            if (result == null) {
+                owner.release();
+            }
+        }
+        result.setOwner(owner);
+        System.out.println("Transcoded " + imageCount + " " + (etc1s ? "ETC1S" : "UASTC") + " images, " + width
+                + " x " + height + " to " + decoded + " in " + (System.currentTimeMillis() - start) + " ms");
+        if (decoded == format) {
+            return result;
+        }
+        try {
+            return createEncoder(format).encode(result, format);
+        } finally {
+            result.destroy();
+        }
+    }
+
+    private BlockEncoder createEncoder(ImageFormat format) {
+        if (format.isASTC()) {
+            return new ASTCEncoder(executor, Quality.FAST);
+        }
+        return format == ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK || format == ImageFormat.VK_FORMAT_BC7_SRGB_BLOCK
+                ? new BC7Encoder(executor, Quality.FAST)
+                : new ETC2Encoder(executor, Quality.FAST);
+    }
+
+    private static void join(CompletableFuture<?>[] tasks) {
+        try {
+            CompletableFuture.allOf(tasks).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    /**
+     * Returns the number of images in the levels before level, all images if level is the level count
+     */
+    private static int getImageCount(KTXHeader header, int level) {
+        int count = 0;
+        for (int i = 0; i < level; i++) {
+            count += Math.max(1, header.layerCount) * Math.max(1, header.faceCount)
+                    * Math.max(1, header.getLevelDimension(i)[2]);
+        }
+        return count;
+    }
+
+    private static int getImageCount(KTXHeader header) {
+        return getImageCount(header, Math.max(1, header.levelCount));
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || (long) offset + length > buffer.limit()) {
+            throw new IllegalArgumentException("INVALID VALUE, slice at " + offset + ", size " + length
+                    + " outside of data " + buffer.limit());
+        }
+        ByteBuffer result = buffer.duplicate();
+        result.limit(offset + length).position(offset);
+        return result.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Decodes the color slice, and the alpha slice if present, of one ETC1S image and writes the image as RGBA or
+     * as ETC1 blocks
+     */
+    private static void transcodeETC1S(GlobalData data, ByteBuffer levelData, int image, int width, int height,
+            ImageFormat format, ByteBuffer destination, int offset) {
+        if ((data.getImageDescription(image, 0) & ETC1S_P_FRAME) != 0) {
+            throw new IllegalArgumentException("Not implemented for ETC1S P-frames");
+        }
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        int[] color = decodeETC1SSlice(data, slice(levelData, data.getImageDescription(image, 1),
+                data.getImageDescription(image, 2)), blocksX, blocksY);
+        int alphaLength = data.getImageDescription(image, 4);
+        int[] alpha = alphaLength > 0 ? decodeETC1SSlice(data, slice(levelData, data.getImageDescription(image,
+                3), alphaLength), blocksX, blocksY) : null;
+        if (isETC2RGB(format)) {
+            byte[] block = new byte[8];
+            destination.position(offset);
+            for (int i = 0; i < blocksX * blocksY; i++) {
+                getETC1Block(data, color[i * 2], color[i * 2 + 1], block);
+                destination.put(block);
+            }
+            return;
+        }
+        int[] rgb = new int[48];
+        int[] values = new int[48];
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                int index = by * blocksX + bx;
+                getETC1SColors(data, color[index * 2], color[index * 2 + 1], rgb);
+                if (alpha != null) {
+                    getETC1SColors(data, alpha[index * 2], alpha[index * 2 + 1], values);
+                }
+                for (int y = 0; y < 4 && by * 4 + y < height; y++) {
+                    destination.position(offset + ((by * 4 + y) * width + bx * 4) * 4);
+                    for (int x = 0; x < 4 && bx * 4 + x < width; x++) {
+                        int texel = (y * 4 + x) * 3;
+                        destination.put((byte) rgb[texel]).put((byte) rgb[texel + 1]).put((byte) rgb[texel + 2])
+                                .put((byte) (alpha != null ? values[texel + 1] : 255));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes one ETC1S slice to the endpoint and selector index of each block
+     */
+    private static int[] decodeETC1SSlice(GlobalData data, ByteBuffer slice, int blocksX, int blocksY) {
+        BitReader reader = new BitReader(slice);
+        int endpointCount = data.endpoints.length / 4;
+        int selectorCount = data.selectors.length;
+        int historyRunSymbol = selectorCount + data.historySize;
+        int[] history = new int[data.historySize];
+        int rover = data.historySize / 2;
+        // Endpoint index and prediction bits of the blocks in the current and previous row
+        int[][] rows = new int[2][blocksX * 2];
+        int[] result = new int[blocksX * blocksY * 2];
+        int runCount = 0;
+        int predictionBits = 0;
+        int previousPredictions = 0;
+        int predictionRepeats = 0;
+        int previousEndpoint = 0;
+        for (int by = 0; by < blocksY; by++) {
+            int[] current = rows[by & 1];
+            int[] previous = rows[(by + 1) & 1];
+            for (int bx = 0; bx < blocksX; bx++) {
+                if ((bx & 1) == 0) {
+                    if ((by & 1) == 0) {
+                        if (predictionRepeats > 0) {
+                            predictionRepeats--;
+                            predictionBits = previousPredictions;
+                        } else {
+                            predictionBits = reader.decodeHuffman(data.endpointPredictions);
+                            if (predictionBits == ENDPOINT_PRED_REPEAT_LAST_SYMBOL) {
+                                predictionRepeats = reader.decodeVLC(ENDPOINT_PRED_COUNT_VLC_BITS)
+                                        + ENDPOINT_PRED_MIN_REPEAT_COUNT - 1;
+                                predictionBits = previousPredictions;
+                            } else {
+                                previousPredictions = predictionBits;
+                            }
+                        }
+                        current[bx * 2 + 1] = predictionBits >> 4;
+                    } else {
+                        predictionBits = previous[bx * 2 + 1];
+                    }
+                }
+                int prediction = predictionBits & 3;
+                predictionBits >>= 2;
+                int endpoint;
+                if (prediction == 0 && bx > 0) {
+                    endpoint = previousEndpoint;
+                } else if (prediction == 1 && by > 0) {
+                    endpoint = previous[bx * 2];
+                } else if (prediction == 2 && bx > 0 && by > 0) {
+                    endpoint = previous[(bx - 1) * 2];
+                } else if (prediction == 3) {
+                    endpoint = previousEndpoint + reader.decodeHuffman(data.endpointDeltas);
+                    endpoint -= endpoint >= endpointCount ? endpointCount : 0;
+                } else {
+                    throw new IllegalArgumentException("INVALID VALUE, ETC1S endpoint prediction " + prediction
+                            + " at block " + bx + ", " + by);
+                }
+                current[bx * 2] = endpoint;
+                previousEndpoint = endpoint;
+                int selector;
+                if (runCount > 0) {
+                    runCount--;
+                    selector = history[0];
+                } else {
+                    int symbol = reader.decodeHuffman(data.selectorSymbols);
+                    if (symbol == historyRunSymbol) {
+                        int run = reader.decodeHuffman(data.selectorRuns);
+                        runCount = (run == SELECTOR_HISTORY_RLE_COUNT_TOTAL - 1
+                                ? reader.decodeVLC(SELECTOR_HISTORY_RLE_VLC_BITS)
+                                : run) + SELECTOR_HISTORY_RLE_COUNT_THRESHOLD;
+                        if (runCount > blocksX * blocksY) {
+                            throw new IllegalArgumentException("INVALID VALUE, ETC1S selector run " + runCount);
+                        }
+                        selector = history[0];
+                        runCount--;
+                    } else if (symbol >= selectorCount) {
+                        int index = symbol - selectorCount;
+                        selector = history[index];
+                        if (index > 0) {
+                            // Moves the selector towards the front of the history
+                            history[index] = history[index / 2];
+                            history[index / 2] = selector;
+                        }
+                    } else {
+                        selector = symbol;
+                        if (history.length > 0) {
+                            history[rover++] = selector;
+                            rover = rover == history.length ? history.length / 2 : rover;
+                        }
+                    }
+                }
+                if (endpoint >= endpointCount || selector >= selectorCount) {
+                    throw new IllegalArgumentException("INVALID VALUE, ETC1S endpoint " + endpoint + ", selector "
+                            + selector);
+                }
+                result[(by * blocksX + bx) * 2] = endpoint;
+                result[(by * blocksX + bx) * 2 + 1] = selector;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns the 16 texels of the ETC1S block as RGB, row by row
+     */
+    private static void getETC1SColors(GlobalData data, int endpoint, int selector, int[] rgb) {
+        int[] modifiers = ETC2Format.MODIFIERS[data.endpoints[endpoint * 4 + 3]];
+        int selectors = data.selectors[selector];
+        for (int i = 0; i < 16; i++) {
+            int modifier = modifiers[SELECTOR_TO_ETC1[(selectors >>> (i * 2)) & 3]];
+            for (int c = 0; c < 3; c++) {
+                int base = data.endpoints[endpoint * 4 + c];
+                rgb[i * 3 + c] = Math.max(0, Math.min(255, ((base << 3) | (base >> 2)) + modifier));
+            }
+        }
+    }
+
+    /**
+     * Returns the ETC1S block as an ETC1 block, using the differential mode with the same color and intensity table
+     * in both sub blocks
+     */
+    private static void getETC1Block(GlobalData data, int endpoint, int selector, byte[] block) {
+        int intensity = data.endpoints[endpoint * 4 + 3];
+        for (int c = 0; c < 3; c++) {
+            block[c] = (byte) (data.endpoints[endpoint * 4 + c] << 3);
+        }
+        block[3] = (byte) ((intensity << 5) | (intensity << 2) | 0x02);
+        int selectors = data.selectors[selector];
+        int indices = 0;
+        for (int i = 0; i < 16; i++) {
+            // ETC1 pixel indices are stored column by column, most significant bits first
+            int index = SELECTOR_TO_ETC1[(selectors >>> (i * 2)) & 3];
+            int bit = (i & 3) * 4 + (i >> 2);
+            indices |= ((index >> 1) << (16 + bit)) | ((index & 1) << bit);
+        }
+        for (int i = 0; i < 4; i++) {
+            block[4 + i] = (byte) (indices >>> (24 - i * 8));
+        }
+    }
+
+    /**
+     * Decodes the UASTC blocks of one image to RGBA
+     */
+    private static void transcodeUASTC(ByteBuffer levelData, int blocksOffset, int width, int height,
+            ByteBuffer destination, int offset) {
+        int blocksX = (width + 3) / 4;
+        int blocksY = (height + 3) / 4;
+        byte[] blocks = new byte[blocksX * blocksY * 16];
+        ByteBuffer source = levelData.duplicate();
+        source.position(blocksOffset);
+        source.get(blocks);
+        int[] rgba = new int[64];
+        for (int by = 0; by < blocksY; by++) {
+            for (int bx = 0; bx < blocksX; bx++) {
+                decodeUASTCBlock(blocks, (by * blocksX + bx) * 16, rgba);
+                for (int y = 0; y < 4 && by * 4 + y < height; y++) {
+                    destination.position(offset + ((by * 4 + y) * width + bx * 4) * 4);
+                    for (int x = 0; x < 4 && bx * 4 + x < width; x++) {
+                        for (int c = 0; c < 4; c++) {
+                            destination.put((byte) rgba[(y * 4 + x) * 4 + c]);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes a UASTC block to 16 RGBA texels, row by row. Blocks with a reserved mode or partition pattern are
+     * decoded to magenta, as invalid ASTC blocks.
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param rgba Destination for the 8 bit values of the 16 texels
+     */
+    static void decodeUASTCBlock(byte[] block, int offset, int[] rgba) {
+        long[] bits = new long[] { getLong(block, offset), getLong(block, offset + 8) };
+        int mode = UASTC_MODES[(int) bits[0] & 0x7f];
+        int position = mode < 0 ? 0 : UASTC_MODE_CODES[mode][1];
+        if (mode == UASTC_MODE_SOLID) {
+            for (int i = 0; i < 64; i++) {
+                rgba[i] = get(bits, position + (i & 3) * 8, 8);
+            }
+            return;
+        }
+        int[] pattern = mode < 0 ? null : new int[16];
+        if (mode >= 0) {
+            position += getHintBits(mode);
+            int subsets = UASTC_SUBSETS[mode];
+            if (subsets > 1) {
+                int index = get(bits, position, subsets == 3 ? 4 : 5);
+                position += subsets == 3 ? 4 : 5;
+                int[][] patterns = subsets == 3 ? UASTC_PATTERNS3 : mode == 7 ? UASTC_PATTERNS2_FROM3 : UASTC_PATTERNS2;
+                pattern = index < patterns.length ? patterns[index] : null;
+            }
+        }
+        if (pattern == null) {
+            for (int i = 0; i < 64; i++) {
+                rgba[i] = (i & 3) == 1 ? 0 : 255;
+            }
+            return;
+        }
+        int ccs = -1;
+        if (UASTC_PLANES[mode] == 2) {
+            ccs = mode == 17 ? 3 : get(bits, position, 2);
+            position += mode == 17 ? 0 : 2;
+        }
+        int subsets = UASTC_SUBSETS[mode];
+        int components = UASTC_COMPONENTS[mode];
+        int[] endpoints = new int[components * 2 * subsets];
+        position = decodeEndpoints(bits, position, UASTC_ENDPOINT_RANGES[mode], endpoints);
+        int planes = UASTC_PLANES[mode];
+        int weightBits = UASTC_WEIGHT_BITS[mode];
+        int[] weights = new int[16 * planes];
+        int[] anchors = getAnchors(pattern, subsets);
+        for (int i = 0; i < weights.length; i++) {
+            int count = weightBits - (anchors[pattern[i / planes]] == i / planes ? 1 : 0);
+            weights[i] = ASTCFormat.WEIGHT_UNQUANTIZATION[ASTCFormat.WEIGHT_QUANT[weightBits - 1]][get(bits,
+                    position, count)];
+            position += count;
+        }
+        for (int i = 0; i < 16; i++) {
+            int subset = pattern[i];
+            for (int c = 0; c < 4; c++) {
+                int e0;
+                int e1;
+                if (components == 2) {
+                    int component = c == 3 ? 1 : 0;
+                    e0 = endpoints[subset * 4 + component * 2];
+                    e1 = endpoints[subset * 4 + component * 2 + 1];
+                } else if (c < components) {
+                    e0 = endpoints[(subset * components + c) * 2];
+                    e1 = endpoints[(subset * components + c) * 2 + 1];
+                } else {
+                    e0 = 255;
+                    e1 = 255;
+                }
+                int weight = weights[i * planes + (c == ccs ? 1 : 0)];
+                int value = (((e0 << 8) | e0) * (64 - weight) + ((e1 << 8) | e1) * weight + 32) >> 6;
+                rgba[i * 4 + c] = value >> 8;
+            }
+        }
+    }
+
+    /**
+     * Returns the mode of the UASTC block, -1 if the mode is reserved
+     */
+    static int getUASTCMode(byte[] block, int offset) {
+        return UASTC_MODES[block[offset] & 0x7f];
+    }
+
+    /**
+     * Returns the number of transcoding hint bits, stored after the mode code
+     */
+    static int getHintBits(int mode) {
+        return UASTC_BC1_HINTS[mode] + 8 + UASTC_ETC1_BIAS[mode] * 5 + (mode >= UASTC_FIRST_ALPHA_MODE ? 8 : 0);
+    }
+
+    /**
+     * Returns the anchor texel of each subset, the first texel of the subset. The most significant bit of the
+     * weights of the anchor texels is 0 and is not stored.
+     */
+    static int[] getAnchors(int[] pattern, int subsets) {
+        int[] anchors = new int[] { -1, -1, -1 };
+        for (int i = 15; i >= 0; i--) {
+            anchors[pattern[i]] = i;
+        }
+        return Arrays.copyOf(anchors, Math.max(3, subsets));
+    }
+
+    /**
+     * Decodes the endpoint values, the packed trits or quints are stored first as one number per 5 trits or 3
+     * quints, then the bits of each value. Returns the position after the values.
+     */
+    private static int decodeEndpoints(long[] bits, int position, int quantization, int[] endpoints) {
+        int range = ASTCFormat.ISE_RANGES[quantization];
+        int digits = range % 3 == 0 ? 3 : range % 5 == 0 ? 5 : 0;
+        int n = 31 - Integer.numberOfLeadingZeros(digits == 0 ? range : range / digits);
+        int group = digits == 3 ? 5 : 3;
+        int groups = digits == 0 ? 0 : (endpoints.length + group - 1) / group;
+        int[] packed = new int[groups];
+        for (int i = 0; i < groups; i++) {
+            int count = getPackedBits(digits, Math.min(group, endpoints.length - i * group));
+            packed[i] = get(bits, position, count);
+            position += count;
+        }
+        for (int i = 0; i < endpoints.length; i++) {
+            int value = get(bits, position, n);
+            position += n;
+            if (digits > 0) {
+                value |= (packed[i / group] % digits) << n;
+                packed[i / group] /= digits;
+            }
+            endpoints[i] = ASTCFormat.COLOR_UNQUANTIZATION[quantization][value];
+        }
+        return position;
+    }
+
+    /**
+     * Returns the number of bits used to store count trits or quints as one number
+     */
+    static int getPackedBits(int digits, int count) {
+        int max = 1;
+        for (int i = 0; i < count; i++) {
+            max *= digits;
+        }
+        return 32 - Integer.numberOfLeadingZeros(max - 1);
+    }
+
+    private static int[][] createPatterns(int[] seeds, int subsets) {
+        int[][] patterns = new int[seeds.length][16];
+        for (int i = 0; i < seeds.length; i++) {
+            for (int texel = 0; texel < 16; texel++) {
+                patterns[i][texel] = ASTCFormat.selectPartition(seeds[i], texel & 3, texel >> 2, subsets, true);
+            }
+        }
+        return patterns;
+    }
+
+    /**
+     * Returns the mode of each value of the 7 lowest bits of a block, -1 if reserved
+     */
+    private static int[] createModeTable() {
+        int[] modes = new int[128];
+        Arrays.fill(modes, -1);
+        for (int mode = 0; mode < UASTC_MODE_CODES.length; mode++) {
+            int size = UASTC_MODE_CODES[mode][1];
+            for (int high = 0; high < (1 << (7 - size)); high++) {
+                modes[UASTC_MODE_CODES[mode][0] | (high << size)] = mode;
+            }
+        }
+        return modes;
+    }
+
+    private static long getLong(byte[] block, int offset) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = (value << 8) | (block[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    private static int get(long[] bits, int position, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        int index = position >> 6;
+        int shift = position & 63;
+        long value = bits[index] >>> shift;
+        if (shift + count > 64 && index < 1) {
+            value |= bits[index + 1] << (64 - shift);
+        }
+        return (int) (value & ((1L << count) - 1));
+    }
+
+}
@@ -0,0 +1,1515 @@
+package org.ktximageio.ktx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.BC7Format.Mode;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Decoder for the block compressed formats, BC1 to BC7, ETC2, EAC and ASTC, to uncompressed images. Use this to
+ * calculate spherical harmonics or quality metrics from the textures as they are shipped, for instance images
+ * returned by {@link KTX.KTXHeader#getData()}.
+ * Each image is split into tiles of {@link BlockEncoder#TILE_BLOCKS} x {@link BlockEncoder#TILE_BLOCKS} blocks that
+ * are decoded at the same time using the executor.
+ * Formats with 8 bit color are decoded to VK_FORMAT_R8G8B8A8_UNORM, or VK_FORMAT_R8G8B8A8_SRGB for sRGB formats.
+ * The HDR formats, BC6H and ASTC SFLOAT, and the one and two channel formats, BC4, BC5 and EAC, are decoded to
+ * a {@link HalfFloatImageBuffer} where channels that are not stored are 0. Alpha of ASTC HDR blocks is not kept.
+ */
+public class BlockDecoder {
+
+    /**
+     * The BC6H two region modes: mode bits, endpoint bits, red, green and blue delta bits, 0 if endpoints are not
+     * transformed, and the order that the endpoint bits are stored in after the mode, where r0 to r3 are the red
+     * values of the first and second endpoint of the first region and of the second region.
+     */
+    private static final Object[][] BC6H_TWO_REGION_MODES = {
+            { 0x00, 10, 5, 5, 5, "g2[4] b2[4] b3[4] r0[9:0] g0[9:0] b0[9:0] r1[4:0] g3[4] g2[3:0] g1[4:0] b3[0] "
+                    + "g3[3:0] b1[4:0] b3[1] b2[3:0] r2[4:0] b3[2] r3[4:0] b3[3]" },
+            { 0x01, 7, 6, 6, 6, "g2[5] g3[4] g3[5] r0[6:0] b3[0] b3[1] b2[4] g0[6:0] b2[5] b3[2] g2[4] b0[6:0] "
+                    + "b3[3] b3[5] b3[4] r1[5:0] g2[3:0] g1[5:0] g3[3:0] b1[5:0] b2[3:0] r2[5:0] r3[5:0]" },
+            { 0x02, 11, 5, 4, 4, "r0[9:0] g0[9:0] b0[9:0] r1[4:0] r0[10] g2[3:0] g1[3:0] g0[10] b3[0] g3[3:0] "
+                    + "b1[3:0] b0[10] b3[1] b2[3:0] r2[4:0] b3[2] r3[4:0] b3[3]" },
+            { 0x06, 11, 4, 5, 4, "r0[9:0] g0[9:0] b0[9:0] r1[3:0] r0[10] g3[4] g2[3:0] g1[4:0] g0[10] g3[3:0] "
+                    + "b1[3:0] b0[10] b3[1] b2[3:0] r2[3:0] b3[0] b3[2] r3[3:0] g2[4] b3[3]" },
+            { 0x0a, 11, 4, 4, 5, "r0[9:0] g0[9:0] b0[9:0] r1[3:0] r0[10] b2[4] g2[3:0] g1[3:0] g0[10] b3[0] "
+                    + "g3[3:0] b1[4:0] b0[10] b2[3:0] r2[3:0] b3[1] b3[2] r3[3:0] b3[4] b3[3]" },
+            { 0x0e, 9, 5, 5, 5, "r0[8:0] b2[4] g0[8:0] g2[4] b0[8:0] b3[4] r1[4:0] g3[4] g2[3:0] g1[4:0] b3[0] "
+                    + "g3[3:0] b1[4:0] b3[1] b2[3:0] r2[4:0] b3[2] r3[4:0] b3[3]" },
+            { 0x12, 8, 6, 5, 5, "r0[7:0] g3[4] b2[4] g0[7:0] b3[2] g2[4] b0[7:0] b3[3] b3[4] r1[5:0] g2[3:0] "
+                    + "g1[4:0] b3[0] g3[3:0] b1[4:0] b3[1] b2[3:0] r2[5:0] r3[5:0]" },
+            { 0x16, 8, 5, 6, 5, "r0[7:0] b3[0] b2[4] g0[7:0] g2[5] g2[4] b0[7:0] g3[5] b3[4] r1[4:0] g3[4] "
+                    + "g2[3:0] g1[5:0] g3[3:0] b1[4:0] b3[1] b2[3:0] r2[4:0] b3[2] r3[4:0] b3[3]" },
+            { 0x1a, 8, 5, 5, 6, "r0[7:0] b3[1] b2[4] g0[7:0] b2[5] g2[4] b0[7:0] b3[5] b3[4] r1[4:0] g3[4] "
+                    + "g2[3:0] g1[4:0] b3[0] g3[3:0] b1[5:0] b2[3:0] r2[4:0] b3[2] r3[4:0] b3[3]" },
+            { 0x1e, 6, 0, 0, 0, "r0[5:0] g3[4] b3[0] b3[1] b2[4] g0[5:0] g2[5] b2[5] b3[2] g2[4] b0[5:0] g3[5] "
+                    + "b3[3] b3[5] b3[4] r1[5:0] g2[3:0] g1[5:0] g3[3:0] b1[5:0] b2[3:0] r2[5:0] r3[5:0]" } };
+    private static final int[][] BC6H_TWO_REGION_LAYOUTS = createBC6HLayouts();
+    private static final int BC6H_PARTITION_OFFSET = 77;
+
+    /**
+     * The distances of the ETC2 T and H modes
+     */
+    private static final int[] ETC2_DISTANCES = { 3, 6, 11, 16, 23, 32, 41, 64 };
+
+    private static final int ASTC_VOID_EXTENT = 0x1fc;
+    private static final int ASTC_MULTI_PARTITION_COLOR_OFFSET = 29;
+    /**
+     * ASTC blocks with fewer texels use a scaled texel position to select the partition
+     */
+    private static final int ASTC_SMALL_BLOCK = 31;
+    private static final int ASTC_CEM_HDR_RGB_LDR_ALPHA = 14;
+    private static final int ASTC_CEM_HDR_RGBA = 15;
+    private static final int ASTC_MAX_HALF = 0x7bff;
+    /**
+     * Placement of the variable bits of the ASTC HDR RGB base and scale mode (7): the modes that use the placement
+     * as a mask of 1 << mode, the variable bit, the value - red, green, blue or scale - and the bit in the value.
+     */
+    private static final int[][] HDR_RGB_SCALE_BITS = { { 0x30, 0, 1, 6 }, { 0x3a, 1, 1, 5 }, { 0x30, 2, 2, 6 },
+            { 0x3a, 3, 2, 5 }, { 0x3d, 6, 3, 5 }, { 0x2d, 5, 3, 6 }, { 0x04, 4, 3, 7 }, { 0x3b, 4, 0, 6 },
+            { 0x04, 3, 0, 6 }, { 0x10, 5, 0, 7 }, { 0x0f, 2, 0, 7 }, { 0x05, 1, 0, 8 }, { 0x0a, 0, 0, 8 },
+            { 0x05, 0, 0, 9 }, { 0x02, 6, 0, 9 }, { 0x01, 3, 0, 10 }, { 0x02, 5, 0, 10 } };
+    /**
+     * Placement of the variable bits of the ASTC HDR RGB modes (11, 14 and 15): the modes that use the placement
+     * as a mask of 1 << mode, the variable bit, the value - a, b0, b1, c, d0 or d1 - and the bit in the value.
+     */
+    private static final int[][] HDR_RGB_BITS = { { 0xa4, 0, 0, 9 }, { 0x08, 2, 0, 9 }, { 0x50, 4, 0, 9 },
+            { 0x50, 5, 0, 10 }, { 0xa0, 1, 0, 10 }, { 0xc0, 2, 0, 11 }, { 0x04, 1, 3, 6 }, { 0xe8, 3, 3, 6 },
+            { 0x20, 2, 3, 7 }, { 0x5b, 0, 1, 6 }, { 0x5b, 1, 2, 6 }, { 0x12, 2, 1, 7 }, { 0x12, 3, 2, 7 },
+            { 0xaf, 4, 4, 5 }, { 0xaf, 5, 5, 5 }, { 0x05, 2, 4, 6 }, { 0x05, 3, 5, 6 } };
+    /**
+     * Number of bits of the d0 and d1 values of the ASTC HDR RGB modes, indexed by mode
+     */
+    private static final int[] HDR_RGB_D_BITS = { 7, 6, 7, 6, 5, 6, 5, 6 };
+
+    protected final Executor executor;
+
+    /**
+     * Creates the decoder
+     *
+     * @param executor Executor for the tiles, for instance {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     */
+    public BlockDecoder(@NonNull Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Returns true if images in the block compressed format can be decoded
+     *
+     * @param format
+     * @return
+     */
+    public boolean isSupported(@NonNull ImageFormat format) {
+        return format.isBlockCompressed();
+    }
+
+    /**
+     * Returns the format that images in the block compressed format are decoded to
+     *
+     * @param format A block compressed format
+     * @return VK_FORMAT_R16G16B16_SFLOAT, VK_FORMAT_R8G8B8A8_UNORM or VK_FORMAT_R8G8B8A8_SRGB
+     * @throws IllegalArgumentException If format is not block compressed
+     */
+    public static ImageFormat getDecodedFormat(@NonNull ImageFormat format) {
+        if (!format.isBlockCompressed()) {
+            throw new IllegalArgumentException("INVALID VALUE, not a block compressed format " + format);
+        }
+        if (format.isFloatFormat() || getChannels(format) < 3) {
+            return ImageFormat.VK_FORMAT_R16G16B16_SFLOAT;
+        }
+        return format.isSRGB() ? ImageFormat.VK_FORMAT_R8G8B8A8_SRGB : ImageFormat.VK_FORMAT_R8G8B8A8_UNORM;
+    }
+
+    /**
+     * Returns the number of channels stored in the block compressed format
+     */
+    private static int getChannels(ImageFormat format) {
+        switch (format) {
+            case VK_FORMAT_BC4_UNORM_BLOCK:
+            case VK_FORMAT_BC4_SNORM_BLOCK:
+            case VK_FORMAT_EAC_R11_UNORM_BLOCK:
+            case VK_FORMAT_EAC_R11_SNORM_BLOCK:
+                return 1;
+            case VK_FORMAT_BC5_UNORM_BLOCK:
+            case VK_FORMAT_BC5_SNORM_BLOCK:
+            case VK_FORMAT_EAC_R11G11_UNORM_BLOCK:
+            case VK_FORMAT_EAC_R11G11_SNORM_BLOCK:
+                return 2;
+            default:
+                return 4;
+        }
+    }
+
+    /**
+     * Decodes all layers, faces and depth slices of the source.
+     * The size and number of images are the same as in source.
+     *
+     * @param source Block compressed images, the source is not destroyed
+     * @return The decoded images, in the format returned by {@link #getDecodedFormat(ImageFormat)}
+     * @throws IllegalArgumentException If the format of source is not supported
+     */
+    public ImageBuffer decode(@NonNull ImageBuffer source) {
+        return decode(source, 0, source.getImageCount(), source.layerCount, source.faceCount, source.depth);
+    }
+
+    /**
+     * Decodes one image of the source
+     *
+     * @param source Block compressed images, the source is not destroyed
+     * @param index Index of the image, less than {@link ImageBuffer#getImageCount()}
+     * @return The decoded image, in the format returned by {@link #getDecodedFormat(ImageFormat)}
+     * @throws IllegalArgumentException If the format of source is not supported or index is not valid
+     */
+    public ImageBuffer decode(@NonNull ImageBuffer source, int index) {
+        if (index < 0 || index >= source.getImageCount()) {
+            throw new IllegalArgumentException("INVALID VALUE, index " + index);
+        }
+        return decode(source, index, 1, 0, 1, 0);
+    }
+
+    /**
+     * Decodes the images as they are returned, each source image is destroyed when it has been decoded.
+     *
+     * @param images Block compressed images
+     * @return Iterator returning the decoded images
+     */
+    public Iterator<ImageBuffer> decode(@NonNull Iterator<ImageBuffer> images) {
+        return new Iterator<ImageBuffer>() {
+
+            @Override
+            public boolean hasNext() {
+                return images.hasNext();
+            }
+
+            @Override
+            public ImageBuffer next() {
+                ImageBuffer source = images.next();
+                try {
+                    return decode(source);
+                } finally {
+                    source.destroy();
+                }
+            }
+        };
+    }
+
+    private ImageBuffer decode(ImageBuffer source, int first, int imageCount, int layers, int faces, int depth) {
+        if (!isSupported(source.format)) {
+            throw new IllegalArgumentException("INVALID VALUE, not supported format " + source.format);
+        }
+        long start = System.currentTimeMillis();
+        ImageFormat format = getDecodedFormat(source.format);
+        int imageSize = KTX.toBufferSize((long) source.width * source.height * format.sizeInBytes, "image");
+        ByteBuffer pixels = ByteBuffer.allocateDirect(KTX.toBufferSize((long) imageSize * imageCount, "images"))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        SharedBuffer owner = new SharedBuffer(pixels);
+        ImageBuffer result = null;
+        try {
+            byte[] blocks = new byte[source.getImageSizeInBytes()];
+            for (int index = 0; index < imageCount; index++) {
+                source.getImageBuffer(first + index).get(blocks);
+                decodeImage(blocks, source.format, source.width, source.height, format, pixels, index * imageSize);
+            }
+            int[] dimension = new int[] { source.width, source.height, depth };
+            if (format.isFloatFormat()) {
+                result = ImageBuffer.createFloatBuffer(pixels, format, layers, faces, dimension);
+            } else {
+                result = ImageBuffer.create(pixels, format, layers, faces, source.width, source.height, depth);
+            }
+        } finally {
+            if (result == null) {
+                owner.release();
+            }
+        }
+        result.setOwner(owner);
+        System.out.println("Decoded " + imageCount + " images, " + source.width + " x " + source.height + " from "
+                + source.format + " in " + (System.currentTimeMillis() - start) + " ms");
+        return result;
+    }
+
+    /**
+     * Decodes one image, each tile of blocks is decoded as a separate task and the method returns when all tiles
+     * are decoded.
+     */
+    private void decodeImage(byte[] blocks, ImageFormat format, int width, int height, ImageFormat destination,
+            ByteBuffer pixels, int offset) {
+        int blocksX = (width + format.getBlockWidth() - 1) / format.getBlockWidth();
+        int blocksY = (height + format.getBlockHeight() - 1) / format.getBlockHeight();
+        BlockEncoder.runTiles(executor, blocksX, blocksY, (startX, startY, endX, endY) -> decodeTile(blocks, format,
+                width, height, destination, pixels.duplicate().order(ByteOrder.LITTLE_ENDIAN), offset, blocksX,
+                startX, startY, endX, endY));
+    }
+
+    private void decodeTile(byte[] blocks, ImageFormat format, int width, int height, ImageFormat destination,
+            ByteBuffer pixels, int offset, int blocksX, int startX, int startY, int endX, int endY) {
+        int blockWidth = format.getBlockWidth();
+        int blockHeight = format.getBlockHeight();
+        int blockSize = format.getBlockSizeInBytes();
+        boolean half = destination.isFloatFormat();
+        int[] texels = new int[blockWidth * blockHeight * 4];
+        for (int by = startY; by < endY; by++) {
+            for (int bx = startX; bx < endX; bx++) {
+                decodeBlock(blocks, (by * blocksX + bx) * blockSize, format, texels);
+                for (int y = 0; y < blockHeight && by * blockHeight + y < height; y++) {
+                    for (int x = 0; x < blockWidth && bx * blockWidth + x < width; x++) {
+                        int texel = (y * blockWidth + x) * 4;
+                        int pixel = (by * blockHeight + y) * width + bx * blockWidth + x;
+                        if (half) {
+                            for (int c = 0; c < 3; c++) {
+                                pixels.putShort(offset + (pixel * 3 + c) * 2, (short) texels[texel + c]);
+                            }
+                        } else {
+                            for (int c = 0; c < 4; c++) {
+                                pixels.put(offset + pixel * 4 + c, (byte) texels[texel + c]);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Decodes one block to RGBA texels, row by row, as 8 bit values or half float bits.
+     */
+    private static void decodeBlock(byte[] blocks, int offset, ImageFormat format, int[] texels) {
+        int[] values = new int[64];
+        float[] channel = new float[16];
+        switch (format) {
+            case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+            case VK_FORMAT_BC1_RGB_SRGB_BLOCK:
+                decodeBC1(blocks, offset, false, true, texels);
+                break;
+            case VK_FORMAT_BC1_RGBA_UNORM_BLOCK:
+            case VK_FORMAT_BC1_RGBA_SRGB_BLOCK:
+                decodeBC1(blocks, offset, false, false, texels);
+                break;
+            case VK_FORMAT_BC2_UNORM_BLOCK:
+            case VK_FORMAT_BC2_SRGB_BLOCK:
+                decodeBC1(blocks, offset + 8, true, true, texels);
+                for (int i = 0; i < 16; i++) {
+                    texels[i * 4 + 3] = ((blocks[offset + (i >> 1)] >> ((i & 1) * 4)) & 0x0f) * 17;
+                }
+                break;
+            case VK_FORMAT_BC3_UNORM_BLOCK:
+            case VK_FORMAT_BC3_SRGB_BLOCK:
+                decodeBC1(blocks, offset + 8, true, true, texels);
+                decodeBC4(blocks, offset, false, channel);
+                for (int i = 0; i < 16; i++) {
+                    texels[i * 4 + 3] = Math.round(channel[i] * 255);
+                }
+                break;
+            case VK_FORMAT_BC4_UNORM_BLOCK:
+            case VK_FORMAT_BC4_SNORM_BLOCK:
+            case VK_FORMAT_BC5_UNORM_BLOCK:
+            case VK_FORMAT_BC5_SNORM_BLOCK:
+                boolean signed = format == ImageFormat.VK_FORMAT_BC4_SNORM_BLOCK
+                        || format == ImageFormat.VK_FORMAT_BC5_SNORM_BLOCK;
+                for (int c = 0; c < 3; c++) {
+                    if (c < getChannels(format)) {
+                        decodeBC4(blocks, offset + c * 8, signed, channel);
+                    }
+                    for (int i = 0; i < 16; i++) {
+                        texels[i * 4 + c] = c < getChannels(format) ? toHalfBits(channel[i]) : 0;
+                    }
+                }
+                break;
+            case VK_FORMAT_BC6H_UFLOAT_BLOCK:
+            case VK_FORMAT_BC6H_SFLOAT_BLOCK:
+                short[] halfs = new short[48];
+                decodeBC6H(blocks, offset, format == ImageFormat.VK_FORMAT_BC6H_SFLOAT_BLOCK, halfs);
+                for (int i = 0; i < 16; i++) {
+                    for (int c = 0; c < 3; c++) {
+                        texels[i * 4 + c] = halfs[i * 3 + c] & 0xffff;
+                    }
+                }
+                break;
+            case VK_FORMAT_BC7_UNORM_BLOCK:
+            case VK_FORMAT_BC7_SRGB_BLOCK:
+                decodeBC7(blocks, offset, texels);
+                break;
+            case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                decodeETC2(blocks, offset, values);
+                setRGBA(values, null, texels);
+                break;
+            case VK_FORMAT_ETC2_R8G8B8A1_UNORM_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8A1_SRGB_BLOCK:
+                int[] alpha = new int[16];
+                decodeETC2Punchthrough(blocks, offset, values, alpha);
+                setRGBA(values, alpha, texels);
+                break;
+            case VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK:
+                int[] eacAlpha = new int[16];
+                decodeEACAlpha(blocks, offset, eacAlpha);
+                decodeETC2(blocks, offset + 8, values);
+                setRGBA(values, eacAlpha, texels);
+                break;
+            case VK_FORMAT_EAC_R11_UNORM_BLOCK:
+            case VK_FORMAT_EAC_R11_SNORM_BLOCK:
+            case VK_FORMAT_EAC_R11G11_UNORM_BLOCK:
+            case VK_FORMAT_EAC_R11G11_SNORM_BLOCK:
+                boolean signedEAC = format == ImageFormat.VK_FORMAT_EAC_R11_SNORM_BLOCK
+                        || format == ImageFormat.VK_FORMAT_EAC_R11G11_SNORM_BLOCK;
+                for (int c = 0; c < 3; c++) {
+                    if (c < getChannels(format)) {
+                        decodeEACR11(blocks, offset + c * 8, signedEAC, values);
+                    }
+                    for (int i = 0; i < 16; i++) {
+                        texels[i * 4 + c] = c < getChannels(format)
+                                ? toHalfBits(values[i] / (signedEAC ? 1023f : 2047f))
+                                : 0;
+                    }
+                }
+                break;
+            default:
+                if (!format.isASTC()) {
+                    throw new IllegalArgumentException("Not implemented for format " + format);
+                }
+                decodeASTC(blocks, offset, format, texels);
+                if (!format.isASTCHDR()) {
+                    for (int i = 0; i < texels.length; i++) {
+                        texels[i] >>= 8;
+                    }
+                }
+                break;
+        }
+    }
+
+    /**
+     * Decodes a BC1 color block, if fourColors is false and the first color is not larger than the second, index 3
+     * is black - transparent unless opaque is true.
+     */
+    private static void decodeBC1(byte[] blocks, int offset, boolean fourColors, boolean opaque, int[] rgba) {
+        int color0 = (blocks[offset] & 0xff) | (blocks[offset + 1] & 0xff) << 8;
+        int color1 = (blocks[offset + 2] & 0xff) | (blocks[offset + 3] & 0xff) << 8;
+        int[] palette = new int[16];
+        for (int e = 0; e < 2; e++) {
+            int color = e == 0 ? color0 : color1;
+            palette[e * 4] = expand(color >> 11, 5);
+            palette[e * 4 + 1] = expand((color >> 5) & 0x3f, 6);
+            palette[e * 4 + 2] = expand(color & 0x1f, 5);
+            palette[e * 4 + 3] = 255;
+        }
+        boolean interpolated = fourColors || color0 > color1;
+        for (int c = 0; c < 4; c++) {
+            int a = palette[c];
+            int b = palette[4 + c];
+            if (interpolated) {
+                palette[8 + c] = (2 * a + b + 1) / 3;
+                palette[12 + c] = (a + 2 * b + 1) / 3;
+            } else {
+                palette[8 + c] = (a + b + 1) / 2;
+                palette[12 + c] = c == 3 && opaque ? 255 : 0;
+            }
+        }
+        int indices = (blocks[offset + 4] & 0xff) | (blocks[offset + 5] & 0xff) << 8
+                | (blocks[offset + 6] & 0xff) << 16 | (blocks[offset + 7] & 0xff) << 24;
+        for (int i = 0; i < 16; i++) {
+            System.arraycopy(palette, ((indices >>> (i * 2)) & 3) * 4, rgba, i * 4, 4);
+        }
+    }
+
+    /**
+     * Decodes a BC4 block, as used by BC3 alpha and BC4 and BC5 channels, to values 0 to 1 or -1 to 1 if signed.
+     */
+    private static void decodeBC4(byte[] blocks, int offset, boolean signed, float[] values) {
+        int value0 = signed ? Math.max(-127, blocks[offset]) : blocks[offset] & 0xff;
+        int value1 = signed ? Math.max(-127, blocks[offset + 1]) : blocks[offset + 1] & 0xff;
+        long indices = 0;
+        for (int i = 0; i < 6; i++) {
+            indices |= (blocks[offset + 2 + i] & 0xffL) << (i * 8);
+        }
+        float max = signed ? 127 : 255;
+        for (int i = 0; i < 16; i++) {
+            int index = (int) (indices >>> (i * 3)) & 7;
+            float value;
+            if (index < 2) {
+                value = index == 0 ? value0 : value1;
+            } else if (value0 > value1) {
+                value = ((8 - index) * value0 + (index - 1) * value1) / 7f;
+            } else if (index < 6) {
+                value = ((6 - index) * value0 + (index - 1) * value1) / 5f;
+            } else {
+                value = index == 6 ? (signed ? -max : 0) : max;
+            }
+            values[i] = value / max;
+        }
+    }
+
+    /**
+     * Decodes a BC6H block to 16 RGB half floats, reserved modes decode to 0.
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param signed True for VK_FORMAT_BC6H_SFLOAT_BLOCK
+     * @param halfs Destination for the half float bits of the 16 texels, RGB
+     */
+    static void decodeBC6H(byte[] block, int offset, boolean signed, short[] halfs) {
+        int modeBits = getBits(block, offset, 0, 2);
+        modeBits = modeBits < 2 ? modeBits : getBits(block, offset, 0, BC6HFormat.MODE_BITS);
+        for (int i = 0; i < BC6H_TWO_REGION_MODES.length; i++) {
+            if ((int) BC6H_TWO_REGION_MODES[i][0] == modeBits) {
+                decodeBC6HTwoRegions(block, offset, signed, i, halfs);
+                return;
+            }
+        }
+        int[] mode = null;
+        for (int[] m : BC6HFormat.MODES) {
+            mode = m[0] == modeBits ? m : mode;
+        }
+        if (mode == null) {
+            Arrays.fill(halfs, 0, 48, (short) 0);
+            return;
+        }
+        int[] endpoints = new int[6];
+        int position = BC6HFormat.MODE_BITS;
+        for (int c = 0; c < 3; c++) {
+            endpoints[c] = getBits(block, offset, position, 10);
+            position += 10;
+        }
+        for (int c = 0; c < 3; c++) {
+            if (mode[2] == 0) {
+                endpoints[3 + c] = getBits(block, offset, position, 10);
+                position += 10;
+            } else {
+                endpoints[3 + c] = signExtend(getBits(block, offset, position, mode[2]), mode[2]);
+                position += mode[2];
+                for (int bit : BC6HFormat.getHighBits(mode[1])) {
+                    endpoints[c] |= getBits(block, offset, position++, 1) << bit;
+                }
+            }
+        }
+        int mask = (1 << mode[1]) - 1;
+        for (int c = 0; c < 3; c++) {
+            if (mode[2] != 0) {
+                endpoints[3 + c] = (endpoints[c] + endpoints[3 + c]) & mask;
+            }
+            if (signed) {
+                endpoints[c] = signExtend(endpoints[c], mode[1]);
+                endpoints[3 + c] = signExtend(endpoints[3 + c], mode[1]);
+            }
+        }
+        int[] palette = BC6HFormat.createPalette(mode[1], endpoints, signed);
+        for (int i = 0; i < 16; i++) {
+            int count = i == 0 ? 3 : 4;
+            int index = getBits(block, offset, position, count);
+            position += count;
+            setHalfs(palette, index, halfs, i);
+        }
+    }
+
+    private static void decodeBC6HTwoRegions(byte[] block, int offset, boolean signed, int number,
+            short[] halfs) {
+        Object[] mode = BC6H_TWO_REGION_MODES[number];
+        int bits = (int) mode[1];
+        int[] endpoints = new int[12];
+        int position = getBC6HModeBitCount(number);
+        for (int field : BC6H_TWO_REGION_LAYOUTS[number]) {
+            endpoints[field >> 8] |= getBits(block, offset, position++, 1) << (field & 0xff);
+        }
+        int mask = (1 << bits) - 1;
+        for (int c = 0; c < 3; c++) {
+            int deltaBits = (int) mode[2 + c];
+            for (int endpoint = 1; endpoint < 4 && deltaBits > 0; endpoint++) {
+                int delta = signExtend(endpoints[endpoint * 3 + c], deltaBits);
+                endpoints[endpoint * 3 + c] = (endpoints[c] + delta) & mask;
+            }
+            for (int endpoint = 0; endpoint < 4 && signed; endpoint++) {
+                endpoints[endpoint * 3 + c] = signExtend(endpoints[endpoint * 3 + c], bits);
+            }
+        }
+        int partition = getBits(block, offset, BC6H_PARTITION_OFFSET, 5);
+        int[] weights = BC7Format.getWeights(3);
+        int[][] palettes = { BC6HFormat.createPalette(bits, endpoints, 0, signed, weights),
+                BC6HFormat.createPalette(bits, endpoints, 6, signed, weights) };
+        position = BC6H_PARTITION_OFFSET + 5;
+        for (int i = 0; i < 16; i++) {
+            int region = BC7Format.getSubset(2, partition, i);
+            int count = i == 0 || i == BC7Format.getAnchor(2, partition, 1) ? 2 : 3;
+            int index = getBits(block, offset, position, count);
+            position += count;
+            setHalfs(palettes[region], index, halfs, i);
+        }
+    }
+
+    private static int getBC6HModeBitCount(int twoRegionMode) {
+        return (int) BC6H_TWO_REGION_MODES[twoRegionMode][0] < 2 ? 2 : BC6HFormat.MODE_BITS;
+    }
+
+    /**
+     * Parses the bit orders of the BC6H two region modes to [mode][bit], holding
+     * (endpoint * 3 + channel) << 8 | bit
+     */
+    private static int[][] createBC6HLayouts() {
+        int[][] layouts = new int[BC6H_TWO_REGION_MODES.length][];
+        for (int mode = 0; mode < layouts.length; mode++) {
+            String[] fields = ((String) BC6H_TWO_REGION_MODES[mode][5]).split(" ");
+            int[] layout = new int[BC6H_PARTITION_OFFSET - getBC6HModeBitCount(mode)];
+            int position = 0;
+            for (String field : fields) {
+                int component = (field.charAt(1) - '0') * 3 + "rgb".indexOf(field.charAt(0));
+                String[] range = field.substring(3, field.length() - 1).split(":");
+                int high = Integer.parseInt(range[0]);
+                int low = range.length > 1 ? Integer.parseInt(range[1]) : high;
+                int step = high >= low ? 1 : -1;
+                for (int bit = low; bit != high + step; bit += step) {
+                    layout[position++] = component << 8 | bit;
+                }
+            }
+            if (position != layout.length) {
+                throw new IllegalArgumentException("INVALID STATE, layout size " + position);
+            }
+            layouts[mode] = layout;
+        }
+        return layouts;
+    }
+
+    private static void setHalfs(int[] palette, int index, short[] halfs, int texel) {
+        for (int c = 0; c < 3; c++) {
+            int value = palette[index * 3 + c];
+            halfs[texel * 3 + c] = (short) (value < 0 ? 0x8000 | -value : value);
+        }
+    }
+
+    /**
+     * Decodes a BC7 block to 16 RGBA texels, the reserved mode 8 decodes to transparent black.
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param rgba Destination for the 8 bit values of the 16 texels, RGBA
+     */
+    static void decodeBC7(byte[] block, int offset, int[] rgba) {
+        int number = Integer.numberOfTrailingZeros(block[offset] | 0x100);
+        if (number >= BC7Format.MODES.length) {
+            Arrays.fill(rgba, 0, 64, 0);
+            return;
+        }
+        Mode mode = BC7Format.MODES[number];
+        int position = number + 1;
+        int partition = getBits(block, offset, position, mode.partitionBits);
+        position += mode.partitionBits;
+        int rotation = getBits(block, offset, position, mode.rotationBits);
+        position += mode.rotationBits;
+        int indexSelection = getBits(block, offset, position, mode.indexSelectionBits);
+        position += mode.indexSelectionBits;
+        // Endpoints are stored as [subset * 8 + endpoint * 4 + channel]
+        int[] endpoints = new int[24];
+        int[] pBits = new int[6];
+        for (int c = 0; c < 4; c++) {
+            int channelBits = c < 3 ? mode.colorBits : mode.alphaBits;
+            for (int endpoint = 0; endpoint < mode.subsets * 2; endpoint++) {
+                endpoints[endpoint * 4 + c] = getBits(block, offset, position, channelBits);
+                position += channelBits;
+            }
+        }
+        for (int endpoint = 0; endpoint < mode.subsets * 2; endpoint++) {
+            if (mode.pBits == BC7Format.P_NONE) {
+                pBits[endpoint] = -1;
+            } else if (mode.pBits == BC7Format.P_ENDPOINT || (endpoint & 1) == 0) {
+                pBits[endpoint] = getBits(block, offset, position++, 1);
+            } else {
+                pBits[endpoint] = pBits[endpoint - 1];
+            }
+        }
+        int[] colorIndices = new int[16];
+        int[] alphaIndices = new int[16];
+        int[] first = indexSelection == 0 ? colorIndices : alphaIndices;
+        for (int i = 0; i < 16; i++) {
+            int anchor = BC7Format.getAnchor(mode.subsets, partition, BC7Format.getSubset(mode.subsets,
+                    partition, i));
+            int count = i == anchor ? mode.indexBits - 1 : mode.indexBits;
+            first[i] = getBits(block, offset, position, count);
+            position += count;
+        }
+        int alphaIndexBits = mode.indexBits;
+        if (mode.secondIndexBits > 0) {
+            int[] second = indexSelection == 0 ? alphaIndices : colorIndices;
+            for (int i = 0; i < 16; i++) {
+                int count = i == 0 ? mode.secondIndexBits - 1 : mode.secondIndexBits;
+                second[i] = getBits(block, offset, position, count);
+                position += count;
+            }
+            alphaIndexBits = indexSelection == 0 ? mode.secondIndexBits : mode.indexBits;
+        } else {
+            System.arraycopy(colorIndices, 0, alphaIndices, 0, 16);
+        }
+        int[] colorWeights = BC7Format.getWeights(indexSelection == 0 ? mode.indexBits : mode.secondIndexBits);
+        int[] alphaWeights = BC7Format.getWeights(alphaIndexBits);
+        for (int i = 0; i < 16; i++) {
+            int subset = BC7Format.getSubset(mode.subsets, partition, i);
+            for (int c = 0; c < 4; c++) {
+                int channelBits = c < 3 ? mode.colorBits : mode.alphaBits;
+                int value = 255;
+                if (channelBits > 0) {
+                    int e0 = BC7Format.expand(endpoints[subset * 8 + c], channelBits, pBits[subset * 2]);
+                    int e1 = BC7Format.expand(endpoints[subset * 8 + 4 + c], channelBits, pBits[subset * 2 + 1]);
+                    value = c < 3 ? BC7Format.interpolate(e0, e1, colorWeights[colorIndices[i]])
+                            : BC7Format.interpolate(e0, e1, alphaWeights[alphaIndices[i]]);
+                }
+                rgba[i * 4 + c] = value;
+            }
+            if (rotation > 0) {
+                int value = rgba[i * 4 + 3];
+                rgba[i * 4 + 3] = rgba[i * 4 + rotation - 1];
+                rgba[i * 4 + rotation - 1] = value;
+            }
+        }
+    }
+
+    /**
+     * Returns count bits, lowest bit first, starting at bit position in the block
+     */
+    private static int getBits(byte[] block, int offset, int position, int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++, position++) {
+            value |= ((block[offset + (position >> 3)] >>> (position & 7)) & 1) << i;
+        }
+        return value;
+    }
+
+    private static int signExtend(int value, int bits) {
+        return (value << (32 - bits)) >> (32 - bits);
+    }
+
+    /**
+     * Decodes an ETC2 RGB block to 16 RGB texels.
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param rgb Destination for the 8 bit values of the 16 texels, row by row as RGB
+     */
+    static void decodeETC2(byte[] block, int offset, int[] rgb) {
+        decodeETC2(block, offset, false, rgb, null);
+    }
+
+    /**
+     * Decodes an ETC2 RGB block with punchthrough alpha, as used by VK_FORMAT_ETC2_R8G8B8A1_UNORM_BLOCK, to 16 RGB
+     * texels and alpha values. Transparent texels are black.
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param rgb Destination for the 8 bit values of the 16 texels, row by row as RGB
+     * @param alpha Destination for the 16 alpha values, 0 or 255
+     */
+    static void decodeETC2Punchthrough(byte[] block, int offset, int[] rgb, int[] alpha) {
+        decodeETC2(block, offset, true, rgb, alpha);
+    }
+
+    private static void decodeETC2(byte[] block, int offset, boolean punchthrough, int[] rgb, int[] alpha) {
+        long bits = getLong(block, offset);
+        // With punchthrough alpha the differential bit is the opaque bit and the differential mode is always used
+        boolean differential = punchthrough || ((bits >>> 33) & 1) != 0;
+        boolean opaque = !punchthrough || ((bits >>> 33) & 1) != 0;
+        if (alpha != null) {
+            Arrays.fill(alpha, 0, 16, 255);
+        }
+        int[][] base = new int[2][3];
+        for (int c = 0; c < 3; c++) {
+            int shift = 56 - c * 8;
+            if (differential) {
+                int color = (int) (bits >>> (shift + 3)) & 0x1f;
+                int second = color + (((int) (bits >>> shift) & 7) << 29 >> 29);
+                if (second < 0 || second > 31) {
+                    if (c == 2) {
+                        decodeETC2Planar(block, offset, rgb);
+                    } else {
+                        int[] paint = c == 0 ? getTPaintColors(block, offset) : getHPaintColors(block, offset);
+                        decodePaintColors(bits, paint, opaque, rgb, alpha);
+                    }
+                    return;
+                }
+                base[0][c] = ETC2Format.expand(color, 5);
+                base[1][c] = ETC2Format.expand(second, 5);
+            } else {
+                base[0][c] = ETC2Format.expand((int) (bits >>> (shift + 4)) & 0x0f, 4);
+                base[1][c] = ETC2Format.expand((int) (bits >>> shift) & 0x0f, 4);
+            }
+        }
+        int flip = (int) (bits >>> 32) & 1;
+        int[] tables = new int[] { (int) (bits >>> 37) & 7, (int) (bits >>> 34) & 7 };
+        for (int i = 0; i < 16; i++) {
+            int x = i & 3;
+            int y = i >> 2;
+            int subblock = flip == 0 ? x >> 1 : y >> 1;
+            int index = getETC2Index(bits, i);
+            if (!opaque && index == 2) {
+                alpha[i] = 0;
+                Arrays.fill(rgb, i * 3, i * 3 + 3, 0);
+                continue;
+            }
+            int modifier = !opaque && index == 0 ? 0 : ETC2Format.MODIFIERS[tables[subblock]][index];
+            for (int c = 0; c < 3; c++) {
+                rgb[i * 3 + c] = ETC2Format.clamp(base[subblock][c] + modifier);
+            }
+        }
+    }
+
+    /**
+     * Returns the 2 bit index of texel i, stored row by row
+     */
+    private static int getETC2Index(long bits, int i) {
+        int position = ETC2Format.getColumnPosition(i);
+        return (int) (((bits >>> (16 + position)) & 1) << 1 | ((bits >>> position) & 1));
+    }
+
+    /**
+     * Returns the four paint colors, as RGB, of a T mode block
+     */
+    private static int[] getTPaintColors(byte[] block, int offset) {
+        int[] b = new int[4];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = block[offset + i] & 0xff;
+        }
+        int[] first = ETC2Format.expand(new int[] { ((b[0] >> 1) & 0x0c) | (b[0] & 3), b[1] >> 4, b[1] & 0x0f }, 4);
+        int[] second = ETC2Format.expand(new int[] { b[2] >> 4, b[2] & 0x0f, b[3] >> 4 }, 4);
+        int distance = ETC2_DISTANCES[((b[3] >> 1) & 6) | (b[3] & 1)];
+        int[] paint = new int[12];
+        for (int c = 0; c < 3; c++) {
+            paint[c] = first[c];
+            paint[3 + c] = ETC2Format.clamp(second[c] + distance);
+            paint[6 + c] = second[c];
+            paint[9 + c] = ETC2Format.clamp(second[c] - distance);
+        }
+        return paint;
+    }
+
+    /**
+     * Returns the four paint colors, as RGB, of an H mode block
+     */
+    private static int[] getHPaintColors(byte[] block, int offset) {
+        int[] b = new int[4];
+        for (int i = 0; i < b.length; i++) {
+            b[i] = block[offset + i] & 0xff;
+        }
+        // R1 bits 62-59, G1 bits 58-56 and 52, B1 bits 51 and 49-47, R2 bits 46-43, G2 bits 42-39, B2 bits 38-35
+        int[] first = { (b[0] >> 3) & 0x0f, ((b[0] << 1) & 0x0e) | ((b[1] >> 4) & 1),
+                (b[1] & 8) | ((b[1] << 1) & 6) | (b[2] >> 7) };
+        int[] second = { (b[2] >> 3) & 0x0f, ((b[2] << 1) & 0x0e) | (b[3] >> 7), (b[3] >> 3) & 0x0f };
+        // Distance index bits 34 and 32, the lowest bit is given by the order of the base colors
+        int order = (first[0] << 8 | first[1] << 4 | first[2]) >= (second[0] << 8 | second[1] << 4 | second[2]) ? 1
+                : 0;
+        int distance = ETC2_DISTANCES[(b[3] & 4) | ((b[3] << 1) & 2) | order];
+        first = ETC2Format.expand(first, 4);
+        second = ETC2Format.expand(second, 4);
+        int[] paint = new int[12];
+        for (int c = 0; c < 3; c++) {
+            paint[c] = ETC2Format.clamp(first[c] + distance);
+            paint[3 + c] = ETC2Format.clamp(first[c] - distance);
+            paint[6 + c] = ETC2Format.clamp(second[c] + distance);
+            paint[9 + c] = ETC2Format.clamp(second[c] - distance);
+        }
+        return paint;
+    }
+
+    /**
+     * Decodes the texels of a T or H mode block, index 2 is transparent if the block is not opaque
+     */
+    private static void decodePaintColors(long bits, int[] paint, boolean opaque, int[] rgb, int[] alpha) {
+        for (int i = 0; i < 16; i++) {
+            int index = getETC2Index(bits, i);
+            if (!opaque && index == 2) {
+                alpha[i] = 0;
+                Arrays.fill(rgb, i * 3, i * 3 + 3, 0);
+            } else {
+                System.arraycopy(paint, index * 3, rgb, i * 3, 3);
+            }
+        }
+    }
+
+    private static void decodeETC2Planar(byte[] block, int offset, int[] rgb) {
+        int[] b = new int[8];
+        for (int i = 0; i < 8; i++) {
+            b[i] = block[offset + i] & 0xff;
+        }
+        int[] o = { (b[0] >> 1) & 0x3f, ((b[0] & 1) << 6) | ((b[1] >> 1) & 0x3f),
+                ((b[1] & 1) << 5) | (b[2] & 0x18) | ((b[2] & 3) << 1) | (b[3] >> 7) };
+        int[] h = { ((b[3] >> 1) & 0x3e) | (b[3] & 1), b[4] >> 1, ((b[4] & 1) << 5) | (b[5] >> 3) };
+        int[] v = { ((b[5] & 7) << 3) | (b[6] >> 5), ((b[6] & 0x1f) << 2) | (b[7] >> 6), b[7] & 0x3f };
+        for (int i = 0; i < 16; i++) {
+            for (int c = 0; c < 3; c++) {
+                rgb[i * 3 + c] = ETC2Format.getPlanarValue(new int[] { o[c], h[c], v[c] },
+                        ETC2Format.PLANAR_BITS[c], i & 3, i >> 2);
+            }
+        }
+    }
+
+    /**
+     * Decodes an EAC block with 8 bit values, as used for alpha in VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param values Destination for the 16 values, row by row
+     */
+    static void decodeEACAlpha(byte[] block, int offset, int[] values) {
+        decodeEAC(block, offset, ETC2Format.EAC_ALPHA, values);
+    }
+
+    /**
+     * Decodes an EAC R11 block to 11 bit values, 0 to 2047 or -1023 to 1023 if signed
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param signed True for the SNORM formats
+     * @param values Destination for the 16 values, row by row
+     */
+    static void decodeEACR11(byte[] block, int offset, boolean signed, int[] values) {
+        decodeEAC(block, offset, signed ? ETC2Format.EAC_R11_SIGNED : ETC2Format.EAC_R11, values);
+    }
+
+    private static void decodeEAC(byte[] block, int offset, int kind, int[] values) {
+        long bits = getLong(block, offset);
+        int base = kind == ETC2Format.EAC_R11_SIGNED ? Math.max(-127, block[offset]) : block[offset] & 0xff;
+        int multiplier = (int) (bits >>> 52) & 0x0f;
+        int[] modifiers = ETC2Format.EAC_MODIFIERS[(int) (bits >>> 48) & 0x0f];
+        for (int i = 0; i < 16; i++) {
+            int index = (int) (bits >>> (45 - ETC2Format.getColumnPosition(i) * 3)) & 7;
+            values[i] = ETC2Format.getEACValue(kind, base, multiplier, modifiers[index]);
+        }
+    }
+
+    /**
+     * Returns the 8 bytes of an ETC2 or EAC block, the first byte in the highest bits
+     */
+    private static long getLong(byte[] block, int offset) {
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | (block[offset + i] & 0xff);
+        }
+        return bits;
+    }
+
+    /**
+     * Decodes one ASTC block with a footprint up to 12 x 12, using the LDR profile for the UNORM and SRGB formats
+     * and the HDR profile for the SFLOAT formats. All LDR and HDR endpoint modes are decoded, blocks that are not
+     * valid decode to the error color, magenta.
+     * The result is stored as RGBA texels, row by row, with unorm 16 bit values for LDR and half float values
+     * for HDR.
+     *
+     * @param block
+     * @param offset Offset of the block
+     * @param format The ASTC format, HDR formats are decoded using the HDR profile
+     * @param rgba Destination for the decoded texels
+     */
+    static void decodeASTC(byte[] block, int offset, ImageFormat format, int[] rgba) {
+        boolean hdr = format.isASTCHDR();
+        int blockWidth = format.getBlockWidth();
+        int blockHeight = format.getBlockHeight();
+        long[] bits = new long[2];
+        for (int i = 0; i < 16; i++) {
+            bits[i >> 3] |= (block[offset + i] & 0xffL) << ((i & 7) * 8);
+        }
+        int count = blockWidth * blockHeight;
+        int blockMode = getBits(bits, 0, 11);
+        if ((blockMode & 0x1ff) == ASTC_VOID_EXTENT) {
+            boolean hdrBlock = (blockMode & 0x200) != 0;
+            if (hdrBlock && !hdr) {
+                setASTCErrorColor(hdr, count, rgba);
+                return;
+            }
+            for (int i = 0; i < count; i++) {
+                for (int c = 0; c < 4; c++) {
+                    int value = getBits(bits, 64 + c * 16, 16);
+                    rgba[i * 4 + c] = hdr && !hdrBlock ? BC6HFormat.toHalf(value / 65535f, false) : value;
+                }
+            }
+            return;
+        }
+        int[] grid = decodeASTCBlockMode(blockMode);
+        int partitions = getBits(bits, 11, 2) + 1;
+        if (grid == null || grid[0] > blockWidth || grid[1] > blockHeight || (grid[3] != 0 && partitions == 4)) {
+            setASTCErrorColor(hdr, count, rgba);
+            return;
+        }
+        int planes = grid[3] + 1;
+        int weightRange = ASTCFormat.ISE_RANGES[grid[2]];
+        int weightCount = grid[0] * grid[1] * planes;
+        int weightBits = ASTCFormat.getISEBitCount(weightCount, weightRange);
+        int belowWeights = 128 - weightBits;
+        if (weightCount > 64 || weightBits < 24 || weightBits > 96) {
+            setASTCErrorColor(hdr, count, rgba);
+            return;
+        }
+        int[] cems = new int[partitions];
+        int seed = 0;
+        int colorOffset = ASTCFormat.COLOR_OFFSET;
+        if (partitions == 1) {
+            cems[0] = getBits(bits, 13, 4);
+        } else {
+            seed = getBits(bits, 13, 10);
+            colorOffset = ASTC_MULTI_PARTITION_COLOR_OFFSET;
+            int encoded = getBits(bits, 23, 6);
+            if ((encoded & 3) == 0) {
+                Arrays.fill(cems, encoded >> 2);
+            } else {
+                // The high bits of the endpoint modes are stored below the weights
+                int highBits = 3 * partitions - 4;
+                belowWeights -= highBits;
+                encoded = (encoded | (getBits(bits, belowWeights, highBits) << 6)) >> 2;
+                int baseClass = (getBits(bits, 23, 2)) - 1;
+                for (int p = 0; p < partitions; p++) {
+                    cems[p] = ((((encoded >> p) & 1) + baseClass) << 2) | ((encoded >> (partitions + p * 2)) & 3);
+                }
+            }
+        }
+        int planeChannel = -1;
+        if (planes == 2) {
+            belowWeights -= 2;
+            planeChannel = getBits(bits, belowWeights, 2);
+        }
+        int valueCount = 0;
+        for (int cem : cems) {
+            valueCount += ((cem >> 2) + 1) * 2;
+        }
+        int colorRange = -1;
+        for (int i = ASTCFormat.ISE_RANGES.length - 1; i >= 0 && colorRange < 0; i--) {
+            if (ASTCFormat.ISE_RANGES[i] >= 6 && ASTCFormat.getISEBitCount(valueCount,
+                    ASTCFormat.ISE_RANGES[i]) <= belowWeights - colorOffset) {
+                colorRange = i;
+            }
+        }
+        if (valueCount > 18 || colorRange < 0) {
+            setASTCErrorColor(hdr, count, rgba);
+            return;
+        }
+        int[] values = new int[valueCount];
+        decodeISE(bits, colorOffset, belowWeights, ASTCFormat.ISE_RANGES[colorRange], values);
+        for (int i = 0; i < valueCount; i++) {
+            values[i] = ASTCFormat.COLOR_UNQUANTIZATION[colorRange][values[i]];
+        }
+        int[] expanded = new int[partitions * 8];
+        boolean[] hdrEndpoints = new boolean[partitions];
+        for (int p = 0, v = 0; p < partitions; v += ((cems[p] >> 2) + 1) * 2, p++) {
+            hdrEndpoints[p] = isHDREndpointMode(cems[p]);
+            if (hdrEndpoints[p] && !hdr) {
+                setASTCErrorColor(hdr, count, rgba);
+                return;
+            }
+            decodeEndpoints(cems[p], values, v, format.isSRGB(), expanded, p * 8);
+        }
+        long[] reversed = { Long.reverse(bits[1]), Long.reverse(bits[0]) };
+        int[] weights = new int[weightCount];
+        decodeISE(reversed, 0, weightBits, weightRange, weights);
+        for (int i = 0; i < weightCount; i++) {
+            weights[i] = ASTCFormat.WEIGHT_UNQUANTIZATION[grid[2]][weights[i]];
+        }
+        int[] points = new int[count * 4];
+        int[] factors = new int[count * 4];
+        ASTCFormat.getInfill(blockWidth, blockHeight, grid[0], grid[1], points, factors);
+        int[] texelWeights = new int[2];
+        for (int i = 0; i < count; i++) {
+            for (int plane = 0; plane < planes; plane++) {
+                int sum = 8;
+                for (int k = 0; k < 4; k++) {
+                    sum += weights[points[i * 4 + k] * planes + plane] * factors[i * 4 + k];
+                }
+                texelWeights[plane] = sum >> 4;
+            }
+            int p = partitions == 1 ? 0
+                    : ASTCFormat.selectPartition(seed, i % blockWidth, i / blockWidth, partitions,
+                            count < ASTC_SMALL_BLOCK);
+            for (int c = 0; c < 4; c++) {
+                int w = c == planeChannel ? texelWeights[1] : texelWeights[0];
+                int value = ASTCFormat.interpolate(expanded[p * 8 + c], expanded[p * 8 + 4 + c], w);
+                if (hdrEndpoints[p] && (c < 3 || cems[p] != ASTC_CEM_HDR_RGB_LDR_ALPHA)) {
+                    value = fromLNS(value);
+                } else if (hdr) {
+                    value = BC6HFormat.toHalf(value / 65535f, false);
+                }
+                rgba[i * 4 + c] = value;
+            }
+        }
+    }
+
+    private static void setASTCErrorColor(boolean hdr, int count, int[] rgba) {
+        for (int i = 0; i < count; i++) {
+            for (int c = 0; c < 4; c++) {
+                rgba[i * 4 + c] = c == 1 ? 0 : hdr ? ASTCFormat.HALF_ONE : 0xffff;
+            }
+        }
+    }
+
+    private static boolean isHDREndpointMode(int cem) {
+        return cem == 2 || cem == 3 || cem == 7 || cem == ASTCFormat.CEM_HDR_RGB
+                || cem == ASTC_CEM_HDR_RGB_LDR_ALPHA || cem == ASTC_CEM_HDR_RGBA;
+    }
+
+    /**
+     * Decodes the endpoint values of one partition to the 16 bit interpolation domain, stored as
+     * [offset + endpoint * 4 + channel]
+     */
+    private static void decodeEndpoints(int cem, int[] v, int first, boolean srgb, int[] expanded, int offset) {
+        int[] e = new int[8];
+        int[] value = new int[8];
+        int l0;
+        int l1;
+        int a0;
+        int a1;
+        System.arraycopy(v, first, value, 0, ((cem >> 2) + 1) * 2);
+        switch (cem) {
+            case 0:
+                setEndpoints(e, value[0], value[0], value[0], 255, value[1], value[1], value[1], 255);
+                break;
+            case 1:
+                l0 = (value[0] >> 2) | (value[1] & 0xc0);
+                l1 = Math.min(255, l0 + (value[1] & 0x3f));
+                setEndpoints(e, l0, l0, l0, 255, l1, l1, l1, 255);
+                break;
+            case 4:
+                setEndpoints(e, value[0], value[0], value[0], value[2], value[1], value[1], value[1], value[3]);
+                break;
+            case 5:
+                transferBits(value, 0);
+                transferBits(value, 2);
+                setEndpoints(e, value[0], value[0], value[0], value[2], value[0] + value[1], value[0] + value[1],
+                        value[0] + value[1], value[2] + value[3]);
+                break;
+            case 6:
+            case 10:
+                a0 = cem == 10 ? value[4] : 255;
+                a1 = cem == 10 ? value[5] : 255;
+                setEndpoints(e, (value[0] * value[3]) >> 8, (value[1] * value[3]) >> 8, (value[2] * value[3]) >> 8, a0,
+                        value[0], value[1], value[2], a1);
+                break;
+            case ASTCFormat.CEM_LDR_RGB:
+            case ASTCFormat.CEM_LDR_RGBA:
+                a0 = cem == ASTCFormat.CEM_LDR_RGBA ? value[6] : 255;
+                a1 = cem == ASTCFormat.CEM_LDR_RGBA ? value[7] : 255;
+                if (value[1] + value[3] + value[5] >= value[0] + value[2] + value[4]) {
+                    setEndpoints(e, value[0], value[2], value[4], a0, value[1], value[3], value[5], a1);
+                } else {
+                    setEndpoints(e, value[1], value[3], value[5], a1, value[0], value[2], value[4], a0);
+                    blueContract(e);
+                }
+                break;
+            case 9:
+            case 13:
+                for (int i = 0; i < (cem == 13 ? 8 : 6); i += 2) {
+                    transferBits(value, i);
+                }
+                a0 = cem == 13 ? value[6] : 255;
+                a1 = cem == 13 ? value[6] + value[7] : 255;
+                if (value[1] + value[3] + value[5] >= 0) {
+                    setEndpoints(e, value[0], value[2], value[4], a0, value[0] + value[1], value[2] + value[3],
+                            value[4] + value[5], a1);
+                } else {
+                    setEndpoints(e, value[0] + value[1], value[2] + value[3], value[4] + value[5], a1, value[0],
+                            value[2], value[4], a0);
+                    blueContract(e);
+                }
+                break;
+            default:
+                decodeHDREndpoints(cem, value, expanded, offset);
+                return;
+        }
+        for (int i = 0; i < 8; i++) {
+            expanded[offset + i] = ASTCFormat.expand(Math.max(0, Math.min(255, e[i])), i & 3, false, srgb);
+        }
+    }
+
+    /**
+     * Decodes HDR endpoint values to the logarithmic domain, 12 bit values shifted left by 4. Alpha is 1 unless
+     * stored, LDR alpha of mode 14 is expanded to 16 bits.
+     */
+    private static void decodeHDREndpoints(int cem, int[] v, int[] expanded, int offset) {
+        int[] rgb = new int[6];
+        int y0;
+        int y1;
+        switch (cem) {
+            case 2:
+            case 3:
+                if (cem == 2) {
+                    y0 = v[1] >= v[0] ? v[0] << 4 : (v[1] << 4) + 8;
+                    y1 = v[1] >= v[0] ? v[1] << 4 : (v[0] << 4) - 8;
+                } else if ((v[0] & 0x80) != 0) {
+                    y0 = ((v[1] & 0xe0) << 4) | ((v[0] & 0x7f) << 2);
+                    y1 = Math.min(0xfff, y0 + ((v[1] & 0x1f) << 2));
+                } else {
+                    y0 = ((v[1] & 0xf0) << 4) | ((v[0] & 0x7f) << 1);
+                    y1 = Math.min(0xfff, y0 + ((v[1] & 0x0f) << 1));
+                }
+                Arrays.fill(rgb, 0, 3, y0);
+                Arrays.fill(rgb, 3, 6, y1);
+                break;
+            case 7:
+                decodeHDRRGBScale(v, rgb);
+                break;
+            default:
+                decodeHDRRGB(v, rgb);
+                break;
+        }
+        for (int e = 0; e < 2; e++) {
+            for (int c = 0; c < 3; c++) {
+                expanded[offset + e * 4 + c] = rgb[e * 3 + c] << 4;
+            }
+            expanded[offset + e * 4 + 3] = ASTCFormat.HDR_ALPHA;
+        }
+        if (cem == ASTC_CEM_HDR_RGB_LDR_ALPHA) {
+            expanded[offset + 3] = ASTCFormat.expand(v[6], 3, false, false);
+            expanded[offset + 7] = ASTCFormat.expand(v[7], 3, false, false);
+        } else if (cem == ASTC_CEM_HDR_RGBA) {
+            decodeHDRAlpha(v[6], v[7], expanded, offset);
+        }
+    }
+
+    /**
+     * Decodes the HDR RGB base and scale values of mode 7 to 12 bit endpoints, stored as
+     * [endpoint * 3 + channel]. The mode bits select the major component and how the variable bits are placed.
+     */
+    private static void decodeHDRRGBScale(int[] v, int[] rgb) {
+        int modeValue = ((v[0] & 0xc0) >> 6) | ((v[1] & 0x80) >> 5) | ((v[2] & 0x80) >> 4);
+        int major;
+        int mode;
+        if ((modeValue & 0x0c) != 0x0c) {
+            major = modeValue >> 2;
+            mode = modeValue & 3;
+        } else if (modeValue != 0x0f) {
+            major = modeValue & 3;
+            mode = 4;
+        } else {
+            major = 0;
+            mode = 5;
+        }
+        int[] bits = { (v[1] >> 6) & 1, (v[1] >> 5) & 1, (v[2] >> 6) & 1, (v[2] >> 5) & 1, (v[3] >> 7) & 1,
+                (v[3] >> 6) & 1, (v[3] >> 5) & 1 };
+        // Red, green, blue and scale
+        int[] values = { v[0] & 0x3f, v[1] & 0x1f, v[2] & 0x1f, v[3] & 0x1f };
+        for (int[] placement : HDR_RGB_SCALE_BITS) {
+            if (((1 << mode) & placement[0]) != 0) {
+                values[placement[2]] |= bits[placement[1]] << placement[3];
+            }
+        }
+        int shift = Math.max(1, mode);
+        for (int i = 0; i < values.length; i++) {
+            values[i] <<= shift;
+        }
+        if (mode != 5) {
+            values[1] = values[0] - values[1];
+            values[2] = values[0] - values[2];
+        }
+        swapMajor(values, major, 0);
+        for (int c = 0; c < 3; c++) {
+            rgb[c] = Math.max(0, Math.min(0xfff, values[c] - values[3]));
+            rgb[3 + c] = Math.max(0, Math.min(0xfff, values[c]));
+        }
+    }
+
+    /**
+     * Decodes the HDR RGB values of mode 11, 14 and 15 to 12 bit endpoints, stored as [endpoint * 3 + channel].
+     * If the major component is 3 the endpoints are stored directly, otherwise as a base value and differences
+     * where the mode bits select the number of bits and how the variable bits are placed.
+     */
+    private static void decodeHDRRGB(int[] v, int[] rgb) {
+        int major = ((v[4] & 0x80) >> 7) | ((v[5] & 0x80) >> 6);
+        if (major == 3) {
+            for (int e = 0; e < 2; e++) {
+                rgb[e * 3] = v[e] << 4;
+                rgb[e * 3 + 1] = v[2 + e] << 4;
+                rgb[e * 3 + 2] = (v[4 + e] & 0x7f) << 5;
+            }
+            return;
+        }
+        int mode = ((v[1] & 0x80) >> 7) | ((v[2] & 0x80) >> 6) | ((v[3] & 0x80) >> 5);
+        int[] bits = { (v[2] >> 6) & 1, (v[3] >> 6) & 1, (v[4] >> 6) & 1, (v[5] >> 6) & 1, (v[4] >> 5) & 1,
+                (v[5] >> 5) & 1 };
+        // a, b0, b1, c, d0 and d1
+        int[] values = { v[0] | ((v[1] & 0x40) << 2), v[2] & 0x3f, v[3] & 0x3f, v[1] & 0x3f, v[4] & 0x1f,
+                v[5] & 0x1f };
+        for (int[] placement : HDR_RGB_BITS) {
+            if (((1 << mode) & placement[0]) != 0) {
+                values[placement[2]] |= bits[placement[1]] << placement[3];
+            }
+        }
+        int dBits = HDR_RGB_D_BITS[mode];
+        values[4] = signExtend(values[4], dBits);
+        values[5] = signExtend(values[5], dBits);
+        int shift = (mode >> 1) ^ 3;
+        for (int i = 0; i < values.length; i++) {
+            values[i] <<= shift;
+        }
+        int a = values[0];
+        int[] endpoints = { a - values[3], a - values[1] - values[3] - values[4], a - values[2] - values[3] - values[5],
+                a, a - values[1], a - values[2] };
+        for (int i = 0; i < endpoints.length; i++) {
+            endpoints[i] = Math.max(0, Math.min(0xfff, endpoints[i]));
+        }
+        swapMajor(endpoints, major, 0);
+        swapMajor(endpoints, major, 3);
+        System.arraycopy(endpoints, 0, rgb, 0, 6);
+    }
+
+    /**
+     * Swaps red with the major component, 1 for green and 2 for blue, of the RGB values at offset
+     */
+    private static void swapMajor(int[] values, int major, int offset) {
+        if (major == 1 || major == 2) {
+            int red = values[offset];
+            values[offset] = values[offset + major];
+            values[offset + major] = red;
+        }
+    }
+
+    /**
+     * Decodes the HDR alpha values of mode 15 to the logarithmic domain
+     */
+    private static void decodeHDRAlpha(int v6, int v7, int[] expanded, int offset) {
+        int mode = ((v6 >> 7) & 1) | ((v7 >> 6) & 2);
+        int a0 = v6 & 0x7f;
+        int a1 = v7 & 0x7f;
+        if (mode == 3) {
+            a0 <<= 5;
+            a1 <<= 5;
+        } else {
+            a0 |= (a1 << (mode + 1)) & 0x780;
+            a1 &= 0x3f >> mode;
+            a1 ^= 0x20 >> mode;
+            a1 -= 0x20 >> mode;
+            a0 <<= 4 - mode;
+            a1 <<= 4 - mode;
+            a1 = Math.max(0, Math.min(0xfff, a0 + a1));
+        }
+        expanded[offset + 3] = a0 << 4;
+        expanded[offset + 7] = a1 << 4;
+    }
+
+    private static void setEndpoints(int[] e, int... values) {
+        System.arraycopy(values, 0, e, 0, 8);
+    }
+
+    /**
+     * Moves the top bit of the offset at index + 1 to the base at index, the offset becomes a signed 6 bit value
+     */
+    private static void transferBits(int[] values, int index) {
+        int base = (values[index] >> 1) | (values[index + 1] & 0x80);
+        int offset = (values[index + 1] >> 1) & 0x3f;
+        values[index] = base;
+        values[index + 1] = (offset & 0x20) != 0 ? offset - 0x40 : offset;
+    }
+
+    /**
+     * Moves red and green of both endpoints towards blue
+     */
+    private static void blueContract(int[] e) {
+        for (int i = 0; i < 8; i += 4) {
+            e[i] = (e[i] + e[i + 2]) >> 1;
+            e[i + 1] = (e[i + 1] + e[i + 2]) >> 1;
+        }
+    }
+
+    /**
+     * Returns the half float of the logarithmic value
+     */
+    private static int fromLNS(int value) {
+        int mantissa = value & 0x7ff;
+        if (mantissa < 512) {
+            mantissa *= 3;
+        } else if (mantissa < 1536) {
+            mantissa = 4 * mantissa - 512;
+        } else {
+            mantissa = 5 * mantissa - 2048;
+        }
+        return Math.min(ASTC_MAX_HALF, ((value >> 11) << 10) | (mantissa >> 3));
+    }
+
+    /**
+     * Decodes the values stored with the integer sequence encoding of the range from position, bits at or after end
+     * are read as 0.
+     */
+    private static void decodeISE(long[] bits, int position, int end, int range, int[] values) {
+        boolean trits = range % 3 == 0;
+        boolean quints = range % 5 == 0;
+        int n = 31 - Integer.numberOfLeadingZeros(trits ? range / 3 : quints ? range / 5 : range);
+        int group = trits ? 5 : quints ? 3 : 1;
+        // The bits of the packed trits or quints that follow each value
+        int[] packedBits = trits ? new int[] { 2, 2, 1, 2, 1 } : quints ? new int[] { 3, 2, 2 } : new int[] { 0 };
+        int[] m = new int[group];
+        int[] digits = new int[group];
+        for (int i = 0; i < values.length; i += group) {
+            int packed = 0;
+            int packedPosition = 0;
+            for (int j = 0; j < group; j++) {
+                m[j] = read(bits, position, n, end);
+                position += n;
+                packed |= read(bits, position, packedBits[j], end) << packedPosition;
+                position += packedBits[j];
+                packedPosition += packedBits[j];
+            }
+            if (trits) {
+                decodeTrits(packed, digits);
+            } else if (quints) {
+                decodeQuints(packed, digits);
+            }
+            for (int j = 0; j < group && i + j < values.length; j++) {
+                values[i + j] = (digits[j] << n) | m[j];
+            }
+        }
+    }
+
+    private static int read(long[] bits, int position, int count, int end) {
+        int available = Math.max(0, Math.min(count, end - position));
+        return available == 0 ? 0 : getBits(bits, position, available);
+    }
+
+    /**
+     * Decodes 8 packed bits to 5 trits
+     */
+    private static void decodeTrits(int t, int[] trits) {
+        int c;
+        if (((t >> 2) & 7) == 7) {
+            c = ((t >> 3) & 0x1c) | (t & 3);
+            trits[4] = 2;
+            trits[3] = 2;
+        } else {
+            c = t & 0x1f;
+            if (((t >> 5) & 3) == 3) {
+                trits[4] = 2;
+                trits[3] = (t >> 7) & 1;
+            } else {
+                trits[4] = (t >> 7) & 1;
+                trits[3] = (t >> 5) & 3;
+            }
+        }
+        if ((c & 3) == 3) {
+            trits[2] = 2;
+            trits[1] = (c >> 4) & 1;
+            trits[0] = ((c >> 2) & 2) | ((c >> 2) & ~(c >> 3) & 1);
+        } else if (((c >> 2) & 3) == 3) {
+            trits[2] = 2;
+            trits[1] = 2;
+            trits[0] = c & 3;
+        } else {
+            trits[2] = (c >> 4) & 1;
+            trits[1] = (c >> 2) & 3;
+            trits[0] = (c & 2) | (c & ~(c >> 1) & 1);
+        }
+    }
+
+    /**
+     * Decodes 7 packed bits to 3 quints
+     */
+    private static void decodeQuints(int q, int[] quints) {
+        if (((q >> 1) & 3) == 3 && ((q >> 5) & 3) == 0) {
+            quints[2] = ((q & 1) << 2) | (((q >> 4) & ~q & 1) << 1) | ((q >> 3) & ~q & 1);
+            quints[1] = 4;
+            quints[0] = 4;
+            return;
+        }
+        int c;
+        if (((q >> 1) & 3) == 3) {
+            quints[2] = 4;
+            c = (((q >> 3) & 3) << 3) | ((~(q >> 5) & 3) << 1) | (q & 1);
+        } else {
+            quints[2] = (q >> 5) & 3;
+            c = q & 0x1f;
+        }
+        if ((c & 7) == 5) {
+            quints[1] = 4;
+            quints[0] = (c >> 3) & 3;
+        } else {
+            quints[1] = (c >> 3) & 3;
+            quints[0] = c & 7;
+        }
+    }
+
+    /**
+     * Returns the weight grid width, height, weight quantization mode and dual plane flag of the block mode, or
+     * null if the block mode is reserved
+     */
+    private static int[] decodeASTCBlockMode(int blockMode) {
+        int quant = (blockMode >> 4) & 1;
+        int high = (blockMode >> 9) & 1;
+        int dual = (blockMode >> 10) & 1;
+        int a = (blockMode >> 5) & 3;
+        int width;
+        int height;
+        if ((blockMode & 3) != 0) {
+            quant |= (blockMode & 3) << 1;
+            int b = (blockMode >> 7) & 3;
+            switch ((blockMode >> 2) & 3) {
+                case 0:
+                    width = b + 4;
+                    height = a + 2;
+                    break;
+                case 1:
+                    width = b + 8;
+                    height = a + 2;
+                    break;
+                case 2:
+                    width = a + 2;
+                    height = b + 8;
+                    break;
+                default:
+                    b &= 1;
+                    width = (blockMode & 0x100) != 0 ? b + 2 : a + 2;
+                    height = (blockMode & 0x100) != 0 ? a + 2 : b + 6;
+                    break;
+            }
+        } else {
+            quant |= ((blockMode >> 2) & 3) << 1;
+            if (((blockMode >> 2) & 3) == 0) {
+                return null;
+            }
+            int b = (blockMode >> 9) & 3;
+            switch ((blockMode >> 7) & 3) {
+                case 0:
+                    width = 12;
+                    height = a + 2;
+                    break;
+                case 1:
+                    width = a + 2;
+                    height = 12;
+                    break;
+                case 2:
+                    width = a + 6;
+                    height = b + 6;
+                    dual = 0;
+                    high = 0;
+                    break;
+                default:
+                    if (a > 1) {
+                        return null;
+                    }
+                    width = a == 0 ? 6 : 10;
+                    height = a == 0 ? 10 : 6;
+                    break;
+            }
+        }
+        return new int[] { width, height, quant - 2 + 6 * high, dual };
+    }
+
+    /**
+     * Returns count bits, lowest bit first, starting at bit position in the 128 bits
+     */
+    private static int getBits(long[] bits, int position, int count) {
+        long value = bits[position >> 6] >>> (position & 63);
+        if ((position & 63) + count > 64) {
+            value |= bits[1] << (64 - (position & 63));
+        }
+        return (int) (value & ((1L << count) - 1));
+    }
+
+    private static void setRGBA(int[] rgb, int[] alpha, int[] rgba) {
+        for (int i = 0; i < 16; i++) {
+            System.arraycopy(rgb, i * 3, rgba, i * 4, 3);
+            rgba[i * 4 + 3] = alpha != null ? alpha[i] : 255;
+        }
+    }
+
+    private static int expand(int value, int bits) {
+        return (value << (8 - bits)) | (value >> (2 * bits - 8));
+    }
+
+    /**
+     * Returns the half float bits of the value, with sign bit
+     */
+    private static int toHalfBits(float value) {
+        int half = BC6HFormat.toHalf(value, true);
+        return half < 0 ? 0x8000 | -half : half;
+    }
+
+}
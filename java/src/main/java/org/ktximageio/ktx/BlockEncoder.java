@@ -0,0 +1,235 @@
+package org.ktximageio.ktx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.FloatImageBuffer.BufferHDRProperties;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Base class for encoders of block compressed formats.
+ * Each image is split into tiles of {@link #TILE_BLOCKS} x {@link #TILE_BLOCKS} blocks that are encoded at the same
+ * time using the executor. The texels of a block are fetched from the source as float RGBA, edge texels are
+ * repeated for blocks that are outside of the image. The encoded images can be written using
+ * {@link KTXSerializer}, for instance cubemaps created by {@link PanoramaToCubemap} by using
+ * {@link #encode(Iterator, ImageFormat)}.
+ */
+public abstract class BlockEncoder {
+
+    /**
+     * Quality presets, higher quality searches more block encodings and is slower.
+     */
+    public enum Quality {
+        FAST(),
+        NORMAL(),
+        HIGH();
+    }
+
+    /**
+     * Number of blocks, horizontally and vertically, in the tiles that are encoded as one task
+     */
+    public static final int TILE_BLOCKS = 16;
+
+    /**
+     * Work done for one tile of blocks, see {@link BlockEncoder#runTiles(Executor, int, int, TileTask)}
+     *
+     */
+    interface TileTask {
+        /**
+         * Processes the blocks from start, inclusive, to end, exclusive
+         *
+         * @param startX
+         * @param startY
+         * @param endX
+         * @param endY
+         */
+        void run(int startX, int startY, int endX, int endY);
+    }
+
+    protected final Executor executor;
+    protected final Quality quality;
+
+    /**
+     * Creates the encoder
+     *
+     * @param executor Executor for the tiles, for instance {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     * @param quality
+     */
+    protected BlockEncoder(@NonNull Executor executor, @NonNull Quality quality) {
+        this.executor = executor;
+        this.quality = quality;
+    }
+
+    /**
+     * Returns true if images can be encoded to the block compressed format
+     *
+     * @param format
+     * @return
+     */
+    public abstract boolean isSupported(@NonNull ImageFormat format);
+
+    /**
+     * Encodes one block, texels are stored row by row as RGBA
+     *
+     * @param texels The texels of the block, blockWidth * blockHeight * 4 values
+     * @param format The destination format
+     * @param block Destination for the encoded block, the size of one block in format
+     */
+    protected abstract void encodeBlock(float[] texels, ImageFormat format, byte[] block);
+
+    /**
+     * Encodes all layers, faces and depth slices of the source to the block compressed format.
+     * The size and number of images are the same as in source.
+     *
+     * @param source The images to encode, the source is not destroyed
+     * @param format The block compressed format
+     * @return The encoded images, with hdr properties if source is a {@link FloatImageBuffer}
+     * @throws IllegalArgumentException If format is not supported or source is block compressed
+     */
+    public BlockImageBuffer encode(@NonNull ImageBuffer source, @NonNull ImageFormat format) {
+        if (!isSupported(format)) {
+            throw new IllegalArgumentException("INVALID VALUE, not supported format " + format);
+        }
+        return encodeImages(source, format);
+    }
+
+    /**
+     * Encodes all images of the source using {@link #encodeBlock(float[], ImageFormat, byte[])}, the format is not
+     * checked and gives the block size and the format of the returned buffer.
+     */
+    protected BlockImageBuffer encodeImages(@NonNull ImageBuffer source, @NonNull ImageFormat format) {
+        if (source.format.isBlockCompressed()) {
+            throw new IllegalArgumentException("INVALID VALUE, source is block compressed " + source.format);
+        }
+        long start = System.currentTimeMillis();
+        int imageSize = KTX.toBufferSize(format.getImageSize(source.width, source.height), "image");
+        int imageCount = source.getImageCount();
+        ByteBuffer blocks = ByteBuffer.allocateDirect(KTX.toBufferSize((long) imageSize * imageCount, "images"))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        SharedBuffer owner = new SharedBuffer(blocks);
+        BufferHDRProperties properties = source instanceof FloatImageBuffer ? new BufferHDRProperties() : null;
+        try {
+            for (int index = 0; index < imageCount; index++) {
+                float[] texels = source.getAsFloatArray(index);
+                if (properties != null) {
+                    BufferHDRProperties.get(texels, properties);
+                }
+                encodeImage(texels, source.format.typeSize, source.width, source.height, format, blocks,
+                        index * imageSize);
+            }
+        } catch (RuntimeException e) {
+            owner.release();
+            throw e;
+        }
+        BlockImageBuffer result = new BlockImageBuffer(blocks, format, source.layerCount, source.faceCount,
+                new int[] { source.width, source.height, source.depth }, source.transferFunction, properties);
+        result.setOwner(owner);
+        System.out.println("Encoded " + imageCount + " images, " + source.width + " x " + source.height + " to "
+                + format + " in " + (System.currentTimeMillis() - start) + " ms, quality " + quality);
+        return result;
+    }
+
+    /**
+     * Encodes the images as they are returned, each source image is destroyed when it has been encoded.
+     * Use this to write block compressed faces created by
+     * {@link PanoramaToCubemap#createCubeMapFaces(ImageBuffer, ImageFormat, Executor, int)} using
+     * {@link KTXSerializer#serializeFaces(java.nio.file.Path, Iterator, KTX.SuperCompression)}
+     *
+     * @param images
+     * @param format The block compressed format
+     * @return Iterator returning the encoded images
+     */
+    public Iterator<ImageBuffer> encode(@NonNull Iterator<ImageBuffer> images, @NonNull ImageFormat format) {
+        if (!isSupported(format)) {
+            throw new IllegalArgumentException("INVALID VALUE, not supported format " + format);
+        }
+        return new Iterator<ImageBuffer>() {
+
+            @Override
+            public boolean hasNext() {
+                return images.hasNext();
+            }
+
+            @Override
+            public ImageBuffer next() {
+                ImageBuffer source = images.next();
+                try {
+                    return encode(source, format);
+                } finally {
+                    source.destroy();
+                }
+            }
+        };
+    }
+
+    /**
+     * Encodes one image, each tile of blocks is encoded as a separate task and the method returns when all tiles
+     * are encoded.
+     */
+    private void encodeImage(float[] texels, int channels, int width, int height, ImageFormat format,
+            ByteBuffer blocks, int offset) {
+        int blocksX = (width + format.getBlockWidth() - 1) / format.getBlockWidth();
+        int blocksY = (height + format.getBlockHeight() - 1) / format.getBlockHeight();
+        runTiles(executor, blocksX, blocksY, (startX, startY, endX, endY) -> encodeTile(texels, channels, width,
+                height, format, blocks.duplicate(), offset, blocksX, startX, startY, endX, endY));
+    }
+
+    /**
+     * Runs the task for each tile of {@link #TILE_BLOCKS} x {@link #TILE_BLOCKS} blocks on the executor and returns
+     * when all tiles are done. A runtime exception thrown by a task is rethrown.
+     *
+     * @param executor
+     * @param blocksX Number of blocks horizontally
+     * @param blocksY Number of blocks vertically
+     * @param task Called with the first block and the end block, exclusive, of each tile
+     */
+    static void runTiles(@NonNull Executor executor, int blocksX, int blocksY, @NonNull TileTask task) {
+        List<CompletableFuture<Void>> tiles = new ArrayList<CompletableFuture<Void>>();
+        for (int tileY = 0; tileY < blocksY; tileY += TILE_BLOCKS) {
+            for (int tileX = 0; tileX < blocksX; tileX += TILE_BLOCKS) {
+                int x = tileX;
+                int y = tileY;
+                tiles.add(CompletableFuture.runAsync(() -> task.run(x, y, Math.min(blocksX, x + TILE_BLOCKS),
+                        Math.min(blocksY, y + TILE_BLOCKS)), executor));
+            }
+        }
+        try {
+            CompletableFuture.allOf(tiles.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+    private void encodeTile(float[] texels, int channels, int width, int height, ImageFormat format,
+            ByteBuffer blocks, int offset, int blocksX, int startX, int startY, int endX, int endY) {
+        int blockWidth = format.getBlockWidth();
+        int blockHeight = format.getBlockHeight();
+        float[] blockTexels = new float[blockWidth * blockHeight * 4];
+        byte[] block = new byte[format.getBlockSizeInBytes()];
+        for (int by = startY; by < endY; by++) {
+            for (int bx = startX; bx < endX; bx++) {
+                int index = 0;
+                for (int y = 0; y < blockHeight; y++) {
+                    int row = Math.min(by * blockHeight + y, height - 1) * width;
+                    for (int x = 0; x < blockWidth; x++) {
+                        int source = (row + Math.min(bx * blockWidth + x, width - 1)) * channels;
+                        for (int c = 0; c < 4; c++) {
+                            blockTexels[index++] = c < channels ? texels[source + c] : c == 3 ? 1 : 0;
+                        }
+                    }
+                }
+                encodeBlock(blockTexels, format, block);
+                blocks.position(offset + (by * blocksX + bx) * block.length);
+                blocks.put(block);
+            }
+        }
+    }
+
+}
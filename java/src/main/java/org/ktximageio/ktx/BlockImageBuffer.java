@@ -0,0 +1,55 @@
+package org.ktximageio.ktx;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.FloatImageBuffer.BufferHDRProperties;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+import org.ktximageio.ktx.ImageReader.TransferFunction;
+
+/**
+ * Imagebuffer holding block compressed pixel data, as created by a {@link BlockEncoder} or loaded from a KTX2 file.
+ * Images are stored as rows of blocks, each block covering {@link ImageFormat#getBlockWidth()} x
+ * {@link ImageFormat#getBlockHeight()} texels.
+ */
+public class BlockImageBuffer extends ImageBuffer {
+
+    private final BufferHDRProperties properties;
+
+    /**
+     * Internal constructor - do NOT use - use {@link BlockEncoder} or {@link KTX.KTXHeader#getData()}
+     */
+    BlockImageBuffer(@NonNull ByteBuffer blocks, @NonNull ImageFormat format, int layerCount, int faceCount,
+            int[] dimension, TransferFunction transferFunction, BufferHDRProperties properties) {
+        super(blocks, format, layerCount, faceCount, dimension, transferFunction);
+        if (!format.isBlockCompressed()) {
+            throw new IllegalArgumentException("INVALID VALUE, not a block compressed format " + format);
+        }
+        this.properties = properties;
+    }
+
+    /**
+     * Returns the hdr properties of the source images, or null if the source was not a float image.
+     *
+     * @return
+     */
+    public BufferHDRProperties getProperties() {
+        return properties;
+    }
+
+    /**
+     * Decodes the image using a {@link BlockDecoder}, the values are RGBA or, for the formats decoded to half floats,
+     * RGB.
+     */
+    @Override
+    public float[] getAsFloatArray(int index) {
+        if (index >= getImageCount()) {
+            return null;
+        }
+        try (ImageBuffer decoded = new BlockDecoder(ForkJoinPool.commonPool()).decode(this, index)) {
+            return decoded.getAsFloatArray(0);
+        }
+    }
+
+}
@@ -0,0 +1,312 @@
+package org.ktximageio.ktx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.KTX.SuperCompression;
+
+/**
+ * Selects the supercompression scheme and level for a KTX file by trial compressing a sample of the level data with
+ * each candidate codec, the choice is made according to the goal of the policy.
+ * Since the KTX2 header holds one scheme for all levels the choice is made once per file, using a sample taken
+ * from all levels.
+ * Timing is measured on the calling thread, the first files compressed in a VM will measure slower until the
+ * codecs are compiled by the JIT.
+ *
+ */
+public class CompressionPolicy {
+
+    /**
+     * Max number of bytes that are trial compressed
+     */
+    public static final int SAMPLE_SIZE = 256 * 1024;
+    /**
+     * Size of each block sampled from the level data, blocks are spread evenly over the data.
+     */
+    public static final int SAMPLE_BLOCK_SIZE = 16 * 1024;
+    /**
+     * Number of times the sample is compressed with each candidate, the fastest run is used so that the first, cold,
+     * run does not decide the timing.
+     */
+    public static final int TRIAL_RUNS = 3;
+
+    public enum Goal {
+        /**
+         * Fastest candidate that makes the data smaller, if no candidate makes the data smaller
+         * {@link SuperCompression#None} is used.
+         */
+        FASTEST,
+        /**
+         * Smallest size, regardless of time
+         */
+        SMALLEST,
+        /**
+         * Smallest size of the candidates that compress within the time budget
+         */
+        BUDGET;
+    }
+
+    /**
+     * A codec that is trial compressed
+     */
+    public static class Candidate {
+        public final SuperCompression scheme;
+        /**
+         * The codec level, 0 for {@link SuperCompression#None}
+         */
+        public final int level;
+        /**
+         * The codec, null for {@link SuperCompression#None}
+         */
+        public final SuperCompressionCodec codec;
+
+        public Candidate(@NonNull SuperCompression scheme, int level, SuperCompressionCodec codec) {
+            if ((codec == null) != (scheme == SuperCompression.None)) {
+                throw new IllegalArgumentException("INVALID VALUE, codec " + codec + " for scheme " + scheme);
+            }
+            this.scheme = scheme;
+            this.level = level;
+            this.codec = codec;
+        }
+
+        @Override
+        public String toString() {
+            return scheme + (codec != null ? " level " + level : "");
+        }
+    }
+
+    /**
+     * The selected candidate and the result of the trial compression
+     */
+    public static class Choice {
+        public final Candidate candidate;
+        /**
+         * Number of bytes trial compressed
+         */
+        public final int sampleSize;
+        /**
+         * Compressed size divided by sample size
+         */
+        public final float ratio;
+        /**
+         * Time to compress, in milliseconds per megabyte of uncompressed data
+         */
+        public final float millisPerMB;
+
+        Choice(Candidate candidate, int sampleSize, float ratio, float millisPerMB) {
+            this.candidate = candidate;
+            this.sampleSize = sampleSize;
+            this.ratio = ratio;
+            this.millisPerMB = millisPerMB;
+        }
+
+        /**
+         * Returns the measured throughput in megabytes per second
+         *
+         * @return
+         */
+        public float getMBPerSecond() {
+            return millisPerMB > 0 ? 1000f / millisPerMB : Float.POSITIVE_INFINITY;
+        }
+
+        @Override
+        public String toString() {
+            return candidate + ", ratio " + ratio + ", " + millisPerMB + " ms/MB (" + getMBPerSecond()
+                    + " MB/s) on " + sampleSize + " bytes";
+        }
+    }
+
+    public final Goal goal;
+    /**
+     * Max milliseconds per megabyte, only used by {@link Goal#BUDGET}
+     */
+    public final float millisPerMB;
+    private final List<Candidate> candidates;
+
+    /**
+     * Creates a policy using the default candidates as returned by {@link #getDefaultCandidates()}
+     *
+     * @param goal
+     * @param millisPerMB Max milliseconds per megabyte for {@link Goal#BUDGET}
+     */
+    public CompressionPolicy(@NonNull Goal goal, float millisPerMB) {
+        this(goal, millisPerMB, getDefaultCandidates());
+    }
+
+    /**
+     * Creates a policy
+     *
+     * @param goal
+     * @param millisPerMB Max milliseconds per megabyte for {@link Goal#BUDGET}
+     * @param candidates The candidates to trial, None is always added if not present
+     */
+    public CompressionPolicy(@NonNull Goal goal, float millisPerMB, @NonNull List<Candidate> candidates) {
+        if (goal == Goal.BUDGET && !(millisPerMB > 0)) {
+            throw new IllegalArgumentException("INVALID VALUE, millisPerMB " + millisPerMB);
+        }
+        this.goal = goal;
+        this.millisPerMB = millisPerMB;
+        ArrayList<Candidate> list = new ArrayList<Candidate>(candidates);
+        if (list.stream().noneMatch(c -> c.scheme == SuperCompression.None)) {
+            list.add(0, new Candidate(SuperCompression.None, 0, null));
+        }
+        this.candidates = Collections.unmodifiableList(list);
+    }
+
+    /**
+     * Returns a policy that selects the fastest scheme that reduces size
+     *
+     * @return
+     */
+    public static CompressionPolicy fastest() {
+        return new CompressionPolicy(Goal.FASTEST, 0);
+    }
+
+    /**
+     * Returns a policy that selects the scheme and level giving the smallest size
+     *
+     * @return
+     */
+    public static CompressionPolicy smallest() {
+        return new CompressionPolicy(Goal.SMALLEST, 0);
+    }
+
+    /**
+     * Returns a policy that selects the smallest size that can be compressed in at most millisPerMB milliseconds
+     * per megabyte
+     *
+     * @param millisPerMB
+     * @return
+     */
+    public static CompressionPolicy budget(float millisPerMB) {
+        return new CompressionPolicy(Goal.BUDGET, millisPerMB);
+    }
+
+    /**
+     * Returns the default candidates: None, ZLIB level 1 - 9 and ZStandard level 1, 3, 9 and 19.
+     *
+     * @return
+     */
+    public static List<Candidate> getDefaultCandidates() {
+        ArrayList<Candidate> result = new ArrayList<Candidate>();
+        result.add(new Candidate(SuperCompression.None, 0, null));
+        for (int level = 1; level <= 9; level++) {
+            result.add(new Candidate(SuperCompression.ZLIB, level, new ZLIBCodec(level)));
+        }
+        for (int level : new int[] { 1, 3, 9, 19 }) {
+            result.add(new Candidate(SuperCompression.ZStandard, level, new ZstdCodec(level)));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the candidates
+     *
+     * @return
+     */
+    public List<Candidate> getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Trial compresses a sample of the data, from position 0 to capacity of each buffer, with each candidate and
+     * returns the choice according to the goal.
+     *
+     * @param data Level data, for instance the buffers of all levels of a file
+     * @return The selected candidate
+     * @throws IOException If a candidate fails to compress
+     */
+    public @NonNull Choice select(@NonNull ByteBuffer... data) throws IOException {
+        ByteBuffer sample = createSample(data);
+        int size = sample.remaining();
+        Choice result = null;
+        for (Candidate candidate : candidates) {
+            Choice choice = trial(candidate, sample.duplicate(), size);
+            if (result == null || isBetter(choice, result)) {
+                result = choice;
+            }
+        }
+        System.out.println("Selected supercompression " + result);
+        return result;
+    }
+
+    private Choice trial(Candidate candidate, ByteBuffer sample, int size) throws IOException {
+        if (candidate.codec == null) {
+            return new Choice(candidate, size, 1f, 0f);
+        }
+        long nanos = Long.MAX_VALUE;
+        int compressedSize = 0;
+        for (int run = 0; run < TRIAL_RUNS; run++) {
+            long start = System.nanoTime();
+            ByteBuffer compressed = candidate.codec.compress(sample.duplicate());
+            nanos = Math.min(nanos, System.nanoTime() - start);
+            compressedSize = compressed.remaining();
+            SharedBuffer.free(compressed);
+        }
+        float megabytes = Math.max(1, size) / (1024f * 1024f);
+        return new Choice(candidate, size, (float) compressedSize / Math.max(1, size), nanos / 1000000f / megabytes);
+    }
+
+    private boolean isBetter(Choice choice, Choice current) {
+        switch (goal) {
+            case FASTEST:
+                boolean reduces = choice.ratio < 1f;
+                boolean currentReduces = current.ratio < 1f;
+                if (reduces != currentReduces) {
+                    return reduces;
+                }
+                return reduces && choice.millisPerMB < current.millisPerMB;
+            case SMALLEST:
+                return choice.ratio < current.ratio
+                        || (choice.ratio == current.ratio && choice.millisPerMB < current.millisPerMB);
+            case BUDGET:
+                if (choice.millisPerMB > millisPerMB) {
+                    return false;
+                }
+                return choice.ratio < current.ratio;
+            default:
+                throw new IllegalArgumentException("Not implemented for goal " + goal);
+        }
+    }
+
+    /**
+     * Copies blocks spread evenly over the data into one buffer of at most {@link #SAMPLE_SIZE} bytes
+     */
+    private ByteBuffer createSample(ByteBuffer... data) {
+        long total = 0;
+        for (ByteBuffer buffer : data) {
+            total += buffer.capacity();
+        }
+        int blocks = (int) Math.min((total + SAMPLE_BLOCK_SIZE - 1) / SAMPLE_BLOCK_SIZE,
+                SAMPLE_SIZE / SAMPLE_BLOCK_SIZE);
+        ByteBuffer sample = ByteBuffer.allocate((int) Math.min(total, SAMPLE_SIZE));
+        long stride = total <= SAMPLE_SIZE ? SAMPLE_BLOCK_SIZE : total / blocks;
+        for (int i = 0; i < blocks && sample.hasRemaining(); i++) {
+            long offset = i * stride;
+            int remaining = Math.min(SAMPLE_BLOCK_SIZE, sample.remaining());
+            for (ByteBuffer buffer : data) {
+                if (offset >= buffer.capacity()) {
+                    offset -= buffer.capacity();
+                    continue;
+                }
+                ByteBuffer block = buffer.duplicate();
+                block.clear();
+                block.position((int) offset);
+                block.limit((int) Math.min(buffer.capacity(), offset + remaining));
+                remaining -= block.remaining();
+                sample.put(block);
+                offset = 0;
+                if (remaining == 0) {
+                    break;
+                }
+            }
+        }
+        sample.flip();
+        return sample;
+    }
+
+}
@@ -0,0 +1,515 @@
+package org.ktximageio.ktx;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Encoder for the ETC2 and EAC formats used on mobile devices, VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK,
+ * VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK (and the SRGB versions), VK_FORMAT_EAC_R11_UNORM_BLOCK,
+ * VK_FORMAT_EAC_R11_SNORM_BLOCK, VK_FORMAT_EAC_R11G11_UNORM_BLOCK and VK_FORMAT_EAC_R11G11_SNORM_BLOCK.
+ * Texels are stored in 4 x 4 blocks of 8 bytes for RGB and R11, and 16 bytes for RGBA and RG11.
+ * Color is encoded using the individual, differential and planar modes, alpha and R11 channels using the EAC
+ * modifier tables.
+ * {@link BlockEncoder.Quality#FAST} uses the average color of the sub blocks and the estimated EAC multiplier,
+ * {@link BlockEncoder.Quality#NORMAL} also tries the planar mode and neighbouring EAC multipliers and base values,
+ * {@link BlockEncoder.Quality#HIGH} also searches the base colors and planar colors next to the fitted colors.
+ * The T and H modes, and the punchthrough alpha formats, are not used by the encoder but are decoded by
+ * {@link BlockDecoder}.
+ */
+public class ETC2Encoder extends BlockEncoder {
+
+    /**
+     * The texels, row by row, of the two sub blocks when flip is 0 (side by side) and 1 (on top of each other)
+     */
+    private static final int[][][] SUBBLOCKS = {
+            { { 0, 1, 4, 5, 8, 9, 12, 13 }, { 2, 3, 6, 7, 10, 11, 14, 15 } },
+            { { 0, 1, 2, 3, 4, 5, 6, 7 }, { 8, 9, 10, 11, 12, 13, 14, 15 } } };
+
+    /**
+     * One encoding of an RGB block, colors are the quantized sub block colors or the planar O, H and V colors.
+     * Indices are stored row by row.
+     */
+    private static final class ColorBlock {
+        private boolean differential;
+        private boolean planar;
+        private int flip;
+        private final int[] colors = new int[9];
+        private final int[] tables = new int[2];
+        private final int[] indices = new int[16];
+        private long error = Long.MAX_VALUE;
+    }
+
+    /**
+     * Creates an encoder using {@link BlockEncoder.Quality#NORMAL}
+     *
+     * @param executor
+     */
+    public ETC2Encoder(@NonNull Executor executor) {
+        this(executor, Quality.NORMAL);
+    }
+
+    /**
+     * Creates an encoder
+     *
+     * @param executor Executor for the tiles
+     * @param quality
+     */
+    public ETC2Encoder(@NonNull Executor executor, @NonNull Quality quality) {
+        super(executor, quality);
+    }
+
+    @Override
+    public boolean isSupported(@NonNull ImageFormat format) {
+        switch (format) {
+            case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK:
+            case VK_FORMAT_EAC_R11_UNORM_BLOCK:
+            case VK_FORMAT_EAC_R11_SNORM_BLOCK:
+            case VK_FORMAT_EAC_R11G11_UNORM_BLOCK:
+            case VK_FORMAT_EAC_R11G11_SNORM_BLOCK:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    @Override
+    protected void encodeBlock(float[] texels, ImageFormat format, byte[] block) {
+        switch (format) {
+            case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                encodeColor(texels, block, 0);
+                break;
+            case VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK:
+            case VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK:
+                encodeEAC(texels, 3, ETC2Format.EAC_ALPHA, block, 0);
+                encodeColor(texels, block, 8);
+                break;
+            case VK_FORMAT_EAC_R11_UNORM_BLOCK:
+                encodeEAC(texels, 0, ETC2Format.EAC_R11, block, 0);
+                break;
+            case VK_FORMAT_EAC_R11_SNORM_BLOCK:
+                encodeEAC(texels, 0, ETC2Format.EAC_R11_SIGNED, block, 0);
+                break;
+            case VK_FORMAT_EAC_R11G11_UNORM_BLOCK:
+                encodeEAC(texels, 0, ETC2Format.EAC_R11, block, 0);
+                encodeEAC(texels, 1, ETC2Format.EAC_R11, block, 8);
+                break;
+            case VK_FORMAT_EAC_R11G11_SNORM_BLOCK:
+                encodeEAC(texels, 0, ETC2Format.EAC_R11_SIGNED, block, 0);
+                encodeEAC(texels, 1, ETC2Format.EAC_R11_SIGNED, block, 8);
+                break;
+            default:
+                throw new IllegalArgumentException("INVALID VALUE, not supported format " + format);
+        }
+    }
+
+    /**
+     * Encodes the RGB of the texels to 8 bytes at offset in block
+     */
+    private void encodeColor(float[] texels, byte[] block, int offset) {
+        int[] values = new int[48];
+        for (int i = 0; i < 16; i++) {
+            for (int c = 0; c < 3; c++) {
+                values[i * 3 + c] = Math.round(Math.max(0, Math.min(1, texels[i * 4 + c])) * 255);
+            }
+        }
+        int radius = quality == Quality.HIGH ? 1 : 0;
+        ColorBlock best = new ColorBlock();
+        for (int flip = 0; flip < 2 && best.error > 0; flip++) {
+            fitIndividual(values, flip, radius, best);
+            fitDifferential(values, flip, radius, best);
+        }
+        if (quality != Quality.FAST && best.error > 0) {
+            fitPlanar(values, radius, best);
+        }
+        long bits = best.planar ? packPlanar(best.colors) : packSubblocks(best);
+        for (int i = 0; i < 8; i++) {
+            block[offset + i] = (byte) (bits >>> (56 - i * 8));
+        }
+    }
+
+    /**
+     * Fits the sub blocks using 4 bit base colors, each sub block is fitted separately
+     */
+    private void fitIndividual(int[] values, int flip, int radius, ColorBlock best) {
+        int[][] colors = new int[2][];
+        long error = 0;
+        for (int s = 0; s < 2; s++) {
+            int[][] candidates = getCandidates(values, SUBBLOCKS[flip][s], 4, radius);
+            long subblockError = Long.MAX_VALUE;
+            for (int[] candidate : candidates) {
+                long candidateError = fitSubblock(values, SUBBLOCKS[flip][s], ETC2Format.expand(candidate, 4), null,
+                        0, null);
+                if (candidateError < subblockError) {
+                    subblockError = candidateError;
+                    colors[s] = candidate;
+                }
+            }
+            error += subblockError;
+        }
+        if (error < best.error) {
+            setSubblocks(values, flip, false, colors, 4, best);
+        }
+    }
+
+    /**
+     * Fits the sub blocks using a 5 bit base color and a 3 bit signed difference for the second sub block.
+     * If no candidates are close enough the second color is moved towards the first.
+     */
+    private void fitDifferential(int[] values, int flip, int radius, ColorBlock best) {
+        int[][] first = getCandidates(values, SUBBLOCKS[flip][0], 5, radius);
+        int[][] second = getCandidates(values, SUBBLOCKS[flip][1], 5, radius);
+        long[] firstErrors = new long[first.length];
+        long[] secondErrors = new long[second.length];
+        for (int i = 0; i < first.length; i++) {
+            firstErrors[i] = fitSubblock(values, SUBBLOCKS[flip][0], ETC2Format.expand(first[i], 5), null, 0, null);
+        }
+        for (int i = 0; i < second.length; i++) {
+            secondErrors[i] = fitSubblock(values, SUBBLOCKS[flip][1], ETC2Format.expand(second[i], 5), null, 0, null);
+        }
+        long error = Long.MAX_VALUE;
+        int[][] colors = new int[2][];
+        for (int i = 0; i < first.length; i++) {
+            for (int j = 0; j < second.length; j++) {
+                if (firstErrors[i] + secondErrors[j] < error && isDelta(first[i], second[j])) {
+                    error = firstErrors[i] + secondErrors[j];
+                    colors[0] = first[i];
+                    colors[1] = second[j];
+                }
+            }
+        }
+        if (colors[0] == null) {
+            int[] base = first[0];
+            int[] moved = new int[3];
+            for (int c = 0; c < 3; c++) {
+                moved[c] = Math.max(base[c] - 4, Math.min(base[c] + 3, second[0][c]));
+            }
+            colors[0] = base;
+            colors[1] = moved;
+            error = firstErrors[0] + fitSubblock(values, SUBBLOCKS[flip][1], ETC2Format.expand(moved, 5), null, 0,
+                    null);
+        }
+        if (error < best.error) {
+            setSubblocks(values, flip, true, colors, 5, best);
+        }
+    }
+
+    /**
+     * Stores the sub block encoding in best
+     */
+    private void setSubblocks(int[] values, int flip, boolean differential, int[][] colors, int bits,
+            ColorBlock best) {
+        best.planar = false;
+        best.differential = differential;
+        best.flip = flip;
+        best.error = 0;
+        for (int s = 0; s < 2; s++) {
+            System.arraycopy(colors[s], 0, best.colors, s * 3, 3);
+            best.error += fitSubblock(values, SUBBLOCKS[flip][s], ETC2Format.expand(colors[s], bits), best.tables, s,
+                    best.indices);
+        }
+    }
+
+    /**
+     * Returns the quantized average color of the texels, and the colors within radius steps of it if radius > 0
+     */
+    private static int[][] getCandidates(int[] values, int[] texels, int bits, int radius) {
+        int max = (1 << bits) - 1;
+        int[] center = new int[3];
+        for (int c = 0; c < 3; c++) {
+            float sum = 0;
+            for (int i : texels) {
+                sum += values[i * 3 + c];
+            }
+            center[c] = Math.round(sum / texels.length * max / 255);
+        }
+        int size = radius * 2 + 1;
+        int[][] candidates = new int[size * size * size][];
+        // The center is first
+        candidates[0] = center;
+        int count = 1;
+        for (int i = 0; i < candidates.length; i++) {
+            int[] candidate = new int[3];
+            boolean inside = i != candidates.length / 2;
+            for (int c = 0, step = i; c < 3; c++, step /= size) {
+                candidate[c] = center[c] + step % size - radius;
+                inside &= candidate[c] >= 0 && candidate[c] <= max;
+            }
+            if (inside) {
+                candidates[count++] = candidate;
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    private static boolean isDelta(int[] first, int[] second) {
+        for (int c = 0; c < 3; c++) {
+            int delta = second[c] - first[c];
+            if (delta < -4 || delta > 3) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Selects the table and pixel indices with least error for the sub block texels using the 8 bit base color.
+     * Returns the squared error, the table is stored in tables[subblock] and the indices in indices if they are not
+     * null.
+     */
+    private static long fitSubblock(int[] values, int[] texels, int[] base, int[] tables, int subblock,
+            int[] indices) {
+        long bestError = Long.MAX_VALUE;
+        int[] selected = new int[16];
+        for (int table = 0; table < ETC2Format.MODIFIERS.length; table++) {
+            long error = 0;
+            for (int i : texels) {
+                int best = Integer.MAX_VALUE;
+                for (int index = 0; index < 4; index++) {
+                    int texelError = 0;
+                    for (int c = 0; c < 3; c++) {
+                        int diff = ETC2Format.clamp(base[c] + ETC2Format.MODIFIERS[table][index]) - values[i * 3 + c];
+                        texelError += diff * diff;
+                    }
+                    if (texelError < best) {
+                        best = texelError;
+                        selected[i] = index;
+                    }
+                }
+                error += best;
+            }
+            if (error < bestError) {
+                bestError = error;
+                if (tables != null) {
+                    tables[subblock] = table;
+                    for (int i : texels) {
+                        indices[i] = selected[i];
+                    }
+                }
+            }
+        }
+        return bestError;
+    }
+
+    /**
+     * Fits a plane to the texels, the colors at texel (0, 0), (4, 0) and (0, 4), using least squares.
+     * If radius > 0 the quantized colors next to the fitted colors are searched.
+     */
+    private void fitPlanar(int[] values, int radius, ColorBlock best) {
+        // Normal equations of the basis functions 1 - x / 4 - y / 4, x / 4 and y / 4
+        float[] matrix = new float[9];
+        float[][] rhs = new float[3][3];
+        for (int i = 0; i < 16; i++) {
+            float[] basis = getPlanarBasis(i & 3, i >> 2);
+            for (int row = 0; row < 3; row++) {
+                for (int column = 0; column < 3; column++) {
+                    matrix[row * 3 + column] += basis[row] * basis[column];
+                }
+                for (int c = 0; c < 3; c++) {
+                    rhs[c][row] += basis[row] * values[i * 3 + c];
+                }
+            }
+        }
+        int[] colors = new int[9];
+        long error = 0;
+        for (int c = 0; c < 3; c++) {
+            float[] fitted = solve(matrix, rhs[c]);
+            int max = (1 << ETC2Format.PLANAR_BITS[c]) - 1;
+            int[] center = new int[3];
+            for (int point = 0; point < 3; point++) {
+                center[point] = Math.max(0, Math.min(max, Math.round(fitted[point] * max / 255)));
+            }
+            long channelError = Long.MAX_VALUE;
+            int size = radius * 2 + 1;
+            for (int i = 0; i < size * size * size; i++) {
+                int[] candidate = new int[3];
+                boolean inside = true;
+                for (int point = 0, step = i; point < 3; point++, step /= size) {
+                    candidate[point] = center[point] + step % size - radius;
+                    inside &= candidate[point] >= 0 && candidate[point] <= max;
+                }
+                if (inside) {
+                    long candidateError = 0;
+                    for (int texel = 0; texel < 16; texel++) {
+                        int diff = ETC2Format.getPlanarValue(candidate, ETC2Format.PLANAR_BITS[c], texel & 3,
+                                texel >> 2) - values[texel * 3 + c];
+                        candidateError += diff * diff;
+                    }
+                    if (candidateError < channelError) {
+                        channelError = candidateError;
+                        for (int point = 0; point < 3; point++) {
+                            colors[point * 3 + c] = candidate[point];
+                        }
+                    }
+                }
+            }
+            error += channelError;
+        }
+        if (error < best.error) {
+            best.planar = true;
+            best.error = error;
+            System.arraycopy(colors, 0, best.colors, 0, colors.length);
+        }
+    }
+
+    private static float[] getPlanarBasis(int x, int y) {
+        return new float[] { 1 - x / 4f - y / 4f, x / 4f, y / 4f };
+    }
+
+    /**
+     * Solves the 3 x 3 equation system using Cramer's rule
+     */
+    private static float[] solve(float[] m, float[] b) {
+        float det = determinant(m[0], m[1], m[2], m[3], m[4], m[5], m[6], m[7], m[8]);
+        return new float[] { determinant(b[0], m[1], m[2], b[1], m[4], m[5], b[2], m[7], m[8]) / det,
+                determinant(m[0], b[0], m[2], m[3], b[1], m[5], m[6], b[2], m[8]) / det,
+                determinant(m[0], m[1], b[0], m[3], m[4], b[1], m[6], m[7], b[2]) / det };
+    }
+
+    private static float determinant(float a, float b, float c, float d, float e, float f, float g, float h,
+            float i) {
+        return a * (e * i - f * h) - b * (d * i - f * g) + c * (d * h - e * g);
+    }
+
+    /**
+     * Encodes one channel of the texels using EAC, to 8 bytes at offset in block
+     */
+    private void encodeEAC(float[] texels, int channel, int kind, byte[] block, int offset) {
+        int[] values = new int[16];
+        int min = Integer.MAX_VALUE;
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < 16; i++) {
+            float value = texels[i * 4 + channel];
+            values[i] = kind == ETC2Format.EAC_ALPHA ? Math.round(Math.max(0, Math.min(1, value)) * 255)
+                    : kind == ETC2Format.EAC_R11 ? Math.round(Math.max(0, Math.min(1, value)) * 2047)
+                            : Math.round(Math.max(-1, Math.min(1, value)) * 1023);
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+        }
+        int scale = kind == ETC2Format.EAC_ALPHA ? 1 : 8;
+        boolean signed = kind == ETC2Format.EAC_R11_SIGNED;
+        int multiplierRadius = quality == Quality.FAST ? 0 : quality == Quality.NORMAL ? 1 : 2;
+        int baseRadius = quality == Quality.FAST ? 0 : 1;
+        long bestError = Long.MAX_VALUE;
+        int[] indices = new int[16];
+        int[] selected = new int[16];
+        int bestBase = 0;
+        int bestMultiplier = 0;
+        int bestTable = 0;
+        for (int table = 0; table < ETC2Format.EAC_MODIFIERS.length && bestError > 0; table++) {
+            int[] modifiers = ETC2Format.EAC_MODIFIERS[table];
+            int estimate = Math.round((float) (max - min) / ((modifiers[7] - modifiers[3]) * scale));
+            int minMultiplier = Math.max(kind == ETC2Format.EAC_ALPHA ? 1 : 0, estimate - multiplierRadius);
+            for (int multiplier = minMultiplier; multiplier <= Math.min(15, estimate + multiplierRadius); multiplier++) {
+                int step = multiplier == 0 ? 1 : multiplier * scale;
+                int baseEstimate = Math.round(((min + max) / 2f - (kind == ETC2Format.EAC_R11 ? 4 : 0)
+                        - (modifiers[3] + modifiers[7]) / 2f * step) / scale);
+                for (int base = baseEstimate - baseRadius; base <= baseEstimate + baseRadius; base++) {
+                    if (base < (signed ? -127 : 0) || base > (signed ? 127 : 255)) {
+                        continue;
+                    }
+                    long error = 0;
+                    for (int i = 0; i < 16; i++) {
+                        int best = Integer.MAX_VALUE;
+                        for (int index = 0; index < 8; index++) {
+                            int diff = ETC2Format.getEACValue(kind, base, multiplier, modifiers[index]) - values[i];
+                            if (diff * diff < best) {
+                                best = diff * diff;
+                                selected[i] = index;
+                            }
+                        }
+                        error += best;
+                    }
+                    if (error < bestError) {
+                        bestError = error;
+                        bestBase = base;
+                        bestMultiplier = multiplier;
+                        bestTable = table;
+                        System.arraycopy(selected, 0, indices, 0, 16);
+                    }
+                }
+            }
+        }
+        long bits = ((long) (bestBase & 0xff) << 56) | ((long) bestMultiplier << 52) | ((long) bestTable << 48);
+        for (int i = 0; i < 16; i++) {
+            // Pixels are stored column by column
+            bits |= (long) indices[i] << (45 - ETC2Format.getColumnPosition(i) * 3);
+        }
+        for (int i = 0; i < 8; i++) {
+            block[offset + i] = (byte) (bits >>> (56 - i * 8));
+        }
+    }
+
+    /**
+     * Returns the bits of an individual or differential mode block
+     */
+    private static long packSubblocks(ColorBlock encoding) {
+        int[] colors = encoding.colors;
+        long bits = 0;
+        for (int c = 0; c < 3; c++) {
+            if (encoding.differential) {
+                bits |= (long) colors[c] << (59 - c * 8);
+                bits |= (long) ((colors[3 + c] - colors[c]) & 7) << (56 - c * 8);
+            } else {
+                bits |= (long) colors[c] << (60 - c * 8);
+                bits |= (long) colors[3 + c] << (56 - c * 8);
+            }
+        }
+        bits |= (long) encoding.tables[0] << 37 | (long) encoding.tables[1] << 34;
+        bits |= (encoding.differential ? 1L : 0) << 33 | (long) encoding.flip << 32;
+        for (int i = 0; i < 16; i++) {
+            int position = ETC2Format.getColumnPosition(i);
+            bits |= (long) (encoding.indices[i] >> 1) << (16 + position) | (long) (encoding.indices[i] & 1) << position;
+        }
+        return bits;
+    }
+
+    /**
+     * Returns the bits of a planar mode block, colors are O, H and V as RGB. The bits that are not used are set so
+     * that red and green do not overflow and blue overflows in differential mode, this selects the planar mode.
+     */
+    private static long packPlanar(int[] colors) {
+        int[] o = { colors[0], colors[1], colors[2] };
+        int[] h = { colors[3], colors[4], colors[5] };
+        int[] v = { colors[6], colors[7], colors[8] };
+        int[] bytes = new int[8];
+        bytes[0] = (o[0] << 1) | (o[1] >> 6);
+        bytes[1] = ((o[1] & 0x3f) << 1) | (o[2] >> 5);
+        bytes[2] = (((o[2] >> 3) & 3) << 3) | ((o[2] >> 1) & 3);
+        bytes[3] = ((o[2] & 1) << 7) | ((h[0] >> 1) << 2) | 2 | (h[0] & 1);
+        bytes[4] = (h[1] << 1) | (h[2] >> 5);
+        bytes[5] = ((h[2] & 0x1f) << 3) | (v[0] >> 3);
+        bytes[6] = ((v[0] & 7) << 5) | (v[1] >> 2);
+        bytes[7] = ((v[1] & 3) << 6) | v[2];
+        bytes[0] |= isDeltaInRange(bytes[0]) ? 0 : 0x80;
+        bytes[1] |= isDeltaInRange(bytes[1]) ? 0 : 0x80;
+        for (int free = 0; free < 16; free++) {
+            int candidate = bytes[2] | ((free & 7) << 5) | ((free >> 3) << 2);
+            if (!isDeltaInRange(candidate)) {
+                bytes[2] = candidate;
+                break;
+            }
+        }
+        long bits = 0;
+        for (int i = 0; i < 8; i++) {
+            bits = (bits << 8) | bytes[i];
+        }
+        return bits;
+    }
+
+    /**
+     * Returns true if the 5 bit base color plus the 3 bit signed delta, in the upper and lower bits of the byte,
+     * is within 0 to 31
+     */
+    private static boolean isDeltaInRange(int value) {
+        int sum = ((value >> 3) & 0x1f) + (((value & 7) << 29) >> 29);
+        return sum >= 0 && sum <= 31;
+    }
+
+}
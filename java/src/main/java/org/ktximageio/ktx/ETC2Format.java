@@ -0,0 +1,94 @@
+package org.ktximageio.ktx;
+
+/**
+ * Modifier tables, planar and EAC value computation of the ETC2 and EAC formats, used by {@link ETC2Encoder},
+ * {@link BlockDecoder} and the UASTC transcoding hints
+ *
+ */
+final class ETC2Format {
+
+    private ETC2Format() {
+    }
+
+    /**
+     * The ETC1 intensity modifiers, for pixel index 0 to 3
+     */
+    static final int[][] MODIFIERS = { { 2, 8, -2, -8 }, { 5, 17, -5, -17 }, { 9, 29, -9, -29 },
+            { 13, 42, -13, -42 }, { 18, 60, -18, -60 }, { 24, 80, -24, -80 }, { 33, 106, -33, -106 },
+            { 47, 183, -47, -183 } };
+
+    /**
+     * The EAC modifier tables, for alpha and R11
+     */
+    static final int[][] EAC_MODIFIERS = { { -3, -6, -9, -15, 2, 5, 8, 14 }, { -3, -7, -10, -13, 2, 6, 9, 12 },
+            { -2, -5, -8, -13, 1, 4, 7, 12 }, { -2, -4, -6, -13, 1, 3, 5, 12 }, { -3, -6, -8, -12, 2, 5, 7, 11 },
+            { -3, -7, -9, -11, 2, 6, 8, 10 }, { -4, -7, -8, -11, 3, 6, 7, 10 }, { -3, -5, -8, -11, 2, 4, 7, 10 },
+            { -2, -6, -8, -10, 1, 5, 7, 9 }, { -2, -5, -8, -10, 1, 4, 7, 9 }, { -2, -4, -8, -10, 1, 3, 7, 9 },
+            { -2, -5, -7, -10, 1, 4, 6, 9 }, { -3, -4, -7, -10, 2, 3, 6, 9 }, { -1, -2, -3, -10, 0, 1, 2, 9 },
+            { -4, -6, -8, -9, 3, 5, 7, 8 }, { -3, -5, -7, -9, 2, 4, 6, 8 } };
+
+    /**
+     * Number of bits of the planar colors, red, green and blue
+     */
+    static final int[] PLANAR_BITS = { 6, 7, 6 };
+
+    /**
+     * The EAC channel kinds
+     */
+    static final int EAC_ALPHA = 0;
+    static final int EAC_R11 = 1;
+    static final int EAC_R11_SIGNED = 2;
+
+    /**
+     * Returns the decoded planar value of one channel, ohv holds the quantized O, H and V values
+     */
+    static int getPlanarValue(int[] ohv, int bits, int x, int y) {
+        int o = expand(ohv[0], bits);
+        int h = expand(ohv[1], bits);
+        int v = expand(ohv[2], bits);
+        return clamp((x * (h - o) + y * (v - o) + 4 * o + 2) >> 2);
+    }
+
+    /**
+     * Returns the decoded value, 8 bit for alpha or 11 bit for R11
+     */
+    static int getEACValue(int kind, int base, int multiplier, int modifier) {
+        switch (kind) {
+            case EAC_ALPHA:
+                return clamp(base + modifier * multiplier);
+            case EAC_R11:
+                return Math.max(0, Math.min(2047, base * 8 + 4 + modifier * (multiplier == 0 ? 1 : multiplier * 8)));
+            default:
+                return Math.max(-1023, Math.min(1023, base * 8 + modifier * (multiplier == 0 ? 1 : multiplier * 8)));
+        }
+    }
+
+    /**
+     * Returns the position of texel i, stored row by row, when stored column by column
+     */
+    static int getColumnPosition(int i) {
+        return (i & 3) * 4 + (i >> 2);
+    }
+
+    /**
+     * Clamps the value to 0 to 255
+     */
+    static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    /**
+     * Expands the value with bits to 8 bits by replicating the high bits
+     */
+    static int expand(int value, int bits) {
+        return ((value << (8 - bits)) | (value >> (2 * bits - 8))) & 0xff;
+    }
+
+    /**
+     * Expands the RGB color with bits per channel to 8 bits
+     */
+    static int[] expand(int[] color, int bits) {
+        return new int[] { expand(color[0], bits), expand(color[1], bits), expand(color[2], bits) };
+    }
+
+}
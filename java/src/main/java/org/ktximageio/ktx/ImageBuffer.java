@@ -18,7 +18,7 @@ import org.ktximageio.ktx.KTX.TextureType;
  * All pixel data shall be stored in direct byte buffers using little endianess (same as KTX)
  * 
  */
-public class ImageBuffer {
+public class ImageBuffer implements AutoCloseable {
 
     /**
      * Class used to categorize use of imagebuffers based on dimension and format.
@@ -121,6 +121,8 @@ public class ImageBuffer {
     public final int height;
     public final ImageFormat format;
     ByteBuffer bitmap;
+    // Owner of the native memory of bitmap, null if the memory is not owned by this buffer.
+    private SharedBuffer owner;
     /**
      * Has any transfer function been applied to the loaded data?
      */
@@ -163,6 +165,7 @@ public class ImageBuffer {
 
     final void createBuffer(int sizeInBytes) {
         this.bitmap = ByteBuffer.allocateDirect(sizeInBytes).order(ByteOrder.nativeOrder());
+        setOwner(new SharedBuffer(bitmap));
         System.out.println("Allocated direct imagebuffer with " + sizeInBytes + " bytes");
     }
 
@@ -198,16 +201,58 @@ public class ImageBuffer {
      * @return
      */
     public ByteBuffer getBuffer() {
-        bitmap.position(0);
-        bitmap.limit(bitmap.capacity());
+        ByteBuffer pixels = getBitmap();
+        pixels.position(0);
+        pixels.limit(pixels.capacity());
+        return pixels;
+    }
+
+    private synchronized ByteBuffer getBitmap() {
+        if (bitmap == null) {
+            throw new IllegalArgumentException("INVALID STATE, buffer is destroyed");
+        }
         return bitmap;
     }
 
     /**
-     * Release resources
+     * Sets the owner of the native memory of the pixel data, the reference is released when this buffer is
+     * destroyed.
+     * 
+     * @param bufferOwner A reference that is released by this buffer, or null
+     */
+    final synchronized void setOwner(SharedBuffer bufferOwner) {
+        if (owner != null) {
+            throw new IllegalArgumentException("INVALID STATE, owner already set");
+        }
+        owner = bufferOwner;
+    }
+
+    /**
+     * Returns the owner of the native memory of the pixel data, or null if the memory is not owned by this buffer
      */
-    public void destroy() {
+    final synchronized SharedBuffer getOwner() {
+        return owner;
+    }
+
+    /**
+     * Release resources, if the pixel data is stored in native memory that is not shared, or this is the last
+     * buffer sharing it, the memory is released at once. The buffer returned by {@link #getBuffer()} must not
+     * be used after calling this method. Calling this method more than once has no effect.
+     */
+    public synchronized void destroy() {
         bitmap = null;
+        if (owner != null) {
+            owner.release();
+            owner = null;
+        }
+    }
+
+    /**
+     * Same as {@link #destroy()}
+     */
+    @Override
+    public void close() {
+        destroy();
     }
 
     /**
@@ -223,9 +268,10 @@ public class ImageBuffer {
             return null;
         }
         int position = getImagePosition(index);
-        bitmap.position(position);
-        bitmap.limit(position + getImageSizeInBytes());
-        return bitmap;
+        ByteBuffer pixels = getBitmap();
+        pixels.position(position);
+        pixels.limit(position + getImageSizeInBytes());
+        return pixels;
     }
 
     /**
@@ -235,16 +281,17 @@ public class ImageBuffer {
      * @return
      */
     private int getImagePosition(int index) {
-        return index * getImageSizeInBytes();
+        return KTX.toBufferSize((long) index * getImageSizeInBytes(), "image position");
     }
 
     /**
      * Returns the size, in bytes, for one image - does not take faces or layers into account. Just one single image
+     * For block compressed formats this is the size of the blocks covering the image.
      * 
      * @return
      */
     public int getImageSizeInBytes() {
-        return width * height * format.sizeInBytes;
+        return KTX.toBufferSize(format.getImageSize(width, height), "image");
     }
 
     /**
@@ -354,7 +401,7 @@ public class ImageBuffer {
 
     public static ImageBuffer create(@NonNull ByteBuffer bitmap, @NonNull ImageFormat format, int layerCount,
             int faceCount, int width, int height, int depth) {
-        if (format.isFloatFormat()) {
+        if (format.isFloatFormat() && !format.isBlockCompressed()) {
             throw new IllegalArgumentException("Must call createFloatBuffer for float formats");
         } else {
             return new ImageBuffer(bitmap, format, layerCount, faceCount, new int[] { width, height }, null);
@@ -3,7 +3,7 @@ package org.ktximageio.ktx;
 import org.ktximageio.ktx.ImageReader.ImageFormat;
 import org.ktximageio.ktx.ImageReader.MetaData;
 
-public interface ImageHeader {
+public interface ImageHeader extends AutoCloseable {
 
     /**
      * Specifies the image format using Vulkan VkFormat enum values - note that if the image source is NOT
@@ -72,6 +72,41 @@ public interface ImageHeader {
      */
     ImageBuffer getData();
 
+    /**
+     * Returns the image contents of one mip-level, only the requested level is decoded.
+     * Level 0 is the base level and is the same as returned by {@link #getData()}
+     *
+     * @param level The mip-level, must be less than max(1, {@link #getLevelCount()})
+     * @return Buffer containing the pixels of all layers and faces for the level
+     * @throws IllegalArgumentException If level is not present in the image
+     */
+    default ImageBuffer getLevel(int level) {
+        if (level != 0) {
+            throw new IllegalArgumentException("INVALID VALUE, only level 0 present, got level " + level);
+        }
+        return getData();
+    }
+
+    /**
+     * Returns the image contents of a range of mip-levels, one buffer per level.
+     * Only the requested levels are decoded.
+     *
+     * @param from The first level to return, inclusive
+     * @param to The last level to return, exclusive
+     * @return Array with one buffer per level, the buffer for level 'from' is stored at index 0
+     * @throws IllegalArgumentException If any of the levels is not present in the image
+     */
+    default ImageBuffer[] getLevels(int from, int to) {
+        if (from > to) {
+            throw new IllegalArgumentException("INVALID VALUE, from " + from + " is larger than to " + to);
+        }
+        ImageBuffer[] levels = new ImageBuffer[to - from];
+        for (int i = 0; i < levels.length; i++) {
+            levels[i] = getLevel(from + i);
+        }
+        return levels;
+    }
+
     /**
      * Returns the metadata for the file
      * 
@@ -81,7 +116,17 @@ public interface ImageHeader {
 
     /**
      * Releases all resources, the object may not be accessed after calling this method.
+     * Memory mapped or direct buffers that are owned by the header are released at once, unless they are shared
+     * with an {@link ImageBuffer} that has not been destroyed. Calling this method more than once has no effect.
      */
     void destroy();
 
+    /**
+     * Same as {@link #destroy()}
+     */
+    @Override
+    default void close() {
+        destroy();
+    }
+
 }
@@ -182,7 +182,9 @@ public class ImageIOReader implements org.ktximageio.ktx.ImageReader {
 
     @Override
     public ImageHeader read(Path path) throws IOException {
-        return read(new FileInputStream(path.toFile()));
+        try (FileInputStream stream = new FileInputStream(path.toFile())) {
+            return read(stream);
+        }
     }
 
     @Override
@@ -198,19 +200,25 @@ public class ImageIOReader implements org.ktximageio.ktx.ImageReader {
             ImageReader reader = readers.next();
             return read(iis, reader);
         }
+        iis.close();
         return null;
     }
 
     ImageHeader read(ImageInputStream iis, ImageReader reader) throws IOException {
-        // attach source to the reader
-        reader.setInput(iis, true, true);
-        ImageTypeSpecifier rawType = reader.getImageTypes(0).next();
-        if (rawType == null) {
-            throw new IllegalArgumentException("INVALID VALUE, no ImageTypeSpecifier");
-        }
-        BufferedImage sourceImage = reader.read(0);
-        reader.dispose();
-        reader = null;
+        ImageTypeSpecifier rawType = null;
+        BufferedImage sourceImage = null;
+        try {
+            // attach source to the reader
+            reader.setInput(iis, true, true);
+            rawType = reader.getImageTypes(0).next();
+            if (rawType == null) {
+                throw new IllegalArgumentException("INVALID VALUE, no ImageTypeSpecifier");
+            }
+            sourceImage = reader.read(0);
+        } finally {
+            reader.dispose();
+            iis.close();
+        }
         return getPixelsAsArray(sourceImage, rawType);
     }
 
@@ -2,7 +2,13 @@ package org.ktximageio.ktx;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 
 import org.eclipse.jdt.annotation.NonNull;
 
@@ -240,8 +246,29 @@ public interface ImageReader {
         VK_FORMAT_ASTC_12x10_SRGB_BLOCK(182, -1, -1),
         VK_FORMAT_ASTC_12x12_UNORM_BLOCK(183, -1, -1),
         VK_FORMAT_ASTC_12x12_SRGB_BLOCK(184, -1, -1),
+        VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK(1000066000, -1, -1),
+        VK_FORMAT_ASTC_5x4_SFLOAT_BLOCK(1000066001, -1, -1),
+        VK_FORMAT_ASTC_5x5_SFLOAT_BLOCK(1000066002, -1, -1),
+        VK_FORMAT_ASTC_6x5_SFLOAT_BLOCK(1000066003, -1, -1),
+        VK_FORMAT_ASTC_6x6_SFLOAT_BLOCK(1000066004, -1, -1),
+        VK_FORMAT_ASTC_8x5_SFLOAT_BLOCK(1000066005, -1, -1),
+        VK_FORMAT_ASTC_8x6_SFLOAT_BLOCK(1000066006, -1, -1),
+        VK_FORMAT_ASTC_8x8_SFLOAT_BLOCK(1000066007, -1, -1),
+        VK_FORMAT_ASTC_10x5_SFLOAT_BLOCK(1000066008, -1, -1),
+        VK_FORMAT_ASTC_10x6_SFLOAT_BLOCK(1000066009, -1, -1),
+        VK_FORMAT_ASTC_10x8_SFLOAT_BLOCK(1000066010, -1, -1),
+        VK_FORMAT_ASTC_10x10_SFLOAT_BLOCK(1000066011, -1, -1),
+        VK_FORMAT_ASTC_12x10_SFLOAT_BLOCK(1000066012, -1, -1),
+        VK_FORMAT_ASTC_12x12_SFLOAT_BLOCK(1000066013, -1, -1),
         A8R8G8B8(-1, -1, -1);
 
+        /**
+         * Block footprints, width and height, of the ASTC formats in the order of the format values
+         */
+        private static final int[][] ASTC_FOOTPRINTS = new int[][] { { 4, 4 }, { 5, 4 }, { 5, 5 }, { 6, 5 },
+                { 6, 6 }, { 8, 5 }, { 8, 6 }, { 8, 8 }, { 10, 5 }, { 10, 6 }, { 10, 8 }, { 10, 10 }, { 12, 10 },
+                { 12, 12 } };
+
         public final int value;
         public final int typeSize;
         public final int sizeInBytes;
@@ -288,6 +315,106 @@ public interface ImageReader {
             }
         }
 
+        /**
+         * Returns true if this is a block compressed format, where texels are stored in blocks of
+         * {@link #getBlockWidth()} x {@link #getBlockHeight()} texels using {@link #getBlockSizeInBytes()} bytes.
+         * 
+         * @return
+         */
+        public boolean isBlockCompressed() {
+            return (value >= VK_FORMAT_BC1_RGB_UNORM_BLOCK.value && value <= VK_FORMAT_ASTC_12x12_SRGB_BLOCK.value)
+                    || isASTCHDR();
+        }
+
+        /**
+         * Returns true if this is one of the ASTC formats
+         * 
+         * @return
+         */
+        public boolean isASTC() {
+            return (value >= VK_FORMAT_ASTC_4x4_UNORM_BLOCK.value && value <= VK_FORMAT_ASTC_12x12_SRGB_BLOCK.value)
+                    || isASTCHDR();
+        }
+
+        /**
+         * Returns true if this is one of the ASTC HDR formats, VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK to
+         * VK_FORMAT_ASTC_12x12_SFLOAT_BLOCK
+         * 
+         * @return
+         */
+        public boolean isASTCHDR() {
+            return value >= VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK.value && value <= VK_FORMAT_ASTC_12x12_SFLOAT_BLOCK.value;
+        }
+
+        private int[] getASTCFootprint() {
+            return isASTCHDR() ? ASTC_FOOTPRINTS[value - VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK.value]
+                    : ASTC_FOOTPRINTS[(value - VK_FORMAT_ASTC_4x4_UNORM_BLOCK.value) / 2];
+        }
+
+        /**
+         * Returns the width, in texels, of one block - 1 if not a block compressed format
+         * 
+         * @return
+         */
+        public int getBlockWidth() {
+            if (!isBlockCompressed()) {
+                return 1;
+            }
+            return isASTC() ? getASTCFootprint()[0] : 4;
+        }
+
+        /**
+         * Returns the height, in texels, of one block - 1 if not a block compressed format
+         * 
+         * @return
+         */
+        public int getBlockHeight() {
+            if (!isBlockCompressed()) {
+                return 1;
+            }
+            return isASTC() ? getASTCFootprint()[1] : 4;
+        }
+
+        /**
+         * Returns the size in bytes of one block, this is the same as sizeInBytes if not a block compressed format
+         * 
+         * @return
+         */
+        public int getBlockSizeInBytes() {
+            switch (this) {
+                case VK_FORMAT_BC1_RGB_UNORM_BLOCK:
+                case VK_FORMAT_BC1_RGB_SRGB_BLOCK:
+                case VK_FORMAT_BC1_RGBA_UNORM_BLOCK:
+                case VK_FORMAT_BC1_RGBA_SRGB_BLOCK:
+                case VK_FORMAT_BC4_UNORM_BLOCK:
+                case VK_FORMAT_BC4_SNORM_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8A1_UNORM_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8A1_SRGB_BLOCK:
+                case VK_FORMAT_EAC_R11_UNORM_BLOCK:
+                case VK_FORMAT_EAC_R11_SNORM_BLOCK:
+                    return 8;
+                default:
+                    return isBlockCompressed() ? 16 : sizeInBytes;
+            }
+        }
+
+        /**
+         * Returns the size in bytes of one image with this format, for block compressed formats this is the number
+         * of blocks needed to cover the image times the block size.
+         * 
+         * @param width
+         * @param height
+         * @return
+         */
+        public long getImageSize(int width, int height) {
+            int blockWidth = getBlockWidth();
+            int blockHeight = getBlockHeight();
+            return (long) ((width + blockWidth - 1) / blockWidth) * ((height + blockHeight - 1) / blockHeight)
+                    * getBlockSizeInBytes();
+        }
+
         public boolean isFloatFormat() {
             switch (this) {
                 case VK_FORMAT_BC6H_SFLOAT_BLOCK:
@@ -310,13 +437,20 @@ public interface ImageReader {
                 case VK_FORMAT_R64G64B64A64_SFLOAT:
                     return true;
                 default:
-                    return false;
+                    return isASTCHDR();
             }
         }
 
         public boolean isSRGB() {
-            // TODO - add block compressed formats
             switch (this) {
+                case VK_FORMAT_BC1_RGB_SRGB_BLOCK:
+                case VK_FORMAT_BC1_RGBA_SRGB_BLOCK:
+                case VK_FORMAT_BC2_SRGB_BLOCK:
+                case VK_FORMAT_BC3_SRGB_BLOCK:
+                case VK_FORMAT_BC7_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8A1_SRGB_BLOCK:
+                case VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK:
                 case VK_FORMAT_A8B8G8R8_SRGB_PACK32:
                 case VK_FORMAT_B8G8R8_SRGB:
                 case VK_FORMAT_B8G8R8A8_SRGB:
@@ -326,7 +460,7 @@ public interface ImageReader {
                 case VK_FORMAT_R8G8B8A8_SRGB:
                     return true;
                 default:
-                    return false;
+                    return isASTC() && !isASTCHDR() && ((value - VK_FORMAT_ASTC_4x4_UNORM_BLOCK.value) & 1) == 1;
             }
         }
 
@@ -370,7 +504,16 @@ public interface ImageReader {
                     return VK_FORMAT_R8G8B8_SRGB;
                 case VK_FORMAT_R8G8B8A8_UNORM:
                     return VK_FORMAT_R8G8B8A8_SRGB;
+                case VK_FORMAT_BC7_UNORM_BLOCK:
+                    return VK_FORMAT_BC7_SRGB_BLOCK;
+                case VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK:
+                    return VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK;
+                case VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK:
+                    return VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK;
                 default:
+                    if (format.isASTC() && !format.isASTCHDR() && !format.isSRGB()) {
+                        return get(format.value + 1);
+                    }
                     throw new IllegalArgumentException("Not implemented toSRGB() for " + format);
             }
         }
@@ -451,6 +594,48 @@ public interface ImageReader {
      */
     ImageHeader read(@NonNull ByteBuffer buffer) throws IOException;
 
+    /**
+     * Reads the image file without blocking the calling thread. The file is read using an
+     * {@link AsynchronousFileChannel} and the header is then created, using {@link #read(ByteBuffer)}, on the
+     * executor. I/O of one file may thus overlap with the decoding of another.
+     * The file data is released when {@link #read(ByteBuffer)} returns, readers that keep a reference to the data
+     * override this method and release it when the header is destroyed.
+     * 
+     * @param filePath
+     * @param executor Executor used to create the header
+     * @return Future that completes with the header, or exceptionally if the file could not be read or decoded
+     */
+    default CompletableFuture<ImageHeader> readAsync(@NonNull Path filePath, @NonNull Executor executor) {
+        return readFileAsync(filePath).thenApplyAsync(buffer -> {
+            try {
+                return read(buffer);
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                SharedBuffer.free(buffer);
+            }
+        }, executor);
+    }
+
+    /**
+     * Reads the image file and the pixel data without blocking the calling thread, the file is read as in
+     * {@link #readAsync(Path, Executor)} and the pixel data is fetched, using {@link ImageHeader#getData()}, on
+     * the executor. The header is destroyed, the file data is released when the returned buffer is destroyed.
+     * 
+     * @param filePath
+     * @param executor Executor used to create the header and fetch the pixel data
+     * @return Future that completes with the pixel data of the image
+     */
+    default CompletableFuture<ImageBuffer> readDataAsync(@NonNull Path filePath, @NonNull Executor executor) {
+        return readAsync(filePath, executor).thenApplyAsync(header -> {
+            try {
+                return header.getData();
+            } finally {
+                header.destroy();
+            }
+        }, executor);
+    }
+
     /**
      * Returns the mime formats that this reader supports
      * 
@@ -465,6 +650,61 @@ public interface ImageReader {
      */
     String getReaderName();
 
+    /**
+     * Reads the whole file into a direct buffer using an {@link AsynchronousFileChannel}, the calling thread is
+     * not blocked.
+     * 
+     * @param filePath
+     * @return Future that completes with the file contents, position is zero and limit is the file size
+     */
+    static CompletableFuture<ByteBuffer> readFileAsync(@NonNull Path filePath) {
+        CompletableFuture<ByteBuffer> result = new CompletableFuture<ByteBuffer>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(filePath, StandardOpenOption.READ);
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                channel.close();
+                throw new IOException("INVALID VALUE, file too large " + size + " bytes, " + filePath);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+            channel.read(buffer, 0, buffer, new CompletionHandler<Integer, ByteBuffer>() {
+                @Override
+                public void completed(Integer read, ByteBuffer destination) {
+                    if (read >= 0 && destination.hasRemaining()) {
+                        channel.read(destination, destination.position(), destination, this);
+                        return;
+                    }
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        result.completeExceptionally(e);
+                        return;
+                    }
+                    if (destination.hasRemaining()) {
+                        result.completeExceptionally(new IOException("INVALID VALUE, end of file reading " + size
+                                + " bytes, " + filePath));
+                    } else {
+                        destination.flip();
+                        result.complete(destination);
+                    }
+                }
+
+                @Override
+                public void failed(Throwable exc, ByteBuffer destination) {
+                    try {
+                        channel.close();
+                    } catch (IOException e) {
+                        exc.addSuppressed(e);
+                    }
+                    result.completeExceptionally(exc);
+                }
+            });
+        } catch (IOException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
     /**
      * Returns an image reader for the specified filename, using filename extension to lookup mime
      * 
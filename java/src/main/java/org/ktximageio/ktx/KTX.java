@@ -1,26 +1,68 @@
 package org.ktximageio.ktx;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
 import java.util.zip.DataFormatException;
 import java.util.zip.Inflater;
 
+import org.eclipse.jdt.annotation.NonNull;
 import org.ktximageio.ktx.ImageReader.ImageFormat;
 import org.ktximageio.ktx.ImageReader.MetaData;
 
 public class KTX {
 
     public static final String[] METADATA = new String[] { "MIN", "MAX", "AVG" };
+    /**
+     * Metadata key for the compressed offset of each image in ZLIB level data written with a full flush after each
+     * image. The value holds the offsets of each level, separated by ';', where the offsets of a level are
+     * separated by ','.
+     */
+    public static final String IMAGE_OFFSETS_KEY = "imageio.zlibImageOffsets";
 
     public static final byte DATATYPE_FLOAT = (byte) 0x80;
     public static final byte DATATYPE_SIGNED = 0x40;
     public static final byte DATATYPE_EXPONENT = 0x20;
     public static final byte DATATYPE_LINEAR = 0x10;
 
+    public static final int KHR_DF_MODEL_RGBSDA = 1;
+    public static final int KHR_DF_MODEL_BC6H = 133;
+    public static final int KHR_DF_MODEL_BC7 = 134;
+    public static final int KHR_DF_MODEL_ETC2 = 161;
+    public static final int KHR_DF_MODEL_ASTC = 162;
+    public static final int KHR_DF_MODEL_ETC1S = 163;
+    public static final int KHR_DF_MODEL_UASTC = 166;
+
+    public static final int KHR_DF_CHANNEL_ETC2_RED = 0;
+    public static final int KHR_DF_CHANNEL_ETC2_GREEN = 1;
+    public static final int KHR_DF_CHANNEL_ETC2_COLOR = 2;
+    public static final int KHR_DF_CHANNEL_ETC2_ALPHA = 15;
+    public static final int KHR_DF_CHANNEL_ETC1S_RGB = 0;
+    public static final int KHR_DF_CHANNEL_ETC1S_RRR = 3;
+    public static final int KHR_DF_CHANNEL_ETC1S_GGG = 4;
+    public static final int KHR_DF_CHANNEL_ETC1S_AAA = 15;
+    public static final int KHR_DF_CHANNEL_UASTC_RGB = 0;
+    public static final int KHR_DF_CHANNEL_UASTC_RGBA = 3;
+    public static final int KHR_DF_CHANNEL_UASTC_RRR = 4;
+    public static final int KHR_DF_CHANNEL_UASTC_RRRG = 5;
+    public static final int KHR_DF_CHANNEL_UASTC_RG = 6;
+
+    public static final int KHR_DF_TRANSFER_LINEAR = 1;
+    public static final int KHR_DF_TRANSFER_SRGB = 2;
+
     static final byte[] FILEIDENTIFIER = { (byte) 0xAB, 0x4B, 0x54, 0x58, 0x20, 0x32, 0x30, (byte) 0xBB, 0x0D, 0x0A,
             0x1A, 0x0A };
 
@@ -32,6 +74,12 @@ public class KTX {
     public static final int DFD_HEADER = 24; // size in bytes
     public static final int DFD_COMPONENT_SIZE = 16; // size per component
     public static final int LEVEL_STRUCT_SIZE = 24; // size in bytes
+    public static final int INFLATE_CHUNK_SIZE = 1 << 20; // max bytes produced by one call to inflate
+    public static final int WRITE_CHUNK_SIZE = 1 << 20; // max bytes of a heap buffer written in one call
+    public static final long MAX_BUFFER_SIZE = Integer.MAX_VALUE; // max bytes of one buffer or file mapping
+
+    // Max bytes of one buffer, larger data is segmented - only lowered by tests to exercise segmented data.
+    private long maxBufferSize = MAX_BUFFER_SIZE;
 
     public enum SuperCompression {
         None(0),
@@ -55,6 +103,44 @@ public class KTX {
         }
     }
 
+    private static final EnumMap<SuperCompression, SuperCompressionCodec> CODECS = new EnumMap<>(
+            SuperCompression.class);
+
+    static {
+        registerCodec(new ZLIBCodec());
+        registerCodec(new ZstdCodec());
+    }
+
+    /**
+     * Registers the codec to use for the supercompression scheme of the codec, replacing any previous codec for
+     * the scheme.
+     * 
+     * @param codec
+     */
+    public static void registerCodec(@NonNull SuperCompressionCodec codec) {
+        synchronized (CODECS) {
+            CODECS.put(codec.getScheme(), codec);
+        }
+    }
+
+    /**
+     * Returns the codec to use for the supercompression scheme
+     * 
+     * @param superCompression
+     * @return The codec for the scheme
+     * @throws IllegalArgumentException If there is no codec for the scheme
+     */
+    public static @NonNull SuperCompressionCodec getCodec(SuperCompression superCompression) {
+        SuperCompressionCodec codec = null;
+        synchronized (CODECS) {
+            codec = superCompression != null ? CODECS.get(superCompression) : null;
+        }
+        if (codec == null) {
+            throw new IllegalArgumentException("Not implemented for supercompression " + superCompression);
+        }
+        return codec;
+    }
+
     public enum KTXFormat {
         VK_FORMAT_A8B8G8R8_UNORM_PACK32(51, 4, DATATYPE_LINEAR, 0, 0, 4),
         VK_FORMAT_R8G8B8_UNORM(23, 3, DATATYPE_LINEAR, 0, 0, 3),
@@ -72,14 +158,85 @@ public class KTX {
         VK_FORMAT_R32G32_SFLOAT(103, 2, DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, 0, 0, 8),
         VK_FORMAT_R16_SFLOAT(76, 2, DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, 0, 0, 2),
         VK_FORMAT_R16_UNORM(70, 2, DATATYPE_LINEAR, 0, 0, 2),
-        VK_FORMAT_R32_SFLOAT(100, 1, DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, 0, 0, 4);
+        VK_FORMAT_R32_SFLOAT(100, 1, DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, 0, 0, 4),
+        VK_FORMAT_BC6H_UFLOAT_BLOCK(143, KHR_DF_MODEL_BC6H, DATATYPE_FLOAT | DATATYPE_LINEAR, 0,
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_BC6H_SFLOAT_BLOCK(144, KHR_DF_MODEL_BC6H, DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED,
+                Float.floatToIntBits(-1.0f), Float.floatToIntBits(1.0f)),
+        VK_FORMAT_BC7_UNORM_BLOCK(145, KHR_DF_MODEL_BC7, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_BC7_SRGB_BLOCK(146, KHR_DF_MODEL_BC7, 0, 0, -1),
+        VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK(147, KHR_DF_MODEL_ETC2, DATATYPE_LINEAR, 0, -1,
+                KHR_DF_CHANNEL_ETC2_COLOR),
+        VK_FORMAT_ETC2_R8G8B8_SRGB_BLOCK(148, KHR_DF_MODEL_ETC2, 0, 0, -1, KHR_DF_CHANNEL_ETC2_COLOR),
+        VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK(151, KHR_DF_MODEL_ETC2, DATATYPE_LINEAR, 0, -1,
+                KHR_DF_CHANNEL_ETC2_ALPHA, KHR_DF_CHANNEL_ETC2_COLOR),
+        VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK(152, KHR_DF_MODEL_ETC2, 0, 0, -1, KHR_DF_CHANNEL_ETC2_ALPHA,
+                KHR_DF_CHANNEL_ETC2_COLOR),
+        VK_FORMAT_EAC_R11_UNORM_BLOCK(153, KHR_DF_MODEL_ETC2, DATATYPE_LINEAR, 0, -1, KHR_DF_CHANNEL_ETC2_RED),
+        VK_FORMAT_EAC_R11_SNORM_BLOCK(154, KHR_DF_MODEL_ETC2, DATATYPE_LINEAR | DATATYPE_SIGNED, -Integer.MAX_VALUE,
+                Integer.MAX_VALUE, KHR_DF_CHANNEL_ETC2_RED),
+        VK_FORMAT_EAC_R11G11_UNORM_BLOCK(155, KHR_DF_MODEL_ETC2, DATATYPE_LINEAR, 0, -1, KHR_DF_CHANNEL_ETC2_RED,
+                KHR_DF_CHANNEL_ETC2_GREEN),
+        VK_FORMAT_EAC_R11G11_SNORM_BLOCK(156, KHR_DF_MODEL_ETC2, DATATYPE_LINEAR | DATATYPE_SIGNED,
+                -Integer.MAX_VALUE, Integer.MAX_VALUE, KHR_DF_CHANNEL_ETC2_RED, KHR_DF_CHANNEL_ETC2_GREEN),
+        VK_FORMAT_ASTC_4x4_UNORM_BLOCK(157, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_4x4_SRGB_BLOCK(158, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_5x4_UNORM_BLOCK(159, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_5x4_SRGB_BLOCK(160, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_5x5_UNORM_BLOCK(161, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_5x5_SRGB_BLOCK(162, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_6x5_UNORM_BLOCK(163, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_6x5_SRGB_BLOCK(164, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_6x6_UNORM_BLOCK(165, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_6x6_SRGB_BLOCK(166, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_8x5_UNORM_BLOCK(167, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_8x5_SRGB_BLOCK(168, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_8x6_UNORM_BLOCK(169, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_8x6_SRGB_BLOCK(170, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_8x8_UNORM_BLOCK(171, KHR_DF_MODEL_ASTC, DATATYPE_LINEAR, 0, -1),
+        VK_FORMAT_ASTC_8x8_SRGB_BLOCK(172, KHR_DF_MODEL_ASTC, 0, 0, -1),
+        VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK(1000066000, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_ASTC_5x4_SFLOAT_BLOCK(1000066001, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_ASTC_5x5_SFLOAT_BLOCK(1000066002, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_ASTC_6x5_SFLOAT_BLOCK(1000066003, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_ASTC_6x6_SFLOAT_BLOCK(1000066004, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_ASTC_8x5_SFLOAT_BLOCK(1000066005, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_ASTC_8x6_SFLOAT_BLOCK(1000066006, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f)),
+        VK_FORMAT_ASTC_8x8_SFLOAT_BLOCK(1000066007, KHR_DF_MODEL_ASTC,
+                DATATYPE_FLOAT | DATATYPE_LINEAR | DATATYPE_SIGNED, Float.floatToIntBits(-1.0f),
+                Float.floatToIntBits(1.0f));
 
         public final int value;
         public final int typeSize;
         public final byte dataType;
         public final int sampleLower;
         public final int sampleUpper;
+        /**
+         * Size of one texel, or one block for block compressed formats
+         */
         public final int sizeInBytes;
+        /**
+         * The DFD color model, KHR_DF_MODEL_RGBSDA for uncompressed formats
+         */
+        public final int colorModel;
+        /**
+         * The channel id of each sample, for block compressed formats
+         */
+        private final int[] channels;
 
         KTXFormat(int val, int size, int type, int lower, int upper, int bytes) {
             value = val;
@@ -88,6 +245,42 @@ public class KTX {
             sampleLower = lower;
             sampleUpper = upper;
             sizeInBytes = bytes;
+            colorModel = KHR_DF_MODEL_RGBSDA;
+            channels = new int[size];
+        }
+
+        /**
+         * Block compressed format, with one sample per channel id - the samples split the block in equally sized
+         * parts. One sample covering the whole block, with channel id 0, if no channels are specified.
+         */
+        KTXFormat(int val, int model, int type, int lower, int upper, int... channelIds) {
+            value = val;
+            typeSize = Math.max(1, channelIds.length);
+            dataType = (byte) type;
+            sampleLower = lower;
+            sampleUpper = upper;
+            sizeInBytes = ImageFormat.get(val).getBlockSizeInBytes();
+            colorModel = model;
+            channels = channelIds.length > 0 ? channelIds : new int[1];
+        }
+
+        /**
+         * Returns the channel id of the sample, this is 0 for uncompressed formats
+         * 
+         * @param sample
+         * @return
+         */
+        public int getChannel(int sample) {
+            return channels[sample];
+        }
+
+        /**
+         * Returns true if this is a block compressed format
+         * 
+         * @return
+         */
+        public boolean isBlockCompressed() {
+            return colorModel != KHR_DF_MODEL_RGBSDA;
         }
 
         public static KTXFormat get(int vkFormat) {
@@ -183,6 +376,24 @@ public class KTX {
         // This may be a memory mapped file and may not be exposed outside of this class.
         private ByteBuffer fileData;
         private KeyValueData metaData;
+        // Used by getLevels() to decompress levels in parallel, if null levels are decompressed one by one
+        private Executor executor;
+        // Set when the header is probed, the file is then mapped the first time level data is needed.
+        private Path filePath;
+        // Owner of fileData if it is mapped by this header or the deserializer, null if the data is not owned.
+        private SharedBuffer fileOwner;
+        // Size of the probed file, files larger than the max buffer size are mapped one level at a time.
+        private long fileSize;
+        // Max bytes of one buffer, levels that are larger are only returned as segmented buffers.
+        private long maxBufferSize = MAX_BUFFER_SIZE;
+        // The level windows and owners, only used when the file is too large to be mapped as a whole.
+        private ByteBuffer[] levelWindows;
+        private SharedBuffer[] levelOwners;
+        // The supercompression global data, read the first time it is needed
+        private byte[] globalData;
+        // The formats Basis Universal levels are transcoded to, in order of preference
+        private ImageFormat[] transcodeFormats = new ImageFormat[] { ImageFormat.VK_FORMAT_R8G8B8A8_UNORM,
+                ImageFormat.VK_FORMAT_R8G8B8A8_SRGB };
 
         public KTXHeader(ByteBuffer data) {
             fileData = data;
@@ -211,6 +422,34 @@ public class KTX {
             metaData = getMetaData(data, index);
         }
 
+        /**
+         * Creates a header from data that contains the header, index, dfd and kvd but not the level data.
+         * If the file is larger than {@link #getMaxBufferSize()} each level is mapped as a separate window the first
+         * time it is needed, otherwise the whole file is mapped the first time level data is needed.
+         * 
+         * @param data The start of the file, up to and including the kvd
+         * @param path Path to the file
+         * @param size Size of the file in bytes
+         */
+        KTXHeader(ByteBuffer data, Path path, long size) {
+            this(data);
+            fileData = null;
+            filePath = path;
+            fileSize = size;
+        }
+
+        /**
+         * Creates a header from the whole file data, the native memory is released when the header and all
+         * level buffers sharing the data are destroyed.
+         * 
+         * @param data The file data
+         * @param owner Owner of the file data
+         */
+        KTXHeader(ByteBuffer data, SharedBuffer owner) {
+            this(data);
+            fileOwner = owner;
+        }
+
         /**
          * Returns the {@link TextureType} using layerCount, faceCount, pixelWidth, pixelHeight and pixelDepth
          * 
@@ -319,66 +558,615 @@ public class KTX {
             return faceCount;
         }
 
+        /**
+         * Returns the format of the levels, for Basis Universal textures this is the format levels are transcoded to
+         */
         @Override
         public ImageFormat getFormat() {
-            return ImageFormat.get(vkFormat);
+            return isBasisUniversal() ? BasisTranscoder.getTargetFormat(this, transcodeFormats)
+                    : ImageFormat.get(vkFormat);
+        }
+
+        /**
+         * Returns true if this is a Basis Universal texture, ETC1S or UASTC, the levels are then transcoded to one
+         * of the formats set by {@link #setTranscodeFormats(ImageFormat...)} when fetched.
+         * 
+         * @return
+         */
+        public boolean isBasisUniversal() {
+            return BasisTranscoder.isBasisUniversal(this);
+        }
+
+        /**
+         * Sets the formats that Basis Universal levels are transcoded to, the first format that the texture can be
+         * transcoded to is used. Default is R8G8B8A8 UNORM or SRGB.
+         * 
+         * @param formats The formats supported by the destination, in order of preference
+         */
+        public void setTranscodeFormats(@NonNull ImageFormat... formats) {
+            transcodeFormats = formats.clone();
+        }
+
+        /**
+         * Returns a read-only view of the supercompression global data, used by BasisLZ
+         * 
+         * @return The global data, or null if the file has none
+         */
+        public synchronized ByteBuffer getSupercompressionGlobalData() {
+            if (index.sgdByteLength <= 0) {
+                return null;
+            }
+            if (globalData == null) {
+                int size = toBufferSize(index.sgdByteLength, "supercompression global data");
+                ByteBuffer data = ByteBuffer.allocate(size);
+                ByteBuffer file = isWindowed() ? null : getFileData().duplicate();
+                if (file != null) {
+                    int offset = toBufferSize(index.sgdByteOffset, "supercompression global data offset");
+                    file.limit(offset + size).position(offset);
+                    data.put(file);
+                } else {
+                    try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                        while (data.hasRemaining()) {
+                            if (fc.read(data, index.sgdByteOffset + data.position()) < 0) {
+                                throw new IOException("INVALID VALUE, end of file reading global data");
+                            }
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                globalData = data.array();
+            }
+            return ByteBuffer.wrap(globalData).asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
         }
 
         @Override
         public ImageBuffer getData() {
+            return getLevel(0);
+        }
+
+        @Override
+        public ImageBuffer getLevel(int level) {
+            checkLevel(level);
+            if (isBasisUniversal()) {
+                return new BasisTranscoder(executor != null ? executor : Runnable::run).transcode(this, level,
+                        transcodeFormats);
+            }
+            checkLevelSize(level);
             try {
-                ImageFormat format = ImageFormat.get(vkFormat);
-                if (format.isFloatFormat()) {
-                    return ImageBuffer.createFloatBuffer(getImageFaceAsByteBuffer(0), format, layerCount, faceCount, new int[] { pixelWidth, pixelHeight, pixelDepth });
-                } else {
-                    return ImageBuffer.create(getImageFaceAsByteBuffer(0), ImageFormat.get(vkFormat), layerCount, faceCount, pixelWidth, pixelHeight, pixelDepth);
+                if (getSuperCompression() == SuperCompression.None) {
+                    ByteBuffer levelData = getLevelData(level);
+                    return createLevelBuffer(level, levelData, retainLevelOwner(level));
                 }
+                ByteBuffer levelData = getImageFaceAsByteBuffer(level);
+                return createLevelBuffer(level, levelData, new SharedBuffer(levelData));
             } catch (DataFormatException e) {
                 throw new RuntimeException(e);
             }
         }
 
         /**
-         * Returns the mip-level image data
+         * Sets the executor to use when decompressing levels using {@link #getLevels(int, int)}
          * 
-         * @param level The mip-level to return data for.
-         * @return The buffer containing the specified face and miplevel. null if invalid face/level or there
-         * was an exception unpacking the data.
+         * @param levelExecutor The executor, or null to decompress levels one by one on the calling thread
+         */
+        public void setExecutor(Executor levelExecutor) {
+            executor = levelExecutor;
+        }
+
+        /**
+         * Sets the max number of bytes of one buffer or file mapping for this header, levels that are larger are
+         * only returned using {@link #getSegmentedLevel(int)}. Used by tests to exercise segmented data without
+         * allocating gigabytes.
+         * 
+         * @param size Max size, 1 to {@link KTX#MAX_BUFFER_SIZE}
+         */
+        void setMaxBufferSize(long size) {
+            maxBufferSize = checkMaxBufferSize(size);
+        }
+
+        /**
+         * Returns the max number of bytes of one buffer or file mapping for this header
+         */
+        long getMaxBufferSize() {
+            return maxBufferSize;
+        }
+
+        private int toBufferSize(long size, String name) {
+            return KTX.toBufferSize(size, maxBufferSize, name);
+        }
+
+        @Override
+        public ImageBuffer[] getLevels(int from, int to) {
+            return executor != null ? getLevels(from, to, executor) : ImageHeader.super.getLevels(from, to);
+        }
+
+        /**
+         * Returns the image contents of a range of mip-levels, one buffer per level, the supercompressed levels are
+         * decompressed at the same time using the executor. Each level is decompressed into its own region of one
+         * direct buffer. Returns when all levels are ready.
+         * If the file is not supercompressed the levels are returned as views of the file data.
+         * 
+         * @param from The first level to return, inclusive
+         * @param to The last level to return, exclusive
+         * @param levelExecutor Executor used to decompress the levels, for instance
+         * {@link java.util.concurrent.ForkJoinPool#commonPool()}
+         * @return Array with one buffer per level, the buffer for level 'from' is stored at index 0
+         * @throws IllegalArgumentException If any of the levels is not present in the image
+         */
+        public ImageBuffer[] getLevels(int from, int to, @NonNull Executor levelExecutor) {
+            if (from > to) {
+                throw new IllegalArgumentException("INVALID VALUE, from " + from + " is larger than to " + to);
+            }
+            for (int level = from; level < to; level++) {
+                checkLevel(level);
+                if (!isBasisUniversal()) {
+                    checkLevelSize(level);
+                }
+            }
+            ImageBuffer[] levels = new ImageBuffer[to - from];
+            if (isBasisUniversal()) {
+                BasisTranscoder transcoder = new BasisTranscoder(levelExecutor);
+                for (int i = 0; i < levels.length; i++) {
+                    levels[i] = transcoder.transcode(this, from + i, transcodeFormats);
+                }
+                return levels;
+            }
+            if (getSuperCompression() == SuperCompression.None) {
+                for (int i = 0; i < levels.length; i++) {
+                    ByteBuffer levelData = getLevelData(from + i);
+                    levels[i] = createLevelBuffer(from + i, levelData, retainLevelOwner(from + i));
+                }
+                return levels;
+            }
+            SuperCompressionCodec codec = getCodec(getSuperCompression());
+            long total = 0;
+            for (int level = from; level < to; level++) {
+                total += getUncompressedSize(level);
+            }
+            ByteBuffer destination = ByteBuffer.allocateDirect(toBufferSize(total, "uncompressed levels"))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            SharedBuffer owner = new SharedBuffer(destination);
+            ByteBuffer[] regions = new ByteBuffer[levels.length];
+            CompletableFuture<?>[] tasks = new CompletableFuture<?>[levels.length];
+            int offset = 0;
+            for (int i = 0; i < levels.length; i++) {
+                int size = toBufferSize(getUncompressedSize(from + i), "uncompressed level " + (from + i));
+                destination.limit(offset + size).position(offset);
+                regions[i] = destination.slice().order(ByteOrder.LITTLE_ENDIAN);
+                ByteBuffer levelData = getLevelData(from + i);
+                ByteBuffer region = regions[i].duplicate();
+                tasks[i] = CompletableFuture.runAsync(() -> {
+                    try {
+                        codec.decompress(levelData, region);
+                    } catch (DataFormatException e) {
+                        throw new CompletionException(e);
+                    }
+                }, levelExecutor);
+                offset += size;
+            }
+            System.out.println("Decompressing " + codec.getScheme() + " levels " + from + " to " + to + ", " + total
+                    + " bytes");
+            try {
+                // allOf completes when all tasks are done, also if one fails, so no task uses destination after
+                CompletableFuture.allOf(tasks).join();
+                for (int i = 0; i < levels.length; i++) {
+                    levels[i] = createLevelBuffer(from + i, regions[i], owner.retain());
+                }
+            } catch (CompletionException e) {
+                throw new RuntimeException(e.getCause());
+            } finally {
+                owner.release();
+            }
+            return levels;
+        }
+
+        private void checkLevel(int level) {
+            if (level < 0 || level >= Math.max(1, levelCount)) {
+                throw new IllegalArgumentException("INVALID VALUE, level " + level + ", levelcount " + levelCount);
+            }
+        }
+
+        private void checkLevelSize(int level) {
+            long size = Math.max(getSize(level), getUncompressedSize(level));
+            if (size > getMaxBufferSize()) {
+                throw new IllegalArgumentException("INVALID VALUE, level " + level + " is " + size
+                        + " bytes, larger than one buffer - use getSegmentedLevel()");
+            }
+        }
+
+        /**
+         * Returns the image contents of a level that may be larger than one buffer, such as a 16k x 8k
+         * RGBA32F level, without supercompression. Each segment holds whole images, or whole rows if one image
+         * is larger than a buffer, see {@link SegmentedBuffer#getAlignedSegmentSize(long)}.
+         * If the file is not supercompressed the segments are views of the file data, otherwise the level is
+         * decompressed into newly allocated segments.
+         * The returned buffer shall be destroyed by the caller.
+         * 
+         * @param level The mip-level
+         * @return The level data, position 0 is the start of the first image
+         * @throws IllegalArgumentException If the level is not present or the file is Basis Universal
+         */
+        public SegmentedBuffer getSegmentedLevel(int level) {
+            checkLevel(level);
+            if (isBasisUniversal()) {
+                throw new IllegalArgumentException("Not implemented for Basis Universal textures, use getLevel()");
+            }
+            int[] dimension = getLevelDimension(level);
+            ImageFormat format = ImageFormat.get(vkFormat);
+            long unit = format.getImageSize(dimension[0], Math.max(1, dimension[1]));
+            if (unit > getMaxBufferSize()) {
+                unit = format.getImageSize(dimension[0], 1);
+            }
+            long segmentSize = SegmentedBuffer.getAlignedSegmentSize(unit, getMaxBufferSize());
+            if (getSuperCompression() == SuperCompression.None) {
+                return getStoredLevel(level, segmentSize);
+            }
+            SuperCompressionCodec codec = getCodec(getSuperCompression());
+            System.out.println("Decompressing " + codec.getScheme() + " level " + level + ", " + getSize(level)
+                    + " bytes at offset " + getOffset(level) + " into segments of " + segmentSize + " bytes");
+            SegmentedBuffer destination = SegmentedBuffer.allocateDirect(getUncompressedSize(level), segmentSize);
+            try (SegmentedBuffer levelData = getStoredLevel(level, getMaxBufferSize())) {
+                codec.decompress(levelData, destination);
+                return destination;
+            } catch (DataFormatException e) {
+                destination.destroy();
+                throw new RuntimeException(e);
+            } catch (RuntimeException e) {
+                destination.destroy();
+                throw e;
+            }
+        }
+
+        /**
+         * Returns the level data as stored in the file, as views of the file data or mapped segments if the level
+         * is larger than one buffer.
+         */
+        private SegmentedBuffer getStoredLevel(int level, long segmentSize) {
+            long size = getSize(level);
+            int count = (int) Math.max(1, (size + segmentSize - 1) / segmentSize);
+            if (isWindowed() && size > segmentSize) {
+                try (FileChannel fc = FileChannel.open(getFilePath(), StandardOpenOption.READ)) {
+                    return SegmentedBuffer.map(fc, FileChannel.MapMode.READ_ONLY, getOffset(level), size,
+                            segmentSize);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            if (count == 1) {
+                ByteBuffer levelData = getLevelData(level);
+                return new SegmentedBuffer(new ByteBuffer[] { levelData },
+                        new SharedBuffer[] { retainLevelOwner(level) }, segmentSize);
+            }
+            ByteBuffer file = getFileData();
+            ByteBuffer[] segments = new ByteBuffer[count];
+            SharedBuffer[] owners = new SharedBuffer[count];
+            for (int i = 0; i < count; i++) {
+                ByteBuffer segment = file.duplicate();
+                int offset = Math.toIntExact(getOffset(level) + i * segmentSize);
+                segment.limit(offset + (int) Math.min(segmentSize, size - i * segmentSize)).position(offset);
+                segments[i] = segment.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+                owners[i] = retainLevelOwner(level);
+            }
+            return new SegmentedBuffer(segments, owners, segmentSize);
+        }
+
+        private synchronized Path getFilePath() {
+            if (filePath == null) {
+                throw new IllegalArgumentException("INVALID STATE, header is destroyed");
+            }
+            return filePath;
+        }
+
+        private ImageBuffer createLevelBuffer(int level, ByteBuffer levelData, SharedBuffer owner) {
+            return createBuffer(levelData, owner, layerCount, faceCount, getLevelDimension(level));
+        }
+
+        /**
+         * Creates an image buffer for the data, block compressed data is returned as a {@link BlockImageBuffer}.
+         * The buffer releases the reference to owner when destroyed.
+         */
+        private ImageBuffer createBuffer(ByteBuffer data, SharedBuffer owner, int layers, int faces,
+                int[] dimension) {
+            ImageFormat format = ImageFormat.get(vkFormat);
+            ImageBuffer buffer = null;
+            try {
+                if (format.isBlockCompressed()) {
+                    buffer = new BlockImageBuffer(data, format, layers, faces, dimension, null, null);
+                } else if (format.isFloatFormat()) {
+                    buffer = ImageBuffer.createFloatBuffer(data, format, layers, faces, dimension);
+                } else {
+                    buffer = ImageBuffer.create(data, format, layers, faces, dimension[0], dimension[1],
+                            dimension[2]);
+                }
+            } finally {
+                if (buffer == null && owner != null) {
+                    owner.release();
+                }
+            }
+            buffer.setOwner(owner);
+            return buffer;
+        }
+
+        /**
+         * Retains the owner of the data returned by {@link #getLevelData(int)}, the level data must be fetched
+         * before calling this method so that a probed file is mapped.
+         */
+        private synchronized SharedBuffer retainLevelOwner(int level) {
+            if (levelOwners != null && levelOwners[level] != null) {
+                return levelOwners[level].retain();
+            }
+            return fileOwner != null ? fileOwner.retain() : null;
+        }
+
+        /**
+         * Returns one layer and face of a level, only the image is decompressed if the file was written with an
+         * image index, see {@link KTXSerializer#setImageIndex(boolean)}. Otherwise the level is decompressed and the
+         * image copied. If the file is not supercompressed the image is a view of the file data.
+         * 
+         * @param level The mip-level
+         * @param layer The array layer, 0 if not an array texture
+         * @param face The cubemap face, 0 if not a cubemap
+         * @return Buffer containing the image, with one face and no layers
+         * @throws IllegalArgumentException If the image is not present in the file or is a 3D texture
+         */
+        public ImageBuffer getImage(int level, int layer, int face) {
+            checkLevel(level);
+            if (pixelDepth > 1) {
+                throw new IllegalArgumentException("Not implemented for 3D textures");
+            }
+            if (isBasisUniversal()) {
+                throw new IllegalArgumentException("Not implemented for Basis Universal textures, use getLevel()");
+            }
+            if (layer < 0 || layer >= Math.max(1, layerCount) || face < 0 || face >= Math.max(1, faceCount)) {
+                throw new IllegalArgumentException("INVALID VALUE, layer " + layer + ", face " + face);
+            }
+            int[] dimension = getLevelDimension(level);
+            int imageSize = toBufferSize(ImageFormat.get(vkFormat).getImageSize(dimension[0],
+                    Math.max(1, dimension[1])), "image");
+            int imageIndex = layer * Math.max(1, faceCount) + face;
+            ByteBuffer image = null;
+            SharedBuffer owner = null;
+            try {
+                if (Math.max(getSize(level), getUncompressedSize(level)) > getMaxBufferSize()) {
+                    image = ByteBuffer.allocateDirect(imageSize).order(ByteOrder.LITTLE_ENDIAN);
+                    owner = new SharedBuffer(image);
+                    try (SegmentedBuffer levelData = getSegmentedLevel(level)) {
+                        levelData.get((long) imageIndex * imageSize, image);
+                    }
+                    image.clear();
+                } else if (getSuperCompression() == SuperCompression.None) {
+                    image = getLevelData(level);
+                    image.limit((imageIndex + 1) * imageSize).position(imageIndex * imageSize);
+                    image = image.slice().order(ByteOrder.LITTLE_ENDIAN);
+                    owner = retainLevelOwner(level);
+                } else {
+                    image = ByteBuffer.allocateDirect(imageSize).order(ByteOrder.LITTLE_ENDIAN);
+                    owner = new SharedBuffer(image);
+                    long[] imageOffsets = getImageOffsets(level);
+                    if (imageOffsets != null) {
+                        ByteBuffer levelData = getLevelData(level);
+                        levelData.position(toBufferSize(imageOffsets[imageIndex], "image offset"));
+                        inflate(levelData, image, true);
+                    } else {
+                        ByteBuffer levelImages = getImageFaceAsByteBuffer(level);
+                        levelImages.limit((imageIndex + 1) * imageSize).position(imageIndex * imageSize);
+                        image.put(levelImages);
+                        SharedBuffer.free(levelImages);
+                    }
+                    image.clear();
+                }
+            } catch (DataFormatException e) {
+                owner.release();
+                throw new RuntimeException(e);
+            }
+            return createBuffer(image, owner, 0, 1, dimension);
+        }
+
+        /**
+         * Returns the compressed offset of each image in the level, or null if the file is not ZLIB compressed or
+         * has no image index.
          */
-        private byte[] getImageFace(int level) throws DataFormatException {
-            if (level > levelCount) {
+        long[] getImageOffsets(int level) {
+            if (getSuperCompression() != SuperCompression.ZLIB || metaData == null) {
+                return null;
+            }
+            String value = metaData.getValue(IMAGE_OFFSETS_KEY);
+            if (value == null) {
+                return null;
+            }
+            String[] levels = value.split(";");
+            if (levels.length != Math.max(1, levelCount)) {
                 return null;
             }
-            Inflater inflater = new Inflater();
-            long levelIndex = getOffset(0);
-            int byteSize = (int) getSize(0);
-            int uncompressed = (int) getUncompressedSize(level);
-            fileData.position((int) levelIndex);
-            byte[] zipped = new byte[byteSize];
-            System.out.println("Fetching " + byteSize + " bytes at offset " + levelIndex);
-            fileData.get(zipped);
-            byte[] image = new byte[uncompressed];
-            inflater.setInput(zipped);
-            int inflated = inflater.inflate(image);
-            if (inflated != uncompressed) {
-                throw new IllegalArgumentException("INVALID VALUE, Not inflated whole image "
-                        + inflated + " of " + uncompressed);
+            String[] images = levels[level].split(",");
+            long[] result = new long[images.length];
+            for (int i = 0; i < images.length; i++) {
+                result[i] = Long.parseLong(images[i].trim());
             }
-            return image;
+            int[] dimension = getLevelDimension(level);
+            return result.length == Math.max(1, layerCount) * Math.max(1, faceCount) * Math.max(1, dimension[2])
+                    ? result
+                    : null;
         }
 
         /**
-         * Returns the mip-level image data
+         * Reads a rectangular region of one layer and face of a level, only the rows of the region are read.
+         * If the file data is not mapped, as when the header was probed, each row is read using a positional
+         * read from the file. The file must not be supercompressed.
+         * 
+         * @param level The mip-level
+         * @param layer The array layer, 0 if not an array texture
+         * @param face The cubemap face, 0 if not a cubemap
+         * @param x Horizontal pixel offset of the region in the level
+         * @param y Vertical pixel offset of the region in the level
+         * @param width Width of the region in pixels
+         * @param height Height of the region in pixels
+         * @return Buffer containing the region, with one face and no layers
+         * @throws IOException If the region could not be read from the file
+         * @throws IllegalArgumentException If the file is supercompressed, is a 3D texture, has a block compressed
+         * format or the region is not inside the level
+         */
+        public ImageBuffer readRegion(int level, int layer, int face, int x, int y, int width, int height)
+                throws IOException {
+            checkLevel(level);
+            if (getSuperCompression() != SuperCompression.None) {
+                throw new IllegalArgumentException("Not implemented for supercompression " + getSuperCompression());
+            }
+            if (pixelDepth > 1) {
+                throw new IllegalArgumentException("Not implemented for 3D textures");
+            }
+            if (isBasisUniversal()) {
+                throw new IllegalArgumentException("Not implemented for Basis Universal textures, use getLevel()");
+            }
+            if (ImageFormat.get(vkFormat).isBlockCompressed()) {
+                throw new IllegalArgumentException("Not implemented for block compressed format "
+                        + ImageFormat.get(vkFormat));
+            }
+            int[] dimension = getLevelDimension(level);
+            int levelHeight = Math.max(1, dimension[1]);
+            if (layer < 0 || layer >= Math.max(1, layerCount) || face < 0 || face >= Math.max(1, faceCount)
+                    || x < 0 || y < 0 || width <= 0 || height <= 0 || width > dimension[0] - x
+                    || height > levelHeight - y) {
+                throw new IllegalArgumentException("INVALID VALUE, region " + x + ", " + y + ", " + width + ", "
+                        + height + " layer " + layer + ", face " + face + " for level " + level + " size "
+                        + dimension[0] + ", " + levelHeight);
+            }
+            int pixelSize = ImageFormat.get(vkFormat).sizeInBytes;
+            long rowSize = (long) dimension[0] * pixelSize;
+            long start = getOffset(level) + (long) (layer * Math.max(1, faceCount) + face) * levelHeight * rowSize
+                    + y * rowSize + (long) x * pixelSize;
+            int regionSize = toBufferSize((long) width * pixelSize * height, "region");
+            int regionRowSize = regionSize / height;
+            ByteBuffer region = ByteBuffer.allocateDirect(regionSize).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer data = getMappedFileData();
+            if (data != null) {
+                ByteBuffer row = data.duplicate();
+                for (int i = 0; i < height; i++) {
+                    int position = (int) (start + i * rowSize);
+                    row.limit(position + regionRowSize).position(position);
+                    region.put(row);
+                }
+            } else {
+                try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                    for (int i = 0; i < height; i++) {
+                        region.limit((i + 1) * regionRowSize);
+                        long position = start + i * rowSize;
+                        while (region.hasRemaining()) {
+                            int read = fc.read(region, position);
+                            if (read < 0) {
+                                throw new IOException("INVALID VALUE, end of file reading region at " + position);
+                            }
+                            position += read;
+                        }
+                    }
+                }
+            }
+            region.clear();
+            return createBuffer(region, new SharedBuffer(region), 0, 1, new int[] { width, height, 0 });
+        }
+
+        /**
+         * Returns the width, height and depth of the mip-level, each dimension is halved for every level but never
+         * less than 1. A height or depth of 0 in the header is kept as 0.
+         * 
+         * @param level The mip-level
+         * @return Array with width, height and depth of the level
+         */
+        int[] getLevelDimension(int level) {
+            return new int[] { Math.max(1, pixelWidth >> level), pixelHeight == 0 ? 0 : Math.max(1, pixelHeight >> level),
+                    pixelDepth == 0 ? 0 : Math.max(1, pixelDepth >> level) };
+        }
+
+        /**
+         * Returns the supercompression scheme used for the level data
+         * 
+         * @return The supercompression scheme, or null if not a known scheme
+         */
+        public SuperCompression getSuperCompression() {
+            return SuperCompression.get(supercompressionScheme);
+        }
+
+        /**
+         * Returns a read-only view of the level data as stored in the file, no data is copied.
+         * If the file is not supercompressed this is the pixel data of the level.
+         * The view shares memory with the file data and shall not be used after this header is destroyed.
+         * 
+         * @param level The mip-level to return data for
+         * @return Read-only buffer with position 0 and capacity set to the stored size of the level
+         */
+        ByteBuffer getLevelData(int level) {
+            int byteSize = toBufferSize(getSize(level), "level " + level);
+            if (isWindowed()) {
+                return getLevelWindow(level).duplicate().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+            }
+            ByteBuffer levelData = getFileData().duplicate();
+            // The file data is one buffer, so the offset of data inside it fits in an int
+            int offset = Math.toIntExact(getOffset(level));
+            levelData.position(offset);
+            levelData.limit(offset + byteSize);
+            return levelData.slice().asReadOnlyBuffer().order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        /**
+         * Returns true if the file is too large to be mapped as a whole, the levels are then mapped one by one.
+         */
+        private synchronized boolean isWindowed() {
+            return fileData == null && fileSize > getMaxBufferSize();
+        }
+
+        /**
+         * Returns the mapping of one level, the level is mapped the first time this method is called for it.
+         */
+        private synchronized ByteBuffer getLevelWindow(int level) {
+            if (filePath == null) {
+                throw new IllegalArgumentException("INVALID STATE, header is destroyed");
+            }
+            if (levelWindows == null) {
+                levelWindows = new ByteBuffer[Math.max(1, levelCount)];
+                levelOwners = new SharedBuffer[levelWindows.length];
+            }
+            if (levelWindows[level] == null) {
+                try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                    System.out.println("Mapping level " + level + " of " + filePath + ", " + getSize(level)
+                            + " bytes at offset " + getOffset(level));
+                    levelWindows[level] = fc.map(FileChannel.MapMode.READ_ONLY, getOffset(level), getSize(level))
+                            .order(ByteOrder.LITTLE_ENDIAN);
+                    levelOwners[level] = new SharedBuffer(levelWindows[level]);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return levelWindows[level];
+        }
+
+        /**
+         * Returns the level data without supercompression, as stored if the file is not supercompressed or uses
+         * BasisLZ, otherwise the level is decompressed into a new buffer that shall be freed by the caller.
+         */
+        ByteBuffer getUncompressedLevelData(int level) throws DataFormatException {
+            SuperCompression superCompression = getSuperCompression();
+            return superCompression == SuperCompression.None || superCompression == SuperCompression.BasisLZ
+                    ? getLevelData(level)
+                    : getImageFaceAsByteBuffer(level);
+        }
+
+        /**
+         * Decompresses the mip-level image data from the file into a newly allocated direct buffer, using the codec
+         * for the supercompression scheme. The destination is the only allocation made.
          * 
          * @param level The mip-level to return data for.
-         * @return The buffer containing the specified face and miplevel. null if invalid face/level or there
-         * was an exception unpacking the data.
-         * @throws DataFormatException
+         * @return The buffer containing the faces for the specified miplevel.
+         * @throws DataFormatException If the level data could not be decompressed
          */
         private ByteBuffer getImageFaceAsByteBuffer(int level) throws DataFormatException {
-            byte[] deflated = getImageFace(level);
-            ByteBuffer buffer = ByteBuffer.allocateDirect(deflated.length).order(ByteOrder.LITTLE_ENDIAN);
-            buffer.put(deflated);
+            SuperCompressionCodec codec = getCodec(getSuperCompression());
+            ByteBuffer levelData = getLevelData(level);
+            int uncompressed = toBufferSize(getUncompressedSize(level), "uncompressed level " + level);
+            System.out.println("Decompressing " + codec.getScheme() + " level " + level + ", " + levelData.remaining()
+                    + " bytes at offset " + getOffset(level));
+            ByteBuffer buffer = ByteBuffer.allocateDirect(uncompressed).order(ByteOrder.LITTLE_ENDIAN);
+            codec.decompress(levelData, buffer);
             buffer.position(0);
             return buffer;
         }
@@ -388,9 +1176,52 @@ public class KTX {
             return metaData;
         }
 
+        /**
+         * Returns the file data if it is read or mapped, without mapping a probed file.
+         */
+        private synchronized ByteBuffer getMappedFileData() {
+            if (fileData == null && filePath == null) {
+                throw new IllegalArgumentException("INVALID STATE, header is destroyed");
+            }
+            return fileData;
+        }
+
+        /**
+         * Returns the file data, if the header was probed the file is mapped the first time this method is called.
+         */
+        private synchronized ByteBuffer getFileData() {
+            if (fileData == null) {
+                if (filePath == null) {
+                    throw new IllegalArgumentException("INVALID STATE, header is destroyed");
+                }
+                try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                    System.out.println("Mapping level data of " + filePath);
+                    fileData = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size()).order(ByteOrder.LITTLE_ENDIAN);
+                    fileOwner = new SharedBuffer(fileData);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return fileData;
+        }
+
         @Override
-        public void destroy() {
+        public synchronized void destroy() {
             fileData = null;
+            filePath = null;
+            if (fileOwner != null) {
+                fileOwner.release();
+                fileOwner = null;
+            }
+            if (levelOwners != null) {
+                for (SharedBuffer owner : levelOwners) {
+                    if (owner != null) {
+                        owner.release();
+                    }
+                }
+                levelOwners = null;
+                levelWindows = null;
+            }
         }
 
     }
@@ -536,15 +1367,38 @@ public class KTX {
         public final int dfdTotalSize;
         final DataFormatDescriptorBlock[] dfdBlock;
 
+        /**
+         * Reads the data format descriptor, if format is null the number of samples is taken from the
+         * descriptorBlockSize of each block.
+         * 
+         * @param fileData
+         * @param format The format, or null if the vkFormat has no matching {@link KTXFormat}
+         */
         public DataFormatDescriptor(ByteBuffer fileData, KTXFormat format) {
             int position = fileData.position();
             IntBuffer intBuffer = fileData.asIntBuffer();
             dfdTotalSize = intBuffer.get();
-            int blockSize = getDesriptorBlockSize(format);
-            int count = (dfdTotalSize - 4) / blockSize;
-            dfdBlock = new DataFormatDescriptorBlock[count];
-            for (int i = 0; i < count; i++) {
-                dfdBlock[i] = new DataFormatDescriptorBlock(intBuffer, format);
+            if (format != null) {
+                int blockSize = getDesriptorBlockSize(format);
+                int count = (dfdTotalSize - 4) / blockSize;
+                dfdBlock = new DataFormatDescriptorBlock[count];
+                for (int i = 0; i < count; i++) {
+                    dfdBlock[i] = new DataFormatDescriptorBlock(intBuffer, format.typeSize);
+                }
+            } else {
+                ArrayList<DataFormatDescriptorBlock> blocks = new ArrayList<DataFormatDescriptorBlock>();
+                int offset = 4;
+                while (offset + DFD_HEADER <= dfdTotalSize) {
+                    int blockSize = fileData.getInt(position + offset + 4) >>> 16;
+                    if (blockSize < DFD_HEADER || offset + blockSize > dfdTotalSize) {
+                        throw new IllegalArgumentException("INVALID VALUE, descriptorBlockSize " + blockSize);
+                    }
+                    blocks.add(new DataFormatDescriptorBlock(intBuffer,
+                            (blockSize - DFD_HEADER) / DFD_COMPONENT_SIZE));
+                    offset += blockSize;
+                    intBuffer.position(offset / 4);
+                }
+                dfdBlock = blocks.toArray(new DataFormatDescriptorBlock[0]);
             }
             fileData.position(position + dfdTotalSize);
         }
@@ -557,13 +1411,23 @@ public class KTX {
         private final int[][] sampleData;
 
         public DataFormatDescriptorBlock(IntBuffer intBuffer, KTXFormat format) {
+            this(intBuffer, format.typeSize);
+        }
+
+        /**
+         * Reads a descriptor block with the specified number of samples
+         * 
+         * @param intBuffer
+         * @param sampleCount
+         */
+        public DataFormatDescriptorBlock(IntBuffer intBuffer, int sampleCount) {
             int position = intBuffer.position();
-            sampleData = new int[format.typeSize][DFD_COMPONENT_SIZE / 4];
+            sampleData = new int[sampleCount][DFD_COMPONENT_SIZE / 4];
             intBuffer.get(descriptorBlock);
-            for (int i = 0; i < format.typeSize; i++) {
+            for (int i = 0; i < sampleCount; i++) {
                 intBuffer.get(sampleData[i]);
             }
-            if (intBuffer.position() != position + getDesriptorBlockSize(format) / 4) {
+            if (intBuffer.position() != position + (DFD_HEADER + DFD_COMPONENT_SIZE * sampleCount) / 4) {
                 throw new IllegalArgumentException("INVALID STATE, Could not read DFD");
             }
         }
@@ -592,7 +1456,7 @@ public class KTX {
          * @return
          */
         public int getDescriptorBlockSize() {
-            return (descriptorBlock[1] & 0x0ffff) >>> 16;
+            return descriptorBlock[1] >>> 16;
         }
 
         /**
@@ -604,6 +1468,165 @@ public class KTX {
             return descriptorBlock[1] & 0x0ffff;
         }
 
+        /**
+         * Returns the color model, for instance {@link KTX#KHR_DF_MODEL_RGBSDA} or {@link KTX#KHR_DF_MODEL_BC6H}
+         * 
+         * @return
+         */
+        public int getColorModel() {
+            return descriptorBlock[2] & 0x0ff;
+        }
+
+        /**
+         * Returns the transfer function, for instance {@link KTX#KHR_DF_TRANSFER_SRGB}
+         * 
+         * @return
+         */
+        public int getTransferFunction() {
+            return (descriptorBlock[2] >>> 16) & 0x0ff;
+        }
+
+        /**
+         * Returns the size of the texel block in the dimension, 1 for uncompressed formats
+         * 
+         * @param dimension 0 for width, 1 for height, 2 for depth
+         * @return
+         */
+        public int getTexelBlockDimension(int dimension) {
+            return ((descriptorBlock[3] >>> (dimension * 8)) & 0x0ff) + 1;
+        }
+
+        /**
+         * Returns the number of samples
+         * 
+         * @return
+         */
+        public int getSampleCount() {
+            return sampleData.length;
+        }
+
+        /**
+         * Returns the channel id of the sample, without the datatype qualifiers
+         * 
+         * @param sample
+         * @return
+         */
+        public int getSampleChannel(int sample) {
+            return (sampleData[sample][0] >>> 24) & 0x0f;
+        }
+
+        /**
+         * Returns the bit offset of the sample in the texel block
+         * 
+         * @param sample
+         * @return
+         */
+        public int getSampleBitOffset(int sample) {
+            return sampleData[sample][0] & 0x0ffff;
+        }
+
+    }
+
+    /**
+     * Inflates zlib data from source into the remaining bytes of destination, without staging the data in arrays.
+     * Output is produced in chunks of at most {@link #INFLATE_CHUNK_SIZE} bytes. When the inflater reads from and
+     * writes to direct buffers, such as a mapped file, no copies are made.
+     * 
+     * @param source Zlib compressed data, from position to limit
+     * @param destination Buffer to inflate into, the whole remaining size must be filled.
+     * @return Number of inflated bytes
+     * @throws DataFormatException If the data could not be inflated or did not fill destination
+     */
+    static int inflate(ByteBuffer source, ByteBuffer destination) throws DataFormatException {
+        return inflate(source, destination, false);
+    }
+
+    /**
+     * Inflates into the remaining bytes of destination as {@link #inflate(ByteBuffer, ByteBuffer)}, if nowrap is
+     * true source is raw deflate data without zlib header and checksum.
+     */
+    static int inflate(ByteBuffer source, ByteBuffer destination, boolean nowrap) throws DataFormatException {
+        Inflater inflater = new Inflater(nowrap);
+        int start = destination.position();
+        int end = destination.limit();
+        try {
+            inflater.setInput(source);
+            while (!inflater.finished() && destination.position() < end) {
+                destination.limit(Math.min(end, destination.position() + INFLATE_CHUNK_SIZE));
+                if (inflater.inflate(destination) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+        } finally {
+            destination.limit(end);
+            inflater.end();
+        }
+        int inflated = destination.position() - start;
+        if (inflated != end - start) {
+            throw new DataFormatException("INVALID VALUE, Not inflated whole image " + inflated + " of "
+                    + (end - start));
+        }
+        return inflated;
+    }
+
+    /**
+     * Inflates zlib data from the source segments into the whole destination, as
+     * {@link #inflate(ByteBuffer, ByteBuffer)} but the input and output may span several segments.
+     *
+     * @param source Zlib compressed data
+     * @param destination Buffer to inflate into, the whole buffer must be filled.
+     * @return Number of inflated bytes
+     * @throws DataFormatException If the data could not be inflated or did not fill destination
+     */
+    static long inflate(SegmentedBuffer source, SegmentedBuffer destination) throws DataFormatException {
+        Inflater inflater = new Inflater();
+        int nextSegment = 0;
+        long inflated = 0;
+        try {
+            while (!inflater.finished() && inflated < destination.size()) {
+                if (inflater.needsInput() && nextSegment < source.getSegmentCount()) {
+                    inflater.setInput(source.getSegment(nextSegment++));
+                }
+                int length = Math.min(INFLATE_CHUNK_SIZE, destination.getSegmentRemaining(inflated));
+                int count = inflater.inflate(destination.getView(inflated, length));
+                inflated += count;
+                if (count == 0 && (inflater.needsDictionary()
+                        || (inflater.needsInput() && nextSegment >= source.getSegmentCount()))) {
+                    break;
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+        if (inflated != destination.size()) {
+            throw new DataFormatException("INVALID VALUE, Not inflated whole level " + inflated + " of "
+                    + destination.size());
+        }
+        return inflated;
+    }
+
+    /**
+     * Writes the remaining bytes of the buffer to the channel. Heap buffers are written in chunks of at most
+     * {@link #WRITE_CHUNK_SIZE} bytes, since the channel otherwise copies the whole buffer to a temporary direct
+     * buffer of the same size.
+     * 
+     * @param channel
+     * @param buffer
+     * @return Number of bytes written
+     * @throws IOException
+     */
+    static long writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        long written = 0;
+        int end = buffer.limit();
+        try {
+            while (buffer.position() < end) {
+                buffer.limit(buffer.isDirect() ? end : Math.min(end, buffer.position() + WRITE_CHUNK_SIZE));
+                written += channel.write(buffer);
+            }
+        } finally {
+            buffer.limit(end);
+        }
+        return written;
     }
 
     static int getDesriptorBlockSize(KTXFormat format) {
@@ -638,17 +1661,99 @@ public class KTX {
         return (value + 3) & 0x0fffffffc;
     }
 
+    /**
+     * Returns the alignment of level data in the file, when the data is not supercompressed levels must be aligned
+     * to the least common multiple of the texel block size and 4.
+     * 
+     * @param format
+     * @param superCompression
+     * @return The alignment in bytes
+     */
+    static int getLevelAlignment(KTXFormat format, SuperCompression superCompression) {
+        if (superCompression != SuperCompression.None) {
+            return 1;
+        }
+        int size = format.sizeInBytes;
+        return (size % 4) == 0 ? size : (size % 2) == 0 ? size * 2 : size * 4;
+    }
+
+    static int align(int value, int alignment) {
+        int remainder = value % alignment;
+        return remainder == 0 ? value : value + alignment - remainder;
+    }
+
+    static long align(long value, int alignment) {
+        long remainder = value % alignment;
+        return remainder == 0 ? value : value + alignment - remainder;
+    }
+
+    /**
+     * Returns the size as the capacity of a buffer, offsets and sizes in the file are 64 bit but one buffer can
+     * hold at most {@link #MAX_BUFFER_SIZE} bytes.
+     * 
+     * @param size Size in bytes
+     * @param name Name of the data, used in the exception message
+     * @return The size as an int
+     * @throws IllegalArgumentException If size is negative or larger than {@link #MAX_BUFFER_SIZE}
+     */
+    static int toBufferSize(long size, String name) {
+        return toBufferSize(size, MAX_BUFFER_SIZE, name);
+    }
+
+    /**
+     * Returns the size as the capacity of a buffer that holds at most max bytes
+     * 
+     * @param size Size in bytes
+     * @param max Max size of the buffer, at most {@link #MAX_BUFFER_SIZE}
+     * @param name Name of the data, used in the exception message
+     * @return The size as an int
+     * @throws IllegalArgumentException If size is negative or larger than max
+     */
+    static int toBufferSize(long size, long max, String name) {
+        if (size < 0 || size > max) {
+            throw new IllegalArgumentException("INVALID VALUE, " + name + " size " + size
+                    + " does not fit in one buffer, max " + max);
+        }
+        return (int) size;
+    }
+
+    private static long checkMaxBufferSize(long size) {
+        if (size < 1 || size > MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("INVALID VALUE, max buffer size " + size);
+        }
+        return size;
+    }
+
+    /**
+     * Returns the max number of bytes of one buffer or file mapping, data that is larger is segmented.
+     * This is {@link #MAX_BUFFER_SIZE} unless lowered using {@link #setMaxBufferSize(long)}.
+     */
+    long getMaxBufferSize() {
+        return maxBufferSize;
+    }
+
+    /**
+     * Sets the max number of bytes of one buffer or file mapping for this serializer or deserializer, headers read
+     * by a deserializer use the same max. Used by tests to exercise segmented data without allocating gigabytes.
+     * 
+     * @param size Max size, 1 to {@link #MAX_BUFFER_SIZE}
+     */
+    void setMaxBufferSize(long size) {
+        maxBufferSize = checkMaxBufferSize(size);
+    }
+
     /**
      * Returns the offset to where the first miplevel is stored.
      * 
      * @param format
      * @param metaData
      * @param levelCount
+     * @param superCompression
      * @return
      */
-    int getMipLevelOffset(KTXFormat format, int levelCount, KeyValueData metaData) {
-        return HEADER_SIZE + INDEX_SIZE + getLevelSize(levelCount) + getDFDSize(format) + getKVDSize(metaData)
-                + getSGDSize();
+    int getMipLevelOffset(KTXFormat format, int levelCount, KeyValueData metaData, SuperCompression superCompression) {
+        return align(HEADER_SIZE + INDEX_SIZE + getLevelSize(levelCount) + getDFDSize(format) + getKVDSize(metaData)
+                + getSGDSize(), getLevelAlignment(format, superCompression));
     }
 
 }
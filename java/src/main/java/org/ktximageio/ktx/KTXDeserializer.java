@@ -1,27 +1,211 @@
 package org.ktximageio.ktx;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+import org.eclipse.jdt.annotation.NonNull;
 
 public class KTXDeserializer extends KTX implements ImageReader {
 
     private KTXHeader header;
+    private final Executor executor;
+
+    /**
+     * Creates a deserializer that decompresses levels one by one on the calling thread
+     */
+    public KTXDeserializer() {
+        this(null);
+    }
 
+    /**
+     * Creates a deserializer with parallel decode, supercompressed levels returned by
+     * {@link ImageHeader#getLevels(int, int)} are decompressed at the same time using the executor.
+     * 
+     * @param executor Executor for level decompression, for instance
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}, or null to decompress on the calling thread.
+     */
+    public KTXDeserializer(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Maps the file and reads the header, the mapping is released when the header and all level buffers that
+     * share the file data are destroyed.
+     * Files larger than the max buffer size can not be mapped as one buffer, they are probed and each
+     * level is mapped separately when it is fetched.
+     */
     @Override
     public ImageHeader read(Path filePath) throws IOException {
         System.out.println("URL: " + filePath.toUri().toURL());
-        FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ);
-        // FileChannel fileChannel = (FileChannel) Files.newByteChannel(filePath, EnumSet.of(StandardOpenOption.READ));
-        MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
-        bb.load();
-        ImageHeader h = read(bb);
-        fc.close();
-        return h;
+        try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            if (fc.size() > getMaxBufferSize()) {
+                return probe(fc, filePath);
+            }
+            MappedByteBuffer bb = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            bb.load();
+            SharedBuffer owner = new SharedBuffer(bb);
+            try {
+                bb.order(ByteOrder.LITTLE_ENDIAN);
+                header = new KTXHeader(bb, owner);
+            } catch (RuntimeException e) {
+                owner.release();
+                throw e;
+            }
+            header.setExecutor(executor);
+            header.setMaxBufferSize(getMaxBufferSize());
+            return header;
+        }
+    }
+
+    /**
+     * Reads the file as {@link ImageReader#readAsync(Path, Executor)}, the direct buffer holding the file data is
+     * released when the header and all level buffers that share the file data are destroyed.
+     */
+    @Override
+    public CompletableFuture<ImageHeader> readAsync(@NonNull Path filePath, @NonNull Executor readExecutor) {
+        return ImageReader.readFileAsync(filePath).thenApplyAsync(buffer -> {
+            SharedBuffer owner = new SharedBuffer(buffer);
+            try {
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                KTXHeader result = new KTXHeader(buffer, owner);
+                result.setExecutor(executor);
+                result.setMaxBufferSize(getMaxBufferSize());
+                return result;
+            } catch (RuntimeException e) {
+                owner.release();
+                throw e;
+            }
+        }, readExecutor);
+    }
+
+    /**
+     * Reads the header, index, dfd and kvd of the file using positional reads, the level data is not read.
+     * The file is mapped the first time level data is fetched, using {@link ImageHeader#getData()} or
+     * {@link ImageHeader#getLevel(int)}, so probing is cheap also for large files.
+     * 
+     * @param filePath
+     * @return The header of the file
+     * @throws IOException If the file could not be read or is not a KTX2 file
+     */
+    public ImageHeader probe(Path filePath) throws IOException {
+        try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+            return probe(fc, filePath);
+        }
+    }
+
+    private ImageHeader probe(FileChannel fc, Path filePath) throws IOException {
+        ByteBuffer start = readFully(fc, LEVEL_INDEX_OFFSET);
+        long size = getIndexEnd(start, filePath.toString());
+        if (size > fc.size()) {
+            throw new IOException("INVALID VALUE, KTX index outside of file " + filePath + ", size " + size);
+        }
+        header = new KTXHeader(readFully(fc, toBufferSize(size, "KTX index")), filePath, fc.size());
+        header.setExecutor(executor);
+        header.setMaxBufferSize(getMaxBufferSize());
+        return header;
+    }
+
+    /**
+     * Reads the whole KTX2 file from the channel in a single pass, the channel does not have to be seekable and is
+     * not closed. The header, index and level index are read first to find the size of the file, then the rest of
+     * the file is read into a direct buffer that is released when the header and all level buffers are destroyed.
+     * Data after the last level is not read.
+     * 
+     * @param channel Channel positioned at the start of the KTX2 file, for instance a socket or zip entry
+     * @return The header of the file
+     * @throws IOException If the channel could not be read or does not contain a KTX2 file
+     */
+    public ImageHeader read(@NonNull ReadableByteChannel channel) throws IOException {
+        ByteBuffer start = readFully(channel, ByteBuffer.allocate(LEVEL_INDEX_OFFSET));
+        long indexEnd = getIndexEnd(start, "channel");
+        int levelCount = start.getInt(HEADER_SIZE - 8);
+        ByteBuffer levelIndex = readFully(channel, ByteBuffer.allocate(getLevelSize(levelCount)));
+        long size = indexEnd;
+        for (int i = 0; i < Math.max(1, levelCount); i++) {
+            size = Math.max(size, levelIndex.getLong(i * LEVEL_STRUCT_SIZE)
+                    + levelIndex.getLong(i * LEVEL_STRUCT_SIZE + 8));
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("INVALID VALUE, KTX too large " + size + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect((int) size);
+        buffer.put(start).put(levelIndex);
+        SharedBuffer owner = new SharedBuffer(buffer);
+        try {
+            readFully(channel, buffer);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            header = new KTXHeader(buffer, owner);
+        } catch (IOException | RuntimeException e) {
+            owner.release();
+            throw e;
+        }
+        header.setExecutor(executor);
+        header.setMaxBufferSize(getMaxBufferSize());
+        return header;
+    }
+
+    /**
+     * Reads the whole KTX2 file from the stream, as {@link #read(ReadableByteChannel)}, the stream is not closed.
+     * 
+     * @param in
+     * @return The header of the file
+     * @throws IOException If the stream could not be read or does not contain a KTX2 file
+     */
+    public ImageHeader read(@NonNull InputStream in) throws IOException {
+        return read(Channels.newChannel(in));
+    }
+
+    /**
+     * Checks the identifier and returns the end of the header, index, level index, dfd, kvd and sgd - whichever
+     * is last.
+     */
+    private long getIndexEnd(ByteBuffer start, String source) throws IOException {
+        start.order(ByteOrder.LITTLE_ENDIAN);
+        byte[] identifier = new byte[FILEIDENTIFIER.length];
+        start.duplicate().get(identifier);
+        if (!Arrays.equals(FILEIDENTIFIER, identifier)) {
+            throw new IOException("INVALID VALUE, KTX header not found in " + source);
+        }
+        int levelCount = start.getInt(HEADER_SIZE - 8);
+        if (levelCount < 0) {
+            throw new IOException("INVALID VALUE, levelCount " + levelCount + " in " + source);
+        }
+        long end = Math.max(LEVEL_INDEX_OFFSET + (long) getLevelSize(levelCount),
+                Math.max(start.getInt(INDEX_OFFSET) + (long) start.getInt(INDEX_OFFSET + 4),
+                        start.getInt(INDEX_OFFSET + 8) + (long) start.getInt(INDEX_OFFSET + 12)));
+        return Math.max(end, start.getLong(INDEX_OFFSET + 16) + start.getLong(INDEX_OFFSET + 24));
+    }
+
+    private ByteBuffer readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                throw new IOException("INVALID VALUE, end of stream reading " + buffer.capacity() + " bytes");
+            }
+        }
+        buffer.flip();
+        return buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private ByteBuffer readFully(FileChannel fc, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (fc.read(buffer, buffer.position()) < 0) {
+                throw new IOException("INVALID VALUE, end of file reading " + size + " bytes");
+            }
+        }
+        buffer.flip();
+        return buffer;
     }
 
     @Override
@@ -32,6 +216,8 @@ public class KTXDeserializer extends KTX implements ImageReader {
     private KTXHeader createKTXHeader(ByteBuffer byteBuffer) {
         byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
         header = new KTXHeader(byteBuffer);
+        header.setExecutor(executor);
+        header.setMaxBufferSize(getMaxBufferSize());
         return header;
     }
 
@@ -1,16 +1,23 @@
 package org.ktximageio.ktx;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.IntBuffer;
 import java.nio.LongBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
-import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Executor;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.ktximageio.ktx.FloatImageBuffer.BufferHDRProperties;
@@ -32,8 +39,42 @@ public class KTXSerializer extends KTX {
         public final int width;
         public final int height;
         public final int depth;
+        public final SuperCompression superCompression;
+        /**
+         * If set the supercompression scheme and level are selected by the policy when serializing,
+         * superCompression is then ignored.
+         */
+        public final CompressionPolicy compressionPolicy;
+        /**
+         * The DFD channel of UASTC data, written with VK_FORMAT_UNDEFINED and the UASTC color model, or -1 if the
+         * data is in format.
+         */
+        private final int uastcChannel;
 
         public Settings(@NonNull ImageFormat f, int layers, int faces, int levels, int w, int h, int d) {
+            this(f, layers, faces, levels, w, h, d, SuperCompression.ZLIB);
+        }
+
+        public Settings(@NonNull ImageFormat f, int layers, int faces, int levels, int w, int h, int d,
+                @NonNull SuperCompression sc) {
+            this(f, layers, faces, levels, w, h, d, sc, null);
+        }
+
+        /**
+         * Creates settings where the supercompression is selected by the policy
+         */
+        public Settings(@NonNull ImageFormat f, int layers, int faces, int levels, int w, int h, int d,
+                @NonNull CompressionPolicy policy) {
+            this(f, layers, faces, levels, w, h, d, SuperCompression.None, policy);
+        }
+
+        private Settings(ImageFormat f, int layers, int faces, int levels, int w, int h, int d, SuperCompression sc,
+                CompressionPolicy policy) {
+            this(f, layers, faces, levels, w, h, d, sc, policy, -1);
+        }
+
+        private Settings(ImageFormat f, int layers, int faces, int levels, int w, int h, int d, SuperCompression sc,
+                CompressionPolicy policy, int uastc) {
             format = f;
             layerCount = layers;
             faceCount = faces;
@@ -41,6 +82,17 @@ public class KTXSerializer extends KTX {
             width = w;
             height = h;
             depth = d;
+            superCompression = sc;
+            compressionPolicy = policy;
+            uastcChannel = uastc;
+        }
+
+        /**
+         * Returns a copy of these settings using the supercompression scheme
+         */
+        Settings copy(@NonNull SuperCompression sc) {
+            return new Settings(format, layerCount, faceCount, levelCount, width, height, depth, sc, null,
+                    uastcChannel);
         }
 
         /**
@@ -60,7 +112,141 @@ public class KTXSerializer extends KTX {
     }
 
     /**
-     * Zlib compresses the data and writes out
+     * The sources of a level streamed from images as they are produced, each image holds one or more consecutive
+     * faces and is destroyed when the next source is fetched.
+     */
+    private static class FaceSources implements Iterator<ByteBuffer> {
+
+        private final Iterator<ImageBuffer> faces;
+        private ImageBuffer first;
+        private ImageBuffer current;
+        // Fetched by peek() and not yet returned by next()
+        private ImageBuffer pending;
+        private int count;
+        private List<BufferHDRProperties> properties;
+
+        private FaceSources(Iterator<ImageBuffer> faces) {
+            this.faces = faces;
+        }
+
+        @Override
+        public boolean hasNext() {
+            release();
+            return pending != null || faces.hasNext();
+        }
+
+        /**
+         * Returns the next face without consuming it, or null if there are no more faces
+         */
+        private ImageBuffer peek() {
+            if (pending == null && faces.hasNext()) {
+                pending = faces.next();
+            }
+            return pending;
+        }
+
+        @Override
+        public ByteBuffer next() {
+            release();
+            ImageBuffer face = pending != null ? pending : faces.next();
+            pending = null;
+            if (first == null) {
+                first = face;
+            } else if (face.format != first.format || face.width != first.width || face.height != first.height
+                    || face.faceCount != first.faceCount) {
+                face.destroy();
+                throw new IllegalArgumentException("INVALID VALUE, face " + count + " does not match first face, "
+                        + face.format + ", " + face.width + " x " + face.height + ", faces " + face.faceCount);
+            }
+            if (face.layerCount != 0 || face.faceCount < 1) {
+                face.destroy();
+                throw new IllegalArgumentException("INVALID VALUE, face " + count + " has layers "
+                        + face.layerCount + ", faces " + face.faceCount);
+            }
+            BufferHDRProperties faceProperties = getProperties(face);
+            if (face == first) {
+                properties = faceProperties != null ? new ArrayList<BufferHDRProperties>() : null;
+            }
+            if (properties != null) {
+                properties.add(faceProperties);
+            }
+            current = face;
+            count += face.faceCount;
+            ByteBuffer source = face.getBuffer().duplicate();
+            source.clear();
+            return source;
+        }
+
+        private void release() {
+            if (current != null) {
+                current.destroy();
+                current = null;
+            }
+        }
+
+        /**
+         * Releases the current face and a face fetched by peek() that was never consumed
+         */
+        private void releaseAll() {
+            release();
+            if (pending != null) {
+                pending.destroy();
+                pending = null;
+            }
+        }
+    }
+
+    /**
+     * Keeps the data written to it, used when the header can not be written until the level data is ready.
+     */
+    private static class LevelOutput implements WritableByteChannel {
+
+        private final ArrayList<ByteBuffer> buffers = new ArrayList<ByteBuffer>();
+        private long size;
+
+        @Override
+        public int write(ByteBuffer src) {
+            ByteBuffer copy = ByteBuffer.allocate(src.remaining());
+            copy.put(src).flip();
+            buffers.add(copy);
+            size += copy.remaining();
+            return copy.remaining();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    private final Executor executor;
+    private CompressionPolicy.Choice compressionChoice;
+    private boolean imageIndex;
+
+    /**
+     * Creates a serializer that compresses on the calling thread
+     */
+    public KTXSerializer() {
+        this(null);
+    }
+
+    /**
+     * Creates a serializer with parallel compression, codecs that can split the work, such as {@link ZLIBCodec},
+     * compress chunks of the data at the same time using the executor.
+     * 
+     * @param executor Executor for compression, for instance
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}, or null to compress on the calling thread.
+     */
+    public KTXSerializer(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Supercompresses the data, using the scheme in settings, and writes out
      * 
      * @param path Where to serialize KTX
      * @param metaData Optional metadata
@@ -70,24 +256,183 @@ public class KTXSerializer extends KTX {
      */
     public void serialize(@NonNull Path path, KeyValueData metaData, @NonNull Settings settings, byte[] data)
             throws IOException {
-        byte[] zipped = compressData(data);
-        System.out.println("Compressed data to " + zipped.length + " bytes, from " + data.length + ", reduction %"
-                + ((float) (data.length - zipped.length) / data.length) * 100);
-        FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-        ByteBuffer buffer = ByteBuffer.allocateDirect(zipped.length).order(ByteOrder.nativeOrder());
-        buffer.put(zipped);
-        buffer.position(0);
-        writeKTX(out, metaData, settings, SuperCompression.ZLIB, buffer);
+        try (FileChannel out = open(path)) {
+            serialize(out, metaData, settings, data);
+        }
     }
 
     /**
-     * Writes the buffers as faces - buffers format and sizes must match.
+     * Supercompresses the data, using the scheme in settings, and writes to the channel - the channel is not
+     * closed. If the channel is not a {@link SeekableByteChannel} the compressed data is kept in memory until the
+     * header has been written.
+     * 
+     * @param channel Where to serialize KTX, for instance a socket or zip entry
+     * @param metaData Optional metadata
+     * @param settings
+     * @param data
+     * @throws IOException
+     */
+    public void serialize(@NonNull WritableByteChannel channel, KeyValueData metaData, @NonNull Settings settings,
+            byte[] data) throws IOException {
+        writeKTX(channel, metaData, settings, new ByteBuffer[][] { { ByteBuffer.wrap(data) } });
+    }
+
+    /**
+     * Supercompresses the data, using the scheme in settings, and writes to the stream - the stream is not closed.
+     * 
+     * @param out
+     * @param metaData Optional metadata
+     * @param settings
+     * @param data
+     * @throws IOException
+     */
+    public void serialize(@NonNull OutputStream out, KeyValueData metaData, @NonNull Settings settings,
+            byte[] data) throws IOException {
+        serialize(Channels.newChannel(out), metaData, settings, data);
+    }
+
+    /**
+     * Supercompresses the levels, using the scheme in settings, and writes out. Used for levels that are larger than
+     * one buffer, such as a 16k x 8k RGBA32F image, see {@link KTXHeader#getSegmentedLevel(int)}.
+     * Each level is streamed through the codec, segment by segment, so the compressed level is not kept in memory.
+     * 
+     * @param path Where to serialize KTX
+     * @param metaData Optional metadata
+     * @param settings
+     * @param levels The levels, base level at index 0, each holding all layers and faces of the level
+     * @throws IOException
+     * @throws IllegalArgumentException If the number of levels or size of a level does not match settings
+     */
+    public void serialize(@NonNull Path path, KeyValueData metaData, @NonNull Settings settings,
+            @NonNull SegmentedBuffer... levels) throws IOException {
+        try (FileChannel out = open(path)) {
+            serialize(out, metaData, settings, levels);
+        }
+    }
+
+    /**
+     * Writes the levels to the channel as {@link #serialize(Path, KeyValueData, Settings, SegmentedBuffer...)} - the
+     * channel is not closed. If the channel is not a {@link SeekableByteChannel} the compressed data is kept in
+     * memory until the header has been written.
+     * 
+     * @param channel
+     * @param metaData Optional metadata
+     * @param settings
+     * @param levels
+     * @throws IOException
+     */
+    public void serialize(@NonNull WritableByteChannel channel, KeyValueData metaData, @NonNull Settings settings,
+            @NonNull SegmentedBuffer... levels) throws IOException {
+        if (levels.length != Math.max(1, settings.levelCount)) {
+            throw new IllegalArgumentException("INVALID VALUE, " + levels.length + " levels for levelCount "
+                    + settings.levelCount);
+        }
+        ByteBuffer[][] levelData = new ByteBuffer[levels.length][];
+        for (int level = 0; level < levels.length; level++) {
+            long size = getImageCount(settings, level) * settings.format.getImageSize(
+                    Math.max(1, settings.width >> level), Math.max(1, settings.height >> level));
+            if (levels[level].size() != size) {
+                throw new IllegalArgumentException("INVALID VALUE, level " + level + " size " + levels[level].size()
+                        + ", expected " + size);
+            }
+            levelData[level] = new ByteBuffer[levels[level].getSegmentCount()];
+            for (int i = 0; i < levelData[level].length; i++) {
+                levelData[level][i] = levels[level].getSegment(i);
+            }
+        }
+        writeKTX(channel, metaData, settings, levelData);
+    }
+
+    /**
+     * Writes the buffers as faces, using zlib supercompression - buffers format and sizes must match.
      * 
      * @param path
      * @param buffers
      * @throws IOException
      */
     public void serializeFaces(@NonNull Path path, @NonNull ImageBuffer[] buffers) throws IOException {
+        serializeFaces(path, buffers, SuperCompression.ZLIB);
+    }
+
+    /**
+     * Writes the buffers as faces - buffers format and sizes must match.
+     * The buffers are written as is, or streamed through the codec, without copying.
+     * 
+     * @param path
+     * @param buffers
+     * @param superCompression The supercompression scheme to use, None or a scheme with a registered
+     * {@link SuperCompressionCodec}
+     * @throws IOException
+     */
+    public void serializeFaces(@NonNull Path path, @NonNull ImageBuffer[] buffers,
+            @NonNull SuperCompression superCompression) throws IOException {
+        try (FileChannel out = open(path)) {
+            serializeFaces(out, buffers, superCompression);
+        }
+    }
+
+    /**
+     * Writes the buffers as faces to the stream - the stream is not closed. Buffers format and sizes must match.
+     * 
+     * @param out
+     * @param buffers
+     * @param superCompression The supercompression scheme to use, None or a scheme with a registered
+     * {@link SuperCompressionCodec}
+     * @throws IOException
+     */
+    public void serializeFaces(@NonNull OutputStream out, @NonNull ImageBuffer[] buffers,
+            @NonNull SuperCompression superCompression) throws IOException {
+        serializeFaces(Channels.newChannel(out), buffers, superCompression);
+    }
+
+    /**
+     * Writes the buffers as faces to the channel - the channel is not closed. Buffers format and sizes must match.
+     * If the channel is not a {@link SeekableByteChannel} the compressed data is kept in memory until the header
+     * has been written.
+     * 
+     * @param channel Where to serialize KTX, for instance a socket or zip entry
+     * @param buffers
+     * @param superCompression The supercompression scheme to use, None or a scheme with a registered
+     * {@link SuperCompressionCodec}
+     * @throws IOException
+     */
+    public void serializeFaces(@NonNull WritableByteChannel channel, @NonNull ImageBuffer[] buffers,
+            @NonNull SuperCompression superCompression) throws IOException {
+        serializeFaces(channel, buffers, superCompression, null);
+    }
+
+    /**
+     * Writes the buffers as faces, the supercompression is selected by the policy - buffers format and sizes must
+     * match.
+     * 
+     * @param path
+     * @param buffers
+     * @param policy
+     * @throws IOException
+     */
+    public void serializeFaces(@NonNull Path path, @NonNull ImageBuffer[] buffers, @NonNull CompressionPolicy policy)
+            throws IOException {
+        try (FileChannel out = open(path)) {
+            serializeFaces(out, buffers, policy);
+        }
+    }
+
+    /**
+     * Writes the buffers as faces to the channel, the supercompression is selected by the policy - the channel is
+     * not closed. Buffers format and sizes must match.
+     * 
+     * @param channel
+     * @param buffers
+     * @param policy
+     * @throws IOException
+     */
+    public void serializeFaces(@NonNull WritableByteChannel channel, @NonNull ImageBuffer[] buffers,
+            @NonNull CompressionPolicy policy) throws IOException {
+        serializeFaces(channel, buffers, SuperCompression.None, policy);
+    }
+
+    private void serializeFaces(WritableByteChannel channel, ImageBuffer[] buffers, SuperCompression superCompression,
+            CompressionPolicy policy) throws IOException {
         ImageBuffer previous = null;
         ByteBuffer[] arrays = new ByteBuffer[buffers.length];
         for (int i = 0; i < buffers.length; i++) {
@@ -109,62 +454,662 @@ public class KTXSerializer extends KTX {
             }
             arrays[i] = buffer.getBuffer();
         }
-        byte[] zipped = compressData(arrays);
-        System.out.println("Compressed data to " + zipped.length + " bytes");
-        FileChannel out = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
-        KTXFormat format = KTXFormat.get(buffers[0].format.value);
         KeyValueData metaData = createMetadata(buffers);
         Settings settings = new Settings(buffers[0].format, 0, buffers.length, 0, buffers[0].width, buffers[0].height,
-                0);
-        ByteBuffer buffer = ByteBuffer.allocateDirect(zipped.length).order(ByteOrder.nativeOrder());
-        buffer.put(zipped);
-        buffer.position(0);
-        writeKTX(out, metaData, settings, SuperCompression.ZLIB, buffer);
+                0, superCompression, policy);
+        writeKTX(channel, metaData, settings, new ByteBuffer[][] { arrays });
+    }
+
+    /**
+     * Writes the faces in the order they are returned by the iterator, for instance as created by
+     * {@link PanoramaToCubemap#createCubeMapFaces(ImageBuffer, ImageFormat, Executor, int)}. Each face is
+     * supercompressed as soon as it is returned and destroyed when it has been consumed, so that production of the
+     * next faces overlaps with compression and only the faces not yet written are kept in memory.
+     * Faces must match in format and size. The header is reserved and written when all faces are written, each
+     * face is written to the file as it is consumed. The image index is not written for faces serialized this way.
+     * 
+     * @param path
+     * @param faces The faces, each image with one or more faces and no layers
+     * @param superCompression The supercompression scheme to use, None or a scheme with a registered
+     * {@link SuperCompressionCodec}
+     * @throws IOException
+     * @throws IllegalArgumentException If the faces does not match
+     */
+    public void serializeFaces(@NonNull Path path, @NonNull Iterator<ImageBuffer> faces,
+            @NonNull SuperCompression superCompression) throws IOException {
+        try (FileChannel out = open(path)) {
+            serializeFaces(out, faces, superCompression);
+        }
+    }
+
+    /**
+     * Writes the faces to the channel, as {@link #serializeFaces(Path, Iterator, SuperCompression)} - the channel is
+     * not closed. If the channel is not a {@link SeekableByteChannel} the level data is kept in memory until the
+     * header has been written.
+     * 
+     * @param channel
+     * @param faces
+     * @param superCompression
+     * @throws IOException
+     */
+    public void serializeFaces(@NonNull WritableByteChannel channel, @NonNull Iterator<ImageBuffer> faces,
+            @NonNull SuperCompression superCompression) throws IOException {
+        serializeImages(channel, faces, 0, superCompression);
+    }
+
+    /**
+     * Writes a texture array, or cubemap array if faceCount is 6, from the images in the order they are returned by
+     * the iterator, for instance as created by {@link ArrayPacker}. Images are returned layer by layer and face by
+     * face, one image may hold several consecutive faces - such as a cubemap with 6 faces. The layer count is the
+     * total number of faces divided by faceCount.
+     * Each image is supercompressed and written to the file as soon as it is returned and destroyed when it has been
+     * consumed, as {@link #serializeFaces(Path, Iterator, SuperCompression)}.
+     * 
+     * @param path
+     * @param images The images, with no layers, format and size must match
+     * @param faceCount Number of faces in each layer, 1 or 6
+     * @param superCompression The supercompression scheme to use, None or a scheme with a registered
+     * {@link SuperCompressionCodec}
+     * @throws IOException
+     * @throws IllegalArgumentException If the images does not match or the number of faces is not a multiple of
+     * faceCount
+     */
+    public void serializeLayers(@NonNull Path path, @NonNull Iterator<ImageBuffer> images, int faceCount,
+            @NonNull SuperCompression superCompression) throws IOException {
+        try (FileChannel out = open(path)) {
+            serializeLayers(out, images, faceCount, superCompression);
+        }
+    }
+
+    /**
+     * Writes a texture array, or cubemap array, to the channel as
+     * {@link #serializeLayers(Path, Iterator, int, SuperCompression)} - the channel is not closed. If the channel is
+     * not a {@link SeekableByteChannel} the level data is kept in memory until the header has been written.
+     * 
+     * @param channel
+     * @param images
+     * @param faceCount
+     * @param superCompression
+     * @throws IOException
+     */
+    public void serializeLayers(@NonNull WritableByteChannel channel, @NonNull Iterator<ImageBuffer> images,
+            int faceCount, @NonNull SuperCompression superCompression) throws IOException {
+        if (faceCount != 1 && faceCount != 6) {
+            throw new IllegalArgumentException("INVALID VALUE, faceCount " + faceCount);
+        }
+        serializeImages(channel, images, faceCount, superCompression);
+    }
+
+    /**
+     * Streams the images as one level, if faceCount is 0 all images are faces of one layer.
+     * If the channel is seekable the header is reserved and each image is written, or streamed through the codec,
+     * to the channel as it is consumed - the header is written last. Otherwise the level is kept in memory until
+     * the header has been written.
+     */
+    private void serializeImages(WritableByteChannel channel, Iterator<ImageBuffer> images, int faceCount,
+            SuperCompression superCompression) throws IOException {
+        checkSuperCompression(superCompression);
+        SuperCompressionCodec codec = superCompression != SuperCompression.None ? getCodec(superCompression) : null;
+        FaceSources sources = new FaceSources(images);
+        compressionChoice = null;
+        if (channel instanceof SeekableByteChannel) {
+            serializeImages((SeekableByteChannel) channel, sources, faceCount, superCompression, codec);
+            return;
+        }
+        LevelOutput output = new LevelOutput();
+        try {
+            writeImages(output, sources, codec);
+        } finally {
+            sources.releaseAll();
+        }
+        Settings settings = getSettings(sources, faceCount, superCompression);
+        logCompressed(sources, codec, output.size);
+        writeKTX(channel, createMetadata(sources.properties, true), settings,
+                new ByteBuffer[][] { output.buffers.toArray(new ByteBuffer[0]) }, new long[] { output.size });
+    }
+
+    /**
+     * Writes the images directly after the reserved header, the metadata values are fixed width so that the size
+     * of the header is known from the first image.
+     */
+    private void serializeImages(SeekableByteChannel channel, FaceSources sources, int faceCount,
+            SuperCompression superCompression, SuperCompressionCodec codec) throws IOException {
+        long start = channel.position();
+        long size;
+        ImageBuffer first;
+        KeyValueData reserved;
+        try {
+            first = sources.peek();
+            if (first == null) {
+                throw new IllegalArgumentException("INVALID VALUE, no faces");
+            }
+            reserved = getProperties(first) != null ? createMetadata(0, 0, 0, true) : createMetadata(null, true);
+            KTXFormat format = new Settings(first.format, 0, 1, 0, first.width, first.height, 0).getFormat();
+            int levelOffset = getMipLevelOffset(format, 0, reserved, superCompression);
+            long offset = align(levelOffset, getLevelAlignment(format, superCompression));
+            channel.position(start + levelOffset);
+            writePadding(channel, offset - levelOffset);
+            size = writeImages(channel, sources, codec);
+        } finally {
+            sources.releaseAll();
+        }
+        Settings settings = getSettings(sources, faceCount, superCompression);
+        logCompressed(sources, codec, size);
+        KeyValueData metaData = createMetadata(sources.properties, true);
+        int levelOffset = getMipLevelOffset(settings.getFormat(), 0, metaData, superCompression);
+        if (levelOffset != getMipLevelOffset(settings.getFormat(), 0, reserved, superCompression)) {
+            throw new IllegalArgumentException("INVALID STATE, metadata does not match reserved size");
+        }
+        long offset = align(levelOffset, getLevelAlignment(settings.getFormat(), superCompression));
+        writeKTXHeader(channel, start, metaData, settings, new long[] { offset }, new long[] { size });
+        channel.position(start + offset + size);
+        System.out.println("Written " + size + " bytes of " + superCompression + " data at offset " + offset);
     }
 
-    private void writeKTX(@NonNull FileChannel fc, KeyValueData metaData, @NonNull Settings settings,
-            @NonNull SuperCompression superCompression, @NonNull ByteBuffer zipped) throws IOException {
+    /**
+     * Writes the images to the channel, through the codec or as is if codec is null, returns the number of bytes
+     * written.
+     */
+    private long writeImages(WritableByteChannel channel, FaceSources sources, SuperCompressionCodec codec)
+            throws IOException {
+        if (codec != null) {
+            return codec.compress(channel, sources);
+        }
+        long written = 0;
+        while (sources.hasNext()) {
+            written += writeFully(channel, sources.next());
+        }
+        return written;
+    }
+
+    /**
+     * Returns the settings for the consumed images, checks that there was at least one image and that the number
+     * of faces is a multiple of faceCount.
+     */
+    private Settings getSettings(FaceSources sources, int faceCount, SuperCompression superCompression) {
+        if (sources.first == null) {
+            throw new IllegalArgumentException("INVALID VALUE, no faces");
+        }
+        if (faceCount > 0 && sources.count % faceCount != 0) {
+            throw new IllegalArgumentException("INVALID VALUE, " + sources.count + " faces is not a multiple of "
+                    + faceCount);
+        }
+        return faceCount > 0
+                ? new Settings(sources.first.format, sources.count / faceCount, faceCount, 0, sources.first.width,
+                        sources.first.height, 0, superCompression)
+                : new Settings(sources.first.format, 0, sources.count, 0, sources.first.width, sources.first.height,
+                        0, superCompression);
+    }
+
+    private void logCompressed(FaceSources sources, SuperCompressionCodec codec, long compressed) {
+        if (codec != null) {
+            long size = (long) sources.count * sources.first.getImageSizeInBytes();
+            System.out.println("Compressed " + sources.count + " faces to " + compressed + " bytes, from " + size
+                    + ", reduction %" + ((float) (size - compressed) / Math.max(1, size)) * 100);
+        }
+    }
+
+    /**
+     * Writes the mip-levels, for instance as created by {@link MipmapGenerator}, each level is supercompressed
+     * separately. Levels are stored smallest first in the file as required by the KTX2 specification.
+     * The buffers are written as is, or streamed through the codec, without copying.
+     * 
+     * @param path
+     * @param levels The levels, base level at index 0, each level holds all layers and faces. Format, layer and
+     * face count must match and each level must be half the size of the previous level, but not less than 1.
+     * @param superCompression The supercompression scheme to use, None or a scheme with a registered
+     * {@link SuperCompressionCodec}
+     * @throws IOException
+     * @throws IllegalArgumentException If the levels does not match
+     */
+    public void serializeLevels(@NonNull Path path, @NonNull ImageBuffer[] levels,
+            @NonNull SuperCompression superCompression) throws IOException {
+        try (FileChannel out = open(path)) {
+            serializeLevels(out, levels, superCompression);
+        }
+    }
+
+    /**
+     * Writes the mip-levels to the stream, as {@link #serializeLevels(Path, ImageBuffer[], SuperCompression)} - the
+     * stream is not closed.
+     * 
+     * @param out
+     * @param levels
+     * @param superCompression
+     * @throws IOException
+     */
+    public void serializeLevels(@NonNull OutputStream out, @NonNull ImageBuffer[] levels,
+            @NonNull SuperCompression superCompression) throws IOException {
+        serializeLevels(Channels.newChannel(out), levels, superCompression);
+    }
+
+    /**
+     * Writes the mip-levels to the channel, as {@link #serializeLevels(Path, ImageBuffer[], SuperCompression)} -
+     * the channel is not closed. If the channel is not a {@link SeekableByteChannel} the compressed data is kept in
+     * memory until the header has been written.
+     * 
+     * @param channel
+     * @param levels
+     * @param superCompression
+     * @throws IOException
+     */
+    public void serializeLevels(@NonNull WritableByteChannel channel, @NonNull ImageBuffer[] levels,
+            @NonNull SuperCompression superCompression) throws IOException {
+        serializeLevels(channel, levels, superCompression, null);
+    }
+
+    /**
+     * Writes the mip-levels, as {@link #serializeLevels(Path, ImageBuffer[], SuperCompression)}, the
+     * supercompression is selected by the policy.
+     * 
+     * @param path
+     * @param levels
+     * @param policy
+     * @throws IOException
+     */
+    public void serializeLevels(@NonNull Path path, @NonNull ImageBuffer[] levels, @NonNull CompressionPolicy policy)
+            throws IOException {
+        try (FileChannel out = open(path)) {
+            serializeLevels(out, levels, policy);
+        }
+    }
+
+    /**
+     * Writes the mip-levels to the channel, as {@link #serializeLevels(Path, ImageBuffer[], SuperCompression)}, the
+     * supercompression is selected by the policy - the channel is not closed.
+     * 
+     * @param channel
+     * @param levels
+     * @param policy
+     * @throws IOException
+     */
+    public void serializeLevels(@NonNull WritableByteChannel channel, @NonNull ImageBuffer[] levels,
+            @NonNull CompressionPolicy policy) throws IOException {
+        serializeLevels(channel, levels, SuperCompression.None, policy);
+    }
+
+    private void serializeLevels(WritableByteChannel channel, ImageBuffer[] levels, SuperCompression superCompression,
+            CompressionPolicy policy) throws IOException {
+        checkLevels(levels);
+        ImageBuffer base = levels[0];
+        ByteBuffer[][] levelData = new ByteBuffer[levels.length][];
+        for (int level = 0; level < levels.length; level++) {
+            levelData[level] = new ByteBuffer[] { levels[level].getBuffer() };
+        }
+        KeyValueData metaData = createMetadata(new ImageBuffer[] { base });
+        Settings settings = new Settings(base.format, base.layerCount, base.faceCount, levels.length, base.width,
+                base.height, base.depth, superCompression, policy);
+        writeKTX(channel, metaData, settings, levelData);
+    }
+
+    /**
+     * Encodes the mip-levels to UASTC and writes them as a Basis Universal texture, with VK_FORMAT_UNDEFINED and the
+     * UASTC color model, as used by the glTF KHR_texture_basisu extension. Use {@link SuperCompression#ZStandard}
+     * for glTF. The texture can be read using {@link KTXHeader}, that transcodes the levels when they are fetched.
+     * 
+     * @param path
+     * @param levels The 8 bit levels, base level at index 0, as for
+     * {@link #serializeLevels(Path, ImageBuffer[], SuperCompression)}. The data is sRGB if the format is sRGB and
+     * has alpha if the format has 4 channels.
+     * @param encoder The encoder, its quality and rate distortion optimization are used for all levels
+     * @param superCompression The supercompression scheme to use, None or a scheme with a registered
+     * {@link SuperCompressionCodec}
+     * @throws IOException
+     * @throws IllegalArgumentException If the levels does not match or are not 8 bit images
+     */
+    public void serializeUASTC(@NonNull Path path, @NonNull ImageBuffer[] levels, @NonNull UASTCEncoder encoder,
+            @NonNull SuperCompression superCompression) throws IOException {
+        try (FileChannel out = open(path)) {
+            serializeUASTC(out, levels, encoder, superCompression);
+        }
+    }
+
+    /**
+     * Writes the mip-levels to the channel as UASTC, as
+     * {@link #serializeUASTC(Path, ImageBuffer[], UASTCEncoder, SuperCompression)} - the channel is not closed.
+     * 
+     * @param channel
+     * @param levels
+     * @param encoder
+     * @param superCompression
+     * @throws IOException
+     */
+    public void serializeUASTC(@NonNull WritableByteChannel channel, @NonNull ImageBuffer[] levels,
+            @NonNull UASTCEncoder encoder, @NonNull SuperCompression superCompression) throws IOException {
+        checkLevels(levels);
+        ImageBuffer base = levels[0];
+        ImageBuffer[] encoded = new ImageBuffer[levels.length];
+        ByteBuffer[][] levelData = new ByteBuffer[levels.length][];
+        try {
+            for (int level = 0; level < levels.length; level++) {
+                encoded[level] = encoder.encodeUASTC(levels[level]);
+                levelData[level] = new ByteBuffer[] { encoded[level].getBuffer() };
+            }
+            int dfdChannel = base.format.typeSize >= 4 ? KHR_DF_CHANNEL_UASTC_RGBA : KHR_DF_CHANNEL_UASTC_RGB;
+            Settings settings = new Settings(encoded[0].format, base.layerCount, base.faceCount, levels.length,
+                    base.width, base.height, base.depth, superCompression, null, dfdChannel);
+            writeKTX(channel, createMetadata(new ImageBuffer[] { base }), settings, levelData);
+        } finally {
+            for (ImageBuffer buffer : encoded) {
+                if (buffer != null) {
+                    buffer.destroy();
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that format, layer and face count of the levels match the base level and that each level is half the
+     * size of the previous level
+     */
+    private void checkLevels(ImageBuffer[] levels) {
+        ImageBuffer base = levels[0];
+        for (int level = 0; level < levels.length; level++) {
+            ImageBuffer buffer = levels[level];
+            if (buffer.format != base.format || buffer.layerCount != base.layerCount
+                    || buffer.faceCount != base.faceCount || buffer.width != Math.max(1, base.width >> level)
+                    || buffer.height != Math.max(1, base.height >> level)
+                    || Math.max(1, buffer.depth) != Math.max(1, base.depth >> level)) {
+                throw new IllegalArgumentException("INVALID VALUE, level " + level + " does not match base level, "
+                        + buffer.format + ", " + buffer.width + " x " + buffer.height + ", layers "
+                        + buffer.layerCount + ", faces " + buffer.faceCount);
+            }
+        }
+    }
+
+    /**
+     * Enables the image index, when enabled {@link SuperCompression#ZLIB} level data is written with a full flush
+     * after each layer, face and z-slice. The compressed offset of each image is stored in the metadata using the
+     * key {@link KTX#IMAGE_OFFSETS_KEY}, so that one face can be inflated without inflating the whole level, see
+     * {@link KTXHeader#getImage(int, int, int)}. Files are still valid KTX2 and can be read by any reader.
+     * The full flushes make the data slightly larger and the level data is compressed in memory before writing.
+     * 
+     * @param enabled
+     */
+    public void setImageIndex(boolean enabled) {
+        imageIndex = enabled;
+    }
+
+    /**
+     * Returns the supercompression selected by the {@link CompressionPolicy} for the last serialized file, with the
+     * measured ratio and throughput, or null if the last file was not serialized using a policy.
+     * 
+     * @return
+     */
+    public CompressionPolicy.Choice getCompressionChoice() {
+        return compressionChoice;
+    }
+
+    private FileChannel open(Path path) throws IOException {
+        return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Writes the header and the level data, supercompressed using the scheme in settings, the channel is not closed.
+     * levels[0] is the base level, the buffers of each level are written, from position 0 to capacity, in order as
+     * one level. Levels are stored smallest first, each level aligned as returned by
+     * {@link #getLevelAlignment(KTXFormat, SuperCompression)}.
+     * If the channel is seekable the header is reserved and written last, when the size of each level is known, so
+     * that the level data can be streamed to the channel without keeping the compressed data in memory.
+     * Otherwise all levels are compressed before the header is written.
+     */
+    private void writeKTX(@NonNull WritableByteChannel channel, KeyValueData metaData, @NonNull Settings settings,
+            @NonNull ByteBuffer[][] levels) throws IOException {
         System.out.println("Writing KTX data.....");
         if (settings.format == null) {
             throw new IllegalArgumentException("Format is null");
         }
-        ByteBuffer buffer = ByteBuffer
-                .allocateDirect(
-                        HEADER_SIZE + INDEX_SIZE + getDFDSize(settings.getFormat()) + getLevelSize(settings.levelCount)
-                                + getKVDSize(metaData))
-                .order(ByteOrder.LITTLE_ENDIAN);
-        int offset = writeKTXHeader(buffer, metaData, settings, superCompression, zipped.capacity());
-        int zipCount = zipped.remaining();
-        System.out.println("Writing " + zipCount + " bytes of zipped data at offset " + offset);
-        int written = 0;
+        if (levels.length != Math.max(1, settings.levelCount)) {
+            throw new IllegalArgumentException("INVALID VALUE, " + levels.length + " levels for levelCount "
+                    + settings.levelCount);
+        }
+        SuperCompressionCodec codec = null;
+        compressionChoice = null;
+        if (settings.compressionPolicy != null) {
+            ArrayList<ByteBuffer> data = new ArrayList<ByteBuffer>();
+            for (ByteBuffer[] level : levels) {
+                data.addAll(Arrays.asList(level));
+            }
+            compressionChoice = settings.compressionPolicy.select(data.toArray(new ByteBuffer[0]));
+            checkSuperCompression(compressionChoice.candidate.scheme);
+            settings = settings.copy(compressionChoice.candidate.scheme);
+            codec = compressionChoice.candidate.codec;
+        } else if (settings.superCompression != SuperCompression.None) {
+            checkSuperCompression(settings.superCompression);
+            codec = getCodec(settings.superCompression);
+        }
+        boolean indexImages = imageIndex && codec instanceof ZLIBCodec;
+        if (imageIndex && !indexImages) {
+            System.out.println("Image index is only written for " + SuperCompression.ZLIB + ", not for "
+                    + settings.superCompression);
+        }
+        int alignment = getLevelAlignment(settings.getFormat(), settings.superCompression);
+        long[] offsets = new long[levels.length];
+        long[] sizes = new long[levels.length];
+        if (channel instanceof SeekableByteChannel && !indexImages) {
+            int levelOffset = getMipLevelOffset(settings.getFormat(), settings.levelCount, metaData,
+                    settings.superCompression);
+            long end = levelOffset;
+            SeekableByteChannel seekable = (SeekableByteChannel) channel;
+            long start = seekable.position();
+            for (int level = levels.length - 1; level >= 0; level--) {
+                offsets[level] = align(end, alignment);
+                seekable.position(start + end);
+                writePadding(seekable, offsets[level] - end);
+                sizes[level] = writeLevel(seekable, codec, levels[level]);
+                end = offsets[level] + sizes[level];
+            }
+            writeKTXHeader(seekable, start, metaData, settings, offsets, sizes);
+            seekable.position(start + end);
+            System.out.println("Written " + (end - levelOffset) + " bytes of " + settings.superCompression
+                    + " data at offset " + levelOffset);
+        } else {
+            ByteBuffer[][] levelData = new ByteBuffer[levels.length][];
+            String[] imageOffsets = new String[levels.length];
+            for (int level = levels.length - 1; level >= 0; level--) {
+                if (indexImages) {
+                    long[] levelImageOffsets = new long[getImageCount(settings, level)];
+                    levelData[level] = new ByteBuffer[] { ((ZLIBCodec) codec).compressImages(
+                            getImageSize(settings, level), levelImageOffsets, clear(levels[level])) };
+                    StringBuilder sb = new StringBuilder();
+                    for (long imageOffset : levelImageOffsets) {
+                        sb.append(sb.length() > 0 ? "," : "").append(imageOffset);
+                    }
+                    imageOffsets[level] = sb.toString();
+                } else if (codec != null && getSize(levels[level]) > getMaxBufferSize()) {
+                    LevelOutput output = new LevelOutput();
+                    codec.compress(output, clear(levels[level]));
+                    levelData[level] = output.buffers.toArray(new ByteBuffer[0]);
+                } else {
+                    levelData[level] = compressLevel(codec, levels[level]);
+                }
+                for (ByteBuffer data : levelData[level]) {
+                    sizes[level] += data.remaining();
+                }
+            }
+            if (indexImages) {
+                metaData = addKeyValue(metaData, new KeyValue(IMAGE_OFFSETS_KEY, String.join(";", imageOffsets)));
+            }
+            writeKTX(channel, metaData, settings, levelData, sizes);
+        }
+    }
+
+    /**
+     * Writes the header followed by the level data, that is already supercompressed using the scheme in settings.
+     * levelData[0] is the base level and sizes holds the total size of the buffers of each level.
+     */
+    private void writeKTX(@NonNull WritableByteChannel channel, KeyValueData metaData, @NonNull Settings settings,
+            @NonNull ByteBuffer[][] levelData, long[] sizes) throws IOException {
+        int alignment = getLevelAlignment(settings.getFormat(), settings.superCompression);
+        long[] offsets = new long[levelData.length];
+        int levelOffset = getMipLevelOffset(settings.getFormat(), settings.levelCount, metaData,
+                settings.superCompression);
+        long end = levelOffset;
+        for (int level = levelData.length - 1; level >= 0; level--) {
+            offsets[level] = align(end, alignment);
+            end = offsets[level] + sizes[level];
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(levelOffset).order(ByteOrder.LITTLE_ENDIAN);
+        writeKTXHeader(buffer, metaData, settings, offsets, sizes);
         buffer.position(0);
-        written += fc.write(buffer);
-        written += fc.write(zipped);
-        if (written < zipCount + offset) {
-            throw new IllegalArgumentException(
-                    "Did not write all data to FileChannel, " + written + ", should be " + zipCount + offset);
+        long written = writeFully(channel, buffer);
+        for (int level = levelData.length - 1; level >= 0; level--) {
+            written += writePadding(channel, offsets[level] - written);
+            for (ByteBuffer data : levelData[level]) {
+                written += writeFully(channel, data);
+            }
+        }
+        System.out.println("Written " + (end - levelOffset) + " bytes of " + settings.superCompression
+                + " data at offset " + levelOffset);
+    }
+
+    /**
+     * Writes the header at start, after the level data has been written to the reserved space that follows it.
+     */
+    private void writeKTXHeader(SeekableByteChannel channel, long start, KeyValueData metaData,
+            @NonNull Settings settings, long[] offsets, long[] sizes) throws IOException {
+        int levelOffset = getMipLevelOffset(settings.getFormat(), settings.levelCount, metaData,
+                settings.superCompression);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(levelOffset).order(ByteOrder.LITTLE_ENDIAN);
+        writeKTXHeader(buffer, metaData, settings, offsets, sizes);
+        buffer.position(0);
+        channel.position(start);
+        writeFully(channel, buffer);
+    }
+
+    private KeyValueData addKeyValue(KeyValueData metaData, KeyValue keyValue) {
+        KeyValue[] keyValues = metaData != null ? Arrays.copyOf(metaData.keyValues, metaData.keyValues.length + 1)
+                : new KeyValue[1];
+        keyValues[keyValues.length - 1] = keyValue;
+        return new KeyValueData(keyValues);
+    }
+
+    /**
+     * Returns the number of images in a level, one image for each layer, face and z-slice
+     */
+    private int getImageCount(Settings settings, int level) {
+        return Math.max(1, settings.layerCount) * Math.max(1, settings.faceCount)
+                * Math.max(1, settings.depth >> level);
+    }
+
+    /**
+     * Returns the size in bytes of one image, face or z-slice, of a level
+     */
+    private int getImageSize(Settings settings, int level) {
+        return toBufferSize(settings.format.getImageSize(Math.max(1, settings.width >> level),
+                Math.max(1, settings.height >> level)), "image");
+    }
+
+    /**
+     * Returns the total size of the buffers, from position 0 to capacity
+     */
+    private long getSize(ByteBuffer... data) {
+        long size = 0;
+        for (ByteBuffer buffer : data) {
+            size += buffer.capacity();
+        }
+        return size;
+    }
+
+    private ByteBuffer[] clear(ByteBuffer... data) {
+        ByteBuffer[] sources = new ByteBuffer[data.length];
+        for (int i = 0; i < data.length; i++) {
+            sources[i] = data[i].duplicate();
+            sources[i].clear();
+        }
+        return sources;
+    }
+
+    private long writePadding(WritableByteChannel channel, long size) throws IOException {
+        return size > 0 ? writeFully(channel, ByteBuffer.allocate((int) size)) : 0;
+    }
+
+    /**
+     * Returns the level data, the buffers from position 0 to capacity, compressed as one stream using the codec or
+     * as is if codec is null.
+     */
+    private ByteBuffer[] compressLevel(SuperCompressionCodec codec, @NonNull ByteBuffer... data)
+            throws IOException {
+        ByteBuffer[] sources = clear(data);
+        if (codec == null) {
+            return sources;
+        }
+        return new ByteBuffer[] { executor != null ? codec.compress(executor, sources) : codec.compress(sources) };
+    }
+
+    /**
+     * Checks that the supercompression scheme can be written, BasisLZ is not since the supercompression global
+     * data is not serialized.
+     */
+    private static void checkSuperCompression(SuperCompression superCompression) {
+        if (superCompression == SuperCompression.BasisLZ) {
+            throw new IllegalArgumentException("Not implemented for supercompression " + superCompression
+                    + ", supercompression global data is not written");
         }
-        fc.close();
+    }
+
+    /**
+     * Writes one level at the current position of the channel, compressing the buffers, from position 0 to
+     * capacity, as one stream using the codec or as is if codec is null. Returns the number of bytes written.
+     */
+    private long writeLevel(@NonNull WritableByteChannel channel, SuperCompressionCodec codec,
+            @NonNull ByteBuffer... data) throws IOException {
+        long written = 0;
+        long size = getSize(data);
+        if (codec != null && (executor == null || size > getMaxBufferSize())) {
+            written = codec.compress(channel, clear(data));
+        } else {
+            for (ByteBuffer buffer : compressLevel(codec, data)) {
+                written += writeFully(channel, buffer);
+            }
+        }
+        if (codec != null) {
+            System.out.println("Compressed data to " + written + " bytes, from " + size + ", reduction %"
+                    + ((float) (size - written) / Math.max(1, size)) * 100);
+        }
+        return written;
     }
 
     private KeyValueData createMetadata(ImageBuffer[] buffers) {
-        if (buffers[0] instanceof FloatImageBuffer) {
+        ArrayList<BufferHDRProperties> properties = null;
+        BufferHDRProperties first = getProperties(buffers[0]);
+        if (first != null) {
+            properties = new ArrayList<BufferHDRProperties>();
+            properties.add(first);
+            for (int i = 1; i < buffers.length; i++) {
+                properties.add(getProperties(buffers[i]));
+            }
+        }
+        return createMetadata(properties, false);
+    }
+
+    /**
+     * Returns the hdr properties of a float buffer, or of a block compressed buffer encoded from float images,
+     * null if the buffer does not hold hdr images.
+     */
+    private static BufferHDRProperties getProperties(ImageBuffer buffer) {
+        if (buffer instanceof FloatImageBuffer) {
+            return ((FloatImageBufferInfo) buffer.getInfo()).getProperties();
+        }
+        return buffer instanceof BlockImageBuffer ? ((BlockImageBuffer) buffer).getProperties() : null;
+    }
+
+    /**
+     * Creates the metadata from the properties of float buffers, or the unorm range if properties is null.
+     * If fixedWidth is set the values are written with the same number of characters whatever the value.
+     */
+    private KeyValueData createMetadata(List<BufferHDRProperties> bufferProperties, boolean fixedWidth) {
+        if (bufferProperties != null) {
             float min = Float.MAX_VALUE;
             float max = Float.MIN_VALUE;
             double totalMean = 0;
-            for (ImageBuffer ib : buffers) {
-                BufferHDRProperties properties = ((FloatImageBufferInfo) ib.getInfo()).getProperties();
+            for (BufferHDRProperties properties : bufferProperties) {
                 min = Math.min(min, properties.minVal);
                 max = Math.max(max, properties.maxVal);
                 totalMean += properties.getMeanLuminance();
             }
-            float mean = (float) (totalMean / buffers.length);
-
-            KeyValue[] data = new KeyValue[3];
-            data[0] = new KeyValue(METADATA[0], Float.toString(min));
-            data[1] = new KeyValue(METADATA[1], Float.toString(max));
-            data[2] = new KeyValue(METADATA[2], Float.toString(mean));
-            return new KeyValueData(data);
+            return createMetadata(min, max, (float) (totalMean / bufferProperties.size()), fixedWidth);
         } else {
             KeyValue[] data = new KeyValue[2];
             data[0] = new KeyValue(METADATA[0], "0");
@@ -173,10 +1118,27 @@ public class KTXSerializer extends KTX {
         }
     }
 
+    private KeyValueData createMetadata(float min, float max, float mean, boolean fixedWidth) {
+        KeyValue[] data = new KeyValue[3];
+        data[0] = new KeyValue(METADATA[0], toString(min, fixedWidth));
+        data[1] = new KeyValue(METADATA[1], toString(max, fixedWidth));
+        data[2] = new KeyValue(METADATA[2], toString(mean, fixedWidth));
+        return new KeyValueData(data);
+    }
+
+    /**
+     * Returns the value as a string, fixed width values have 9 significant digits so that the float is unchanged
+     * when parsed.
+     */
+    private static String toString(float value, boolean fixedWidth) {
+        return fixedWidth ? String.format(Locale.ROOT, "%15s", String.format(Locale.ROOT, "%+.8e", value))
+                : Float.toString(value);
+    }
+
     private int writeKTXHeader(@NonNull ByteBuffer buffer, KeyValueData metaData, @NonNull Settings settings,
-            @NonNull SuperCompression superCompression, int zippedSize) {
+            long[] offsets, long[] sizes) {
         int position = buffer.position();
-        int offset = writeHeader(buffer, settings, superCompression);
+        int offset = writeHeader(buffer, settings, settings.superCompression);
         if (offset != INDEX_OFFSET) {
             throw new IllegalArgumentException("INVALID VALUE, offset wrong after writing header: " + offset);
         }
@@ -187,12 +1149,12 @@ public class KTXSerializer extends KTX {
             throw new IllegalArgumentException("INVALID VALUE, offset wrong after writing index: " + offset);
         }
         buffer.position(offset);
-        offset += writeLevelIndex(buffer, metaData, settings, zippedSize);
+        offset += writeLevelIndex(buffer, settings, offsets, sizes);
         if (offset != LEVEL_INDEX_OFFSET + getLevelSize(settings.levelCount)) {
             throw new IllegalArgumentException("INVALID VALUE, offset wrong after writing levelindex: " + offset);
         }
         buffer.position(offset);
-        offset += writeDFD(buffer, settings.getFormat());
+        offset += writeDFD(buffer, settings.getFormat(), settings.uastcChannel);
         if (offset != LEVEL_INDEX_OFFSET + getDFDSize(settings.getFormat()) + getLevelSize(settings.levelCount)) {
             throw new IllegalArgumentException("INVALID VALUE, offset wrong after writing dfd: " + offset);
         }
@@ -210,8 +1172,8 @@ public class KTXSerializer extends KTX {
             @NonNull SuperCompression superCompression) {
         buffer.put(FILEIDENTIFIER);
         IntBuffer intBuffer = buffer.asIntBuffer();
-        intBuffer.put(settings.format.value);
-        intBuffer.put(settings.format.typeSize);
+        intBuffer.put(settings.uastcChannel >= 0 ? ImageFormat.VK_FORMAT_UNDEFINED.value : settings.format.value);
+        intBuffer.put(settings.format.isBlockCompressed() ? 1 : settings.format.typeSize);
         intBuffer.put(settings.width);
         intBuffer.put(settings.height);
         intBuffer.put(settings.depth); // depth
@@ -241,36 +1203,46 @@ public class KTXSerializer extends KTX {
         return INDEX_SIZE;
     }
 
-    private int writeLevelIndex(@NonNull ByteBuffer buffer, KeyValueData metaData, @NonNull Settings settings,
-            int zippedSize) {
-        int offset = getMipLevelOffset(settings.getFormat(), 0, metaData);
+    private int writeLevelIndex(@NonNull ByteBuffer buffer, @NonNull Settings settings, long[] offsets,
+            long[] sizes) {
         LongBuffer longBuffer = buffer.asLongBuffer();
-        longBuffer.put(offset);
-        longBuffer.put(zippedSize);
-        long uncompressed = Math.max(1, settings.layerCount) * settings.faceCount * settings.width
-                * Math.max(1, settings.height) * Math.max(1, settings.depth)
-                * settings.format.sizeInBytes;
-        longBuffer.put(uncompressed);
-        System.out.println("Written level index: leveloffset " + offset + ", compressed size " + zippedSize
-                + ", uncompressed size " + uncompressed);
-        return LEVEL_STRUCT_SIZE;
-    }
-
-    private int writeDFD(ByteBuffer buffer, KTXFormat format) {
+        for (int level = 0; level < offsets.length; level++) {
+            longBuffer.put(offsets[level]);
+            longBuffer.put(sizes[level]);
+            long uncompressed = (long) Math.max(1, settings.layerCount) * settings.faceCount
+                    * Math.max(1, settings.depth >> level) * settings.format.getImageSize(
+                            Math.max(1, settings.width >> level), Math.max(1, settings.height >> level));
+            longBuffer.put(uncompressed);
+            System.out.println("Written level index " + level + ": leveloffset " + offsets[level]
+                    + ", compressed size " + sizes[level] + ", uncompressed size " + uncompressed);
+        }
+        return getLevelSize(offsets.length);
+    }
+
+    /**
+     * Writes the DFD of the format, or of UASTC with the format block size and transfer function if uastcChannel is
+     * not -1
+     */
+    private int writeDFD(ByteBuffer buffer, KTXFormat format, int uastcChannel) {
+        ImageFormat imageFormat = ImageFormat.get(format.value);
+        boolean block = format.isBlockCompressed();
         IntBuffer intBuffer = buffer.asIntBuffer();
         intBuffer.put(getDFDSize(format));
         intBuffer.put(0); // descriptorType and vendorId
-        intBuffer.put((short) KTX_VERSION | ((HEADER_SIZE - 4) << 16)); // descriptorBlockSize and version
+        // descriptorBlockSize and version
+        intBuffer.put((short) KTX_VERSION | (getDesriptorBlockSize(format) << 16));
         buffer.position(buffer.position() + 12);
-        buffer.put((byte) 1); // colormode = KHR_DF_MODEL_RGBSDA (= 1)
+        // colormode, KHR_DF_MODEL_RGBSDA (= 1) or the block model
+        buffer.put((byte) (uastcChannel >= 0 ? KHR_DF_MODEL_UASTC : format.colorModel));
         buffer.put((byte) 1); // color primaries KHR_DF_PRIMARIES_BT709 (= 1)
-        buffer.put((byte) 1); // transfer function KHR_DF_TRANSFER_LINEAR (= 1)
+        // transfer function KHR_DF_TRANSFER_LINEAR (= 1) or KHR_DF_TRANSFER_SRGB (= 2)
+        buffer.put((byte) (imageFormat.isSRGB() ? 2 : 1));
         buffer.put((byte) 0); // flags
+        buffer.put((byte) (imageFormat.getBlockWidth() - 1)); // texelblockdimension
+        buffer.put((byte) (imageFormat.getBlockHeight() - 1)); // texelblockdimension
         buffer.put((byte) 0); // texelblockdimension
         buffer.put((byte) 0); // texelblockdimension
-        buffer.put((byte) 0); // texelblockdimension
-        buffer.put((byte) 0); // texelblockdimension
-        buffer.put((byte) 0); // bytesPlane
+        buffer.put((byte) (block ? format.sizeInBytes : 0)); // bytesPlane
         buffer.put((byte) 0); // bytesPlane
         buffer.put((byte) 0); // bytesPlane
         buffer.put((byte) 0); // bytesPlane
@@ -278,11 +1250,14 @@ public class KTXSerializer extends KTX {
         buffer.put((byte) 0); // bytesPlane
         buffer.put((byte) 0); // bytesPlane
         buffer.put((byte) 0); // bytesPlane
+        int sampleBits = block ? format.sizeInBytes * 8 / format.typeSize : 0;
         for (int i = 0; i < format.typeSize; i++) {
-            buffer.put((byte) 0); // bit offset
-            buffer.put((byte) 0); // bit offset
-            buffer.put((byte) 0); // bit length
-            buffer.put(format.dataType); // channelType
+            buffer.putShort((short) (i * sampleBits)); // bit offset
+            buffer.put((byte) Math.max(0, sampleBits - 1)); // bit length
+            // channelType, alpha is always linear
+            int channel = uastcChannel >= 0 ? uastcChannel : format.getChannel(i);
+            buffer.put((byte) (format.dataType | channel
+                    | (channel == KHR_DF_CHANNEL_ETC2_ALPHA ? DATATYPE_LINEAR : 0)));
             buffer.put((byte) 0); // sample position
             buffer.put((byte) 0); // sample position
             buffer.put((byte) 0); // sample position
@@ -321,46 +1296,4 @@ public class KTXSerializer extends KTX {
         return 0;
     }
 
-    private byte[] compressData(ByteBuffer... data) throws IOException {
-        int size = 0;
-        for (ByteBuffer buffer : data) {
-            size += buffer.capacity();
-        }
-        byte[] result = new byte[size];
-        int offset = 0;
-        for (ByteBuffer buffer : data) {
-            buffer.position(0);
-            buffer.get(result, offset, buffer.capacity());
-            offset += buffer.capacity();
-        }
-        return compressData(result);
-
-    }
-
-    private byte[] compressData(byte[]... data) throws IOException {
-        int size = 0;
-        for (byte[] array : data) {
-            size += array.length;
-        }
-        byte[] result = new byte[size];
-        int index = 0;
-        for (byte[] array : data) {
-            System.arraycopy(array, 0, result, index, array.length);
-            index += array.length;
-        }
-        return compressData(result);
-    }
-
-    private byte[] compressData(byte[] data) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
-        Deflater deflater = new Deflater();
-        deflater.setLevel(Deflater.BEST_COMPRESSION);
-        // deflater.setStrategy(Deflater.FILTERED);
-        DeflaterOutputStream zip = new DeflaterOutputStream(baos, deflater);
-        zip.write(data);
-        zip.flush();
-        zip.close();
-        return baos.toByteArray();
-    }
-
 }
@@ -0,0 +1,392 @@
+package org.ktximageio.ktx;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.HalfFloatImageBuffer.FP16Convert;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Generates the mip chain of an image buffer using a separable filter.
+ * Each level is downsampled from the previous level, the images (layers and faces) of a level, and bands of rows
+ * within each image, are filtered in parallel using the executor.
+ * Supported formats are 32 and 16 bit float formats and 8 bit unorm formats, 8 bit sRGB formats are filtered in
+ * linear space.
+ *
+ */
+public class MipmapGenerator {
+
+    /**
+     * Number of output rows filtered by one task
+     */
+    public static final int BAND_HEIGHT = 64;
+
+    public enum Filter {
+        /**
+         * Average of the source pixels covered by the destination pixel
+         */
+        BOX(0.5f),
+        /**
+         * Kaiser windowed sinc, alpha 4, same as used by the NVIDIA texture tools
+         */
+        KAISER(3f),
+        /**
+         * Lanczos windowed sinc with 3 lobes
+         */
+        LANCZOS(3f);
+
+        private static final float KAISER_ALPHA = 4f;
+
+        /**
+         * The filter is zero outside -radius to radius, in destination pixels
+         */
+        public final float radius;
+
+        Filter(float r) {
+            radius = r;
+        }
+
+        /**
+         * Returns the filter weight at distance x, in destination pixels, from the center of the destination pixel.
+         *
+         * @param x
+         * @return
+         */
+        public float getWeight(float x) {
+            x = Math.abs(x);
+            if (x >= radius && this != BOX) {
+                return 0;
+            }
+            switch (this) {
+                case BOX:
+                    return x <= radius ? 1f : 0f;
+                case KAISER:
+                    float t = x / radius;
+                    return (float) (sinc(x) * bessel0(KAISER_ALPHA * Math.sqrt(1 - t * t)) / bessel0(KAISER_ALPHA));
+                case LANCZOS:
+                    return (float) (sinc(x) * sinc(x / radius));
+                default:
+                    throw new IllegalArgumentException("Not implemented for filter " + this);
+            }
+        }
+
+        private static double sinc(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            double px = Math.PI * x;
+            return Math.sin(px) / px;
+        }
+
+        private static double bessel0(double x) {
+            // Power series of the zero order modified Bessel function of the first kind
+            double sum = 1;
+            double term = 1;
+            double halfX = x / 2;
+            for (int k = 1; k < 32 && term > sum * 1e-12; k++) {
+                term *= (halfX / k) * (halfX / k);
+                sum += term;
+            }
+            return sum;
+        }
+    }
+
+    /**
+     * How pixel data is stored
+     */
+    private enum Storage {
+        FLOAT32,
+        FLOAT16,
+        UNORM8;
+
+        static Storage get(ImageFormat format) {
+            if (format.typeSize <= 0) {
+                return null;
+            }
+            if (format.isFloatFormat()) {
+                return format.sizeInBytes == format.typeSize * 4 ? FLOAT32
+                        : format.sizeInBytes == format.typeSize * 2 ? FLOAT16 : null;
+            }
+            return format.sizeInBytes == format.typeSize ? UNORM8 : null;
+        }
+    }
+
+    /**
+     * Filter weights for one axis, source index and weight for each tap of each destination pixel
+     */
+    private static class Weights {
+        final int[][] indexes;
+        final float[][] weights;
+
+        Weights(Filter filter, int sourceSize, int destinationSize) {
+            indexes = new int[destinationSize][];
+            weights = new float[destinationSize][];
+            float scale = Math.max(1f, (float) sourceSize / destinationSize);
+            float support = filter.radius * scale;
+            for (int d = 0; d < destinationSize; d++) {
+                float center = (d + 0.5f) * sourceSize / destinationSize;
+                int first = (int) Math.floor(center - support);
+                int last = (int) Math.ceil(center + support);
+                ArrayList<Integer> tapIndexes = new ArrayList<Integer>();
+                ArrayList<Float> tapWeights = new ArrayList<Float>();
+                float total = 0;
+                for (int s = first; s <= last; s++) {
+                    float weight = filter.getWeight((s + 0.5f - center) / scale);
+                    if (weight != 0) {
+                        tapIndexes.add(Math.max(0, Math.min(sourceSize - 1, s)));
+                        tapWeights.add(weight);
+                        total += weight;
+                    }
+                }
+                indexes[d] = new int[tapIndexes.size()];
+                weights[d] = new float[tapIndexes.size()];
+                for (int i = 0; i < indexes[d].length; i++) {
+                    indexes[d][i] = tapIndexes.get(i);
+                    weights[d][i] = tapWeights.get(i) / total;
+                }
+            }
+        }
+    }
+
+    private final Filter filter;
+    private final Executor executor;
+
+    /**
+     * Creates a generator using the common ForkJoinPool
+     *
+     * @param filter
+     */
+    public MipmapGenerator(@NonNull Filter filter) {
+        this(filter, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Creates a generator
+     *
+     * @param filter The filter used when downsampling
+     * @param executor Executor that runs the filter tasks
+     */
+    public MipmapGenerator(@NonNull Filter filter, @NonNull Executor executor) {
+        this.filter = filter;
+        this.executor = executor;
+    }
+
+    /**
+     * Returns the number of levels in a full mip chain, down to 1 x 1 pixel
+     *
+     * @param width
+     * @param height
+     * @return
+     */
+    public static int getLevelCount(int width, int height) {
+        return 32 - Integer.numberOfLeadingZeros(Math.max(1, Math.max(width, height)));
+    }
+
+    /**
+     * Generates the mip-levels of the base image, all layers and faces of the base image are downsampled.
+     * Each level is half the size of the previous level, but never less than 1.
+     *
+     * @param base The base level
+     * @param levelCount Number of levels to return including the base level, 1 to
+     * {@link #getLevelCount(int, int)}
+     * @return The levels, the base buffer is returned at index 0
+     * @throws IllegalArgumentException If the format of the base image is not supported, the image is a 3D
+     * texture or levelCount is invalid
+     */
+    public ImageBuffer[] generate(@NonNull ImageBuffer base, int levelCount) {
+        Storage storage = Storage.get(base.format);
+        if (storage == null) {
+            throw new IllegalArgumentException("Not implemented for format " + base.format);
+        }
+        if (base.depth > 1) {
+            throw new IllegalArgumentException("Not implemented for 3D textures");
+        }
+        if (levelCount < 1 || levelCount > getLevelCount(base.width, base.height)) {
+            throw new IllegalArgumentException("INVALID VALUE, levelCount " + levelCount + " for size "
+                    + base.width + ", " + base.height);
+        }
+        ImageBuffer[] levels = new ImageBuffer[levelCount];
+        levels[0] = base;
+        int images = base.getImageCount();
+        int channels = base.format.typeSize;
+        boolean srgb = base.format.isSRGB();
+        ByteBuffer source = base.getBuffer().duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        float[][] current = new float[images][];
+        for (int i = 0; i < images; i++) {
+            current[i] = read(source, i * base.getImageSizeInBytes(), base.width * base.height * channels, storage,
+                    srgb, channels);
+        }
+        int width = base.width;
+        int height = base.height;
+        for (int level = 1; level < levelCount; level++) {
+            int levelWidth = Math.max(1, base.width >> level);
+            int levelHeight = Math.max(1, base.height >> level);
+            System.out.println("Generating level " + level + ", " + levelWidth + " x " + levelHeight + " using "
+                    + filter);
+            Weights horizontal = new Weights(filter, width, levelWidth);
+            Weights vertical = new Weights(filter, height, levelHeight);
+            int imageSize = levelWidth * levelHeight * base.format.sizeInBytes;
+            ByteBuffer destination = ByteBuffer.allocateDirect(imageSize * images).order(ByteOrder.LITTLE_ENDIAN);
+            float[][] next = new float[images][levelWidth * levelHeight * channels];
+            ArrayList<CompletableFuture<Void>> tasks = new ArrayList<CompletableFuture<Void>>();
+            for (int i = 0; i < images; i++) {
+                for (int row = 0; row < levelHeight; row += BAND_HEIGHT) {
+                    float[] sourceImage = current[i];
+                    float[] destinationImage = next[i];
+                    int firstRow = row;
+                    int lastRow = Math.min(levelHeight, row + BAND_HEIGHT);
+                    int sourceWidth = width;
+                    int position = i * imageSize;
+                    tasks.add(CompletableFuture.runAsync(() -> {
+                        filter(sourceImage, sourceWidth, destinationImage, levelWidth, firstRow, lastRow, channels,
+                                horizontal, vertical);
+                        write(destinationImage, firstRow * levelWidth * channels,
+                                (lastRow - firstRow) * levelWidth * channels, destination, position, storage, srgb,
+                                channels);
+                    }, executor));
+                }
+            }
+            CompletableFuture.allOf(tasks.toArray(new CompletableFuture<?>[0])).join();
+            levels[level] = createBuffer(destination, base, levelWidth, levelHeight);
+            current = next;
+            width = levelWidth;
+            height = levelHeight;
+        }
+        return levels;
+    }
+
+    private ImageBuffer createBuffer(ByteBuffer data, ImageBuffer base, int width, int height) {
+        ImageBuffer buffer = null;
+        if (base.format.isFloatFormat()) {
+            buffer = ImageBuffer.createFloatBuffer(data, base.format, base.layerCount, base.faceCount,
+                    new int[] { width, height, 0 });
+        } else {
+            buffer = ImageBuffer.create(data, base.format, base.layerCount, base.faceCount, width, height, 0);
+        }
+        buffer.setOwner(new SharedBuffer(data));
+        return buffer;
+    }
+
+    /**
+     * Filters the destination rows firstRow to lastRow, the source rows covered by the vertical filter are first
+     * filtered horizontally.
+     */
+    private static void filter(float[] source, int sourceWidth, float[] destination, int width, int firstRow,
+            int lastRow, int channels, Weights horizontal, Weights vertical) {
+        int minRow = Integer.MAX_VALUE;
+        int maxRow = 0;
+        for (int y = firstRow; y < lastRow; y++) {
+            for (int index : vertical.indexes[y]) {
+                minRow = Math.min(minRow, index);
+                maxRow = Math.max(maxRow, index);
+            }
+        }
+        int rowSize = width * channels;
+        float[] rows = new float[(maxRow - minRow + 1) * rowSize];
+        for (int y = minRow; y <= maxRow; y++) {
+            int sourceRow = y * sourceWidth * channels;
+            int rowOffset = (y - minRow) * rowSize;
+            for (int x = 0; x < width; x++) {
+                int[] indexes = horizontal.indexes[x];
+                float[] weights = horizontal.weights[x];
+                for (int c = 0; c < channels; c++) {
+                    float sum = 0;
+                    for (int t = 0; t < indexes.length; t++) {
+                        sum += source[sourceRow + indexes[t] * channels + c] * weights[t];
+                    }
+                    rows[rowOffset + x * channels + c] = sum;
+                }
+            }
+        }
+        for (int y = firstRow; y < lastRow; y++) {
+            int[] indexes = vertical.indexes[y];
+            float[] weights = vertical.weights[y];
+            int destinationRow = y * rowSize;
+            for (int i = 0; i < rowSize; i++) {
+                float sum = 0;
+                for (int t = 0; t < indexes.length; t++) {
+                    sum += rows[(indexes[t] - minRow) * rowSize + i] * weights[t];
+                }
+                destination[destinationRow + i] = sum;
+            }
+        }
+    }
+
+    private static float[] read(ByteBuffer source, int position, int count, Storage storage, boolean srgb,
+            int channels) {
+        float[] result = new float[count];
+        switch (storage) {
+            case FLOAT32:
+                for (int i = 0; i < count; i++) {
+                    result[i] = source.getFloat(position + i * Float.BYTES);
+                }
+                break;
+            case FLOAT16:
+                short[] halfFloats = new short[count];
+                for (int i = 0; i < count; i++) {
+                    halfFloats[i] = source.getShort(position + i * Short.BYTES);
+                }
+                result = FP16Convert.expandFP16(halfFloats);
+                break;
+            case UNORM8:
+                for (int i = 0; i < count; i++) {
+                    float value = (source.get(position + i) & 0x0ff) / 255f;
+                    result[i] = srgb && !isAlpha(i, channels) ? toLinear(value) : value;
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not implemented for " + storage);
+        }
+        return result;
+    }
+
+    private static void write(float[] source, int offset, int count, ByteBuffer destination, int position,
+            Storage storage, boolean srgb, int channels) {
+        int start = position + offset * (storage == Storage.FLOAT32 ? Float.BYTES
+                : storage == Storage.FLOAT16 ? Short.BYTES : 1);
+        switch (storage) {
+            case FLOAT32:
+                for (int i = 0; i < count; i++) {
+                    destination.putFloat(start + i * Float.BYTES, source[offset + i]);
+                }
+                break;
+            case FLOAT16:
+                FP16Convert convert = new FP16Convert(new short[count]);
+                for (int i = 0; i < count; i++) {
+                    convert.convert(source[offset + i]);
+                }
+                for (int i = 0; i < count; i++) {
+                    destination.putShort(start + i * Short.BYTES, convert.result[i]);
+                }
+                break;
+            case UNORM8:
+                for (int i = 0; i < count; i++) {
+                    float value = source[offset + i];
+                    value = srgb && !isAlpha(i, channels) ? toSRGB(value) : value;
+                    destination.put(start + i, (byte) Math.round(Math.max(0f, Math.min(1f, value)) * 255));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Not implemented for " + storage);
+        }
+    }
+
+    private static boolean isAlpha(int index, int channels) {
+        return channels == 4 && (index & 3) == 3;
+    }
+
+    private static float toLinear(float srgb) {
+        return srgb <= 0.04045f ? srgb / 12.92f : (float) Math.pow((srgb + 0.055f) / 1.055f, 2.4f);
+    }
+
+    private static float toSRGB(float linear) {
+        linear = Math.max(0f, linear);
+        return linear <= 0.0031308f ? linear * 12.92f : (float) (1.055f * Math.pow(linear, 1 / 2.4f) - 0.055f);
+    }
+
+}
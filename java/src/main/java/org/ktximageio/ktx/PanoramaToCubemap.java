@@ -1,11 +1,23 @@
 package org.ktximageio.ktx;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
 import org.ktximageio.Orientation;
 import org.ktximageio.ktx.FloatImageBuffer.BufferHDRProperties;
 import org.ktximageio.ktx.ImageReader.ImageFormat;
 
 public class PanoramaToCubemap {
 
+    /**
+     * Default max number of faces in memory when creating faces using
+     * {@link #createCubeMapFaces(ImageBuffer, ImageFormat, Executor, int)}
+     */
+    public static final int DEFAULT_MAX_FACES = 3;
+
     public enum Interpolation {
         NEAREST();
     }
@@ -28,6 +40,43 @@ public class PanoramaToCubemap {
      * @return
      */
     public ImageBuffer createCubeMapFace(ImageBuffer input, Orientation face, ImageFormat destFormat) {
+        return createCubeMapFace(input, input.getAsFloatArray(0), face, destFormat);
+    }
+
+    /**
+     * Creates the cubemap faces, in the order of {@link Orientation#values()}, on the executor. Faces are created
+     * ahead of the face returned by the iterator so that the faces can be consumed, for instance compressed using
+     * {@link KTXSerializer#serializeFaces(java.nio.file.Path, Iterator, KTX.SuperCompression)}, while the next
+     * faces are created. At most maxFaces faces are created or in use at the same time, the consumer must be done
+     * with a face when fetching the next face.
+     * The panorama is converted to float once and shared by all faces.
+     * 
+     * @param input The source panorama image
+     * @param destFormat The cubemap destination format
+     * @param executor Executor used to create the faces, for instance
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}
+     * @param maxFaces Max number of faces in memory, 1 creates one face at a time
+     * @return Iterator returning the faces in order
+     */
+    public Iterator<ImageBuffer> createCubeMapFaces(ImageBuffer input, ImageFormat destFormat, Executor executor,
+            int maxFaces) {
+        if (maxFaces < 1) {
+            throw new IllegalArgumentException("INVALID VALUE, maxFaces " + maxFaces);
+        }
+        float[] sourceData = input.getAsFloatArray(0);
+        List<Supplier<ImageBuffer>> tasks = new ArrayList<Supplier<ImageBuffer>>();
+        for (Orientation face : Orientation.values()) {
+            tasks.add(() -> createCubeMapFace(input, sourceData, face, destFormat));
+        }
+        return new PipelinedIterator<ImageBuffer>(tasks, executor, maxFaces);
+    }
+
+    /**
+     * Creates one cubemapface from the panorama, using the panorama pixels as returned by
+     * {@link ImageBuffer#getAsFloatArray(int)}
+     */
+    ImageBuffer createCubeMapFace(ImageBuffer input, float[] sourceData, Orientation face,
+            ImageFormat destFormat) {
         BufferHDRProperties props = null;
         if (input.getFormat() == destFormat) {
             props = new BufferHDRProperties();
@@ -53,7 +102,6 @@ public class PanoramaToCubemap {
         float ftu = faceTransform[face.face][0];
         float ftv = faceTransform[face.face][1];
 
-        float[] sourceData = input.getAsFloatArray(0);
         // For each point in the target image,
         // calculate the corresponding source coordinates.
         float r;
@@ -0,0 +1,212 @@
+package org.ktximageio.ktx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.Adler32;
+import java.util.zip.Deflater;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Deflates data in independent chunks on an executor and writes the result as one zlib stream, the same way as
+ * pigz does.
+ * Each chunk, except the last, is ended with a sync flush so that it ends on a byte boundary, and the deflater of
+ * each chunk is primed with the last 32K of the previous chunk so that matches can reach back into it.
+ * The checksum of the stream is combined from the Adler-32 of each chunk.
+ * The output can be inflated by any zlib reader, compression ratio is close to that of a single deflater.
+ *
+ */
+public class ParallelDeflater {
+
+    /**
+     * Default size of uncompressed chunks
+     */
+    public static final int DEFAULT_CHUNK_SIZE = 128 * 1024;
+    /**
+     * Size of the deflate window, this much of the previous chunk is used as dictionary
+     */
+    public static final int DICTIONARY_SIZE = 32 * 1024;
+
+    private static final int ADLER_BASE = 65521;
+    private static final int ZLIB_HEADER_SIZE = 2;
+    private static final int ADLER_SIZE = 4;
+
+    private final int level;
+    private final int chunkSize;
+    private final Executor executor;
+
+    /**
+     * Creates a deflater using {@link #DEFAULT_CHUNK_SIZE}
+     *
+     * @param level Deflater level, 0 - 9
+     * @param executor Executor that runs the chunk compression
+     */
+    public ParallelDeflater(int level, @NonNull Executor executor) {
+        this(level, DEFAULT_CHUNK_SIZE, executor);
+    }
+
+    /**
+     * Creates a deflater
+     *
+     * @param level Deflater level, 0 - 9
+     * @param chunkSize Size of each uncompressed chunk, must be at least {@link #DICTIONARY_SIZE}
+     * @param executor Executor that runs the chunk compression
+     */
+    public ParallelDeflater(int level, int chunkSize, @NonNull Executor executor) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("INVALID VALUE, level " + level);
+        }
+        if (chunkSize < DICTIONARY_SIZE) {
+            throw new IllegalArgumentException("INVALID VALUE, chunkSize " + chunkSize);
+        }
+        this.level = level;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+    }
+
+    /**
+     * Deflates the remaining bytes of the source as one zlib stream, position of source is moved to limit.
+     *
+     * @param source
+     * @return Buffer with the zlib stream, position is zero and limit is the compressed size
+     * @throws IOException If the data could not be compressed
+     */
+    public @NonNull ByteBuffer deflate(@NonNull ByteBuffer source) throws IOException {
+        int size = source.remaining();
+        int start = source.position();
+        int count = Math.max(1, (size + chunkSize - 1) / chunkSize);
+        List<CompletableFuture<ByteBuffer>> chunks = new ArrayList<CompletableFuture<ByteBuffer>>(count);
+        long[] checksums = new long[count];
+        for (int i = 0; i < count; i++) {
+            int index = i;
+            int offset = start + i * chunkSize;
+            int length = Math.min(chunkSize, size - i * chunkSize);
+            ByteBuffer dictionary = null;
+            if (i > 0) {
+                dictionary = source.duplicate();
+                dictionary.limit(offset).position(offset - DICTIONARY_SIZE);
+            }
+            ByteBuffer chunk = source.duplicate();
+            chunk.limit(offset + length).position(offset);
+            ByteBuffer chunkDictionary = dictionary;
+            chunks.add(CompletableFuture.supplyAsync(() -> {
+                Adler32 adler = new Adler32();
+                adler.update(chunk.duplicate());
+                checksums[index] = adler.getValue();
+                return deflateChunk(chunk, chunkDictionary, index == count - 1);
+            }, executor));
+        }
+        try {
+            CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause()
+                    : new IOException("Could not deflate", e.getCause());
+        }
+        int compressedSize = ZLIB_HEADER_SIZE + ADLER_SIZE;
+        long checksum = 1;
+        for (int i = 0; i < count; i++) {
+            compressedSize += chunks.get(i).join().remaining();
+            checksum = combine(checksum, checksums[i], Math.min(chunkSize, size - i * chunkSize));
+        }
+        ByteBuffer result = ByteBuffer.allocateDirect(compressedSize).order(ByteOrder.LITTLE_ENDIAN);
+        result.put((byte) 0x78);
+        result.put((byte) getHeaderFlags(level));
+        for (int i = 0; i < count; i++) {
+            result.put(chunks.get(i).join());
+        }
+        // Adler-32 is stored big endian
+        result.put((byte) (checksum >>> 24));
+        result.put((byte) (checksum >>> 16));
+        result.put((byte) (checksum >>> 8));
+        result.put((byte) checksum);
+        source.position(source.limit());
+        result.flip();
+        return result;
+    }
+
+    private ByteBuffer deflateChunk(ByteBuffer chunk, ByteBuffer dictionary, boolean last) {
+        int length = chunk.remaining();
+        // Same bound as zlib deflateBound() plus room for the sync flush marker
+        ByteBuffer result = ByteBuffer.allocate(length + (length >> 12) + (length >> 14) + 64);
+        Deflater deflater = new Deflater(level, true);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(chunk);
+            if (last) {
+                deflater.finish();
+                while (!deflater.finished()) {
+                    deflate(deflater, result, Deflater.NO_FLUSH);
+                }
+            } else {
+                while (!deflater.needsInput()) {
+                    deflate(deflater, result, Deflater.NO_FLUSH);
+                }
+                deflate(deflater, result, Deflater.SYNC_FLUSH);
+            }
+        } finally {
+            deflater.end();
+        }
+        result.flip();
+        return result;
+    }
+
+    private void deflate(Deflater deflater, ByteBuffer result, int flush) {
+        if (!result.hasRemaining()) {
+            throw new CompletionException(
+                    new IOException("INVALID STATE, deflated data larger than bound " + result.capacity()));
+        }
+        deflater.deflate(result, flush);
+        if (flush == Deflater.SYNC_FLUSH && !result.hasRemaining()) {
+            // Flush may not be complete when output is full
+            throw new CompletionException(
+                    new IOException("INVALID STATE, deflated data larger than bound " + result.capacity()));
+        }
+    }
+
+    /**
+     * Returns the zlib header FLG byte, compression level bits and check bits for CMF 0x78
+     */
+    private static int getHeaderFlags(int level) {
+        int levelFlags = level < 2 ? 0 : level < 6 ? 1 : level == 6 ? 2 : 3;
+        int flags = levelFlags << 6;
+        return flags + (31 - ((0x78 << 8) + flags) % 31) % 31;
+    }
+
+    /**
+     * Returns the Adler-32 of two sequences combined, as adler32_combine() in zlib.
+     *
+     * @param adler1 Adler-32 of the first sequence
+     * @param adler2 Adler-32 of the second sequence
+     * @param length2 Length of the second sequence
+     * @return
+     */
+    static long combine(long adler1, long adler2, long length2) {
+        long remainder = length2 % ADLER_BASE;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (remainder * sum1) % ADLER_BASE;
+        sum1 += (adler2 & 0xffff) + ADLER_BASE - 1;
+        sum2 += ((adler1 >>> 16) & 0xffff) + ((adler2 >>> 16) & 0xffff) + ADLER_BASE - remainder;
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum1 >= ADLER_BASE) {
+            sum1 -= ADLER_BASE;
+        }
+        if (sum2 >= (ADLER_BASE << 1)) {
+            sum2 -= ADLER_BASE << 1;
+        }
+        if (sum2 >= ADLER_BASE) {
+            sum2 -= ADLER_BASE;
+        }
+        return sum1 | (sum2 << 16);
+    }
+
+}
@@ -0,0 +1,69 @@
+package org.ktximageio.ktx;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Runs tasks on an executor ahead of the consumer and returns the results in task order.
+ * At most maxPending results are created or in use at the same time, including the last result returned - the
+ * consumer must be done with a result when fetching the next one. This bounds the memory used when the results are
+ * large, such as images, while the next results are created at the same time as the current is consumed.
+ *
+ * @param <T>
+ */
+final class PipelinedIterator<T> implements Iterator<T> {
+
+    private final List<Supplier<T>> tasks;
+    private final Executor executor;
+    private final int maxPending;
+    private final ArrayDeque<CompletableFuture<T>> pending = new ArrayDeque<CompletableFuture<T>>();
+    private int submitted;
+    private int returned;
+
+    /**
+     * Creates the iterator, no task is started until the first result is fetched.
+     *
+     * @param tasks The tasks, results are returned in this order
+     * @param executor Executor that runs the tasks
+     * @param maxPending Max number of results created or in use, 1 runs one task at a time
+     */
+    PipelinedIterator(@NonNull List<Supplier<T>> tasks, @NonNull Executor executor, int maxPending) {
+        if (maxPending < 1) {
+            throw new IllegalArgumentException("INVALID VALUE, maxPending " + maxPending);
+        }
+        this.tasks = tasks;
+        this.executor = executor;
+        this.maxPending = maxPending;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return returned < tasks.size();
+    }
+
+    @Override
+    public T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        // The previous result is released so there is room for maxPending, including the one returned
+        while (submitted < tasks.size() && pending.size() < maxPending) {
+            pending.add(CompletableFuture.supplyAsync(tasks.get(submitted++), executor));
+        }
+        returned++;
+        try {
+            return pending.poll().join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+        }
+    }
+
+}
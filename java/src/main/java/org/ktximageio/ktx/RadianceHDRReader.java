@@ -9,6 +9,8 @@ import java.nio.file.StandardOpenOption;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 import org.eclipse.jdt.annotation.NonNull;
 import org.ktximageio.ktx.FloatImageBuffer.BufferHDRProperties;
@@ -39,7 +41,9 @@ public class RadianceHDRReader implements ImageReader {
         private String orientation;
         private int width;
         private int height;
-        private final ByteBuffer fileData;
+        private ByteBuffer fileData;
+        // Owner of fileData if it is mapped by the reader, null if the data is not owned.
+        private SharedBuffer fileOwner;
         private byte[] scanlineBuffer;
         private float maxValue;
         private boolean oldVersion = false;
@@ -98,6 +102,9 @@ public class RadianceHDRReader implements ImageReader {
 
         private byte[] getScanlines() {
             if (scanlineBuffer == null) {
+                if (fileData == null) {
+                    throw new IllegalArgumentException("INVALID STATE, header is destroyed");
+                }
                 scanlineBuffer = new byte[4 * width * height];
                 int destOffset = 0;
                 for (int i = 0; i < height; i++) {
@@ -304,17 +311,55 @@ public class RadianceHDRReader implements ImageReader {
         }
 
         @Override
-        public void destroy() {
+        public synchronized void destroy() {
+            fileData = null;
+            scanlineBuffer = null;
+            if (fileOwner != null) {
+                fileOwner.release();
+                fileOwner = null;
+            }
         }
 
     }
 
+    /**
+     * Maps the file and reads the header, the mapping is released when the header is destroyed.
+     */
     @Override
     public RadianceHeader read(Path filePath) throws IOException {
         System.out.println("URL: " + filePath.toUri().toURL());
-        FileChannel fileChannel = (FileChannel) Files.newByteChannel(filePath, EnumSet.of(StandardOpenOption.READ));
-        ByteBuffer bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
-        return createRadianceHeader(bb, format);
+        try (FileChannel fileChannel = (FileChannel) Files.newByteChannel(filePath,
+                EnumSet.of(StandardOpenOption.READ))) {
+            ByteBuffer bb = fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+            SharedBuffer owner = new SharedBuffer(bb);
+            try {
+                RadianceHeader header = createRadianceHeader(bb, format);
+                header.fileOwner = owner;
+                return header;
+            } catch (RuntimeException e) {
+                owner.release();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Reads the file as {@link ImageReader#readAsync(Path, Executor)}, the direct buffer holding the file data is
+     * released when the header is destroyed.
+     */
+    @Override
+    public CompletableFuture<ImageHeader> readAsync(@NonNull Path filePath, @NonNull Executor executor) {
+        return ImageReader.readFileAsync(filePath).thenApplyAsync(buffer -> {
+            SharedBuffer owner = new SharedBuffer(buffer);
+            try {
+                RadianceHeader header = createRadianceHeader(buffer, format);
+                header.fileOwner = owner;
+                return header;
+            } catch (RuntimeException e) {
+                owner.release();
+                throw e;
+            }
+        }, executor);
     }
 
     @Override
@@ -0,0 +1,312 @@
+package org.ktximageio.ktx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Long indexed buffer made of one or more direct or memory mapped segments, used for level data that is too large
+ * to be held in one {@link ByteBuffer}, see {@link KTX.KTXHeader#getSegmentedLevel(int)} and
+ * {@link KTXSerializer#serialize(java.nio.file.Path, KTX.KeyValueData, KTXSerializer.Settings, SegmentedBuffer...)}.
+ * All segments, except the last, hold the same number of bytes. Use a segment size that is a multiple of the image
+ * or row size, see {@link #getAlignedSegmentSize(long)}, so that each image or row is inside one segment.
+ * The native memory of the segments is released when the buffer is destroyed.
+ *
+ */
+public class SegmentedBuffer implements AutoCloseable {
+
+    private ByteBuffer[] segments;
+    // Owner of each segment, an owner may be null if the memory is not owned by this buffer.
+    private SharedBuffer[] owners;
+    private final long segmentSize;
+    private final long size;
+
+    /**
+     * Creates a buffer of the segments, the buffer releases the reference to each owner when destroyed
+     *
+     * @param segments The segments, all except the last must have a capacity of segmentSize
+     * @param owners Owner of each segment, or null
+     * @param segmentSize Size of the segments
+     */
+    SegmentedBuffer(@NonNull ByteBuffer[] segments, @NonNull SharedBuffer[] owners, long segmentSize) {
+        long total = 0;
+        for (int i = 0; i < segments.length; i++) {
+            if (i < segments.length - 1 ? segments[i].capacity() != segmentSize
+                    : segments[i].capacity() > segmentSize) {
+                throw new IllegalArgumentException("INVALID VALUE, segment " + i + " size "
+                        + segments[i].capacity() + " for segment size " + segmentSize);
+            }
+            total += segments[i].capacity();
+        }
+        this.segments = segments;
+        this.owners = owners;
+        this.segmentSize = segmentSize;
+        this.size = total;
+    }
+
+    /**
+     * Allocates direct segments for size bytes
+     *
+     * @param size Total size in bytes
+     * @param segmentSize Size of each segment, at most {@link KTX#MAX_BUFFER_SIZE}
+     * @return The buffer, position of each segment is 0
+     */
+    public static SegmentedBuffer allocateDirect(long size, long segmentSize) {
+        int count = getSegmentCount(size, segmentSize);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        SharedBuffer[] owners = new SharedBuffer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                long segment = Math.min(segmentSize, size - i * segmentSize);
+                segments[i] = ByteBuffer.allocateDirect(KTX.toBufferSize(segment, "segment"))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                owners[i] = new SharedBuffer(segments[i]);
+            }
+        } catch (RuntimeException | OutOfMemoryError e) {
+            release(owners);
+            throw e;
+        }
+        return new SegmentedBuffer(segments, owners, segmentSize);
+    }
+
+    /**
+     * Maps size bytes of the file, starting at position, one segment at a time. The mapping stays valid after the
+     * channel is closed.
+     *
+     * @param channel
+     * @param mode
+     * @param position Position in the file of the first byte
+     * @param size Number of bytes to map
+     * @param segmentSize Size of each segment, at most {@link KTX#MAX_BUFFER_SIZE}
+     * @return The buffer
+     * @throws IOException If the file could not be mapped
+     */
+    static SegmentedBuffer map(@NonNull FileChannel channel, FileChannel.@NonNull MapMode mode, long position,
+            long size, long segmentSize) throws IOException {
+        int count = getSegmentCount(size, segmentSize);
+        ByteBuffer[] segments = new ByteBuffer[count];
+        SharedBuffer[] owners = new SharedBuffer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                long offset = i * segmentSize;
+                segments[i] = channel.map(mode, position + offset, Math.min(segmentSize, size - offset))
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                owners[i] = new SharedBuffer(segments[i]);
+            }
+        } catch (IOException | RuntimeException e) {
+            release(owners);
+            throw e;
+        }
+        System.out.println("Mapped " + size + " bytes at offset " + position + " in " + count + " segments");
+        return new SegmentedBuffer(segments, owners, segmentSize);
+    }
+
+    /**
+     * Returns the largest multiple of unit that fits in one buffer, or the max buffer size if unit does not fit.
+     *
+     * @param unit Size of an image or row that should not be split between segments
+     * @return The segment size
+     */
+    public static long getAlignedSegmentSize(long unit) {
+        return getAlignedSegmentSize(unit, KTX.MAX_BUFFER_SIZE);
+    }
+
+    /**
+     * Returns the largest multiple of unit that fits in max bytes, or max if unit does not fit.
+     *
+     * @param unit Size of an image or row that should not be split between segments
+     * @param max Max size of one segment, at most {@link KTX#MAX_BUFFER_SIZE}
+     * @return The segment size
+     */
+    static long getAlignedSegmentSize(long unit, long max) {
+        return unit <= 0 || unit > max ? max : max / unit * unit;
+    }
+
+    private static int getSegmentCount(long size, long segmentSize) {
+        if (size < 0 || segmentSize <= 0 || segmentSize > KTX.MAX_BUFFER_SIZE) {
+            throw new IllegalArgumentException("INVALID VALUE, size " + size + ", segment size " + segmentSize);
+        }
+        long count = Math.max(1, (size + segmentSize - 1) / segmentSize);
+        if (count > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("INVALID VALUE, " + count + " segments");
+        }
+        return (int) count;
+    }
+
+    private static void release(SharedBuffer[] owners) {
+        for (SharedBuffer owner : owners) {
+            if (owner != null) {
+                owner.release();
+            }
+        }
+    }
+
+    /**
+     * Returns the total size in bytes
+     *
+     * @return
+     */
+    public long size() {
+        return size;
+    }
+
+    /**
+     * Returns the size of each segment, the last segment may be smaller
+     *
+     * @return
+     */
+    public long getSegmentSize() {
+        return segmentSize;
+    }
+
+    /**
+     * Returns the number of segments
+     *
+     * @return
+     */
+    public int getSegmentCount() {
+        return getSegments().length;
+    }
+
+    /**
+     * Returns the number of bytes from position to the end of the segment that holds position
+     *
+     * @param position
+     * @return
+     */
+    public int getSegmentRemaining(long position) {
+        checkRange(position, 0);
+        return (int) (Math.min(size, (position / segmentSize + 1) * segmentSize) - position);
+    }
+
+    /**
+     * Returns a view of one segment, with position 0 and limit at capacity. The view shall not be used after this
+     * buffer is destroyed.
+     *
+     * @param index
+     * @return
+     */
+    public ByteBuffer getSegment(int index) {
+        ByteBuffer segment = getSegments()[index].duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        segment.clear();
+        return segment;
+    }
+
+    /**
+     * Returns a view of length bytes starting at position, the bytes must be inside one segment. The view shall not
+     * be used after this buffer is destroyed.
+     *
+     * @param position
+     * @param length
+     * @return Buffer with position 0 and capacity length
+     * @throws IllegalArgumentException If the bytes are not inside one segment
+     */
+    public ByteBuffer getView(long position, int length) {
+        checkRange(position, length);
+        int index = (int) (position / segmentSize);
+        int offset = (int) (position - index * segmentSize);
+        ByteBuffer segment = getSegment(index);
+        if (length > segment.capacity() - offset) {
+            throw new IllegalArgumentException("INVALID VALUE, " + length + " bytes at " + position
+                    + " crosses segment boundary, segment size " + segmentSize);
+        }
+        segment.limit(offset + length).position(offset);
+        return segment.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * Returns the byte at position
+     *
+     * @param position
+     * @return
+     */
+    public byte get(long position) {
+        checkRange(position, 1);
+        int index = (int) (position / segmentSize);
+        return getSegments()[index].get((int) (position - index * segmentSize));
+    }
+
+    /**
+     * Copies the bytes starting at position into the remaining bytes of destination, position of destination is
+     * moved to the limit.
+     *
+     * @param position
+     * @param destination
+     * @return This buffer
+     */
+    public SegmentedBuffer get(long position, @NonNull ByteBuffer destination) {
+        checkRange(position, destination.remaining());
+        long current = position;
+        while (destination.hasRemaining()) {
+            int index = (int) (current / segmentSize);
+            ByteBuffer segment = getSegment(index);
+            segment.position((int) (current - index * segmentSize));
+            segment.limit(Math.min(segment.capacity(), segment.position() + destination.remaining()));
+            current += segment.remaining();
+            destination.put(segment);
+        }
+        return this;
+    }
+
+    /**
+     * Copies the remaining bytes of source into this buffer, starting at position. Position of source is moved to
+     * the limit.
+     *
+     * @param position
+     * @param source
+     * @return This buffer
+     */
+    public SegmentedBuffer put(long position, @NonNull ByteBuffer source) {
+        checkRange(position, source.remaining());
+        long current = position;
+        while (source.hasRemaining()) {
+            int index = (int) (current / segmentSize);
+            ByteBuffer segment = getSegment(index);
+            segment.position((int) (current - index * segmentSize));
+            ByteBuffer part = source.duplicate();
+            part.limit(source.position() + Math.min(source.remaining(), segment.remaining()));
+            current += part.remaining();
+            segment.put(part);
+            source.position(part.limit());
+        }
+        return this;
+    }
+
+    private void checkRange(long position, long length) {
+        if (position < 0 || length < 0 || position + length > size) {
+            throw new IllegalArgumentException("INVALID VALUE, " + length + " bytes at " + position + ", size "
+                    + size);
+        }
+    }
+
+    private synchronized ByteBuffer[] getSegments() {
+        if (segments == null) {
+            throw new IllegalArgumentException("INVALID STATE, buffer is destroyed");
+        }
+        return segments;
+    }
+
+    /**
+     * Releases the segments, mapped or direct memory is released at once if not shared. Views of the segments must
+     * not be used after calling this method. Calling this method more than once has no effect.
+     */
+    public synchronized void destroy() {
+        if (owners != null) {
+            release(owners);
+            owners = null;
+        }
+        segments = null;
+    }
+
+    /**
+     * Same as {@link #destroy()}
+     */
+    @Override
+    public void close() {
+        destroy();
+    }
+
+}
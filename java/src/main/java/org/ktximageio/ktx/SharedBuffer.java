@@ -0,0 +1,113 @@
+package org.ktximageio.ktx;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+
+import org.eclipse.jdt.annotation.NonNull;
+
+/**
+ * Reference counted owner of a direct or memory mapped buffer.
+ * The native memory is released when the last reference is released, instead of when the buffer happens to be
+ * garbage collected. Views of the buffer, for instance slices returned in an {@link ImageBuffer}, must retain a
+ * reference for as long as they are used since accessing released memory will crash the VM.
+ * Heap buffers are not released, they are left to the garbage collector.
+ *
+ */
+final class SharedBuffer {
+
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Cannot release direct buffers explicitly, memory is released by GC: " + e);
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    private ByteBuffer buffer;
+    private int references = 1;
+
+    /**
+     * Creates an owner with one reference to the buffer
+     *
+     * @param buffer The buffer as returned by allocateDirect() or map(), not a slice or duplicate
+     */
+    SharedBuffer(@NonNull ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Adds one reference, each call must be matched by a call to {@link #release()}
+     *
+     * @return This owner
+     * @throws IllegalArgumentException If the buffer is already released
+     */
+    synchronized SharedBuffer retain() {
+        if (references <= 0) {
+            throw new IllegalArgumentException("INVALID STATE, buffer is released");
+        }
+        references++;
+        return this;
+    }
+
+    /**
+     * Removes one reference, the native memory is released when there are no more references.
+     */
+    synchronized void release() {
+        if (references <= 0) {
+            return;
+        }
+        if (--references == 0) {
+            free(buffer);
+            buffer = null;
+        }
+    }
+
+    /**
+     * Returns true if the native memory is released
+     *
+     * @return
+     */
+    synchronized boolean isReleased() {
+        return references <= 0;
+    }
+
+    /**
+     * Returns true if native memory can be released explicitly, false if it is left to the garbage collector.
+     * This requires access to sun.misc.Unsafe, from the jdk.unsupported module.
+     */
+    static boolean isExplicitRelease() {
+        return INVOKE_CLEANER != null;
+    }
+
+    /**
+     * Releases the native memory of a direct or mapped buffer, the buffer and all views of it must not be accessed
+     * after this call.
+     *
+     * @param buffer Buffer as returned by allocateDirect() or map(), not a slice or duplicate
+     */
+    static void free(ByteBuffer buffer) {
+        if (buffer == null || !buffer.isDirect() || INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invoke(UNSAFE, buffer);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            System.out.println("Could not release buffer: " + e);
+        }
+    }
+
+}
@@ -0,0 +1,140 @@
+package org.ktximageio.ktx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.KTX.SuperCompression;
+
+/**
+ * Compresses and decompresses KTX level data for one supercompression scheme.
+ * The codec used for a scheme is fetched using {@link KTX#getCodec(SuperCompression)} and may be replaced using
+ * {@link KTX#registerCodec(SuperCompressionCodec)}.
+ * Codecs are shared and must be threadsafe.
+ *
+ */
+public interface SuperCompressionCodec {
+
+    /**
+     * Returns the supercompression scheme that this codec implements
+     *
+     * @return
+     */
+    @NonNull
+    SuperCompression getScheme();
+
+    /**
+     * Compresses the remaining bytes of the sources, in order, as one stream.
+     * Position of the sources are moved to limit.
+     *
+     * @param sources
+     * @return Buffer with the compressed data, position is zero and limit is the compressed size
+     * @throws IOException If the data could not be compressed
+     */
+    @NonNull
+    ByteBuffer compress(@NonNull ByteBuffer... sources) throws IOException;
+
+    /**
+     * Compresses the remaining bytes of the sources, in order, as one stream - codecs that can split the work may
+     * use the executor to compress in parallel. The result must be possible to decompress using
+     * {@link #decompress(ByteBuffer, ByteBuffer)}.
+     * Default implementation calls {@link #compress(ByteBuffer...)} on the calling thread.
+     *
+     * @param executor
+     * @param sources
+     * @return Buffer with the compressed data, position is zero and limit is the compressed size
+     * @throws IOException If the data could not be compressed
+     */
+    @NonNull
+    default ByteBuffer compress(@NonNull Executor executor, @NonNull ByteBuffer... sources) throws IOException {
+        return compress(sources);
+    }
+
+    /**
+     * Compresses the remaining bytes of the sources, in order, as one stream and writes the compressed data to the
+     * channel. Codecs that can produce output incrementally should override this to avoid keeping the whole
+     * compressed stream in memory.
+     * Default implementation calls {@link #compress(ByteBuffer...)} and writes the result.
+     *
+     * @param channel
+     * @param sources
+     * @return Number of bytes written to the channel
+     * @throws IOException If the data could not be compressed or written
+     */
+    default long compress(@NonNull WritableByteChannel channel, @NonNull ByteBuffer... sources) throws IOException {
+        return KTX.writeFully(channel, compress(sources));
+    }
+
+    /**
+     * Compresses the remaining bytes of each source returned by the iterator, in order, as one stream and writes
+     * the compressed data to the channel. {@link Iterator#next()} is not called until the previous source has been
+     * consumed, so that the producer may release or reuse it. Codecs that can consume the sources one at a time
+     * should override this so that the sources do not all have to be in memory at the same time.
+     * Default implementation copies each source before fetching the next, and then calls
+     * {@link #compress(WritableByteChannel, ByteBuffer...)} with the copies.
+     *
+     * @param channel
+     * @param sources
+     * @return Number of bytes written to the channel
+     * @throws IOException If the data could not be compressed or written
+     */
+    default long compress(@NonNull WritableByteChannel channel, @NonNull Iterator<ByteBuffer> sources)
+            throws IOException {
+        ArrayList<ByteBuffer> copies = new ArrayList<ByteBuffer>();
+        try {
+            while (sources.hasNext()) {
+                ByteBuffer source = sources.next();
+                ByteBuffer copy = ByteBuffer.allocateDirect(source.remaining());
+                copies.add(copy);
+                copy.put(source).flip();
+            }
+            return compress(channel, copies.toArray(new ByteBuffer[0]));
+        } finally {
+            for (ByteBuffer copy : copies) {
+                SharedBuffer.free(copy);
+            }
+        }
+    }
+
+    /**
+     * Decompresses source into the remaining bytes of destination, the whole remaining size must be filled.
+     * Position of destination is moved past the decompressed data.
+     *
+     * @param source Compressed data, from position to limit
+     * @param destination
+     * @return Number of decompressed bytes
+     * @throws DataFormatException If the data could not be decompressed or did not fill destination
+     */
+    int decompress(@NonNull ByteBuffer source, @NonNull ByteBuffer destination) throws DataFormatException;
+
+    /**
+     * Decompresses source into the whole destination, used for levels that are larger than one buffer.
+     * Codecs that can decompress across segments should override this.
+     * Default implementation calls {@link #decompress(ByteBuffer, ByteBuffer)} if source and destination both have
+     * one segment.
+     *
+     * @param source Compressed data
+     * @param destination
+     * @return Number of decompressed bytes
+     * @throws DataFormatException If the data could not be decompressed, did not fill destination or is segmented
+     */
+    default long decompress(@NonNull SegmentedBuffer source, @NonNull SegmentedBuffer destination)
+            throws DataFormatException {
+        if (source.getSegmentCount() != 1 || destination.getSegmentCount() != 1) {
+            throw new DataFormatException("Not implemented for segmented data, " + getScheme());
+        }
+        ByteBuffer output = destination.getSegment(0);
+        int decompressed = decompress(source.getSegment(0), output);
+        if (decompressed != destination.size()) {
+            throw new DataFormatException("INVALID VALUE, Not decompressed whole level " + decompressed + " of "
+                    + destination.size());
+        }
+        return decompressed;
+    }
+
+}
@@ -8,14 +8,16 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
 
 import org.ktximageio.CommandLineApp;
 import org.ktximageio.Options;
 import org.ktximageio.Options.Option;
 import org.ktximageio.Options.OptionResolver;
-import org.ktximageio.Orientation;
 import org.ktximageio.ktx.ImageReader.ImageFormat;
 import org.ktximageio.ktx.ImageReader.MimeFormat;
+import org.ktximageio.ktx.KTX.SuperCompression;
 import org.ktximageio.output.TonemappWindow.WindowListener;
 
 /**
@@ -87,15 +89,18 @@ public class ToKTX2 extends CommandLineApp implements WindowListener {
             exit("Invalid number of infiles");
         }
         PanoramaToCubemap ptc = new PanoramaToCubemap();
-        ImageBuffer[] buffers = new ImageBuffer[6];
-        int index = 0;
         ImageBuffer input = readInputImage(null, infiles[0]);
         ImageFormat format = input.getFormat().isFloatFormat() ? ImageFormat.VK_FORMAT_R16G16B16_SFLOAT
                 : ImageFormat.VK_FORMAT_R8G8B8_UNORM;
-        for (Orientation orientation : Orientation.values()) {
-            buffers[index++] = ptc.createCubeMapFace(input, orientation, format);
+        // Faces are compressed and released while the next faces are created
+        Iterator<ImageBuffer> faces = ptc.createCubeMapFaces(input, format, ForkJoinPool.commonPool(),
+                PanoramaToCubemap.DEFAULT_MAX_FACES);
+        try {
+            new KTXSerializer().serializeFaces(Paths.get(outfile), faces, SuperCompression.ZLIB);
+        } catch (IOException e) {
+            e.printStackTrace();
+            exit("Error writing to " + outfile);
         }
-        writeOutputImage(outfile, buffers);
     }
 
     private void displayKTX(String outfile) throws IOException {
@@ -117,7 +122,7 @@ public class ToKTX2 extends CommandLineApp implements WindowListener {
     }
 
     private void writeOutputImage(String outfile, ImageBuffer... buffers) {
-        KTXSerializer serializer = new KTXSerializer();
+        KTXSerializer serializer = new KTXSerializer(ForkJoinPool.commonPool());
         try {
             serializer.serializeFaces(Paths.get(outfile), buffers);
         } catch (IOException e) {
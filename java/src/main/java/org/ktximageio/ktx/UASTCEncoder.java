@@ -0,0 +1,635 @@
+package org.ktximageio.ktx;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.ImageReader.ImageFormat;
+
+/**
+ * Encoder for UASTC, the Basis Universal format with 4 x 4 texel blocks of 16 bytes that is transcoded to BC7, ETC2,
+ * ASTC or RGBA when loaded, see {@link BasisTranscoder}. UASTC has no Vulkan format, so no format is supported by
+ * {@link #encode(ImageBuffer, ImageFormat)} - use
+ * {@link KTXSerializer#serializeUASTC(java.nio.file.Path, ImageBuffer[], UASTCEncoder, KTX.SuperCompression)} to
+ * write the KTX2 files used by the glTF KHR_texture_basisu extension.
+ * Blocks of one color use the solid mode (8), opaque blocks the one subset (0) and two subset (2) RGB modes and
+ * blocks with alpha the one subset (10 and 12) and two subset (9) RGBA modes.
+ * {@link BlockEncoder.Quality#FAST} uses the one subset modes with 4 bit weights, {@link BlockEncoder.Quality#NORMAL}
+ * tries all modes and partition patterns and {@link BlockEncoder.Quality#HIGH} refines the endpoints more.
+ * The transcoding hints are conservative, BC1 and EAC hints are not used and the ETC1 intensity tables are estimated
+ * from the luminance range of each half of the block.
+ * With rate distortion optimization each block may be replaced by one of the previous blocks in the same tile, if
+ * that increases the RMS error by at most the lambda, so that the supercompression finds more matches.
+ */
+public class UASTCEncoder extends BlockEncoder {
+
+    /**
+     * Number of previous blocks, in the same tile, that are tried when rate distortion optimization is enabled
+     */
+    public static final int RDO_WINDOW = 32;
+
+    private static final int BLOCK_SIZE = 16;
+    /**
+     * The number of bytes, at the end of the block, that are copied from a previous block with the same mode when
+     * rate distortion optimization is enabled - the last 8 bytes hold weights and endpoint bits only.
+     */
+    private static final int[] RDO_COPY_SIZES = { 16, 8, 4 };
+    private static final int[] RGB_MODES = { 0, 2 };
+    private static final int[] RGBA_MODES = { 10, 12, 9 };
+    private static final int[] SINGLE_SUBSET = new int[16];
+    /**
+     * The endpoint value, of each endpoint range, that is closest to each 8 bit value
+     */
+    private static final int[][] QUANTIZATION = createQuantization();
+
+    private final float rdoLambda;
+
+    private static final class Encoding {
+        private int mode;
+        private int pattern;
+        private final int[] endpoints = new int[16];
+        private final int[] weights = new int[16];
+        private long error = Long.MAX_VALUE;
+
+        private void set(int m, int p, int[] e, int[] w, long err) {
+            mode = m;
+            pattern = p;
+            System.arraycopy(e, 0, endpoints, 0, e.length);
+            System.arraycopy(w, 0, weights, 0, w.length);
+            error = err;
+        }
+    }
+
+    /**
+     * Creates an encoder with {@link BlockEncoder.Quality#NORMAL} and without rate distortion optimization
+     *
+     * @param executor
+     */
+    public UASTCEncoder(@NonNull Executor executor) {
+        this(executor, Quality.NORMAL, 0);
+    }
+
+    /**
+     * Creates an encoder without rate distortion optimization
+     *
+     * @param executor Executor for the tiles
+     * @param quality
+     */
+    public UASTCEncoder(@NonNull Executor executor, @NonNull Quality quality) {
+        this(executor, quality, 0);
+    }
+
+    /**
+     * Creates an encoder
+     *
+     * @param executor Executor for the tiles
+     * @param quality
+     * @param rdoLambda The largest increase of the RMS error of a block, in 8 bit units, when the block is replaced by
+     * a previous block - 0 to disable rate distortion optimization
+     */
+    public UASTCEncoder(@NonNull Executor executor, @NonNull Quality quality, float rdoLambda) {
+        super(executor, quality);
+        if (!(rdoLambda >= 0)) {
+            throw new IllegalArgumentException("INVALID VALUE, rdoLambda " + rdoLambda);
+        }
+        this.rdoLambda = rdoLambda;
+    }
+
+    @Override
+    public boolean isSupported(@NonNull ImageFormat format) {
+        return false;
+    }
+
+    /**
+     * Encodes all layers, faces and depth slices of the source to UASTC. The returned buffer has the block layout of
+     * VK_FORMAT_ASTC_4x4_UNORM_BLOCK, or the SRGB format for sRGB sources, but holds UASTC blocks.
+     *
+     * @param source The images to encode, the source is not destroyed
+     * @return The encoded images
+     * @throws IllegalArgumentException If the source is a float or block compressed format
+     */
+    BlockImageBuffer encodeUASTC(@NonNull ImageBuffer source) {
+        if (source.format.isFloatFormat()) {
+            throw new IllegalArgumentException("INVALID VALUE, UASTC needs 8 bit images, not " + source.format);
+        }
+        ImageFormat format = source.format.isSRGB() ? ImageFormat.VK_FORMAT_ASTC_4x4_SRGB_BLOCK
+                : ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK;
+        BlockImageBuffer result = encodeImages(source, format);
+        if (rdoLambda > 0) {
+            try {
+                optimize(source, result);
+            } catch (RuntimeException e) {
+                result.destroy();
+                throw e;
+            }
+        }
+        return result;
+    }
+
+    @Override
+    protected void encodeBlock(float[] texels, ImageFormat format, byte[] block) {
+        int[] rgba = new int[64];
+        boolean constant = true;
+        boolean opaque = true;
+        for (int i = 0; i < rgba.length; i++) {
+            rgba[i] = Math.round(Math.max(0, Math.min(1, texels[i])) * 255);
+            constant &= rgba[i] == rgba[i & 3];
+            opaque &= (i & 3) != 3 || rgba[i] == 255;
+        }
+        long[] bits = new long[2];
+        if (constant) {
+            packSolid(rgba, bits);
+        } else {
+            int[] modes = opaque ? RGB_MODES : RGBA_MODES;
+            int modeCount = quality == Quality.FAST ? 1 : modes.length;
+            int refinements = quality == Quality.FAST ? 1 : quality == Quality.NORMAL ? 2 : 4;
+            Encoding best = new Encoding();
+            for (int m = 0; m < modeCount && best.error > 0; m++) {
+                int mode = modes[m];
+                int patterns = BasisTranscoder.UASTC_SUBSETS[mode] > 1 ? BasisTranscoder.UASTC_PATTERNS2.length : 1;
+                for (int p = 0; p < patterns && best.error > 0; p++) {
+                    fit(mode, p, rgba, refinements, best);
+                }
+            }
+            pack(best, rgba, bits);
+        }
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            block[i] = (byte) (bits[i >> 3] >>> ((i & 7) * 8));
+        }
+    }
+
+    /**
+     * Fits the endpoints and weights of each subset using the mode and partition pattern, the result is stored in
+     * best if the error is less than the error of best.
+     */
+    private void fit(int mode, int patternIndex, int[] rgba, int refinements, Encoding best) {
+        int subsets = BasisTranscoder.UASTC_SUBSETS[mode];
+        int components = BasisTranscoder.UASTC_COMPONENTS[mode];
+        int range = BasisTranscoder.UASTC_ENDPOINT_RANGES[mode];
+        int weightBits = BasisTranscoder.UASTC_WEIGHT_BITS[mode];
+        int[] pattern = subsets > 1 ? BasisTranscoder.UASTC_PATTERNS2[patternIndex] : SINGLE_SUBSET;
+        int[] anchors = BasisTranscoder.getAnchors(pattern, subsets);
+        int[] weightValues = ASTCFormat.WEIGHT_UNQUANTIZATION[ASTCFormat.WEIGHT_QUANT[weightBits - 1]];
+        int levels = 1 << weightBits;
+        int[] endpoints = new int[subsets * components * 2];
+        int[] weights = new int[16];
+        int[] candidate = new int[components * 2];
+        int[] candidateWeights = new int[16];
+        long error = 0;
+        for (int subset = 0; subset < subsets; subset++) {
+            float[] line = principalEndpoints(rgba, pattern, subset, components);
+            long subsetError = Long.MAX_VALUE;
+            for (int i = 0; i <= refinements; i++) {
+                for (int c = 0; c < components * 2; c++) {
+                    int value = Math.round(Math.max(0, Math.min(255, line[(c & 1) * 4 + (c >> 1)])));
+                    candidate[c] = QUANTIZATION[range][value];
+                }
+                long candidateError = selectWeights(rgba, pattern, subset, components, range, weightValues,
+                        candidate, candidateWeights);
+                if (candidateError < subsetError) {
+                    subsetError = candidateError;
+                    System.arraycopy(candidate, 0, endpoints, subset * components * 2, candidate.length);
+                    for (int texel = 0; texel < 16; texel++) {
+                        weights[texel] = pattern[texel] == subset ? candidateWeights[texel] : weights[texel];
+                    }
+                }
+                if (candidateError == 0 || i == refinements
+                        || !leastSquares(rgba, pattern, subset, components, weightValues, candidateWeights, line)) {
+                    break;
+                }
+            }
+            // The most significant weight bit of the anchor texel is not stored and must be 0
+            if (weights[anchors[subset]] >= levels / 2) {
+                for (int c = 0; c < components; c++) {
+                    int index = subset * components * 2 + c * 2;
+                    int endpoint = endpoints[index];
+                    endpoints[index] = endpoints[index + 1];
+                    endpoints[index + 1] = endpoint;
+                }
+                for (int texel = 0; texel < 16; texel++) {
+                    weights[texel] = pattern[texel] == subset ? levels - 1 - weights[texel] : weights[texel];
+                }
+            }
+            error += subsetError;
+            if (error >= best.error) {
+                return;
+            }
+        }
+        best.set(mode, patternIndex, endpoints, weights, error);
+    }
+
+    /**
+     * Returns the endpoints at the ends of the principal axis of the texels in the subset, as two RGBA values
+     */
+    private float[] principalEndpoints(int[] rgba, int[] pattern, int subset, int components) {
+        float[] mean = new float[4];
+        int count = 0;
+        for (int i = 0; i < 16; i++) {
+            if (pattern[i] == subset) {
+                for (int c = 0; c < components; c++) {
+                    mean[c] += rgba[i * 4 + c];
+                }
+                count++;
+            }
+        }
+        for (int c = 0; c < components; c++) {
+            mean[c] /= count;
+        }
+        float[] covariance = new float[16];
+        for (int i = 0; i < 16; i++) {
+            if (pattern[i] == subset) {
+                for (int c = 0; c < components; c++) {
+                    for (int d = 0; d < components; d++) {
+                        covariance[c * 4 + d] += (rgba[i * 4 + c] - mean[c]) * (rgba[i * 4 + d] - mean[d]);
+                    }
+                }
+            }
+        }
+        float[] axis = new float[] { 1, 1, 1, 1 };
+        for (int iteration = 0; iteration < 8; iteration++) {
+            float[] next = new float[4];
+            float length = 0;
+            for (int c = 0; c < components; c++) {
+                for (int d = 0; d < components; d++) {
+                    next[c] += covariance[c * 4 + d] * axis[d];
+                }
+                length += next[c] * next[c];
+            }
+            if (length == 0) {
+                break;
+            }
+            length = (float) Math.sqrt(length);
+            for (int c = 0; c < components; c++) {
+                axis[c] = next[c] / length;
+            }
+        }
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int i = 0; i < 16; i++) {
+            if (pattern[i] == subset) {
+                float t = 0;
+                for (int c = 0; c < components; c++) {
+                    t += (rgba[i * 4 + c] - mean[c]) * axis[c];
+                }
+                min = Math.min(min, t);
+                max = Math.max(max, t);
+            }
+        }
+        float[] line = new float[8];
+        for (int c = 0; c < components; c++) {
+            line[c] = mean[c] + axis[c] * min;
+            line[4 + c] = mean[c] + axis[c] * max;
+        }
+        return line;
+    }
+
+    /**
+     * Selects the weight of each texel in the subset that gives the smallest error and returns the total error
+     */
+    private long selectWeights(int[] rgba, int[] pattern, int subset, int components, int range, int[] weightValues,
+            int[] endpoints, int[] weights) {
+        int[] colors = new int[weightValues.length * components];
+        for (int c = 0; c < components; c++) {
+            int e0 = ASTCFormat.COLOR_UNQUANTIZATION[range][endpoints[c * 2]];
+            int e1 = ASTCFormat.COLOR_UNQUANTIZATION[range][endpoints[c * 2 + 1]];
+            for (int w = 0; w < weightValues.length; w++) {
+                colors[w * components + c] = interpolate(e0, e1, weightValues[w]);
+            }
+        }
+        long error = 0;
+        for (int i = 0; i < 16; i++) {
+            if (pattern[i] == subset) {
+                int best = Integer.MAX_VALUE;
+                for (int w = 0; w < weightValues.length; w++) {
+                    int texelError = 0;
+                    for (int c = 0; c < components; c++) {
+                        int difference = colors[w * components + c] - rgba[i * 4 + c];
+                        texelError += difference * difference;
+                    }
+                    if (texelError < best) {
+                        best = texelError;
+                        weights[i] = w;
+                    }
+                }
+                error += best;
+            }
+        }
+        return error;
+    }
+
+    /**
+     * Updates the endpoints with the least squares fit of the texels in the subset using the weights, returns false
+     * if the weights do not give a unique solution.
+     */
+    private boolean leastSquares(int[] rgba, int[] pattern, int subset, int components, int[] weightValues,
+            int[] weights, float[] line) {
+        float aa = 0;
+        float ab = 0;
+        float bb = 0;
+        float[] av = new float[4];
+        float[] bv = new float[4];
+        for (int i = 0; i < 16; i++) {
+            if (pattern[i] == subset) {
+                float t = weightValues[weights[i]] / 64f;
+                aa += (1 - t) * (1 - t);
+                ab += (1 - t) * t;
+                bb += t * t;
+                for (int c = 0; c < components; c++) {
+                    av[c] += (1 - t) * rgba[i * 4 + c];
+                    bv[c] += t * rgba[i * 4 + c];
+                }
+            }
+        }
+        float determinant = aa * bb - ab * ab;
+        if (Math.abs(determinant) < 1e-6f) {
+            return false;
+        }
+        for (int c = 0; c < components; c++) {
+            line[c] = (bb * av[c] - ab * bv[c]) / determinant;
+            line[4 + c] = (aa * bv[c] - ab * av[c]) / determinant;
+        }
+        return true;
+    }
+
+    /**
+     * Writes the block, mode, hints, partition pattern, endpoints and weights
+     */
+    private static void pack(Encoding encoding, int[] rgba, long[] bits) {
+        int mode = encoding.mode;
+        int position = put(bits, 0, BasisTranscoder.UASTC_MODE_CODES[mode][0],
+                BasisTranscoder.UASTC_MODE_CODES[mode][1]);
+        position = putHints(bits, position, mode, rgba);
+        int subsets = BasisTranscoder.UASTC_SUBSETS[mode];
+        if (subsets > 1) {
+            position = put(bits, position, encoding.pattern, 5);
+        }
+        int count = subsets * BasisTranscoder.UASTC_COMPONENTS[mode] * 2;
+        position = putEndpoints(bits, position, BasisTranscoder.UASTC_ENDPOINT_RANGES[mode], encoding.endpoints,
+                count);
+        int[] pattern = subsets > 1 ? BasisTranscoder.UASTC_PATTERNS2[encoding.pattern] : SINGLE_SUBSET;
+        int[] anchors = BasisTranscoder.getAnchors(pattern, subsets);
+        int weightBits = BasisTranscoder.UASTC_WEIGHT_BITS[mode];
+        for (int i = 0; i < 16; i++) {
+            position = put(bits, position, encoding.weights[i], weightBits - (anchors[pattern[i]] == i ? 1 : 0));
+        }
+    }
+
+    /**
+     * Writes the transcoding hints, the ETC1 blocks are not flipped, use differential colors and the intensity
+     * tables that cover the luminance range of each half of the block. BC1 hints, ETC1 bias and EAC hints are 0.
+     */
+    private static int putHints(long[] bits, int position, int mode, int[] rgba) {
+        position += BasisTranscoder.UASTC_BC1_HINTS[mode];
+        position = put(bits, position, 0, 1);
+        position = put(bits, position, 1, 1);
+        position = put(bits, position, getETC1Intensity(rgba, 0), 3);
+        position = put(bits, position, getETC1Intensity(rgba, 2), 3);
+        position += BasisTranscoder.UASTC_ETC1_BIAS[mode] * 5;
+        return position + (mode >= BasisTranscoder.UASTC_FIRST_ALPHA_MODE ? 8 : 0);
+    }
+
+    /**
+     * Returns the smallest ETC1 intensity table that covers the luminance of the two columns starting at x
+     */
+    private static int getETC1Intensity(int[] rgba, int x) {
+        int[] luminance = new int[8];
+        int mean = 0;
+        for (int i = 0; i < 8; i++) {
+            int texel = ((i >> 1) * 4 + x + (i & 1)) * 4;
+            luminance[i] = (rgba[texel] + rgba[texel + 1] + rgba[texel + 2]) / 3;
+            mean += luminance[i];
+        }
+        mean /= 8;
+        int deviation = 0;
+        for (int value : luminance) {
+            deviation = Math.max(deviation, Math.abs(value - mean));
+        }
+        for (int table = 0; table < ETC2Format.MODIFIERS.length; table++) {
+            if (ETC2Format.MODIFIERS[table][1] >= deviation) {
+                return table;
+            }
+        }
+        return ETC2Format.MODIFIERS.length - 1;
+    }
+
+    /**
+     * Writes a solid block, the hints are the differential ETC1 block with 5 bit color, intensity table and pixel
+     * index that is closest to the color.
+     */
+    private static void packSolid(int[] rgba, long[] bits) {
+        int position = put(bits, 0, BasisTranscoder.UASTC_MODE_CODES[BasisTranscoder.UASTC_MODE_SOLID][0],
+                BasisTranscoder.UASTC_MODE_CODES[BasisTranscoder.UASTC_MODE_SOLID][1]);
+        for (int c = 0; c < 4; c++) {
+            position = put(bits, position, rgba[c], 8);
+        }
+        int bestError = Integer.MAX_VALUE;
+        int[] best = new int[5];
+        int[] color = new int[3];
+        for (int table = 0; table < ETC2Format.MODIFIERS.length; table++) {
+            for (int index = 0; index < 4; index++) {
+                int modifier = ETC2Format.MODIFIERS[table][index];
+                int error = 0;
+                for (int c = 0; c < 3; c++) {
+                    int channelError = Integer.MAX_VALUE;
+                    for (int base = 0; base < 32; base++) {
+                        int value = Math.max(0, Math.min(255, ((base << 3) | (base >> 2)) + modifier));
+                        if (Math.abs(value - rgba[c]) < channelError) {
+                            channelError = Math.abs(value - rgba[c]);
+                            color[c] = base;
+                        }
+                    }
+                    error += channelError * channelError;
+                }
+                if (error < bestError) {
+                    bestError = error;
+                    best = new int[] { table, index, color[0], color[1], color[2] };
+                }
+            }
+        }
+        position = put(bits, position, 1, 1);
+        position = put(bits, position, best[0], 3);
+        position = put(bits, position, best[1], 2);
+        for (int c = 0; c < 3; c++) {
+            position = put(bits, position, best[2 + c], 5);
+        }
+    }
+
+    /**
+     * Writes the endpoint values, first the packed trits or quints as one number per 5 trits or 3 quints, then the
+     * bits of each value
+     */
+    private static int putEndpoints(long[] bits, int position, int quantization, int[] endpoints, int count) {
+        int range = ASTCFormat.ISE_RANGES[quantization];
+        int digits = range % 3 == 0 ? 3 : range % 5 == 0 ? 5 : 0;
+        int n = 31 - Integer.numberOfLeadingZeros(digits == 0 ? range : range / digits);
+        if (digits > 0) {
+            int group = digits == 3 ? 5 : 3;
+            for (int first = 0; first < count; first += group) {
+                int size = Math.min(group, count - first);
+                int packed = 0;
+                for (int i = size - 1; i >= 0; i--) {
+                    packed = packed * digits + (endpoints[first + i] >> n);
+                }
+                position = put(bits, position, packed, BasisTranscoder.getPackedBits(digits, size));
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            position = put(bits, position, endpoints[i] & ((1 << n) - 1), n);
+        }
+        return position;
+    }
+
+    /**
+     * Replaces blocks by one of the previous blocks in the same tile if the RMS error increases by at most the
+     * lambda, each tile is optimized as a separate task.
+     */
+    private void optimize(ImageBuffer source, BlockImageBuffer blocks) {
+        long start = System.currentTimeMillis();
+        int blocksX = (source.width + 3) / 4;
+        int blocksY = (source.height + 3) / 4;
+        int imageSize = blocksX * blocksY * BLOCK_SIZE;
+        AtomicInteger replaced = new AtomicInteger();
+        for (int index = 0; index < source.getImageCount(); index++) {
+            float[] texels = source.getAsFloatArray(index);
+            int offset = index * imageSize;
+            runTiles(executor, blocksX, blocksY, (startX, startY, endX, endY) -> replaced.addAndGet(optimizeTile(
+                    texels, source.format.typeSize, source.width, source.height, blocks.getBuffer().duplicate(),
+                    offset, blocksX, startX, startY, endX, endY)));
+        }
+        System.out.println("Rate distortion optimized UASTC, replaced " + replaced.get() + " of "
+                + blocksX * blocksY * source.getImageCount() + " blocks with lambda " + rdoLambda + " in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    private int optimizeTile(float[] texels, int channels, int width, int height, ByteBuffer blocks, int offset,
+            int blocksX, int startX, int startY, int endX, int endY) {
+        List<byte[]> window = new ArrayList<byte[]>();
+        int[] rgba = new int[64];
+        int[] decoded = new int[64];
+        int replaced = 0;
+        for (int by = startY; by < endY; by++) {
+            for (int bx = startX; bx < endX; bx++) {
+                int index = 0;
+                for (int y = 0; y < 4; y++) {
+                    int row = Math.min(by * 4 + y, height - 1) * width;
+                    for (int x = 0; x < 4; x++) {
+                        int source = (row + Math.min(bx * 4 + x, width - 1)) * channels;
+                        for (int c = 0; c < 4; c++) {
+                            float texel = c < channels ? texels[source + c] : c == 3 ? 1 : 0;
+                            rgba[index++] = Math.round(Math.max(0, Math.min(1, texel)) * 255);
+                        }
+                    }
+                }
+                int position = offset + (by * blocksX + bx) * BLOCK_SIZE;
+                byte[] block = new byte[BLOCK_SIZE];
+                blocks.position(position);
+                blocks.get(block);
+                int match = -1;
+                for (int i = 0; i < window.size() && match < 0; i++) {
+                    match = Arrays.equals(window.get(i), block) ? i : -1;
+                }
+                if (match < 0) {
+                    double rms = Math.sqrt(getError(block, rgba, decoded) / 64.0) + rdoLambda;
+                    long limit = (long) (rms * rms * 64);
+                    byte[] best = getReplacement(block, window, rgba, decoded, limit);
+                    if (best != null) {
+                        block = best;
+                        blocks.position(position);
+                        blocks.put(block);
+                        replaced++;
+                        for (int i = 0; i < window.size() && match < 0; i++) {
+                            match = Arrays.equals(window.get(i), block) ? i : -1;
+                        }
+                    }
+                }
+                // The window holds the most recently used blocks last
+                if (match >= 0) {
+                    window.remove(match);
+                }
+                window.add(block);
+                if (window.size() > RDO_WINDOW) {
+                    window.remove(0);
+                }
+            }
+        }
+        return replaced;
+    }
+
+    /**
+     * Returns the block with the most bytes copied from a block in the window that has an error less than or equal
+     * to limit, or null if there is none. Only whole blocks are copied if the mode differs.
+     */
+    private static byte[] getReplacement(byte[] block, List<byte[]> window, int[] rgba, int[] decoded, long limit) {
+        int mode = BasisTranscoder.getUASTCMode(block, 0);
+        for (int size : RDO_COPY_SIZES) {
+            byte[] best = null;
+            long bestError = limit;
+            for (int i = window.size() - 1; i >= 0; i--) {
+                byte[] previous = window.get(i);
+                if (size < BLOCK_SIZE && (mode < 0 || BasisTranscoder.getUASTCMode(previous, 0) != mode)) {
+                    continue;
+                }
+                byte[] candidate = block.clone();
+                System.arraycopy(previous, BLOCK_SIZE - size, candidate, BLOCK_SIZE - size, size);
+                long error = getError(candidate, rgba, decoded);
+                if (error <= bestError) {
+                    bestError = error;
+                    best = candidate;
+                }
+            }
+            if (best != null) {
+                return best;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the sum of the squared differences of the decoded block and the texels
+     */
+    private static long getError(byte[] block, int[] rgba, int[] decoded) {
+        BasisTranscoder.decodeUASTCBlock(block, 0, decoded);
+        long error = 0;
+        for (int i = 0; i < rgba.length; i++) {
+            error += (decoded[i] - rgba[i]) * (decoded[i] - rgba[i]);
+        }
+        return error;
+    }
+
+    private static int interpolate(int endpoint0, int endpoint1, int weight) {
+        int e0 = (endpoint0 << 8) | endpoint0;
+        int e1 = (endpoint1 << 8) | endpoint1;
+        return ((e0 * (64 - weight) + e1 * weight + 32) >> 6) >> 8;
+    }
+
+    private static int put(long[] bits, int position, int value, int count) {
+        for (int i = 0; i < count; i++) {
+            if (((value >> i) & 1) != 0) {
+                bits[(position + i) >> 6] |= 1L << ((position + i) & 63);
+            }
+        }
+        return position + count;
+    }
+
+    private static int[][] createQuantization() {
+        int[][] quantization = new int[ASTCFormat.COLOR_UNQUANTIZATION.length][256];
+        for (int range = 0; range < quantization.length; range++) {
+            int[] values = ASTCFormat.COLOR_UNQUANTIZATION[range];
+            for (int value = 0; value < 256; value++) {
+                int best = 0;
+                for (int i = 1; i < values.length; i++) {
+                    if (Math.abs(values[i] - value) < Math.abs(values[best] - value)) {
+                        best = i;
+                    }
+                }
+                quantization[range][value] = best;
+            }
+        }
+        return quantization;
+    }
+
+}
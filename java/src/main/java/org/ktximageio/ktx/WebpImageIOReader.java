@@ -19,8 +19,10 @@ public class WebpImageIOReader extends ImageIOReader {
 
     @Override
     public ImageHeader read(@NonNull Path filePath) throws IOException {
-        ImageInputStream iis = ImageIO.createImageInputStream(new FileInputStream(filePath.toFile()));
-        return super.read(iis, new WebPImageReaderSpi().createReaderInstance());
+        try (FileInputStream stream = new FileInputStream(filePath.toFile())) {
+            ImageInputStream iis = ImageIO.createImageInputStream(stream);
+            return super.read(iis, new WebPImageReaderSpi().createReaderInstance());
+        }
     }
 
     @Override
@@ -0,0 +1,241 @@
+package org.ktximageio.ktx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.KTX.SuperCompression;
+
+/**
+ * Codec for {@link SuperCompression#ZLIB} using the platform {@link Deflater} and {@link java.util.zip.Inflater}
+ *
+ */
+public class ZLIBCodec implements SuperCompressionCodec {
+
+    /**
+     * Size of the buffer used when streaming deflated data to a channel
+     */
+    public static final int STREAM_BUFFER_SIZE = 1 << 16;
+
+    private final int level;
+
+    /**
+     * Creates a codec that compresses using {@link Deflater#BEST_COMPRESSION}
+     */
+    public ZLIBCodec() {
+        this(Deflater.BEST_COMPRESSION);
+    }
+
+    /**
+     * Creates a codec that compresses using the specified level
+     *
+     * @param level Deflater level, 0 - 9
+     */
+    public ZLIBCodec(int level) {
+        if (level < Deflater.NO_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("INVALID VALUE, level " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Returns the deflater level
+     *
+     * @return
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public @NonNull SuperCompression getScheme() {
+        return SuperCompression.ZLIB;
+    }
+
+    @Override
+    public @NonNull ByteBuffer compress(@NonNull ByteBuffer... sources) throws IOException {
+        long size = 0;
+        for (ByteBuffer source : sources) {
+            size += source.remaining();
+        }
+        // Same bound as zlib deflateBound() plus room for the zlib header and checksum
+        ByteBuffer result = ByteBuffer.allocateDirect(KTX.toBufferSize(size + (size >> 12) + (size >> 14) + 64,
+                "compressed")).order(ByteOrder.LITTLE_ENDIAN);
+        Deflater deflater = new Deflater(level);
+        try {
+            for (ByteBuffer source : sources) {
+                deflater.setInput(source);
+                while (!deflater.needsInput()) {
+                    deflate(deflater, result);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(deflater, result);
+            }
+        } finally {
+            deflater.end();
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Compresses the sources as one zlib stream with a full flush at the end of every image, so that each image can
+     * be inflated on its own using a raw {@link java.util.zip.Inflater}, starting at the returned offset.
+     *
+     * @param imageSize Size in bytes of each uncompressed image, the total size of the sources must be a multiple
+     * of imageSize
+     * @param imageOffsets Set to the offset of each image in the compressed data, the length is the number of
+     * images
+     * @param sources
+     * @return Buffer with the compressed data, position is zero and limit is the compressed size
+     * @throws IOException If the data could not be compressed
+     */
+    public @NonNull ByteBuffer compressImages(int imageSize, @NonNull long[] imageOffsets,
+            @NonNull ByteBuffer... sources) throws IOException {
+        long size = 0;
+        for (ByteBuffer source : sources) {
+            size += source.remaining();
+        }
+        if (imageSize <= 0 || size != (long) imageSize * imageOffsets.length) {
+            throw new IllegalArgumentException("INVALID VALUE, size " + size + " is not " + imageOffsets.length
+                    + " images of " + imageSize + " bytes");
+        }
+        // Same bound as compress() plus the flush markers
+        ByteBuffer result = ByteBuffer.allocateDirect(KTX.toBufferSize(size + (size >> 12) + (size >> 14) + 64
+                + imageOffsets.length * 16L, "compressed")).order(ByteOrder.LITTLE_ENDIAN);
+        Deflater deflater = new Deflater(level);
+        try {
+            int image = 0;
+            int remaining = imageSize;
+            for (ByteBuffer source : sources) {
+                while (source.hasRemaining()) {
+                    if (remaining == imageSize) {
+                        imageOffsets[image] = image == 0 ? 2 : result.position();
+                    }
+                    ByteBuffer input = source.duplicate();
+                    input.limit(Math.min(source.limit(), source.position() + remaining));
+                    remaining -= input.remaining();
+                    deflater.setInput(input);
+                    while (!deflater.needsInput()) {
+                        deflate(deflater, result);
+                    }
+                    source.position(input.limit());
+                    if (remaining == 0 && ++image < imageOffsets.length) {
+                        deflater.deflate(result, Deflater.FULL_FLUSH);
+                        if (!result.hasRemaining()) {
+                            throw new IOException("INVALID STATE, deflated data larger than bound "
+                                    + result.capacity());
+                        }
+                        remaining = imageSize;
+                    }
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(deflater, result);
+            }
+        } finally {
+            deflater.end();
+        }
+        result.flip();
+        return result;
+    }
+
+    /**
+     * Streams the deflated data to the channel through a {@link #STREAM_BUFFER_SIZE} buffer, the compressed data is
+     * never held in memory.
+     */
+    @Override
+    public long compress(@NonNull WritableByteChannel channel, @NonNull ByteBuffer... sources) throws IOException {
+        return compress(channel, Arrays.asList(sources).iterator());
+    }
+
+    /**
+     * Streams the deflated data of each source to the channel, the next source is fetched when the deflater has
+     * consumed the previous one.
+     */
+    @Override
+    public long compress(@NonNull WritableByteChannel channel, @NonNull Iterator<ByteBuffer> sources)
+            throws IOException {
+        ByteBuffer output = ByteBuffer.allocateDirect(STREAM_BUFFER_SIZE);
+        Deflater deflater = new Deflater(level);
+        long written = 0;
+        try {
+            while (sources.hasNext()) {
+                ByteBuffer source = sources.next();
+                deflater.setInput(source);
+                while (!deflater.needsInput()) {
+                    deflater.deflate(output);
+                    written += drain(channel, output);
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+                written += drain(channel, output);
+            }
+        } finally {
+            deflater.end();
+            SharedBuffer.free(output);
+        }
+        return written;
+    }
+
+    private long drain(WritableByteChannel channel, ByteBuffer output) throws IOException {
+        output.flip();
+        long written = KTX.writeFully(channel, output);
+        output.clear();
+        return written;
+    }
+
+    /**
+     * Deflates the sources in chunks using {@link ParallelDeflater}, the result is one zlib stream.
+     */
+    @Override
+    public @NonNull ByteBuffer compress(@NonNull Executor executor, @NonNull ByteBuffer... sources)
+            throws IOException {
+        ByteBuffer source = sources.length == 1 ? sources[0] : concatenate(sources);
+        return new ParallelDeflater(level, executor).deflate(source);
+    }
+
+    private ByteBuffer concatenate(ByteBuffer... sources) {
+        long size = 0;
+        for (ByteBuffer source : sources) {
+            size += source.remaining();
+        }
+        ByteBuffer result = ByteBuffer.allocateDirect(KTX.toBufferSize(size, "source"));
+        for (ByteBuffer source : sources) {
+            result.put(source);
+        }
+        result.flip();
+        return result;
+    }
+
+    private void deflate(Deflater deflater, ByteBuffer result) throws IOException {
+        if (!result.hasRemaining()) {
+            throw new IOException("INVALID STATE, deflated data larger than bound " + result.capacity());
+        }
+        deflater.deflate(result);
+    }
+
+    @Override
+    public int decompress(@NonNull ByteBuffer source, @NonNull ByteBuffer destination) throws DataFormatException {
+        return KTX.inflate(source, destination);
+    }
+
+    @Override
+    public long decompress(@NonNull SegmentedBuffer source, @NonNull SegmentedBuffer destination)
+            throws DataFormatException {
+        return KTX.inflate(source, destination);
+    }
+
+}
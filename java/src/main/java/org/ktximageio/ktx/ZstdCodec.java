@@ -0,0 +1,205 @@
+package org.ktximageio.ktx;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+import java.util.zip.DataFormatException;
+
+import org.eclipse.jdt.annotation.NonNull;
+import org.ktximageio.ktx.KTX.SuperCompression;
+import org.ktximageio.zstd.ZstdCompressor;
+import org.ktximageio.zstd.ZstdDecompressor;
+
+/**
+ * Codec for {@link SuperCompression#ZStandard} using the pure Java {@link ZstdCompressor} and
+ * {@link ZstdDecompressor}
+ *
+ */
+public class ZstdCodec implements SuperCompressionCodec {
+
+    private final int level;
+    private final ThreadLocal<ZstdDecompressor> decompressor = ThreadLocal.withInitial(ZstdDecompressor::new);
+
+    /**
+     * Creates a codec that compresses using {@link ZstdCompressor#DEFAULT_LEVEL}, this is the same default level as
+     * used by the Khronos KTX tools.
+     */
+    public ZstdCodec() {
+        this(ZstdCompressor.DEFAULT_LEVEL);
+    }
+
+    /**
+     * Creates a codec that compresses using the specified level
+     *
+     * @param level Compression level, {@link ZstdCompressor#MIN_LEVEL} to {@link ZstdCompressor#MAX_LEVEL}
+     */
+    public ZstdCodec(int level) {
+        if (level < ZstdCompressor.MIN_LEVEL || level > ZstdCompressor.MAX_LEVEL) {
+            throw new IllegalArgumentException("INVALID VALUE, level " + level);
+        }
+        this.level = level;
+    }
+
+    /**
+     * Returns the compression level
+     *
+     * @return
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    @Override
+    public @NonNull SuperCompression getScheme() {
+        return SuperCompression.ZStandard;
+    }
+
+    @Override
+    public @NonNull ByteBuffer compress(@NonNull ByteBuffer... sources) {
+        ByteBuffer source = sources.length == 1 ? sources[0] : concatenate(sources);
+        try {
+            ByteBuffer result = new ZstdCompressor(level).compress(source);
+            return result.order(ByteOrder.LITTLE_ENDIAN);
+        } finally {
+            if (source != sources[0]) {
+                SharedBuffer.free(source);
+            }
+        }
+    }
+
+    /**
+     * Compresses the sources as one frame, or if the total size is larger than one buffer as one frame for each
+     * chunk of half the max buffer size. Each frame is written and released before the next is compressed.
+     */
+    @Override
+    public long compress(@NonNull WritableByteChannel channel, @NonNull ByteBuffer... sources) throws IOException {
+        long size = 0;
+        for (ByteBuffer source : sources) {
+            size += source.remaining();
+        }
+        if (size <= KTX.MAX_BUFFER_SIZE) {
+            return writeFrame(channel, compress(sources));
+        }
+        int frameSize = (int) Math.max(1, KTX.MAX_BUFFER_SIZE / 2);
+        ZstdCompressor compressor = new ZstdCompressor(level);
+        long written = 0;
+        for (ByteBuffer source : sources) {
+            while (source.hasRemaining()) {
+                ByteBuffer chunk = source.duplicate();
+                chunk.limit(chunk.position() + Math.min(chunk.remaining(), frameSize));
+                source.position(chunk.limit());
+                written += writeFrame(channel, compressor.compress(chunk));
+            }
+        }
+        return written;
+    }
+
+    /**
+     * Compresses each source as a separate frame, that is written before the next source is fetched, so that the
+     * sources are not copied or kept in memory.
+     */
+    @Override
+    public long compress(@NonNull WritableByteChannel channel, @NonNull Iterator<ByteBuffer> sources)
+            throws IOException {
+        long written = 0;
+        while (sources.hasNext()) {
+            written += compress(channel, sources.next());
+        }
+        return written;
+    }
+
+    private long writeFrame(WritableByteChannel channel, ByteBuffer frame) throws IOException {
+        try {
+            return KTX.writeFully(channel, frame);
+        } finally {
+            SharedBuffer.free(frame);
+        }
+    }
+
+    private ByteBuffer concatenate(ByteBuffer... sources) {
+        long size = 0;
+        for (ByteBuffer source : sources) {
+            size += source.remaining();
+        }
+        ByteBuffer result = ByteBuffer.allocateDirect(KTX.toBufferSize(size, "source"));
+        for (ByteBuffer source : sources) {
+            result.put(source);
+        }
+        result.flip();
+        return result;
+    }
+
+    @Override
+    public int decompress(@NonNull ByteBuffer source, @NonNull ByteBuffer destination) throws DataFormatException {
+        int expected = destination.remaining();
+        int decompressed = decompressor.get().decompress(source, destination);
+        if (decompressed != expected) {
+            throw new DataFormatException("INVALID VALUE, Not decompressed whole image " + decompressed + " of "
+                    + expected);
+        }
+        return decompressed;
+    }
+
+    /**
+     * Decompresses one frame at a time, frames that cross a source segment, or do not fit in the remaining
+     * destination segment, are copied through a temporary buffer.
+     */
+    @Override
+    public long decompress(@NonNull SegmentedBuffer source, @NonNull SegmentedBuffer destination)
+            throws DataFormatException {
+        ZstdDecompressor zstd = decompressor.get();
+        long input = 0;
+        long output = 0;
+        while (input < source.size()) {
+            ByteBuffer frame = source.getView(input, source.getSegmentRemaining(input));
+            long[] frameSize = zstd.getFrameSize(frame);
+            ByteBuffer copy = null;
+            if (frameSize[0] < 0) {
+                copy = ByteBuffer.allocateDirect((int) Math.min(source.size() - input, KTX.MAX_BUFFER_SIZE));
+                source.get(input, copy);
+                frame = copy.flip();
+                frameSize = zstd.getFrameSize(frame);
+                if (frameSize[0] < 0) {
+                    SharedBuffer.free(copy);
+                    throw new DataFormatException("Not implemented for frames larger than one buffer, at " + input);
+                }
+            }
+            try {
+                frame.limit(frame.position() + (int) frameSize[0]);
+                output += decompressFrame(zstd, frame, frameSize[1], destination, output);
+                input += frameSize[0];
+            } finally {
+                SharedBuffer.free(copy);
+            }
+        }
+        if (output != destination.size()) {
+            throw new DataFormatException("INVALID VALUE, Not decompressed whole level " + output + " of "
+                    + destination.size());
+        }
+        return output;
+    }
+
+    private long decompressFrame(ZstdDecompressor zstd, ByteBuffer frame, long contentSize,
+            SegmentedBuffer destination, long position) throws DataFormatException {
+        if (contentSize < 0 || contentSize > destination.size() - position) {
+            return position < destination.size()
+                    ? zstd.decompress(frame, destination.getView(position, destination.getSegmentRemaining(position)))
+                    : zstd.decompress(frame, ByteBuffer.allocate(0));
+        }
+        if (contentSize <= destination.getSegmentRemaining(position)) {
+            return zstd.decompress(frame, destination.getView(position, (int) contentSize));
+        }
+        ByteBuffer content = ByteBuffer.allocateDirect(KTX.toBufferSize(contentSize, "frame content"));
+        try {
+            int decompressed = zstd.decompress(frame, content);
+            content.flip();
+            destination.put(position, content);
+            return decompressed;
+        } finally {
+            SharedBuffer.free(content);
+        }
+    }
+
+}
@@ -186,9 +186,11 @@ public class SphericalHarmonics {
         faces = Orientation.values();
         for (Orientation face : faces) {
             float[] pixels = cubeMap.getAsFloatArray(face.face);
+            // RGB, or RGBA for decoded 8 bit block compressed cubemaps
+            int channels = pixels.length / (width * cubeMap.height);
             for (int y = 0; y < cubeMap.height; y++) {
                 for (int x = 0; x < width; x++) {
-                    pixelIndex = y * width * 3 + x * 3;
+                    pixelIndex = (y * width + x) * channels;
                     // v = (float) ((width / 2.0 - y) / (width / 2.0)); /* v ranges from -1 to 1 */
                     // u = (float) ((x - width / 2.0) / (width / 2.0)); /* u ranges from -1 to 1 */
                     // r = (float) Math.sqrt(u * u + v * v); /* The "radius" */
@@ -0,0 +1,123 @@
+package org.ktximageio.zstd;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+/**
+ * Reads a Zstandard bitstream backwards, starting with the bit after the end-mark in the last byte.
+ * Source buffer must be in little endian byte order.
+ *
+ */
+final class BitReader {
+
+    static final int UNFINISHED = 0;
+    static final int END_OF_BUFFER = 1;
+    static final int COMPLETED = 2;
+    static final int OVERFLOW = 3;
+
+    private final ByteBuffer source;
+    private final int start;
+    private int position;
+    private long container;
+    private int bitsConsumed;
+
+    /**
+     * Creates a reader for the bitstream at source[start, start + size)
+     *
+     * @param source
+     * @param start
+     * @param size
+     * @throws DataFormatException If the stream is empty or the end-mark is missing
+     */
+    BitReader(ByteBuffer source, int start, int size) throws DataFormatException {
+        if (size < 1) {
+            throw new DataFormatException("Empty bitstream");
+        }
+        int lastByte = source.get(start + size - 1) & 0xff;
+        if (lastByte == 0) {
+            throw new DataFormatException("Missing end-mark in bitstream");
+        }
+        this.source = source;
+        this.start = start;
+        if (size >= Long.BYTES) {
+            position = start + size - Long.BYTES;
+            container = source.getLong(position);
+        } else {
+            position = start;
+            for (int i = 0; i < size; i++) {
+                container |= (source.get(start + i) & 0xffL) << (i << 3);
+            }
+            bitsConsumed = (Long.BYTES - size) << 3;
+        }
+        bitsConsumed += 8 - Zstd.highBit(lastByte);
+    }
+
+    /**
+     * Returns the next bits without consuming them, bits past the start of the stream are read as zero
+     *
+     * @param count Number of bits, max 56 after a call to {@link #reload()}
+     * @return
+     */
+    long peekBits(int count) {
+        if (count == 0 || bitsConsumed >= Long.SIZE) {
+            return 0;
+        }
+        return (container << bitsConsumed) >>> (Long.SIZE - count);
+    }
+
+    /**
+     * Reads and consumes bits
+     *
+     * @param count Number of bits, max 31
+     * @return
+     */
+    int readBits(int count) {
+        int value = (int) peekBits(count);
+        bitsConsumed += count;
+        return value;
+    }
+
+    void skipBits(int count) {
+        bitsConsumed += count;
+    }
+
+    /**
+     * Refills the bit container
+     *
+     * @return Status, one of {@link #UNFINISHED}, {@link #END_OF_BUFFER}, {@link #COMPLETED} or {@link #OVERFLOW}
+     */
+    int reload() {
+        if (bitsConsumed > Long.SIZE) {
+            return OVERFLOW;
+        }
+        if (position >= start + Long.BYTES) {
+            position -= bitsConsumed >>> 3;
+            bitsConsumed &= 7;
+            container = source.getLong(position);
+            return UNFINISHED;
+        }
+        if (position == start) {
+            return bitsConsumed < Long.SIZE ? END_OF_BUFFER : COMPLETED;
+        }
+        int bytes = bitsConsumed >>> 3;
+        int status = UNFINISHED;
+        if (position - bytes < start) {
+            bytes = position - start;
+            status = END_OF_BUFFER;
+        }
+        position -= bytes;
+        bitsConsumed -= bytes << 3;
+        container = source.getLong(position);
+        return status;
+    }
+
+    /**
+     * Returns true if all bits of the stream have been consumed, and no more
+     *
+     * @return
+     */
+    boolean isCompleted() {
+        return position == start && bitsConsumed == Long.SIZE;
+    }
+
+}
@@ -0,0 +1,66 @@
+package org.ktximageio.zstd;
+
+/**
+ * Writes a Zstandard bitstream, the stream is terminated by an end-mark so that it can be read backwards
+ * using {@link BitReader}
+ *
+ */
+final class BitWriter {
+
+    private final byte[] destination;
+    private final int start;
+    private int position;
+    private long container;
+    private int bitCount;
+
+    /**
+     * Creates a writer that stores bytes in destination starting at offset
+     *
+     * @param destination
+     * @param offset
+     */
+    BitWriter(byte[] destination, int offset) {
+        this.destination = destination;
+        this.start = offset;
+        this.position = offset;
+    }
+
+    /**
+     * Appends the lowest bits of value
+     *
+     * @param value
+     * @param count Number of bits, max 32
+     */
+    void addBits(long value, int count) {
+        container |= (value & ((1L << count) - 1)) << bitCount;
+        bitCount += count;
+        if (bitCount >= Integer.SIZE) {
+            flush();
+        }
+    }
+
+    private void flush() {
+        while (bitCount >= Byte.SIZE) {
+            destination[position++] = (byte) container;
+            container >>>= Byte.SIZE;
+            bitCount -= Byte.SIZE;
+        }
+    }
+
+    /**
+     * Writes the end-mark and pads to a whole byte
+     *
+     * @return Number of bytes in the stream
+     */
+    int close() {
+        addBits(1, 1);
+        flush();
+        if (bitCount > 0) {
+            destination[position++] = (byte) container;
+            container = 0;
+            bitCount = 0;
+        }
+        return position - start;
+    }
+
+}
@@ -0,0 +1,503 @@
+package org.ktximageio.zstd;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+
+/**
+ * Finite State Entropy tables as used by Zstandard, both decoding and encoding.
+ *
+ */
+final class FSE {
+
+    static final int MIN_TABLE_LOG = 5;
+    static final int MAX_TABLE_LOG = 9;
+
+    private FSE() {
+    }
+
+    /**
+     * Decoding table, one entry per state
+     */
+    static final class DecodingTable {
+        int tableLog;
+        /**
+         * One entry per state, baseline in the upper 16 bits then number of bits and symbol in the lowest 8 bits
+         */
+        final int[] entries;
+        private final byte[] symbols;
+
+        DecodingTable(int maxTableLog) {
+            entries = new int[1 << maxTableLog];
+            symbols = new byte[1 << maxTableLog];
+        }
+
+        int getSymbol(int state) {
+            return entries[state] & 0xff;
+        }
+
+        /**
+         * Reads the bits for state and returns the next state
+         *
+         * @param state
+         * @param reader
+         * @return
+         */
+        int update(int state, BitReader reader) {
+            int entry = entries[state];
+            return (entry >>> 16) + reader.readBits((entry >>> 8) & 0xff);
+        }
+
+        /**
+         * Sets this table to always decode symbol, without consuming any bits
+         *
+         * @param symbol
+         */
+        void setRLE(int symbol) {
+            tableLog = 0;
+            entries[0] = symbol;
+        }
+
+        /**
+         * Builds the decoding table from normalized counts
+         *
+         * @param counts
+         * @param maxSymbol
+         * @param log
+         * @throws DataFormatException
+         */
+        void build(short[] counts, int maxSymbol, int log) throws DataFormatException {
+            int tableSize = 1 << log;
+            if (tableSize > entries.length) {
+                throw new DataFormatException("Table log too large " + log);
+            }
+            tableLog = log;
+            int[] next = new int[maxSymbol + 1];
+            int highThreshold = tableSize - 1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (counts[s] == -1) {
+                    symbols[highThreshold--] = (byte) s;
+                    next[s] = 1;
+                } else {
+                    next[s] = counts[s];
+                }
+            }
+            int position = spread(counts, maxSymbol, tableSize, highThreshold, symbols);
+            if (position != 0) {
+                throw new DataFormatException("Invalid FSE distribution");
+            }
+            for (int u = 0; u < tableSize; u++) {
+                int symbol = symbols[u] & 0xff;
+                int nextState = next[symbol]++;
+                int nbBits = log - Zstd.highBit(nextState);
+                entries[u] = (((nextState << nbBits) - tableSize) << 16) | (nbBits << 8) | symbol;
+            }
+        }
+    }
+
+    /**
+     * Encoding table, created from normalized counts
+     */
+    static final class EncodingTable {
+        int tableLog;
+        int[] states;
+        int[] deltaBits;
+        int[] deltaFindState;
+        boolean rle;
+
+        EncodingTable() {
+        }
+
+        EncodingTable(short[] counts, int maxSymbol, int log) {
+            tableLog = log;
+            int tableSize = 1 << log;
+            byte[] tableSymbols = new byte[tableSize];
+            int[] cumul = new int[maxSymbol + 2];
+            int highThreshold = tableSize - 1;
+            for (int u = 1; u <= maxSymbol + 1; u++) {
+                if (counts[u - 1] == -1) {
+                    cumul[u] = cumul[u - 1] + 1;
+                    tableSymbols[highThreshold--] = (byte) (u - 1);
+                } else {
+                    cumul[u] = cumul[u - 1] + counts[u - 1];
+                }
+            }
+            spread(counts, maxSymbol, tableSize, highThreshold, tableSymbols);
+            states = new int[tableSize];
+            for (int u = 0; u < tableSize; u++) {
+                int s = tableSymbols[u] & 0xff;
+                states[cumul[s]++] = tableSize + u;
+            }
+            deltaBits = new int[maxSymbol + 1];
+            deltaFindState = new int[maxSymbol + 1];
+            int total = 0;
+            for (int s = 0; s <= maxSymbol; s++) {
+                int count = counts[s];
+                if (count == 0) {
+                    deltaBits[s] = ((log + 1) << 16) - tableSize;
+                } else if (count == -1 || count == 1) {
+                    deltaBits[s] = (log << 16) - tableSize;
+                    deltaFindState[s] = total - 1;
+                    total++;
+                } else {
+                    int maxBitsOut = log - Zstd.highBit(count - 1);
+                    int minStatePlus = count << maxBitsOut;
+                    deltaBits[s] = (maxBitsOut << 16) - minStatePlus;
+                    deltaFindState[s] = total - count;
+                    total += count;
+                }
+            }
+        }
+
+        /**
+         * Returns the initial state for the last symbol of the stream, no bits are written.
+         *
+         * @param symbol
+         * @return
+         */
+        int init(int symbol) {
+            if (rle) {
+                return 0;
+            }
+            int nbBitsOut = (deltaBits[symbol] + (1 << 15)) >>> 16;
+            int value = (nbBitsOut << 16) - deltaBits[symbol];
+            return states[(value >> nbBitsOut) + deltaFindState[symbol]];
+        }
+
+        /**
+         * Encodes symbol, writing the bits for the state transition.
+         *
+         * @param writer
+         * @param state
+         * @param symbol
+         * @return The new state
+         */
+        int encode(BitWriter writer, int state, int symbol) {
+            if (rle) {
+                return 0;
+            }
+            int nbBitsOut = (state + deltaBits[symbol]) >>> 16;
+            writer.addBits(state, nbBitsOut);
+            return states[(state >>> nbBitsOut) + deltaFindState[symbol]];
+        }
+
+        /**
+         * Writes the final state
+         *
+         * @param writer
+         * @param state
+         */
+        void flush(BitWriter writer, int state) {
+            if (!rle) {
+                writer.addBits(state, tableLog);
+            }
+        }
+    }
+
+    /**
+     * Spreads the symbols over the table, returns the end position which shall be zero
+     */
+    private static int spread(short[] counts, int maxSymbol, int tableSize, int highThreshold, byte[] symbols) {
+        int mask = tableSize - 1;
+        int step = (tableSize >>> 1) + (tableSize >>> 3) + 3;
+        int position = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            for (int i = 0; i < counts[s]; i++) {
+                symbols[position] = (byte) s;
+                do {
+                    position = (position + step) & mask;
+                } while (position > highThreshold);
+            }
+        }
+        return position;
+    }
+
+    /**
+     * Reads a table description, as normalized counts, from source.
+     *
+     * @param source
+     * @param offset Offset to the table description
+     * @param end End of the readable data
+     * @param counts Destination for the normalized counts
+     * @param maxSymbol Max allowed symbol
+     * @param maxTableLog Max allowed table log
+     * @param result The table log is stored at index 0 and the max symbol at index 1
+     * @return Number of bytes read
+     * @throws DataFormatException
+     */
+    static int readCounts(ByteBuffer source, int offset, int end, short[] counts, int maxSymbol, int maxTableLog,
+            int[] result) throws DataFormatException {
+        ForwardBits in = new ForwardBits(source, offset, end);
+        int tableLog = in.read(4) + MIN_TABLE_LOG;
+        if (tableLog > maxTableLog) {
+            throw new DataFormatException("Table log too large " + tableLog);
+        }
+        int remaining = (1 << tableLog) + 1;
+        int threshold = 1 << tableLog;
+        int nbBits = tableLog + 1;
+        int symbol = 0;
+        boolean previous0 = false;
+        while (remaining > 1 && symbol <= maxSymbol) {
+            if (previous0) {
+                int n0 = symbol;
+                while (in.peek(16) == 0xFFFF) {
+                    n0 += 24;
+                    in.skip(16);
+                }
+                while (in.peek(2) == 3) {
+                    n0 += 3;
+                    in.skip(2);
+                }
+                n0 += in.read(2);
+                if (n0 > maxSymbol + 1) {
+                    throw new DataFormatException("Too many symbols in FSE table");
+                }
+                while (symbol < n0) {
+                    counts[symbol++] = 0;
+                }
+                if (symbol > maxSymbol) {
+                    break;
+                }
+            }
+            int max = (2 * threshold - 1) - remaining;
+            int value = in.peek(nbBits);
+            int count;
+            if ((value & (threshold - 1)) < max) {
+                count = value & (threshold - 1);
+                in.skip(nbBits - 1);
+            } else {
+                count = value & (2 * threshold - 1);
+                if (count >= threshold) {
+                    count -= max;
+                }
+                in.skip(nbBits);
+            }
+            count--;
+            remaining -= count < 0 ? -count : count;
+            counts[symbol++] = (short) count;
+            previous0 = count == 0;
+            while (remaining < threshold) {
+                nbBits--;
+                threshold >>= 1;
+            }
+        }
+        if (remaining != 1) {
+            throw new DataFormatException("Invalid FSE table, counts do not sum to table size");
+        }
+        for (int s = symbol; s < counts.length; s++) {
+            counts[s] = 0;
+        }
+        int bytes = in.getBytesRead();
+        if (offset + bytes > end) {
+            throw new DataFormatException("FSE table description exceeds input");
+        }
+        result[0] = tableLog;
+        result[1] = symbol - 1;
+        return bytes;
+    }
+
+    /**
+     * Writes the table description for normalized counts
+     *
+     * @param counts
+     * @param maxSymbol Last symbol with a non zero count
+     * @param tableLog
+     * @param destination
+     * @param offset
+     * @return Number of bytes written
+     */
+    static int writeCounts(short[] counts, int maxSymbol, int tableLog, byte[] destination, int offset) {
+        int tableSize = 1 << tableLog;
+        int position = offset;
+        long bitStream = tableLog - MIN_TABLE_LOG;
+        int bitCount = 4;
+        int remaining = tableSize + 1;
+        int threshold = tableSize;
+        int nbBits = tableLog + 1;
+        int symbol = 0;
+        boolean previous0 = false;
+        while (symbol <= maxSymbol && remaining > 1) {
+            if (previous0) {
+                int start = symbol;
+                while (counts[symbol] == 0) {
+                    symbol++;
+                }
+                while (symbol >= start + 24) {
+                    start += 24;
+                    bitStream |= 0xFFFFL << bitCount;
+                    bitCount += 16;
+                    while (bitCount >= 16) {
+                        destination[position++] = (byte) bitStream;
+                        destination[position++] = (byte) (bitStream >>> 8);
+                        bitStream >>>= 16;
+                        bitCount -= 16;
+                    }
+                }
+                while (symbol >= start + 3) {
+                    start += 3;
+                    bitStream |= 3L << bitCount;
+                    bitCount += 2;
+                }
+                bitStream |= (long) (symbol - start) << bitCount;
+                bitCount += 2;
+            }
+            int count = counts[symbol++];
+            int max = (2 * threshold - 1) - remaining;
+            remaining -= count < 0 ? -count : count;
+            count++;
+            if (count >= threshold) {
+                count += max;
+            }
+            bitStream |= (long) count << bitCount;
+            bitCount += nbBits;
+            if (count < max) {
+                bitCount--;
+            }
+            previous0 = count == 1;
+            while (remaining < threshold) {
+                nbBits--;
+                threshold >>= 1;
+            }
+            while (bitCount >= 16) {
+                destination[position++] = (byte) bitStream;
+                destination[position++] = (byte) (bitStream >>> 8);
+                bitStream >>>= 16;
+                bitCount -= 16;
+            }
+        }
+        while (bitCount > 0) {
+            destination[position++] = (byte) bitStream;
+            bitStream >>>= 8;
+            bitCount -= 8;
+        }
+        return position - offset;
+    }
+
+    /**
+     * Returns the table log to use when normalizing a histogram
+     *
+     * @param maxTableLog
+     * @param total Number of symbols in the histogram
+     * @param maxSymbol
+     * @return
+     */
+    static int getOptimalTableLog(int maxTableLog, int total, int maxSymbol) {
+        int tableLog = maxTableLog;
+        int maxBitsSource = Zstd.highBit(total - 1) - 2;
+        int minBits = Math.min(Zstd.highBit(total - 1) + 1, Zstd.highBit(maxSymbol) + 2);
+        if (maxBitsSource < tableLog) {
+            tableLog = maxBitsSource;
+        }
+        if (minBits > tableLog) {
+            tableLog = minBits;
+        }
+        return Math.max(MIN_TABLE_LOG, Math.min(tableLog, maxTableLog));
+    }
+
+    /**
+     * Normalizes a histogram so that the counts sum to 1 << tableLog, all present symbols get a count of at least 1.
+     *
+     * @param histogram
+     * @param maxSymbol
+     * @param total Sum of the histogram
+     * @param tableLog
+     * @param counts Destination for normalized counts
+     */
+    static void normalize(int[] histogram, int maxSymbol, int total, int tableLog, short[] counts) {
+        int tableSize = 1 << tableLog;
+        long[] remainders = new long[maxSymbol + 1];
+        int sum = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (histogram[s] == 0) {
+                counts[s] = 0;
+                remainders[s] = -1;
+            } else {
+                long scaled = (long) histogram[s] * tableSize;
+                int count = (int) (scaled / total);
+                remainders[s] = scaled - (long) count * total;
+                if (count == 0) {
+                    count = 1;
+                    remainders[s] = -1;
+                }
+                counts[s] = (short) count;
+                sum += count;
+            }
+        }
+        while (sum < tableSize) {
+            int best = -1;
+            for (int s = 0; s <= maxSymbol; s++) {
+                if (remainders[s] >= 0 && (best < 0 || remainders[s] > remainders[best])) {
+                    best = s;
+                }
+            }
+            if (best < 0) {
+                best = getLargest(counts, maxSymbol);
+            } else {
+                remainders[best] = -1;
+            }
+            counts[best]++;
+            sum++;
+        }
+        while (sum > tableSize) {
+            int largest = getLargest(counts, maxSymbol);
+            int decrease = Math.min(sum - tableSize, counts[largest] >> 1);
+            counts[largest] -= Math.max(1, decrease);
+            sum -= Math.max(1, decrease);
+        }
+    }
+
+    private static int getLargest(short[] counts, int maxSymbol) {
+        int largest = 0;
+        for (int s = 1; s <= maxSymbol; s++) {
+            if (counts[s] > counts[largest]) {
+                largest = s;
+            }
+        }
+        return largest;
+    }
+
+    /**
+     * Little endian forward bit reader used for table descriptions, bytes past end are read as zero.
+     */
+    private static final class ForwardBits {
+        private final ByteBuffer source;
+        private final int offset;
+        private final int end;
+        private int bitPosition;
+
+        ForwardBits(ByteBuffer source, int offset, int end) {
+            this.source = source;
+            this.offset = offset;
+            this.end = end;
+        }
+
+        int peek(int count) {
+            int value = 0;
+            int bytePosition = offset + (bitPosition >>> 3);
+            int shift = bitPosition & 7;
+            long bits = 0;
+            for (int i = 0; i < 4; i++) {
+                int index = bytePosition + i;
+                if (index < end) {
+                    bits |= (source.get(index) & 0xffL) << (i << 3);
+                }
+            }
+            value = (int) ((bits >>> shift) & ((1L << count) - 1));
+            return value;
+        }
+
+        void skip(int count) {
+            bitPosition += count;
+        }
+
+        int read(int count) {
+            int value = peek(count);
+            skip(count);
+            return value;
+        }
+
+        int getBytesRead() {
+            return (bitPosition + 7) >>> 3;
+        }
+    }
+
+}
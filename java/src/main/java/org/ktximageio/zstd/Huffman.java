@@ -0,0 +1,411 @@
+package org.ktximageio.zstd;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+
+/**
+ * Huffman coding of literals as used by Zstandard, both decoding and encoding.
+ *
+ */
+final class Huffman {
+
+    static final int MAX_SYMBOL = 255;
+    /**
+     * Max code length used when encoding
+     */
+    static final int MAX_ENCODE_BITS = 11;
+
+    private Huffman() {
+    }
+
+    /**
+     * Decoding table, indexed by the next maxBits bits of the stream
+     */
+    static final class DecodingTable {
+        int maxBits;
+        final byte[] symbols = new byte[1 << Zstd.HUFFMAN_MAX_BITS];
+        final byte[] bits = new byte[1 << Zstd.HUFFMAN_MAX_BITS];
+        private final byte[] weights = new byte[MAX_SYMBOL + 1];
+        private final short[] counts = new short[Zstd.HUFFMAN_MAX_BITS + 1];
+        private final FSE.DecodingTable weightTable = new FSE.DecodingTable(Zstd.HUFFMAN_WEIGHTS_MAX_TABLE_LOG);
+        private final int[] result = new int[2];
+        boolean valid;
+
+        /**
+         * Reads the tree description and builds the decoding table
+         *
+         * @param source
+         * @param offset
+         * @param end
+         * @return Number of bytes read
+         * @throws DataFormatException
+         */
+        int read(ByteBuffer source, int offset, int end) throws DataFormatException {
+            if (offset >= end) {
+                throw new DataFormatException("Missing Huffman tree description");
+            }
+            int header = source.get(offset) & 0xff;
+            int count;
+            int size;
+            if (header >= 128) {
+                count = header - 127;
+                size = 1 + ((count + 1) >> 1);
+                if (offset + size > end) {
+                    throw new DataFormatException("Huffman tree description exceeds input");
+                }
+                for (int i = 0; i < count; i += 2) {
+                    int b = source.get(offset + 1 + (i >> 1)) & 0xff;
+                    weights[i] = (byte) (b >>> 4);
+                    weights[i + 1] = (byte) (b & 0x0f);
+                }
+            } else {
+                size = 1 + header;
+                if (offset + size > end) {
+                    throw new DataFormatException("Huffman tree description exceeds input");
+                }
+                count = readFSEWeights(source, offset + 1, offset + size);
+            }
+            build(count);
+            return size;
+        }
+
+        private int readFSEWeights(ByteBuffer source, int offset, int end) throws DataFormatException {
+            int read = FSE.readCounts(source, offset, end, counts, Zstd.HUFFMAN_MAX_BITS,
+                    Zstd.HUFFMAN_WEIGHTS_MAX_TABLE_LOG, result);
+            weightTable.build(counts, result[1], result[0]);
+            BitReader reader = new BitReader(source, offset + read, end - offset - read);
+            int state1 = reader.readBits(weightTable.tableLog);
+            int state2 = reader.readBits(weightTable.tableLog);
+            reader.reload();
+            int count = 0;
+            while (true) {
+                if (count > MAX_SYMBOL - 2) {
+                    throw new DataFormatException("Too many Huffman weights");
+                }
+                weights[count++] = (byte) weightTable.getSymbol(state1);
+                state1 = weightTable.update(state1, reader);
+                if (reader.reload() == BitReader.OVERFLOW) {
+                    weights[count++] = (byte) weightTable.getSymbol(state2);
+                    break;
+                }
+                weights[count++] = (byte) weightTable.getSymbol(state2);
+                state2 = weightTable.update(state2, reader);
+                if (reader.reload() == BitReader.OVERFLOW) {
+                    weights[count++] = (byte) weightTable.getSymbol(state1);
+                    break;
+                }
+            }
+            return count;
+        }
+
+        private void build(int count) throws DataFormatException {
+            int total = 0;
+            for (int i = 0; i < count; i++) {
+                int w = weights[i];
+                if (w > Zstd.HUFFMAN_MAX_BITS) {
+                    throw new DataFormatException("Invalid Huffman weight " + w);
+                }
+                if (w > 0) {
+                    total += 1 << (w - 1);
+                }
+            }
+            if (total == 0) {
+                throw new DataFormatException("Invalid Huffman weights");
+            }
+            maxBits = Zstd.highBit(total) + 1;
+            if (maxBits > Zstd.HUFFMAN_MAX_BITS) {
+                throw new DataFormatException("Huffman code length too large " + maxBits);
+            }
+            int rest = (1 << maxBits) - total;
+            if (Integer.bitCount(rest) != 1) {
+                throw new DataFormatException("Invalid Huffman weights, not a complete tree");
+            }
+            weights[count] = (byte) (Zstd.highBit(rest) + 1);
+            int symbolCount = count + 1;
+            int position = 0;
+            for (int w = 1; w <= maxBits; w++) {
+                int length = 1 << (w - 1);
+                int nbBits = maxBits + 1 - w;
+                for (int s = 0; s < symbolCount; s++) {
+                    if (weights[s] == w) {
+                        Arrays.fill(symbols, position, position + length, (byte) s);
+                        Arrays.fill(bits, position, position + length, (byte) nbBits);
+                        position += length;
+                    }
+                }
+            }
+            valid = true;
+        }
+
+        /**
+         * Decodes count symbols from the stream at source[offset, end)
+         *
+         * @param source
+         * @param offset
+         * @param end
+         * @param destination
+         * @param destinationOffset
+         * @param count
+         * @throws DataFormatException
+         */
+        void decodeStream(ByteBuffer source, int offset, int end, byte[] destination, int destinationOffset,
+                int count) throws DataFormatException {
+            BitReader reader = new BitReader(source, offset, end - offset);
+            int index = destinationOffset;
+            int fastEnd = destinationOffset + (count & ~3);
+            int shift = maxBits;
+            while (index < fastEnd) {
+                for (int i = 0; i < 4; i++) {
+                    int value = (int) reader.peekBits(shift);
+                    destination[index++] = symbols[value];
+                    reader.skipBits(bits[value]);
+                }
+                reader.reload();
+            }
+            int last = destinationOffset + count;
+            while (index < last) {
+                int value = (int) reader.peekBits(shift);
+                destination[index++] = symbols[value];
+                reader.skipBits(bits[value]);
+                reader.reload();
+            }
+            if (!reader.isCompleted()) {
+                throw new DataFormatException("Huffman stream not fully consumed");
+            }
+        }
+    }
+
+    /**
+     * Encoding table built from a literal histogram
+     */
+    static final class EncodingTable {
+        final int[] codes = new int[MAX_SYMBOL + 1];
+        final byte[] bits = new byte[MAX_SYMBOL + 1];
+        int maxBits;
+        int maxSymbol;
+
+        /**
+         * Builds length limited codes for the histogram, at least two symbols must be present.
+         *
+         * @param histogram
+         * @param max Largest symbol in histogram
+         */
+        void build(int[] histogram, int max) {
+            maxSymbol = max;
+            Arrays.fill(bits, (byte) 0);
+            int[] lengths = getCodeLengths(histogram, maxSymbol, MAX_ENCODE_BITS);
+            maxBits = 0;
+            for (int s = 0; s <= maxSymbol; s++) {
+                bits[s] = (byte) lengths[s];
+                maxBits = Math.max(maxBits, lengths[s]);
+            }
+            int position = 0;
+            for (int w = 1; w <= maxBits; w++) {
+                int nbBits = maxBits + 1 - w;
+                for (int s = 0; s <= maxSymbol; s++) {
+                    if (bits[s] == nbBits) {
+                        codes[s] = position >>> (w - 1);
+                        position += 1 << (w - 1);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Returns the encoded size, in bytes, of the symbols in the histogram - excluding the tree description
+         *
+         * @param histogram
+         * @return
+         */
+        int getEncodedSize(int[] histogram) {
+            long size = 0;
+            for (int s = 0; s <= maxSymbol; s++) {
+                size += (long) histogram[s] * bits[s];
+            }
+            return (int) ((size + 7) >> 3);
+        }
+
+        /**
+         * Writes the tree description
+         *
+         * @param destination
+         * @param offset
+         * @return Number of bytes written, or -1 if the description cannot be represented
+         */
+        int writeDescription(byte[] destination, int offset) {
+            int count = maxSymbol;
+            byte[] weights = new byte[count];
+            for (int s = 0; s < count; s++) {
+                weights[s] = (byte) (bits[s] == 0 ? 0 : maxBits + 1 - bits[s]);
+            }
+            int compressed = writeFSEWeights(weights, destination, offset + 1);
+            if (compressed > 1 && compressed < 128 && (count > 128 || compressed < (count + 1) >> 1)) {
+                destination[offset] = (byte) compressed;
+                return compressed + 1;
+            }
+            if (count > 128) {
+                return -1;
+            }
+            destination[offset] = (byte) (127 + count);
+            for (int i = 0; i < count; i += 2) {
+                int high = weights[i];
+                int low = i + 1 < count ? weights[i + 1] : 0;
+                destination[offset + 1 + (i >> 1)] = (byte) ((high << 4) | low);
+            }
+            return 1 + ((count + 1) >> 1);
+        }
+
+        private int writeFSEWeights(byte[] weights, byte[] destination, int offset) {
+            int count = weights.length;
+            int[] histogram = new int[Zstd.HUFFMAN_MAX_BITS + 1];
+            int maxWeight = 0;
+            int distinct = 0;
+            for (int i = 0; i < count; i++) {
+                if (histogram[weights[i]]++ == 0) {
+                    distinct++;
+                }
+                maxWeight = Math.max(maxWeight, weights[i]);
+            }
+            if (distinct < 2 || count < 2) {
+                return -1;
+            }
+            int tableLog = FSE.getOptimalTableLog(Zstd.HUFFMAN_WEIGHTS_MAX_TABLE_LOG, count, maxWeight);
+            short[] normalized = new short[maxWeight + 1];
+            FSE.normalize(histogram, maxWeight, count, tableLog, normalized);
+            // Worst case output is the table description plus tableLog + 1 bits per weight
+            byte[] buffer = new byte[64 + count * 2];
+            int position = FSE.writeCounts(normalized, maxWeight, tableLog, buffer, 0);
+            FSE.EncodingTable table = new FSE.EncodingTable(normalized, maxWeight, tableLog);
+            BitWriter writer = new BitWriter(buffer, position);
+            int index = count;
+            int state1;
+            int state2;
+            if ((count & 1) != 0) {
+                state1 = table.init(weights[--index]);
+                state2 = table.init(weights[--index]);
+                state1 = table.encode(writer, state1, weights[--index]);
+            } else {
+                state2 = table.init(weights[--index]);
+                state1 = table.init(weights[--index]);
+            }
+            while (index > 0) {
+                state2 = table.encode(writer, state2, weights[--index]);
+                state1 = table.encode(writer, state1, weights[--index]);
+            }
+            table.flush(writer, state2);
+            table.flush(writer, state1);
+            int size = position + writer.close();
+            if (size >= 128) {
+                return -1;
+            }
+            System.arraycopy(buffer, 0, destination, offset, size);
+            return size;
+        }
+
+        /**
+         * Encodes symbols as one stream
+         *
+         * @param source
+         * @param offset
+         * @param length
+         * @param destination
+         * @param destinationOffset
+         * @return Number of bytes written
+         */
+        int encodeStream(byte[] source, int offset, int length, byte[] destination, int destinationOffset) {
+            BitWriter writer = new BitWriter(destination, destinationOffset);
+            for (int i = offset + length - 1; i >= offset; i--) {
+                int s = source[i] & 0xff;
+                writer.addBits(codes[s], bits[s]);
+            }
+            return writer.close();
+        }
+    }
+
+    /**
+     * Calculates Huffman code lengths, limited to maxLength, the resulting code is complete.
+     *
+     * @param histogram
+     * @param maxSymbol
+     * @param maxLength
+     * @return
+     */
+    static int[] getCodeLengths(int[] histogram, int maxSymbol, int maxLength) {
+        int[] lengths = new int[maxSymbol + 1];
+        int symbolCount = 0;
+        int[] order = new int[maxSymbol + 1];
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (histogram[s] > 0) {
+                order[symbolCount++] = s;
+            }
+        }
+        // Sort present symbols by ascending count
+        Integer[] sorted = new Integer[symbolCount];
+        for (int i = 0; i < symbolCount; i++) {
+            sorted[i] = order[i];
+        }
+        Arrays.sort(sorted, (a, b) -> histogram[a] != histogram[b] ? Integer.compare(histogram[a], histogram[b])
+                : Integer.compare(a, b));
+        // Two queue Huffman construction, leaves in sorted order and internal nodes in creation order
+        long[] weight = new long[symbolCount * 2];
+        int[] parent = new int[symbolCount * 2];
+        for (int i = 0; i < symbolCount; i++) {
+            weight[i] = histogram[sorted[i]];
+        }
+        int leaf = 0;
+        int node = symbolCount;
+        int nextNode = symbolCount;
+        for (int i = 0; i < symbolCount - 1; i++) {
+            int[] children = new int[2];
+            for (int c = 0; c < 2; c++) {
+                if (leaf < symbolCount && (node >= nextNode || weight[leaf] <= weight[node])) {
+                    children[c] = leaf++;
+                } else {
+                    children[c] = node++;
+                }
+            }
+            weight[nextNode] = weight[children[0]] + weight[children[1]];
+            parent[children[0]] = nextNode;
+            parent[children[1]] = nextNode;
+            nextNode++;
+        }
+        int root = nextNode - 1;
+        int[] depth = new int[nextNode];
+        for (int n = root - 1; n >= 0; n--) {
+            depth[n] = depth[parent[n]] + 1;
+        }
+        // Limit lengths and restore a complete code, sorted[] is in ascending count order
+        long kraft = 0;
+        long one = 1L << maxLength;
+        for (int i = 0; i < symbolCount; i++) {
+            int length = Math.min(depth[i], maxLength);
+            lengths[sorted[i]] = length;
+            kraft += one >> length;
+        }
+        while (kraft > one) {
+            // Lengthen the least frequent code that is shorter than max length
+            for (int i = 0; i < symbolCount; i++) {
+                int s = sorted[i];
+                if (lengths[s] < maxLength) {
+                    kraft -= one >> (lengths[s] + 1);
+                    lengths[s]++;
+                    break;
+                }
+            }
+        }
+        while (kraft < one) {
+            // Shorten the most frequent code that fits in the remaining space
+            for (int i = symbolCount - 1; i >= 0; i--) {
+                int s = sorted[i];
+                if (lengths[s] > 1 && kraft + (one >> lengths[s]) <= one) {
+                    kraft += one >> lengths[s];
+                    lengths[s]--;
+                    break;
+                }
+            }
+        }
+        return lengths;
+    }
+
+}
@@ -0,0 +1,92 @@
+package org.ktximageio.zstd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * XXH64 hash, used for the optional Zstandard content checksum.
+ *
+ */
+final class XXHash64 {
+
+    private static final long PRIME1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME3 = 0x165667B19E3779F9L;
+    private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+    private XXHash64() {
+    }
+
+    /**
+     * Returns the XXH64 hash of buffer[offset, offset + length)
+     *
+     * @param buffer
+     * @param offset
+     * @param length
+     * @param seed
+     * @return
+     */
+    static long hash(ByteBuffer buffer, int offset, int length, long seed) {
+        ByteBuffer input = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = offset;
+        int end = offset + length;
+        long hash;
+        if (length >= 32) {
+            long v1 = seed + PRIME1 + PRIME2;
+            long v2 = seed + PRIME2;
+            long v3 = seed;
+            long v4 = seed - PRIME1;
+            int limit = end - 32;
+            while (position <= limit) {
+                v1 = round(v1, input.getLong(position));
+                v2 = round(v2, input.getLong(position + 8));
+                v3 = round(v3, input.getLong(position + 16));
+                v4 = round(v4, input.getLong(position + 24));
+                position += 32;
+            }
+            hash = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12)
+                    + Long.rotateLeft(v4, 18);
+            hash = merge(hash, v1);
+            hash = merge(hash, v2);
+            hash = merge(hash, v3);
+            hash = merge(hash, v4);
+        } else {
+            hash = seed + PRIME5;
+        }
+        hash += length;
+        while (position + 8 <= end) {
+            hash ^= round(0, input.getLong(position));
+            hash = Long.rotateLeft(hash, 27) * PRIME1 + PRIME4;
+            position += 8;
+        }
+        if (position + 4 <= end) {
+            hash ^= (input.getInt(position) & 0xffffffffL) * PRIME1;
+            hash = Long.rotateLeft(hash, 23) * PRIME2 + PRIME3;
+            position += 4;
+        }
+        while (position < end) {
+            hash ^= (input.get(position) & 0xffL) * PRIME5;
+            hash = Long.rotateLeft(hash, 11) * PRIME1;
+            position++;
+        }
+        hash ^= hash >>> 33;
+        hash *= PRIME2;
+        hash ^= hash >>> 29;
+        hash *= PRIME3;
+        hash ^= hash >>> 32;
+        return hash;
+    }
+
+    private static long round(long acc, long input) {
+        long result = acc + input * PRIME2;
+        result = Long.rotateLeft(result, 31);
+        return result * PRIME1;
+    }
+
+    private static long merge(long acc, long value) {
+        long result = acc ^ round(0, value);
+        return result * PRIME1 + PRIME4;
+    }
+
+}
@@ -0,0 +1,123 @@
+package org.ktximageio.zstd;
+
+/**
+ * Constants and tables from the Zstandard compression format, RFC 8878
+ *
+ */
+final class Zstd {
+
+    private Zstd() {
+    }
+
+    static final int MAGIC_NUMBER = 0xFD2FB528;
+    static final int SKIPPABLE_MAGIC_MASK = 0xFFFFFFF0;
+    static final int SKIPPABLE_MAGIC_NUMBER = 0x184D2A50;
+
+    static final int MAX_BLOCK_SIZE = 128 * 1024;
+    static final int MIN_WINDOW_LOG = 10;
+    static final int MIN_MATCH = 3;
+
+    static final int BLOCK_RAW = 0;
+    static final int BLOCK_RLE = 1;
+    static final int BLOCK_COMPRESSED = 2;
+
+    static final int LITERALS_RAW = 0;
+    static final int LITERALS_RLE = 1;
+    static final int LITERALS_COMPRESSED = 2;
+    static final int LITERALS_TREELESS = 3;
+
+    static final int MODE_PREDEFINED = 0;
+    static final int MODE_RLE = 1;
+    static final int MODE_FSE = 2;
+    static final int MODE_REPEAT = 3;
+
+    static final int HUFFMAN_MAX_BITS = 12;
+    static final int HUFFMAN_WEIGHTS_MAX_TABLE_LOG = 6;
+
+    static final int LITERALS_LENGTH_MAX_SYMBOL = 35;
+    static final int MATCH_LENGTH_MAX_SYMBOL = 52;
+    static final int OFFSET_MAX_SYMBOL = 31;
+    static final int LITERALS_LENGTH_MAX_TABLE_LOG = 9;
+    static final int MATCH_LENGTH_MAX_TABLE_LOG = 9;
+    static final int OFFSET_MAX_TABLE_LOG = 8;
+    /**
+     * Largest offset code that is part of the predefined offset distribution
+     */
+    static final int OFFSET_DEFAULT_MAX_SYMBOL = 28;
+
+    static final int[] LITERALS_LENGTH_BASE = { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 18, 20, 22,
+            24, 28, 32, 40, 48, 64, 128, 256, 512, 1024, 2048, 4096, 8192, 16384, 32768, 65536 };
+    static final int[] LITERALS_LENGTH_BITS = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 3,
+            3, 4, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    static final int[] MATCH_LENGTH_BASE = { 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22,
+            23, 24, 25, 26, 27, 28, 29, 30, 31, 32, 33, 34, 35, 37, 39, 41, 43, 47, 51, 59, 67, 83, 99, 131, 259, 515,
+            1027, 2051, 4099, 8195, 16387, 32771, 65539 };
+    static final int[] MATCH_LENGTH_BITS = { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
+            0, 0, 0, 0, 0, 0, 0, 1, 1, 1, 1, 2, 2, 3, 3, 4, 4, 5, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16 };
+
+    static final short[] LITERALS_LENGTH_DEFAULT_DISTRIBUTION = { 4, 3, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 2, 1, 1, 1, 2, 2,
+            2, 2, 2, 2, 2, 2, 2, 3, 2, 1, 1, 1, 1, 1, -1, -1, -1, -1 };
+    static final int LITERALS_LENGTH_DEFAULT_TABLE_LOG = 6;
+
+    static final short[] MATCH_LENGTH_DEFAULT_DISTRIBUTION = { 1, 4, 3, 2, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, -1, -1, -1, -1, -1, -1,
+            -1 };
+    static final int MATCH_LENGTH_DEFAULT_TABLE_LOG = 6;
+
+    static final short[] OFFSET_DEFAULT_DISTRIBUTION = { 1, 1, 1, 1, 1, 1, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1,
+            1, 1, 1, -1, -1, -1, -1, -1 };
+    static final int OFFSET_DEFAULT_TABLE_LOG = 5;
+
+    /**
+     * Returns the index of the highest set bit, value must be > 0
+     *
+     * @param value
+     * @return
+     */
+    static int highBit(int value) {
+        return 31 - Integer.numberOfLeadingZeros(value);
+    }
+
+    /**
+     * Returns the literals length code for a literals length
+     *
+     * @param literalsLength
+     * @return
+     */
+    static int getLiteralsLengthCode(int literalsLength) {
+        if (literalsLength < 16) {
+            return literalsLength;
+        }
+        if (literalsLength >= 64) {
+            return Math.min(highBit(literalsLength) + 19, LITERALS_LENGTH_MAX_SYMBOL);
+        }
+        int code = 16;
+        while (code < 24 && LITERALS_LENGTH_BASE[code + 1] <= literalsLength) {
+            code++;
+        }
+        return code;
+    }
+
+    /**
+     * Returns the match length code for a match length
+     *
+     * @param matchLength Match length, must be >= 3
+     * @return
+     */
+    static int getMatchLengthCode(int matchLength) {
+        int value = matchLength - MIN_MATCH;
+        if (value < 32) {
+            return value;
+        }
+        if (matchLength >= 131) {
+            return Math.min(highBit(value) + 36, MATCH_LENGTH_MAX_SYMBOL);
+        }
+        int code = 32;
+        while (code < 42 && MATCH_LENGTH_BASE[code + 1] <= matchLength) {
+            code++;
+        }
+        return code;
+    }
+
+}
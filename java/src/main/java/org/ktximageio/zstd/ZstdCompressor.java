@@ -0,0 +1,624 @@
+package org.ktximageio.zstd;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Pure Java Zstandard compressor, RFC 8878.
+ * Produces one frame with content size, matches are found using hash chains with optional lazy matching.
+ * Literals are Huffman compressed and sequences use predefined, RLE or FSE compressed tables, whichever is
+ * estimated to be the smallest. One instance may be reused but is not threadsafe.
+ *
+ */
+public class ZstdCompressor {
+
+    public static final int MIN_LEVEL = 1;
+    public static final int MAX_LEVEL = 19;
+    public static final int DEFAULT_LEVEL = 3;
+
+    private static final int MIN_MATCH = 4;
+    private static final int FRAME_HEADER_SIZE = 4 + 1 + 1 + 4;
+    private static final int BLOCK_HEADER_SIZE = 3;
+    private static final int MIN_LITERALS_TO_COMPRESS = 64;
+    private static final int HASH_PRIME = 0x9E3779B1;
+
+    private final int level;
+    private final int maxWindowLog;
+    private final int hashLog;
+    private final int searchDepth;
+    private final boolean lazy;
+
+    private final byte[] literals = new byte[Zstd.MAX_BLOCK_SIZE];
+    private final int[] literalsLengths = new int[Zstd.MAX_BLOCK_SIZE / MIN_MATCH + 1];
+    private final int[] matchLengths = new int[Zstd.MAX_BLOCK_SIZE / MIN_MATCH + 1];
+    private final int[] offsetValues = new int[Zstd.MAX_BLOCK_SIZE / MIN_MATCH + 1];
+    private final byte[] blockBuffer = new byte[Zstd.MAX_BLOCK_SIZE * 4];
+    private final int[] repeatOffsets = new int[3];
+    private int literalsCount;
+    private int sequenceCount;
+
+    private ByteBuffer input;
+    private int[] hashTable;
+    private int[] chainTable;
+    private int chainMask;
+    private int windowSize;
+    private int frameStart;
+    private int inputEnd;
+    private int nextInsert;
+    private int matchOffset;
+
+    /**
+     * Creates a compressor using {@link #DEFAULT_LEVEL}
+     */
+    public ZstdCompressor() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * Creates a compressor
+     *
+     * @param level Compression level, {@link #MIN_LEVEL} to {@link #MAX_LEVEL}, values outside are clamped.
+     * A higher level gives better compression but is slower, decompression speed is not affected.
+     */
+    public ZstdCompressor(int level) {
+        this.level = Math.max(MIN_LEVEL, Math.min(MAX_LEVEL, level));
+        maxWindowLog = Math.min(23, 18 + this.level / 3);
+        hashLog = Math.min(20, 15 + this.level / 3);
+        searchDepth = this.level <= 2 ? this.level : Math.min(512, 1 << (this.level / 2 + 1));
+        lazy = this.level >= 4;
+    }
+
+    /**
+     * Returns the compression level
+     *
+     * @return
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the max size of a compressed frame for size bytes of input
+     *
+     * @param size
+     * @return
+     */
+    public static int getMaxCompressedSize(int size) {
+        return FRAME_HEADER_SIZE + size + BLOCK_HEADER_SIZE * (size / Zstd.MAX_BLOCK_SIZE + 1);
+    }
+
+    /**
+     * Compresses the remaining bytes of source into a new direct buffer, position of source is moved to limit
+     *
+     * @param source
+     * @return Buffer with one Zstandard frame, position is zero and limit is the compressed size
+     */
+    public ByteBuffer compress(ByteBuffer source) {
+        ByteBuffer destination = ByteBuffer.allocateDirect(getMaxCompressedSize(source.remaining()));
+        compress(source, destination);
+        destination.flip();
+        return destination;
+    }
+
+    /**
+     * Compresses the remaining bytes of source into destination as one Zstandard frame.
+     * Position of source is moved to limit and position of destination is moved past the compressed data.
+     *
+     * @param source
+     * @param destination Must have at least {@link #getMaxCompressedSize(int)} bytes remaining
+     * @return Number of compressed bytes
+     */
+    public int compress(ByteBuffer source, ByteBuffer destination) {
+        int size = source.remaining();
+        if (destination.remaining() < getMaxCompressedSize(size)) {
+            throw new IllegalArgumentException("INVALID VALUE, destination too small, need "
+                    + getMaxCompressedSize(size) + " bytes");
+        }
+        input = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer output = destination.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        frameStart = input.position();
+        inputEnd = input.limit();
+        int windowLog = Math.max(Zstd.MIN_WINDOW_LOG, Math.min(maxWindowLog, Zstd.highBit(Math.max(1, size - 1)) + 1));
+        windowSize = 1 << windowLog;
+        int chainLog = Math.min(windowLog, hashLog + 1);
+        if (hashTable == null || hashTable.length != 1 << hashLog) {
+            hashTable = new int[1 << hashLog];
+        }
+        if (chainTable == null || chainTable.length != 1 << chainLog) {
+            chainTable = new int[1 << chainLog];
+        }
+        Arrays.fill(hashTable, -1);
+        chainMask = (1 << chainLog) - 1;
+        nextInsert = frameStart;
+        repeatOffsets[0] = 1;
+        repeatOffsets[1] = 4;
+        repeatOffsets[2] = 8;
+
+        int start = output.position();
+        output.putInt(Zstd.MAGIC_NUMBER);
+        // 4 byte frame content size, window descriptor present
+        output.put((byte) (2 << 6));
+        output.put((byte) ((windowLog - Zstd.MIN_WINDOW_LOG) << 3));
+        output.putInt(size);
+        if (size == 0) {
+            putBlockHeader(output, true, Zstd.BLOCK_RAW, 0);
+        }
+        for (int blockStart = frameStart; blockStart < inputEnd; blockStart += Zstd.MAX_BLOCK_SIZE) {
+            int blockEnd = Math.min(inputEnd, blockStart + Zstd.MAX_BLOCK_SIZE);
+            compressBlock(blockStart, blockEnd, blockEnd == inputEnd, output);
+        }
+        source.position(inputEnd);
+        destination.position(output.position());
+        input = null;
+        return output.position() - start;
+    }
+
+    private void putBlockHeader(ByteBuffer output, boolean last, int type, int size) {
+        int header = (last ? 1 : 0) | (type << 1) | (size << 3);
+        output.put((byte) header);
+        output.put((byte) (header >>> 8));
+        output.put((byte) (header >>> 16));
+    }
+
+    private void compressBlock(int blockStart, int blockEnd, boolean last, ByteBuffer output) {
+        int blockSize = blockEnd - blockStart;
+        if (isRLE(blockStart, blockEnd)) {
+            putBlockHeader(output, last, Zstd.BLOCK_RLE, blockSize);
+            output.put(input.get(blockStart));
+            insertUpTo(blockEnd);
+            return;
+        }
+        int rep0 = repeatOffsets[0];
+        int rep1 = repeatOffsets[1];
+        int rep2 = repeatOffsets[2];
+        findSequences(blockStart, blockEnd);
+        int size = encodeLiterals(0);
+        if (size >= 0) {
+            int sequencesSize = encodeSequences(size);
+            size = sequencesSize < 0 ? -1 : size + sequencesSize;
+        }
+        if (size < 0 || size >= blockSize) {
+            repeatOffsets[0] = rep0;
+            repeatOffsets[1] = rep1;
+            repeatOffsets[2] = rep2;
+            putBlockHeader(output, last, Zstd.BLOCK_RAW, blockSize);
+            ByteBuffer raw = input.duplicate();
+            raw.limit(blockEnd).position(blockStart);
+            output.put(raw);
+        } else {
+            putBlockHeader(output, last, Zstd.BLOCK_COMPRESSED, size);
+            output.put(blockBuffer, 0, size);
+        }
+    }
+
+    private boolean isRLE(int start, int end) {
+        byte value = input.get(start);
+        long pattern = (value & 0xffL) * 0x0101010101010101L;
+        int position = start;
+        for (; position + Long.BYTES <= end; position += Long.BYTES) {
+            if (input.getLong(position) != pattern) {
+                return false;
+            }
+        }
+        for (; position < end; position++) {
+            if (input.get(position) != value) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int hash(int position) {
+        return (input.getInt(position) * HASH_PRIME) >>> (Integer.SIZE - hashLog);
+    }
+
+    private void insertUpTo(int position) {
+        int limit = Math.min(position, inputEnd - MIN_MATCH + 1);
+        while (nextInsert < limit) {
+            int h = hash(nextInsert);
+            chainTable[nextInsert & chainMask] = hashTable[h];
+            hashTable[h] = nextInsert;
+            nextInsert++;
+        }
+        nextInsert = Math.max(nextInsert, position);
+    }
+
+    private int getMatchLength(int match, int position, int limit) {
+        int length = 0;
+        int max = limit - position;
+        while (length + Long.BYTES <= max) {
+            long diff = input.getLong(match + length) ^ input.getLong(position + length);
+            if (diff != 0) {
+                return length + (Long.numberOfTrailingZeros(diff) >>> 3);
+            }
+            length += Long.BYTES;
+        }
+        while (length < max && input.get(match + length) == input.get(position + length)) {
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Finds the best match at position, the offset is stored in matchOffset
+     *
+     * @return Length of match or 0 if none found
+     */
+    private int findMatch(int position, int limit, int literalsLength) {
+        int bestLength = 0;
+        int maxDistance = Math.min(windowSize, position - frameStart);
+        // Repeat offsets are cheap to encode, check them first
+        for (int i = 0; i < 3; i++) {
+            int offset = repeatOffsets[i];
+            if (i == 0 && literalsLength == 0) {
+                continue;
+            }
+            if (offset <= maxDistance && input.getInt(position - offset) == input.getInt(position)) {
+                int length = getMatchLength(position - offset, position, limit);
+                if (length > bestLength) {
+                    bestLength = length;
+                    matchOffset = offset;
+                }
+            }
+        }
+        int repeatLength = bestLength;
+        if (position + bestLength >= limit) {
+            return bestLength >= MIN_MATCH ? bestLength : 0;
+        }
+        int minPosition = position - Math.min(maxDistance, chainMask);
+        int candidate = hashTable[hash(position)];
+        int depth = searchDepth;
+        while (candidate >= minPosition && candidate >= frameStart && candidate < position && depth-- > 0) {
+            if (input.get(candidate + bestLength) == input.get(position + bestLength)) {
+                int length = getMatchLength(candidate, position, limit);
+                if (length > bestLength && length > repeatLength + 1) {
+                    bestLength = length;
+                    matchOffset = position - candidate;
+                    if (position + length >= limit) {
+                        break;
+                    }
+                }
+            }
+            int next = chainTable[candidate & chainMask];
+            if (next >= candidate) {
+                break;
+            }
+            candidate = next;
+        }
+        return bestLength >= MIN_MATCH ? bestLength : 0;
+    }
+
+    private void findSequences(int blockStart, int blockEnd) {
+        literalsCount = 0;
+        sequenceCount = 0;
+        int position = blockStart;
+        int anchor = blockStart;
+        int searchLimit = blockEnd - MIN_MATCH;
+        int skipShift = level <= 2 ? 6 : 31;
+        while (position <= searchLimit) {
+            insertUpTo(position);
+            int length = findMatch(position, blockEnd, position - anchor);
+            if (length == 0) {
+                position += 1 + ((position - anchor) >> skipShift);
+                continue;
+            }
+            int offset = matchOffset;
+            while (lazy && position + 1 <= searchLimit) {
+                insertUpTo(position + 1);
+                int next = findMatch(position + 1, blockEnd, position + 1 - anchor);
+                if (next > length + 1) {
+                    position++;
+                    length = next;
+                    offset = matchOffset;
+                } else {
+                    break;
+                }
+            }
+            addSequence(anchor, position - anchor, offset, length);
+            position += length;
+            anchor = position;
+        }
+        int rest = blockEnd - anchor;
+        copyLiterals(anchor, rest);
+        insertUpTo(Math.min(position, blockEnd));
+    }
+
+    private void copyLiterals(int position, int length) {
+        ByteBuffer source = input.duplicate();
+        source.limit(position + length).position(position);
+        source.get(literals, literalsCount, length);
+        literalsCount += length;
+    }
+
+    private void addSequence(int anchor, int literalsLength, int offset, int length) {
+        copyLiterals(anchor, literalsLength);
+        int offsetValue = offset + 3;
+        if (literalsLength > 0) {
+            if (offset == repeatOffsets[0]) {
+                offsetValue = 1;
+            } else if (offset == repeatOffsets[1]) {
+                offsetValue = 2;
+            } else if (offset == repeatOffsets[2]) {
+                offsetValue = 3;
+            }
+        } else {
+            if (offset == repeatOffsets[1]) {
+                offsetValue = 1;
+            } else if (offset == repeatOffsets[2]) {
+                offsetValue = 2;
+            } else if (offset == repeatOffsets[0] - 1) {
+                offsetValue = 3;
+            }
+        }
+        // Update repeat offsets the same way the decoder does
+        int index = offsetValue > 3 ? 3 : offsetValue - 1 + (literalsLength == 0 ? 1 : 0);
+        if (index == 1) {
+            repeatOffsets[1] = repeatOffsets[0];
+            repeatOffsets[0] = offset;
+        } else if (index >= 2) {
+            repeatOffsets[2] = repeatOffsets[1];
+            repeatOffsets[1] = repeatOffsets[0];
+            repeatOffsets[0] = offset;
+        }
+        literalsLengths[sequenceCount] = literalsLength;
+        matchLengths[sequenceCount] = length;
+        offsetValues[sequenceCount] = offsetValue;
+        sequenceCount++;
+    }
+
+    /**
+     * Writes the literals section
+     *
+     * @return Number of bytes written or -1 if the literals cannot be represented
+     */
+    private int encodeLiterals(int offset) {
+        int count = literalsCount;
+        int[] histogram = new int[Huffman.MAX_SYMBOL + 1];
+        int maxSymbol = 0;
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int s = literals[i] & 0xff;
+            if (histogram[s]++ == 0) {
+                distinct++;
+                maxSymbol = Math.max(maxSymbol, s);
+            }
+        }
+        if (distinct == 1 && count > 2) {
+            int header = writeLiteralsHeader(Zstd.LITERALS_RLE, count, offset);
+            blockBuffer[offset + header] = literals[0];
+            return header + 1;
+        }
+        if (count >= MIN_LITERALS_TO_COMPRESS && distinct > 1) {
+            int size = encodeHuffmanLiterals(histogram, maxSymbol, offset);
+            if (size > 0) {
+                return size;
+            }
+        }
+        int header = writeLiteralsHeader(Zstd.LITERALS_RAW, count, offset);
+        System.arraycopy(literals, 0, blockBuffer, offset + header, count);
+        return header + count;
+    }
+
+    private int writeLiteralsHeader(int type, int size, int offset) {
+        if (size < 32) {
+            blockBuffer[offset] = (byte) (type | (size << 3));
+            return 1;
+        } else if (size < 4096) {
+            int header = type | (1 << 2) | (size << 4);
+            blockBuffer[offset] = (byte) header;
+            blockBuffer[offset + 1] = (byte) (header >>> 8);
+            return 2;
+        }
+        int header = type | (3 << 2) | (size << 4);
+        blockBuffer[offset] = (byte) header;
+        blockBuffer[offset + 1] = (byte) (header >>> 8);
+        blockBuffer[offset + 2] = (byte) (header >>> 16);
+        return 3;
+    }
+
+    private int encodeHuffmanLiterals(int[] histogram, int maxSymbol, int offset) {
+        int count = literalsCount;
+        Huffman.EncodingTable table = new Huffman.EncodingTable();
+        table.build(histogram, maxSymbol);
+        boolean singleStream = count < 256;
+        int rawSize = count + (count < 32 ? 1 : count < 4096 ? 2 : 3);
+        if (table.getEncodedSize(histogram) + (singleStream ? 3 : 11) >= rawSize) {
+            return -1;
+        }
+        // Leave room for the largest header, moved in place when the size is known
+        int start = offset + 5;
+        int description = table.writeDescription(blockBuffer, start);
+        if (description < 0) {
+            return -1;
+        }
+        int position = start + description;
+        if (singleStream) {
+            position += table.encodeStream(literals, 0, count, blockBuffer, position);
+        } else {
+            int segment = (count + 3) >> 2;
+            int jumpTable = position;
+            position += 6;
+            for (int i = 0; i < 4; i++) {
+                int length = i < 3 ? segment : count - 3 * segment;
+                int size = table.encodeStream(literals, i * segment, length, blockBuffer, position);
+                if (i < 3) {
+                    blockBuffer[jumpTable + i * 2] = (byte) size;
+                    blockBuffer[jumpTable + i * 2 + 1] = (byte) (size >>> 8);
+                }
+                position += size;
+            }
+        }
+        int compressedSize = position - start;
+        int sizeFormat;
+        int headerSize;
+        int sizeBits;
+        if (singleStream) {
+            sizeFormat = 0;
+            headerSize = 3;
+            sizeBits = 10;
+        } else if (count < 1024 && compressedSize < 1024) {
+            sizeFormat = 1;
+            headerSize = 3;
+            sizeBits = 10;
+        } else if (count < 16384 && compressedSize < 16384) {
+            sizeFormat = 2;
+            headerSize = 4;
+            sizeBits = 14;
+        } else {
+            sizeFormat = 3;
+            headerSize = 5;
+            sizeBits = 18;
+        }
+        if (compressedSize >= 1 << sizeBits || headerSize + compressedSize >= rawSize) {
+            return -1;
+        }
+        long header = Zstd.LITERALS_COMPRESSED | (sizeFormat << 2) | ((long) count << 4)
+                | ((long) compressedSize << (4 + sizeBits));
+        for (int i = 0; i < headerSize; i++) {
+            blockBuffer[offset + i] = (byte) (header >>> (i << 3));
+        }
+        System.arraycopy(blockBuffer, start, blockBuffer, offset + headerSize, compressedSize);
+        return headerSize + compressedSize;
+    }
+
+    /**
+     * Writes the sequences section
+     *
+     * @return Number of bytes written
+     */
+    private int encodeSequences(int offset) {
+        int position = offset;
+        int count = sequenceCount;
+        if (count < 128) {
+            blockBuffer[position++] = (byte) count;
+        } else if (count < 0x7F00) {
+            blockBuffer[position++] = (byte) ((count >>> 8) + 128);
+            blockBuffer[position++] = (byte) count;
+        } else {
+            blockBuffer[position++] = (byte) 255;
+            blockBuffer[position++] = (byte) (count - 0x7F00);
+            blockBuffer[position++] = (byte) ((count - 0x7F00) >>> 8);
+        }
+        if (count == 0) {
+            return position - offset;
+        }
+        byte[] llCodes = new byte[count];
+        byte[] mlCodes = new byte[count];
+        byte[] ofCodes = new byte[count];
+        for (int i = 0; i < count; i++) {
+            llCodes[i] = (byte) Zstd.getLiteralsLengthCode(literalsLengths[i]);
+            mlCodes[i] = (byte) Zstd.getMatchLengthCode(matchLengths[i]);
+            ofCodes[i] = (byte) Zstd.highBit(offsetValues[i]);
+        }
+        int modesPosition = position++;
+        int[] mode = new int[1];
+        FSE.EncodingTable llTable = new FSE.EncodingTable();
+        position += selectTable(llCodes, Zstd.LITERALS_LENGTH_MAX_SYMBOL, Zstd.LITERALS_LENGTH_MAX_TABLE_LOG,
+                Zstd.LITERALS_LENGTH_DEFAULT_DISTRIBUTION, Zstd.LITERALS_LENGTH_DEFAULT_TABLE_LOG, position, mode,
+                llTable);
+        int modes = mode[0] << 6;
+        FSE.EncodingTable ofTable = new FSE.EncodingTable();
+        position += selectTable(ofCodes, Zstd.OFFSET_MAX_SYMBOL, Zstd.OFFSET_MAX_TABLE_LOG,
+                Zstd.OFFSET_DEFAULT_DISTRIBUTION, Zstd.OFFSET_DEFAULT_TABLE_LOG, position, mode, ofTable);
+        modes |= mode[0] << 4;
+        FSE.EncodingTable mlTable = new FSE.EncodingTable();
+        position += selectTable(mlCodes, Zstd.MATCH_LENGTH_MAX_SYMBOL, Zstd.MATCH_LENGTH_MAX_TABLE_LOG,
+                Zstd.MATCH_LENGTH_DEFAULT_DISTRIBUTION, Zstd.MATCH_LENGTH_DEFAULT_TABLE_LOG, position, mode, mlTable);
+        modes |= mode[0] << 2;
+        blockBuffer[modesPosition] = (byte) modes;
+
+        BitWriter writer = new BitWriter(blockBuffer, position);
+        int last = count - 1;
+        int mlState = mlTable.init(mlCodes[last]);
+        int ofState = ofTable.init(ofCodes[last]);
+        int llState = llTable.init(llCodes[last]);
+        addExtraBits(writer, last, llCodes[last], mlCodes[last], ofCodes[last]);
+        for (int i = count - 2; i >= 0; i--) {
+            int llCode = llCodes[i];
+            int mlCode = mlCodes[i];
+            int ofCode = ofCodes[i];
+            ofState = ofTable.encode(writer, ofState, ofCode);
+            mlState = mlTable.encode(writer, mlState, mlCode);
+            llState = llTable.encode(writer, llState, llCode);
+            addExtraBits(writer, i, llCode, mlCode, ofCode);
+        }
+        mlTable.flush(writer, mlState);
+        ofTable.flush(writer, ofState);
+        llTable.flush(writer, llState);
+        position += writer.close();
+        return position - offset;
+    }
+
+    private void addExtraBits(BitWriter writer, int index, int llCode, int mlCode, int ofCode) {
+        writer.addBits(literalsLengths[index] - Zstd.LITERALS_LENGTH_BASE[llCode],
+                Zstd.LITERALS_LENGTH_BITS[llCode]);
+        writer.addBits(matchLengths[index] - Zstd.MATCH_LENGTH_BASE[mlCode], Zstd.MATCH_LENGTH_BITS[mlCode]);
+        writer.addBits(offsetValues[index] - (1 << ofCode), ofCode);
+    }
+
+    /**
+     * Selects the cheapest table mode for the codes and writes the table description, if any.
+     *
+     * @return Number of bytes written
+     */
+    private int selectTable(byte[] codes, int maxAllowedSymbol, int maxTableLog, short[] defaultDistribution,
+            int defaultTableLog, int offset, int[] mode, FSE.EncodingTable table) {
+        int count = codes.length;
+        int[] histogram = new int[maxAllowedSymbol + 1];
+        int maxSymbol = 0;
+        int distinct = 0;
+        for (int i = 0; i < count; i++) {
+            int s = codes[i];
+            if (histogram[s]++ == 0) {
+                distinct++;
+                maxSymbol = Math.max(maxSymbol, s);
+            }
+        }
+        if (distinct == 1 && count > 2) {
+            mode[0] = Zstd.MODE_RLE;
+            table.rle = true;
+            blockBuffer[offset] = (byte) maxSymbol;
+            return 1;
+        }
+        boolean defaultAllowed = maxSymbol < defaultDistribution.length;
+        double defaultCost = defaultAllowed ? getCost(histogram, maxSymbol, defaultDistribution, defaultTableLog)
+                : Double.MAX_VALUE;
+        short[] normalized = new short[maxSymbol + 1];
+        int tableLog = FSE.getOptimalTableLog(maxTableLog, count, maxSymbol);
+        FSE.normalize(histogram, maxSymbol, count, tableLog, normalized);
+        byte[] description = new byte[64 + maxSymbol * 2];
+        int descriptionSize = FSE.writeCounts(normalized, maxSymbol, tableLog, description, 0);
+        double customCost = getCost(histogram, maxSymbol, normalized, tableLog) + descriptionSize * 8;
+        if (defaultAllowed && defaultCost <= customCost) {
+            mode[0] = Zstd.MODE_PREDEFINED;
+            copyTable(new FSE.EncodingTable(defaultDistribution, defaultDistribution.length - 1, defaultTableLog),
+                    table);
+            return 0;
+        }
+        mode[0] = Zstd.MODE_FSE;
+        copyTable(new FSE.EncodingTable(normalized, maxSymbol, tableLog), table);
+        System.arraycopy(description, 0, blockBuffer, offset, descriptionSize);
+        return descriptionSize;
+    }
+
+    private void copyTable(FSE.EncodingTable source, FSE.EncodingTable destination) {
+        destination.tableLog = source.tableLog;
+        destination.states = source.states;
+        destination.deltaBits = source.deltaBits;
+        destination.deltaFindState = source.deltaFindState;
+        destination.rle = false;
+    }
+
+    private double getCost(int[] histogram, int maxSymbol, short[] counts, int tableLog) {
+        double cost = 0;
+        for (int s = 0; s <= maxSymbol; s++) {
+            if (histogram[s] > 0) {
+                int count = counts[s] == -1 ? 1 : counts[s];
+                cost += histogram[s] * (tableLog - Math.log(count) / Math.log(2));
+            }
+        }
+        return cost;
+    }
+
+}
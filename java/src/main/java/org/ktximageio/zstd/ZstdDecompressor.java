@@ -0,0 +1,670 @@
+package org.ktximageio.zstd;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.zip.DataFormatException;
+
+/**
+ * Pure Java Zstandard decompressor, RFC 8878.
+ * Decompresses frames directly into the destination buffer, dictionaries are not supported.
+ * One instance may be reused but is not threadsafe.
+ *
+ */
+public class ZstdDecompressor {
+
+    /**
+     * Sequences are copied 8 bytes at a time, the literals buffer is padded so that such copies never read past the
+     * end
+     */
+    private static final int WILDCOPY_LENGTH = Long.BYTES;
+
+    private static final VarHandle LONG_LE = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.LITTLE_ENDIAN);
+
+    private final byte[] literals = new byte[Zstd.MAX_BLOCK_SIZE + WILDCOPY_LENGTH];
+    /**
+     * Compressed blocks are copied to the heap so that the sequences bitstream can be read with plain array access
+     */
+    private final byte[] block = new byte[Zstd.MAX_BLOCK_SIZE + Long.BYTES];
+    private final ByteBuffer blockBuffer = ByteBuffer.wrap(block).order(ByteOrder.LITTLE_ENDIAN);
+    private final Huffman.DecodingTable huffman = new Huffman.DecodingTable();
+    private final FSE.DecodingTable literalsLengthTable = new FSE.DecodingTable(Zstd.LITERALS_LENGTH_MAX_TABLE_LOG);
+    private final FSE.DecodingTable offsetTable = new FSE.DecodingTable(Zstd.OFFSET_MAX_TABLE_LOG);
+    private final FSE.DecodingTable matchLengthTable = new FSE.DecodingTable(Zstd.MATCH_LENGTH_MAX_TABLE_LOG);
+    private final FSE.DecodingTable defaultLiteralsLengthTable = new FSE.DecodingTable(
+            Zstd.LITERALS_LENGTH_DEFAULT_TABLE_LOG);
+    private final FSE.DecodingTable defaultOffsetTable = new FSE.DecodingTable(Zstd.OFFSET_DEFAULT_TABLE_LOG);
+    private final FSE.DecodingTable defaultMatchLengthTable = new FSE.DecodingTable(
+            Zstd.MATCH_LENGTH_DEFAULT_TABLE_LOG);
+    private final short[] counts = new short[Zstd.MATCH_LENGTH_MAX_SYMBOL + 1];
+    private final int[] tableResult = new int[2];
+    private final int[] repeatOffsets = new int[3];
+
+    private FSE.DecodingTable currentLiteralsLength;
+    private FSE.DecodingTable currentOffset;
+    private FSE.DecodingTable currentMatchLength;
+    private int literalsSize;
+
+    /**
+     * Frame header fields
+     */
+    private long frameContentSize;
+    private int frameEnd;
+    private int windowSize;
+    private boolean checksum;
+
+    public ZstdDecompressor() {
+        try {
+            defaultLiteralsLengthTable.build(Zstd.LITERALS_LENGTH_DEFAULT_DISTRIBUTION,
+                    Zstd.LITERALS_LENGTH_MAX_SYMBOL, Zstd.LITERALS_LENGTH_DEFAULT_TABLE_LOG);
+            defaultOffsetTable.build(Zstd.OFFSET_DEFAULT_DISTRIBUTION, Zstd.OFFSET_DEFAULT_MAX_SYMBOL,
+                    Zstd.OFFSET_DEFAULT_TABLE_LOG);
+            defaultMatchLengthTable.build(Zstd.MATCH_LENGTH_DEFAULT_DISTRIBUTION, Zstd.MATCH_LENGTH_MAX_SYMBOL,
+                    Zstd.MATCH_LENGTH_DEFAULT_TABLE_LOG);
+        } catch (DataFormatException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * Decompresses all frames from the remaining bytes of source into destination.
+     * Position of source is moved to the limit and position of destination is moved past the decompressed data.
+     *
+     * @param source Compressed data, one or more Zstandard or skippable frames
+     * @param destination Destination for the decompressed data
+     * @return Number of decompressed bytes
+     * @throws DataFormatException If the data is not valid Zstandard data or does not fit in destination
+     */
+    public int decompress(ByteBuffer source, ByteBuffer destination) throws DataFormatException {
+        ByteBuffer input = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer output = destination.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int position = input.position();
+        int end = input.limit();
+        int outputStart = output.position();
+        int outputPosition = outputStart;
+        try {
+            while (position < end) {
+                if (end - position < 4) {
+                    throw new DataFormatException("Truncated frame");
+                }
+                int magic = input.getInt(position);
+                if ((magic & Zstd.SKIPPABLE_MAGIC_MASK) == Zstd.SKIPPABLE_MAGIC_NUMBER) {
+                    if (end - position < 8) {
+                        throw new DataFormatException("Truncated skippable frame");
+                    }
+                    long size = input.getInt(position + 4) & 0xffffffffL;
+                    if (size > end - position - 8) {
+                        throw new DataFormatException("Truncated skippable frame");
+                    }
+                    position += 8 + (int) size;
+                } else if (magic == Zstd.MAGIC_NUMBER) {
+                    int frameStart = outputPosition;
+                    position = readFrameHeader(input, position + 4, end);
+                    if (frameContentSize >= 0 && frameContentSize > output.limit() - frameStart) {
+                        throw new DataFormatException(
+                                "Destination too small for frame, need " + frameContentSize + " bytes");
+                    }
+                    frameEnd = frameContentSize >= 0 ? frameStart + (int) frameContentSize : output.limit();
+                    long[] result = decodeBlocks(input, position, end, output, frameStart);
+                    position = (int) result[0];
+                    outputPosition = (int) result[1];
+                    if (frameContentSize >= 0 && outputPosition - frameStart != frameContentSize) {
+                        throw new DataFormatException("Frame content size " + frameContentSize
+                                + " does not match decompressed size " + (outputPosition - frameStart));
+                    }
+                    if (checksum) {
+                        if (end - position < 4) {
+                            throw new DataFormatException("Missing content checksum");
+                        }
+                        int expected = input.getInt(position);
+                        position += 4;
+                        int actual = (int) XXHash64.hash(output, frameStart, outputPosition - frameStart, 0);
+                        if (expected != actual) {
+                            throw new DataFormatException("Content checksum mismatch");
+                        }
+                    }
+                } else {
+                    throw new DataFormatException("Invalid magic number 0x" + Integer.toHexString(magic));
+                }
+            }
+        } catch (IndexOutOfBoundsException e) {
+            throw new DataFormatException("Corrupted data, " + e.getMessage());
+        }
+        source.position(end);
+        destination.position(outputPosition);
+        return outputPosition - outputStart;
+    }
+
+    /**
+     * Returns the compressed and decompressed size of the frame that starts at the position of source, without
+     * decompressing it. Used to split data that is larger than one buffer into frames.
+     *
+     * @param source Compressed data, the frame starts at position
+     * @return Array with the compressed size, or -1 if the frame does not end before the limit of source, and the
+     * decompressed size, or -1 if not known
+     * @throws DataFormatException If the data is not a Zstandard or skippable frame
+     */
+    public long[] getFrameSize(ByteBuffer source) throws DataFormatException {
+        ByteBuffer input = source.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        int start = input.position();
+        int end = input.limit();
+        try {
+            int magic = input.getInt(start);
+            if ((magic & Zstd.SKIPPABLE_MAGIC_MASK) == Zstd.SKIPPABLE_MAGIC_NUMBER) {
+                long size = 8 + (input.getInt(start + 4) & 0xffffffffL);
+                return new long[] { size > end - start ? -1 : size, 0 };
+            }
+            if (magic != Zstd.MAGIC_NUMBER) {
+                throw new DataFormatException("Invalid magic number 0x" + Integer.toHexString(magic));
+            }
+            int position = readFrameHeader(input, start + 4, end);
+            boolean last = false;
+            while (!last && position <= end) {
+                if (end - position < 3) {
+                    return new long[] { -1, frameContentSize };
+                }
+                int header = (input.get(position) & 0xff) | (input.get(position + 1) & 0xff) << 8
+                        | (input.get(position + 2) & 0xff) << 16;
+                last = (header & 0x01) != 0;
+                position += 3 + (((header >>> 1) & 0x03) == Zstd.BLOCK_RLE ? 1 : header >>> 3);
+            }
+            position += checksum ? 4 : 0;
+            return new long[] { position > end ? -1 : position - start, frameContentSize };
+        } catch (IndexOutOfBoundsException e) {
+            return new long[] { -1, -1 };
+        }
+    }
+
+    private int readFrameHeader(ByteBuffer input, int offset, int end) throws DataFormatException {
+        int position = offset;
+        int descriptor = input.get(position++) & 0xff;
+        int contentSizeFlag = descriptor >>> 6;
+        boolean singleSegment = (descriptor & 0x20) != 0;
+        if ((descriptor & 0x08) != 0) {
+            throw new DataFormatException("Reserved bit set in frame header");
+        }
+        checksum = (descriptor & 0x04) != 0;
+        int dictionaryIdFlag = descriptor & 0x03;
+        windowSize = -1;
+        if (!singleSegment) {
+            int windowDescriptor = input.get(position++) & 0xff;
+            int windowLog = Zstd.MIN_WINDOW_LOG + (windowDescriptor >>> 3);
+            if (windowLog > 31) {
+                throw new DataFormatException("Window too large, log " + windowLog);
+            }
+            long windowBase = 1L << windowLog;
+            long window = windowBase + (windowBase >> 3) * (windowDescriptor & 0x07);
+            windowSize = (int) Math.min(Integer.MAX_VALUE, window);
+        }
+        int dictionaryIdSize = dictionaryIdFlag == 3 ? 4 : dictionaryIdFlag;
+        long dictionaryId = 0;
+        for (int i = 0; i < dictionaryIdSize; i++) {
+            dictionaryId |= (input.get(position++) & 0xffL) << (i << 3);
+        }
+        if (dictionaryId != 0) {
+            throw new DataFormatException("Dictionaries not supported, id " + dictionaryId);
+        }
+        int contentSizeBytes;
+        switch (contentSizeFlag) {
+            case 0:
+                contentSizeBytes = singleSegment ? 1 : 0;
+                break;
+            case 1:
+                contentSizeBytes = 2;
+                break;
+            case 2:
+                contentSizeBytes = 4;
+                break;
+            default:
+                contentSizeBytes = 8;
+        }
+        frameContentSize = -1;
+        if (contentSizeBytes > 0) {
+            long size = 0;
+            for (int i = 0; i < contentSizeBytes; i++) {
+                size |= (input.get(position++) & 0xffL) << (i << 3);
+            }
+            frameContentSize = contentSizeBytes == 2 ? size + 256 : size;
+        }
+        if (singleSegment) {
+            windowSize = (int) Math.min(Integer.MAX_VALUE, frameContentSize);
+        }
+        if (position > end) {
+            throw new DataFormatException("Truncated frame header");
+        }
+        return position;
+    }
+
+    private long[] decodeBlocks(ByteBuffer input, int offset, int end, ByteBuffer output, int frameStart)
+            throws DataFormatException {
+        int position = offset;
+        int outputPosition = frameStart;
+        int maxBlockSize = Math.min(Math.max(windowSize, 0), Zstd.MAX_BLOCK_SIZE);
+        repeatOffsets[0] = 1;
+        repeatOffsets[1] = 4;
+        repeatOffsets[2] = 8;
+        huffman.valid = false;
+        currentLiteralsLength = null;
+        currentOffset = null;
+        currentMatchLength = null;
+        boolean last = false;
+        while (!last) {
+            if (end - position < 3) {
+                throw new DataFormatException("Truncated block header");
+            }
+            int header = (input.get(position) & 0xff) | (input.get(position + 1) & 0xff) << 8
+                    | (input.get(position + 2) & 0xff) << 16;
+            position += 3;
+            last = (header & 0x01) != 0;
+            int type = (header >>> 1) & 0x03;
+            int size = header >>> 3;
+            switch (type) {
+                case Zstd.BLOCK_RAW:
+                    checkSpace(output, outputPosition, size);
+                    if (end - position < size) {
+                        throw new DataFormatException("Truncated raw block");
+                    }
+                    ByteBuffer raw = input.duplicate();
+                    raw.limit(position + size).position(position);
+                    output.position(outputPosition);
+                    output.put(raw);
+                    position += size;
+                    outputPosition += size;
+                    break;
+                case Zstd.BLOCK_RLE:
+                    checkSpace(output, outputPosition, size);
+                    byte value = input.get(position++);
+                    for (int i = 0; i < size; i++) {
+                        output.put(outputPosition++, value);
+                    }
+                    break;
+                case Zstd.BLOCK_COMPRESSED:
+                    if (size > maxBlockSize || end - position < size) {
+                        throw new DataFormatException("Invalid compressed block size " + size);
+                    }
+                    outputPosition = decodeCompressedBlock(input, position, position + size, output, outputPosition,
+                            frameStart);
+                    position += size;
+                    break;
+                default:
+                    throw new DataFormatException("Reserved block type");
+            }
+        }
+        return new long[] { position, outputPosition };
+    }
+
+    private void checkSpace(ByteBuffer output, int position, int size) throws DataFormatException {
+        if (size > output.limit() - position) {
+            throw new DataFormatException("Destination too small");
+        }
+    }
+
+    private int decodeCompressedBlock(ByteBuffer input, int offset, int end, ByteBuffer output, int outputOffset,
+            int frameStart) throws DataFormatException {
+        int size = end - offset;
+        ByteBuffer compressed = input.duplicate();
+        compressed.limit(end).position(offset);
+        blockBuffer.clear();
+        blockBuffer.put(compressed);
+        int position = decodeLiterals(blockBuffer, 0, size);
+        if (position >= size) {
+            throw new DataFormatException("Missing sequences section");
+        }
+        int sequenceCount = block[position++] & 0xff;
+        if (sequenceCount >= 128) {
+            if (sequenceCount < 255) {
+                sequenceCount = ((sequenceCount - 128) << 8) + (block[position++] & 0xff);
+            } else {
+                sequenceCount = (block[position] & 0xff) + ((block[position + 1] & 0xff) << 8) + 0x7F00;
+                position += 2;
+            }
+        }
+        if (sequenceCount == 0) {
+            if (position != size) {
+                throw new DataFormatException("Unexpected data after literals");
+            }
+            return copyLiterals(output, outputOffset, 0, literalsSize);
+        }
+        int modes = block[position++] & 0xff;
+        if ((modes & 0x03) != 0) {
+            throw new DataFormatException("Reserved bits set in sequence compression modes");
+        }
+        position = readTable(blockBuffer, position, size, modes >>> 6, literalsLengthTable,
+                defaultLiteralsLengthTable, Zstd.LITERALS_LENGTH_MAX_SYMBOL, Zstd.LITERALS_LENGTH_MAX_TABLE_LOG, 0);
+        position = readTable(blockBuffer, position, size, (modes >>> 4) & 0x03, offsetTable, defaultOffsetTable,
+                Zstd.OFFSET_MAX_SYMBOL, Zstd.OFFSET_MAX_TABLE_LOG, 1);
+        position = readTable(blockBuffer, position, size, (modes >>> 2) & 0x03, matchLengthTable,
+                defaultMatchLengthTable, Zstd.MATCH_LENGTH_MAX_SYMBOL, Zstd.MATCH_LENGTH_MAX_TABLE_LOG, 2);
+        return decodeSequences(position, size, sequenceCount, output, outputOffset, frameStart);
+    }
+
+    private int readTable(ByteBuffer input, int offset, int end, int mode, FSE.DecodingTable table,
+            FSE.DecodingTable defaultTable, int maxSymbol, int maxTableLog, int index) throws DataFormatException {
+        FSE.DecodingTable result;
+        int position = offset;
+        switch (mode) {
+            case Zstd.MODE_PREDEFINED:
+                result = defaultTable;
+                break;
+            case Zstd.MODE_RLE:
+                int symbol = input.get(position++) & 0xff;
+                if (symbol > maxSymbol) {
+                    throw new DataFormatException("Invalid RLE symbol " + symbol);
+                }
+                table.setRLE(symbol);
+                result = table;
+                break;
+            case Zstd.MODE_FSE:
+                position += FSE.readCounts(input, position, end, counts, maxSymbol, maxTableLog, tableResult);
+                table.build(counts, tableResult[1], tableResult[0]);
+                result = table;
+                break;
+            default:
+                result = index == 0 ? currentLiteralsLength : index == 1 ? currentOffset : currentMatchLength;
+                if (result == null) {
+                    throw new DataFormatException("Repeat mode without previous table");
+                }
+        }
+        if (index == 0) {
+            currentLiteralsLength = result;
+        } else if (index == 1) {
+            currentOffset = result;
+        } else {
+            currentMatchLength = result;
+        }
+        return position;
+    }
+
+    private int decodeLiterals(ByteBuffer input, int offset, int end) throws DataFormatException {
+        int header = input.get(offset) & 0xff;
+        int type = header & 0x03;
+        int sizeFormat = (header >>> 2) & 0x03;
+        int position = offset;
+        if (type == Zstd.LITERALS_RAW || type == Zstd.LITERALS_RLE) {
+            switch (sizeFormat) {
+                case 0:
+                case 2:
+                    literalsSize = header >>> 3;
+                    position += 1;
+                    break;
+                case 1:
+                    literalsSize = (header >>> 4) + ((input.get(offset + 1) & 0xff) << 4);
+                    position += 2;
+                    break;
+                default:
+                    literalsSize = (header >>> 4) + ((input.get(offset + 1) & 0xff) << 4)
+                            + ((input.get(offset + 2) & 0xff) << 12);
+                    position += 3;
+            }
+            if (literalsSize > Zstd.MAX_BLOCK_SIZE) {
+                throw new DataFormatException("Literals size too large " + literalsSize);
+            }
+            if (type == Zstd.LITERALS_RAW) {
+                if (position + literalsSize > end) {
+                    throw new DataFormatException("Truncated raw literals");
+                }
+                ByteBuffer raw = input.duplicate();
+                raw.limit(position + literalsSize).position(position);
+                raw.get(literals, 0, literalsSize);
+                return position + literalsSize;
+            }
+            byte value = input.get(position);
+            for (int i = 0; i < literalsSize; i++) {
+                literals[i] = value;
+            }
+            return position + 1;
+        }
+        int streams = sizeFormat == 0 ? 1 : 4;
+        int compressedSize;
+        if (sizeFormat <= 1) {
+            int value = header | ((input.get(offset + 1) & 0xff) << 8) | ((input.get(offset + 2) & 0xff) << 16);
+            literalsSize = (value >>> 4) & 0x3FF;
+            compressedSize = (value >>> 14) & 0x3FF;
+            position += 3;
+        } else if (sizeFormat == 2) {
+            int value = input.getInt(offset);
+            literalsSize = (value >>> 4) & 0x3FFF;
+            compressedSize = (value >>> 18) & 0x3FFF;
+            position += 4;
+        } else {
+            long value = (input.getInt(offset) & 0xffffffffL) | ((input.get(offset + 4) & 0xffL) << 32);
+            literalsSize = (int) ((value >>> 4) & 0x3FFFF);
+            compressedSize = (int) ((value >>> 22) & 0x3FFFF);
+            position += 5;
+        }
+        if (literalsSize > Zstd.MAX_BLOCK_SIZE) {
+            throw new DataFormatException("Literals size too large " + literalsSize);
+        }
+        int literalsEnd = position + compressedSize;
+        if (literalsEnd > end) {
+            throw new DataFormatException("Truncated compressed literals");
+        }
+        if (type == Zstd.LITERALS_COMPRESSED) {
+            position += huffman.read(input, position, literalsEnd);
+        } else if (!huffman.valid) {
+            throw new DataFormatException("Treeless literals without previous Huffman table");
+        }
+        if (streams == 1) {
+            huffman.decodeStream(input, position, literalsEnd, literals, 0, literalsSize);
+        } else {
+            if (literalsEnd - position < 10) {
+                throw new DataFormatException("Truncated jump table");
+            }
+            int size1 = input.getShort(position) & 0xffff;
+            int size2 = input.getShort(position + 2) & 0xffff;
+            int size3 = input.getShort(position + 4) & 0xffff;
+            int start1 = position + 6;
+            int start2 = start1 + size1;
+            int start3 = start2 + size2;
+            int start4 = start3 + size3;
+            if (start4 >= literalsEnd) {
+                throw new DataFormatException("Invalid jump table");
+            }
+            int segment = (literalsSize + 3) >> 2;
+            int lastSegment = literalsSize - 3 * segment;
+            if (lastSegment < 0) {
+                throw new DataFormatException("Invalid literals size for 4 streams " + literalsSize);
+            }
+            huffman.decodeStream(input, start1, start2, literals, 0, segment);
+            huffman.decodeStream(input, start2, start3, literals, segment, segment);
+            huffman.decodeStream(input, start3, start4, literals, 2 * segment, segment);
+            huffman.decodeStream(input, start4, literalsEnd, literals, 3 * segment, lastSegment);
+        }
+        return literalsEnd;
+    }
+
+    private int copyLiterals(ByteBuffer output, int outputPosition, int offset, int length)
+            throws DataFormatException {
+        checkSpace(output, outputPosition, length);
+        output.position(outputPosition);
+        output.put(literals, offset, length);
+        return outputPosition + length;
+    }
+
+    /**
+     * Decodes and executes the sequences in block[offset, end), the bit reader state is kept in locals since this is
+     * where most of the time is spent.
+     */
+    private int decodeSequences(int offset, int end, int sequenceCount, ByteBuffer output, int outputOffset,
+            int frameStart) throws DataFormatException {
+        int size = end - offset;
+        if (size < 1 || block[end - 1] == 0) {
+            throw new DataFormatException("Missing end-mark in sequences bitstream");
+        }
+        int bitPosition;
+        long bits;
+        int consumed;
+        if (size >= Long.BYTES) {
+            bitPosition = end - Long.BYTES;
+            bits = (long) LONG_LE.get(block, bitPosition);
+            consumed = 0;
+        } else {
+            // The block array is padded, bytes after the stream are marked as consumed
+            bitPosition = offset;
+            bits = (long) LONG_LE.get(block, offset);
+            consumed = (Long.BYTES - size) << 3;
+        }
+        consumed += 8 - Zstd.highBit(block[end - 1] & 0xff);
+
+        int[] llEntries = currentLiteralsLength.entries;
+        int[] ofEntries = currentOffset.entries;
+        int[] mlEntries = currentMatchLength.entries;
+        int llState = readBits(bits, consumed, currentLiteralsLength.tableLog);
+        consumed += currentLiteralsLength.tableLog;
+        int ofState = readBits(bits, consumed, currentOffset.tableLog);
+        consumed += currentOffset.tableLog;
+        int mlState = readBits(bits, consumed, currentMatchLength.tableLog);
+        consumed += currentMatchLength.tableLog;
+
+        int outputPosition = outputOffset;
+        int outputLimit = output.limit();
+        int wildcopyLimit = Math.min(outputLimit, frameEnd);
+        int literalsPosition = 0;
+        int rep0 = repeatOffsets[0];
+        int rep1 = repeatOffsets[1];
+        int rep2 = repeatOffsets[2];
+        for (int i = 0; i < sequenceCount; i++) {
+            int back = Math.min(consumed >>> 3, bitPosition - offset);
+            bitPosition -= back;
+            consumed -= back << 3;
+            bits = (long) LONG_LE.get(block, bitPosition);
+
+            int llEntry = llEntries[llState];
+            int ofEntry = ofEntries[ofState];
+            int mlEntry = mlEntries[mlState];
+            int ofCode = ofEntry & 0xff;
+            int mlCode = mlEntry & 0xff;
+            int llCode = llEntry & 0xff;
+            int mlBits = Zstd.MATCH_LENGTH_BITS[mlCode];
+            int llBits = Zstd.LITERALS_LENGTH_BITS[llCode];
+            long offsetValue = (1L << ofCode) + readBits(bits, consumed, ofCode);
+            consumed += ofCode;
+            if (ofCode + mlBits + llBits > 31) {
+                // Worst case does not fit in the container with the state updates, refill between fields
+                back = Math.min(consumed >>> 3, bitPosition - offset);
+                bitPosition -= back;
+                consumed -= back << 3;
+                bits = (long) LONG_LE.get(block, bitPosition);
+            }
+            int matchLength = Zstd.MATCH_LENGTH_BASE[mlCode] + readBits(bits, consumed, mlBits);
+            consumed += mlBits;
+            int literalsLength = Zstd.LITERALS_LENGTH_BASE[llCode] + readBits(bits, consumed, llBits);
+            consumed += llBits;
+            if (i + 1 < sequenceCount) {
+                int nbBits = (llEntry >>> 8) & 0xff;
+                llState = (llEntry >>> 16) + readBits(bits, consumed, nbBits);
+                consumed += nbBits;
+                nbBits = (mlEntry >>> 8) & 0xff;
+                mlState = (mlEntry >>> 16) + readBits(bits, consumed, nbBits);
+                consumed += nbBits;
+                nbBits = (ofEntry >>> 8) & 0xff;
+                ofState = (ofEntry >>> 16) + readBits(bits, consumed, nbBits);
+                consumed += nbBits;
+            }
+
+            int matchOffset;
+            if (offsetValue > 3) {
+                matchOffset = (int) Math.min(Integer.MAX_VALUE, offsetValue - 3);
+                rep2 = rep1;
+                rep1 = rep0;
+                rep0 = matchOffset;
+            } else {
+                int index = (int) offsetValue - 1 + (literalsLength == 0 ? 1 : 0);
+                switch (index) {
+                    case 0:
+                        matchOffset = rep0;
+                        break;
+                    case 1:
+                        matchOffset = rep1;
+                        rep1 = rep0;
+                        rep0 = matchOffset;
+                        break;
+                    case 2:
+                        matchOffset = rep2;
+                        rep2 = rep1;
+                        rep1 = rep0;
+                        rep0 = matchOffset;
+                        break;
+                    default:
+                        matchOffset = Math.max(1, rep0 - 1);
+                        rep2 = rep1;
+                        rep1 = rep0;
+                        rep0 = matchOffset;
+                }
+            }
+            if (literalsPosition + literalsLength > literalsSize) {
+                throw new DataFormatException("Sequence literals length exceeds literals");
+            }
+            if (matchOffset > outputPosition + literalsLength - frameStart) {
+                throw new DataFormatException("Match offset " + matchOffset + " before start of frame");
+            }
+            int sequenceEnd = outputPosition + literalsLength + matchLength;
+            if (sequenceEnd + WILDCOPY_LENGTH <= wildcopyLimit) {
+                for (int l = 0; l < literalsLength; l += WILDCOPY_LENGTH) {
+                    output.putLong(outputPosition + l, (long) LONG_LE.get(literals, literalsPosition + l));
+                }
+                outputPosition += literalsLength;
+                int from = outputPosition - matchOffset;
+                int l = 0;
+                if (matchOffset < WILDCOPY_LENGTH) {
+                    // Repeat the pattern until the distance is at least 8, then copy from that distance
+                    int distance = matchOffset * ((WILDCOPY_LENGTH + matchOffset - 1) / matchOffset);
+                    for (; l < distance && l < matchLength; l++) {
+                        output.put(outputPosition + l, output.get(from + l));
+                    }
+                    from = outputPosition - distance;
+                }
+                for (; l < matchLength; l += WILDCOPY_LENGTH) {
+                    output.putLong(outputPosition + l, output.getLong(from + l));
+                }
+            } else {
+                if (sequenceEnd > outputLimit) {
+                    throw new DataFormatException("Destination too small");
+                }
+                outputPosition = copyLiterals(output, outputPosition, literalsPosition, literalsLength);
+                copyMatch(output, outputPosition, matchOffset, matchLength);
+            }
+            literalsPosition += literalsLength;
+            outputPosition = sequenceEnd;
+        }
+        if (bitPosition != offset || consumed != Long.SIZE) {
+            throw new DataFormatException("Sequences bitstream not fully consumed");
+        }
+        repeatOffsets[0] = rep0;
+        repeatOffsets[1] = rep1;
+        repeatOffsets[2] = rep2;
+        return copyLiterals(output, outputPosition, literalsPosition, literalsSize - literalsPosition);
+    }
+
+    /**
+     * Returns count bits from the container, after skipping the consumed bits
+     */
+    private static int readBits(long bits, int consumed, int count) {
+        return (int) (((bits << consumed) >>> 1) >>> (63 - count));
+    }
+
+    private void copyMatch(ByteBuffer output, int position, int offset, int length) {
+        int from = position - offset;
+        if (offset >= length && length >= 32) {
+            ByteBuffer match = output.duplicate();
+            match.limit(from + length).position(from);
+            output.position(position);
+            output.put(match);
+        } else if (offset >= Long.BYTES) {
+            int i = 0;
+            for (; i + Long.BYTES <= length; i += Long.BYTES) {
+                output.putLong(position + i, output.getLong(from + i));
+            }
+            for (; i < length; i++) {
+                output.put(position + i, output.get(from + i));
+            }
+        } else {
+            for (int i = 0; i < length; i++) {
+                output.put(position + i, output.get(from + i));
+            }
+        }
+    }
+
+}
@@ -1,6 +1,7 @@
 package org.ktximageio.ktx;
 
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.awt.image.BufferedImage;
@@ -9,13 +10,20 @@ import java.io.IOException;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.imageio.ImageIO;
 
 import org.junit.jupiter.api.Test;
 import org.ktximageio.ktx.ImageReader.ImageFormat;
 import org.ktximageio.ktx.ImageReader.MimeFormat;
+import org.ktximageio.ktx.KTX.SuperCompression;
+import org.ktximageio.ktx.KTXSerializer.Settings;
 
 public class ImageReaderTest extends org.ktximageio.ktx.Test {
 
@@ -48,6 +56,48 @@ public class ImageReaderTest extends org.ktximageio.ktx.Test {
         assertNotNull(reader);
     }
 
+    @Test
+    public void testReadAsync() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (String imageName : new String[] { "equirectangle.png", "WideStreetHDR.ktx2" }) {
+                ImageReader reader = ImageReader.getImageReader(imageName);
+                Path path = Paths.get(getPath(imageName));
+                CompletableFuture<ImageBuffer> future = reader.readDataAsync(path, executor);
+                ImageHeader header = reader.read(path);
+                ImageBuffer expected = header.getData();
+                ImageBuffer buffer = future.join();
+                assertTrue(buffer.width == expected.width);
+                assertTrue(buffer.height == expected.height);
+                assertTrue(buffer.format == expected.format);
+                assertTrue(buffer.getBuffer().equals(expected.getBuffer()));
+                header.destroy();
+                // The file data read by the async path is released when the buffer is closed
+                SharedBuffer owner = buffer.getOwner();
+                assertNotNull(owner);
+                buffer.close();
+                assertTrue(owner.isReleased());
+            }
+            // Levels of an uncompressed file are views of the file data, released with the last view
+            Path uncompressed = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testreadasync")));
+            Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 1, 0, 16, 8, 0,
+                    SuperCompression.None);
+            new KTXSerializer().serialize(uncompressed, null, settings, new byte[16 * 8 * 6]);
+            ImageHeader header = new KTXDeserializer().readAsync(uncompressed, executor).join();
+            ImageBuffer level = header.getLevel(0);
+            SharedBuffer owner = level.getOwner();
+            header.destroy();
+            assertTrue(!owner.isReleased());
+            level.close();
+            assertTrue(owner.isReleased());
+            CompletableFuture<ImageHeader> missing = new KTXDeserializer()
+                    .readAsync(Paths.get(getPath("missing.ktx2")), executor);
+            assertThrows(CompletionException.class, () -> missing.join());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
     void assertImage(String imageName, ImageFormat format) throws IOException, URISyntaxException {
         ImageReader reader = ImageReader.getImageReader(imageName);
         assertNotNull(reader);
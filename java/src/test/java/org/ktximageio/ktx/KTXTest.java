@@ -1,18 +1,32 @@
 package org.ktximageio.ktx;
 
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.DataFormatException;
 
 import org.junit.jupiter.api.Test;
+import org.ktximageio.ktx.BlockEncoder.Quality;
 import org.ktximageio.ktx.ImageReader.ImageFormat;
 import org.ktximageio.ktx.ImageReader.MimeFormat;
 import org.ktximageio.ktx.KTX.DataFormatDescriptorBlock;
@@ -20,8 +34,10 @@ import org.ktximageio.ktx.KTX.KTXFormat;
 import org.ktximageio.ktx.KTX.KTXHeader;
 import org.ktximageio.ktx.KTX.KeyValue;
 import org.ktximageio.ktx.KTX.KeyValueData;
+import org.ktximageio.ktx.KTX.SuperCompression;
 import org.ktximageio.ktx.KTX.TextureType;
 import org.ktximageio.ktx.KTXSerializer.Settings;
+import org.ktximageio.sh.SphericalHarmonics;
 
 public class KTXTest extends org.ktximageio.ktx.Test {
 
@@ -99,10 +115,1798 @@ public class KTXTest extends org.ktximageio.ktx.Test {
         saveLoadAssert(createRandomData(settings), settings, null, MimeFormat.KTX2.getFilename("testktx6faces"));
     }
 
+    @Test
+    public void testKTXLevels() throws IOException {
+        int width = 64;
+        int height = 32;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 1, 0, width, height, 0);
+        byte[] data = createRandomData(settings);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxlevels")));
+        new KTXSerializer().serialize(filepath, null, settings, data);
+
+        ImageHeader header = new KTXDeserializer().read(filepath);
+        ImageBuffer[] levels = header.getLevels(0, 1);
+        assertTrue(levels.length == 1);
+        assertTrue(levels[0].width == width);
+        assertTrue(levels[0].height == height);
+        assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(levels[0].getBuffer())));
+        assertThrows(IllegalArgumentException.class, () -> header.getLevel(1));
+        header.destroy();
+    }
+
+    @Test
+    public void testKTXNoSuperCompression() throws IOException {
+        int width = 100;
+        int height = 99;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, width, height, 0,
+                SuperCompression.None);
+        saveLoadAssert(createRandomData(settings), settings, null, MimeFormat.KTX2.getFilename("testktxnone"));
+
+        ImageHeader header = new KTXDeserializer().read(Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxnone"))));
+        ByteBuffer pixels = header.getData().getBuffer();
+        assertTrue(pixels.isReadOnly());
+        assertTrue(pixels.isDirect());
+        assertTrue(((KTXHeader) header).getOffset(0) % 12 == 0);
+        header.destroy();
+    }
+
+    @Test
+    public void testKTXZStandard() throws IOException {
+        int width = 100;
+        int height = 99;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, width, height, 0,
+                SuperCompression.ZStandard);
+        saveLoadAssert(createRandomData(settings), settings, null, MimeFormat.KTX2.getFilename("testktxzstd"));
+
+        ImageHeader header = new KTXDeserializer().read(Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxzstd"))));
+        assertTrue(((KTXHeader) header).getSuperCompression() == SuperCompression.ZStandard);
+        header.destroy();
+    }
+
+    @Test
+    public void testKTXParallelLevels() throws IOException {
+        int width = 128;
+        int height = 64;
+        for (SuperCompression sc : SuperCompression.values()) {
+            Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, width, height, 0, sc);
+            byte[] data = createRandomData(settings);
+            Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxparallel")));
+            if (sc == SuperCompression.BasisLZ) {
+                // The supercompression global data is not written
+                assertThrows(IllegalArgumentException.class,
+                        () -> new KTXSerializer().serialize(filepath, null, settings, data));
+                continue;
+            }
+            new KTXSerializer().serialize(filepath, null, settings, data);
+
+            ImageHeader header = new KTXDeserializer(ForkJoinPool.commonPool()).read(filepath);
+            ImageBuffer[] levels = header.getLevels(0, 1);
+            assertTrue(levels.length == 1);
+            assertTrue(levels[0].faceCount == 6);
+            assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(levels[0].getBuffer())));
+            assertThrows(IllegalArgumentException.class,
+                    () -> ((KTXHeader) header).getLevels(0, 2, ForkJoinPool.commonPool()));
+            header.destroy();
+        }
+    }
+
+    @Test
+    public void testKTXMipmaps() throws IOException {
+        int width = 64;
+        int height = 32;
+        int faces = 6;
+        // Constant value per face, must stay the same in all levels for all filters
+        ByteBuffer data = ByteBuffer.allocateDirect(width * height * faces * 12).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; i < width * height * faces * 3; i++) {
+            data.putFloat(i * Float.BYTES, 0.25f + i / (width * height * 3));
+        }
+        ImageBuffer base = ImageBuffer.createFloatBuffer(data, ImageFormat.VK_FORMAT_R32G32B32_SFLOAT, 0, faces,
+                new int[] { width, height, 0 });
+        int levelCount = MipmapGenerator.getLevelCount(width, height);
+        assertTrue(levelCount == 7);
+        for (MipmapGenerator.Filter filter : MipmapGenerator.Filter.values()) {
+            ImageBuffer[] levels = new MipmapGenerator(filter).generate(base, levelCount);
+            assertTrue(levels.length == levelCount);
+            for (int level = 1; level < levelCount; level++) {
+                assertTrue(levels[level].width == Math.max(1, width >> level));
+                assertTrue(levels[level].height == Math.max(1, height >> level));
+                assertTrue(levels[level].faceCount == faces);
+                FloatBuffer floats = levels[level].getBuffer().duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                        .asFloatBuffer();
+                float[] pixels = new float[floats.remaining()];
+                floats.get(pixels);
+                int faceSize = levels[level].width * levels[level].height * 3;
+                for (int i = 0; i < pixels.length; i++) {
+                    assertTrue(Math.abs(pixels[i] - (0.25f + i / faceSize)) < 0.0001f);
+                }
+            }
+        }
+        ImageBuffer[] levels = new MipmapGenerator(MipmapGenerator.Filter.KAISER).generate(base, levelCount);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxmipmaps")));
+        for (SuperCompression sc : new SuperCompression[] { SuperCompression.None, SuperCompression.ZStandard }) {
+            new KTXSerializer().serializeLevels(filepath, levels, sc);
+            KTXHeader header = (KTXHeader) new KTXDeserializer(ForkJoinPool.commonPool()).read(filepath);
+            assertTrue(header.getLevelCount() == levelCount);
+            ImageBuffer[] result = header.getLevels(0, levelCount);
+            for (int level = 0; level < levelCount; level++) {
+                assertTrue(Arrays.equals(ImageUtils.byteBufferToArray(levels[level].getBuffer()),
+                        ImageUtils.byteBufferToArray(result[level].getBuffer())));
+                if (level > 0) {
+                    // Smallest level first
+                    assertTrue(header.getOffset(level) < header.getOffset(level - 1));
+                }
+            }
+            header.destroy();
+        }
+        // Box filter of 8 bit unorm is the average of 2 x 2 pixels
+        byte[] pixels = new byte[] { 0, 0, 0, (byte) 255, (byte) 255, (byte) 255, 10, 20, 30, 10, 20, 30,
+                (byte) 255, (byte) 255, (byte) 255, 0, 0, 0, 30, 40, 50, 30, 40, 50 };
+        ByteBuffer bytes = ByteBuffer.allocateDirect(pixels.length).put(pixels);
+        ImageBuffer unorm = ImageBuffer.create(bytes, ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 1, 4, 2, 0);
+        ImageBuffer[] unormLevels = new MipmapGenerator(MipmapGenerator.Filter.BOX).generate(unorm, 2);
+        assertTrue(Arrays.equals(new byte[] { (byte) 128, (byte) 128, (byte) 128, 20, 30, 40 },
+                ImageUtils.byteBufferToArray(unormLevels[1].getBuffer())));
+    }
+
+    @Test
+    public void testKTXStreams() throws IOException {
+        int width = 64;
+        int height = 32;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 1, 0, width, height, 0);
+        ByteBuffer data = ByteBuffer.allocateDirect(width * height * 3).put(createRandomData(settings));
+        ImageBuffer base = ImageBuffer.create(data, ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 1, width, height, 0);
+        ImageBuffer[] levels = new MipmapGenerator(MipmapGenerator.Filter.BOX).generate(base, 4);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxstreams")));
+        for (SuperCompression sc : new SuperCompression[] { SuperCompression.None, SuperCompression.ZLIB,
+                SuperCompression.ZStandard }) {
+            KTXSerializer serializer = new KTXSerializer();
+            serializer.serializeLevels(filepath, levels, sc);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serializeLevels(out, levels, sc);
+            // Written in one pass to a stream, must be same as when header is written last
+            assertTrue(Arrays.equals(Files.readAllBytes(filepath), out.toByteArray()));
+
+            out.write(new byte[] { 1, 2, 3 });
+            ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+            ImageHeader header = new KTXDeserializer().read(in);
+            assertTrue(in.available() == 3);
+            assertTrue(header.getLevelCount() == levels.length);
+            for (int level = 0; level < levels.length; level++) {
+                assertTrue(Arrays.equals(ImageUtils.byteBufferToArray(levels[level].getBuffer()),
+                        ImageUtils.byteBufferToArray(header.getLevel(level).getBuffer())));
+            }
+            header.destroy();
+        }
+        assertThrows(IOException.class, () -> new KTXDeserializer().read(new ByteArrayInputStream(new byte[100])));
+    }
+
+    @Test
+    public void testKTXFaceIterator() throws IOException {
+        int width = 32;
+        int height = 32;
+        int faces = 6;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, faces, 0, width, height, 0);
+        byte[] data = createRandomData(settings);
+        int faceSize = width * height * 3;
+        for (SuperCompression sc : new SuperCompression[] { SuperCompression.None, SuperCompression.ZLIB,
+                SuperCompression.ZStandard }) {
+            ImageBuffer[] buffers = new ImageBuffer[faces];
+            ImageBuffer[] streamed = new ImageBuffer[faces];
+            for (int i = 0; i < faces; i++) {
+                buffers[i] = ImageBuffer.create(ByteBuffer.allocateDirect(faceSize).put(data, i * faceSize,
+                        faceSize), ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 1, width, height, 0);
+                streamed[i] = ImageBuffer.create(ByteBuffer.allocateDirect(faceSize).put(data, i * faceSize,
+                        faceSize), ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 1, width, height, 0);
+            }
+            KTXSerializer serializer = new KTXSerializer();
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            serializer.serializeFaces(expected, buffers, sc);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            serializer.serializeFaces(Channels.newChannel(out), Arrays.asList(streamed).iterator(), sc);
+            // Zstandard writes one frame per streamed face, the decompressed data is compared below
+            assertTrue(sc == SuperCompression.ZStandard || Arrays.equals(expected.toByteArray(), out.toByteArray()));
+            // Faces are released when consumed
+            for (ImageBuffer face : streamed) {
+                assertThrows(IllegalArgumentException.class, () -> face.getBuffer());
+            }
+            ImageHeader header = new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+            assertTrue(header.getFaceCount() == faces);
+            assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+            header.destroy();
+        }
+        ImageBuffer small = ImageBuffer.create(ByteBuffer.allocateDirect(12), ImageFormat.VK_FORMAT_R8G8B8_UNORM,
+                0, 1, 2, 2, 0);
+        ImageBuffer large = ImageBuffer.create(ByteBuffer.allocateDirect(48), ImageFormat.VK_FORMAT_R8G8B8_UNORM,
+                0, 1, 4, 4, 0);
+        assertThrows(IllegalArgumentException.class, () -> new KTXSerializer().serializeFaces(
+                Channels.newChannel(new ByteArrayOutputStream()), Arrays.asList(small, large).iterator(),
+                SuperCompression.ZLIB));
+    }
+
+    @Test
+    public void testKTXFaceIteratorSeekable() throws IOException {
+        int width = 32;
+        int height = 32;
+        int faces = 6;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, faces, 0, width, height, 0);
+        byte[] data = createRandomData(settings);
+        int faceSize = width * height * 3;
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testfaceiterator")));
+        for (SuperCompression sc : new SuperCompression[] { SuperCompression.None, SuperCompression.ZLIB,
+                SuperCompression.ZStandard }) {
+            List<ImageBuffer> buffers = new ArrayList<ImageBuffer>();
+            List<ImageBuffer> streamed = new ArrayList<ImageBuffer>();
+            for (int i = 0; i < faces; i++) {
+                buffers.add(ImageBuffer.create(ByteBuffer.allocateDirect(faceSize).put(data, i * faceSize,
+                        faceSize), ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 1, width, height, 0));
+                streamed.add(ImageBuffer.create(ByteBuffer.allocateDirect(faceSize).put(data, i * faceSize,
+                        faceSize), ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 1, width, height, 0));
+            }
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            new KTXSerializer().serializeFaces(Channels.newChannel(expected), buffers.iterator(), sc);
+            // Record the file size each time a face is fetched
+            Iterator<ImageBuffer> iterator = streamed.iterator();
+            long[] fileSizes = new long[faces];
+            Iterator<ImageBuffer> recording = new Iterator<ImageBuffer>() {
+                private int index;
+
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public ImageBuffer next() {
+                    try {
+                        fileSizes[index++] = Files.size(filepath);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return iterator.next();
+                }
+            };
+            new KTXSerializer().serializeFaces(filepath, recording, sc);
+            if (sc == SuperCompression.None) {
+                // Each face is written at its offset in the file before the next face is fetched
+                for (int i = 1; i < faces; i++) {
+                    assertTrue(fileSizes[i] >= KTX.HEADER_SIZE + (long) i * faceSize);
+                }
+            } else if (sc == SuperCompression.ZStandard) {
+                // One frame is written for each face
+                for (int i = 1; i < faces; i++) {
+                    assertTrue(fileSizes[i] > fileSizes[i - 1]);
+                }
+            }
+            assertTrue(Arrays.equals(expected.toByteArray(), Files.readAllBytes(filepath)));
+        }
+        // Hdr metadata is written with fixed width values, that are parsed to the same floats
+        float[] pixels = new float[width * height * 3];
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = i * 0.37f / pixels.length;
+        }
+        ImageBuffer floats = ImageBuffer.createFloatBuffer(pixels, ImageFormat.VK_FORMAT_R32G32B32_SFLOAT, 0, 1,
+                new int[] { width, height, 0 }, null);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        new KTXSerializer().serializeFaces(expected, new ImageBuffer[] { floats }, SuperCompression.ZLIB);
+        new KTXSerializer().serializeFaces(filepath, Arrays.asList(floats).iterator(), SuperCompression.ZLIB);
+        ImageHeader array = new KTXDeserializer().read(new ByteArrayInputStream(expected.toByteArray()));
+        KTXHeader header = (KTXHeader) new KTXDeserializer().read(filepath);
+        for (String key : KTX.METADATA) {
+            assertTrue(header.getMetaData().getValue(key).length() == 15);
+            assertTrue(array.getMetaData().getAsFloatValue(key).equals(header.getMetaData().getAsFloatValue(key)));
+        }
+        assertTrue(Arrays.equals(ImageUtils.byteBufferToArray(array.getData().getBuffer()),
+                ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        array.destroy();
+        header.destroy();
+        Files.delete(filepath);
+    }
+
+    @Test
+    public void testKTXLayerIteratorSeekable() throws IOException {
+        int width = 16;
+        int height = 16;
+        int layers = 4;
+        int faceSize = width * height * 3;
+        byte[] data = createRandomData(width, height * 6 * layers, KTXFormat.VK_FORMAT_R8G8B8_UNORM);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testlayeriterator")));
+        for (SuperCompression sc : new SuperCompression[] { SuperCompression.None, SuperCompression.ZStandard }) {
+            List<ImageBuffer> cubemaps = new ArrayList<ImageBuffer>();
+            for (int i = 0; i < layers; i++) {
+                cubemaps.add(ImageBuffer.create(ByteBuffer.allocateDirect(faceSize * 6).put(data, i * faceSize * 6,
+                        faceSize * 6), ImageFormat.VK_FORMAT_R8G8B8_UNORM, 0, 6, width, height, 0));
+            }
+            Iterator<ImageBuffer> iterator = cubemaps.iterator();
+            List<Long> fileSizes = new ArrayList<Long>();
+            Iterator<ImageBuffer> recording = new Iterator<ImageBuffer>() {
+                @Override
+                public boolean hasNext() {
+                    return iterator.hasNext();
+                }
+
+                @Override
+                public ImageBuffer next() {
+                    try {
+                        fileSizes.add(Files.size(filepath));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                    return iterator.next();
+                }
+            };
+            new KTXSerializer().serializeLayers(filepath, recording, 6, sc);
+            // Each layer is written to the file before the next layer is fetched
+            for (int i = 1; i < layers; i++) {
+                assertTrue(fileSizes.get(i) > fileSizes.get(i - 1));
+            }
+            KTXHeader header = (KTXHeader) new KTXDeserializer().read(filepath);
+            assertTrue(header.getLayerCount() == layers && header.getFaceCount() == 6);
+            ImageBuffer level = header.getData();
+            assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(level.getBuffer())));
+            level.destroy();
+            header.destroy();
+        }
+        Files.delete(filepath);
+    }
+
+    @Test
+    public void testArrayPacker() throws IOException {
+        String[] names = { "back.png", "front.png", "left.png" };
+        List<Path> images = new ArrayList<Path>();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (String name : names) {
+            images.add(Paths.get(getPath(name)));
+            ImageHeader image = new ImageIOReader().read(Paths.get(getPath(name)));
+            expected.write(ImageUtils.byteBufferToArray(image.getData().getBuffer()));
+        }
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testarraypacker")));
+        new ArrayPacker(ForkJoinPool.commonPool(), 2).packArray(filepath, images, SuperCompression.ZLIB);
+        KTXHeader header = (KTXHeader) new KTXDeserializer().read(filepath);
+        assertTrue(header.getLayerCount() == names.length);
+        assertTrue(header.getFaceCount() == 1);
+        assertTrue(header.getTextureType() == TextureType.TYPE_2D_ARRAY);
+        assertTrue(Arrays.equals(expected.toByteArray(), ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        header.destroy();
+
+        List<Path> panoramas = Arrays.asList(Paths.get(getPath("Chromatic_mini.jpg")),
+                Paths.get(getPath("Chromatic_mini.jpg")));
+        new ArrayPacker(ForkJoinPool.commonPool(), 1).packCubemapArray(filepath, panoramas,
+                SuperCompression.ZStandard);
+        header = (KTXHeader) new KTXDeserializer().read(filepath);
+        assertTrue(header.getLayerCount() == 2);
+        assertTrue(header.getFaceCount() == 6);
+        assertTrue(header.getTextureType() == TextureType.CUBEMAP_ARRAY);
+        byte[] layers = ImageUtils.byteBufferToArray(header.getData().getBuffer());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(layers, 0, layers.length / 2),
+                Arrays.copyOfRange(layers, layers.length / 2, layers.length)));
+        header.destroy();
+
+        List<Path> mismatch = Arrays.asList(Paths.get(getPath("back.png")), Paths.get(getPath("Chromatic_mini.jpg")));
+        assertThrows(IllegalArgumentException.class, () -> new ArrayPacker(ForkJoinPool.commonPool())
+                .packArray(filepath, mismatch, SuperCompression.ZLIB));
+    }
+
+    @Test
+    public void testBC6HEncoder() throws IOException {
+        int width = 30;
+        int height = 22;
+        float[] pixels = new float[width * height * 3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 3;
+                pixels[i] = (float) Math.pow(2, x / 8f - 2);
+                pixels[i + 1] = (float) (y + 1) / height;
+                pixels[i + 2] = x == 17 && y == 9 ? 50 : 0.25f + x * y / 100f;
+            }
+        }
+        ImageBuffer source = ImageBuffer.createFloatBuffer(pixels, ImageFormat.VK_FORMAT_R32G32B32_SFLOAT, 0, 1,
+                new int[] { width, height, 0 }, null);
+        double fastError = 0;
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            BC6HEncoder encoder = new BC6HEncoder(ForkJoinPool.commonPool(), quality);
+            BlockImageBuffer encoded = encoder.encode(source, ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK);
+            assertTrue(encoded.getBuffer().capacity() == 8 * 6 * 16);
+            assertTrue(encoded.getProperties().getMaxValue() == 50);
+            double error = getBC6HError(encoded, pixels, false);
+            System.out.println("BC6H " + quality + " mean relative error " + error);
+            assertTrue(error < 0.05);
+            if (quality == BlockEncoder.Quality.FAST) {
+                fastError = error;
+            } else {
+                assertTrue(error <= fastError);
+            }
+            encoded.destroy();
+        }
+        // Negative red in the blocks to the left
+        for (int i = 0; i < pixels.length; i += 3) {
+            pixels[i] = (i / 3) % width < 12 ? -pixels[i] : pixels[i];
+        }
+        ImageBuffer signedSource = ImageBuffer.createFloatBuffer(pixels, ImageFormat.VK_FORMAT_R32G32B32_SFLOAT, 0,
+                1, new int[] { width, height, 0 }, null);
+        BlockImageBuffer signed = new BC6HEncoder(ForkJoinPool.commonPool()).encode(signedSource,
+                ImageFormat.VK_FORMAT_BC6H_SFLOAT_BLOCK);
+        assertTrue(getBC6HError(signed, pixels, true) < 0.05);
+        assertThrows(IllegalArgumentException.class, () -> new BC6HEncoder(ForkJoinPool.commonPool())
+                .encode(source, ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new KTXSerializer().serializeFaces(out, new ImageBuffer[] { signed }, SuperCompression.ZLIB);
+        ImageHeader header = new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(header.getFormat() == ImageFormat.VK_FORMAT_BC6H_SFLOAT_BLOCK);
+        assertTrue(header.getWidth() == width && header.getHeight() == height);
+        assertTrue(Float.parseFloat(header.getMetaData().getValue(KTX.METADATA[1])) == 50);
+        DataFormatDescriptorBlock dfd = ((KTXHeader) header).getDFDBlocks()[0];
+        assertTrue(dfd.getColorModel() == KTX.KHR_DF_MODEL_BC6H);
+        assertTrue(dfd.getTexelBlockDimension(0) == 4 && dfd.getTexelBlockDimension(1) == 4);
+        ImageBuffer data = header.getData();
+        assertTrue(Arrays.equals(ImageUtils.byteBufferToArray(signed.getBuffer()),
+                ImageUtils.byteBufferToArray(data.getBuffer())));
+        header.destroy();
+        signed.destroy();
+
+        // Cubemap faces are encoded as they are created
+        ImageBuffer panorama = new RadianceHDRReader(ImageFormat.VK_FORMAT_R32G32B32_SFLOAT)
+                .read(Paths.get(getPath("Chromatic_mini.hdr"))).getData();
+        out = new ByteArrayOutputStream();
+        new KTXSerializer().serializeFaces(Channels.newChannel(out), new BC6HEncoder(ForkJoinPool.commonPool(),
+                BlockEncoder.Quality.FAST).encode(new PanoramaToCubemap().createCubeMapFaces(panorama,
+                        ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, ForkJoinPool.commonPool(), 2),
+                        ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK), SuperCompression.ZLIB);
+        header = new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(header.getFormat() == ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK);
+        assertTrue(header.getFaceCount() == 6 && header.getWidth() == panorama.width / 4);
+        assertTrue(header.getData().getBuffer().capacity() == 6 * ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK
+                .getImageSize(panorama.width / 4, panorama.width / 4));
+        header.destroy();
+        panorama.destroy();
+    }
+
+    /**
+     * Returns the mean relative error of the decoded blocks compared to the RGB pixels
+     */
+    private double getBC6HError(BlockImageBuffer encoded, float[] pixels, boolean signed) {
+        byte[] blocks = ImageUtils.byteBufferToArray(encoded.getBuffer());
+        int blocksX = (encoded.width + 3) / 4;
+        short[] halfs = new short[48];
+        double error = 0;
+        for (int block = 0; block < blocks.length / 16; block++) {
+            BlockDecoder.decodeBC6H(blocks, block * 16, signed, halfs);
+            float[] decoded = HalfFloatImageBuffer.FP16Convert.expandFP16(halfs);
+            for (int i = 0; i < 16; i++) {
+                int x = (block % blocksX) * 4 + (i & 3);
+                int y = (block / blocksX) * 4 + (i >> 2);
+                if (x < encoded.width && y < encoded.height) {
+                    for (int c = 0; c < 3; c++) {
+                        float expected = pixels[(y * encoded.width + x) * 3 + c];
+                        error += Math.abs(decoded[i * 3 + c] - expected) / Math.max(0.1f, Math.abs(expected));
+                    }
+                }
+            }
+        }
+        return error / (encoded.width * encoded.height * 3);
+    }
+
+    @Test
+    public void testBC6HReferenceBlock() {
+        // Mode 10 block, 10 bit endpoints that are not transformed: the first endpoint is 0, 0x200 and 0x3ff, the
+        // second 0x3ff, 0x100 and 0x40. Texel i has index i.
+        byte[] block = toBlock(0x03, 0x00, 0x00, 0xff, 0xff, 0x1f, 0x20, 0x20, 0x10, 0x32, 0x54, 0x76, 0x98, 0xba,
+                0xdc, 0xfe);
+        // The unquantized endpoints interpolated with the weight of each index and scaled by 31 / 64
+        int[] expected = new int[] { 0x0000, 0x3e0f, 0x7bff, 0x07c0, 0x3c1f, 0x74bc, 0x1170, 0x39b3, 0x6ba8, 0x1930,
+                0x37c3, 0x6465, 0x20f0, 0x35d3, 0x5d22, 0x28b0, 0x33e3, 0x55df, 0x3260, 0x3177, 0x4ccb, 0x3a20,
+                0x2f87, 0x4588, 0x41df, 0x2d97, 0x3e46, 0x499f, 0x2ba7, 0x3703, 0x534f, 0x293b, 0x2def, 0x5b0f,
+                0x274b, 0x26ac, 0x62cf, 0x255b, 0x1f69, 0x6a8f, 0x236b, 0x1826, 0x743f, 0x20ff, 0x0f12, 0x7bff,
+                0x1f0f, 0x07cf };
+        short[] halfs = new short[48];
+        BlockDecoder.decodeBC6H(block, 0, false, halfs);
+        for (int i = 0; i < halfs.length; i++) {
+            assertTrue((halfs[i] & 0xffff) == expected[i]);
+        }
+        // The decoded texels are exactly represented by the block, all qualities shall encode the same block
+        float[] decoded = HalfFloatImageBuffer.FP16Convert.expandFP16(halfs);
+        float[] texels = new float[64];
+        for (int i = 0; i < 16; i++) {
+            System.arraycopy(decoded, i * 3, texels, i * 4, 3);
+        }
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            byte[] encoded = new byte[16];
+            new BC6HEncoder(ForkJoinPool.commonPool(), quality).encodeBlock(texels,
+                    ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK, encoded);
+            assertTrue(Arrays.equals(block, encoded));
+        }
+    }
+
+    /**
+     * Returns the block of the byte values
+     */
+    private static byte[] toBlock(int... values) {
+        byte[] block = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            block[i] = (byte) values[i];
+        }
+        return block;
+    }
+
+    @Test
+    public void testBC7Encoder() throws IOException {
+        // Part of the panorama around the horizon
+        ImageBuffer panorama = new ImageIOReader().read(Paths.get(getPath("Chromatic_mini.jpg"))).getData();
+        int pixelSize = panorama.format.sizeInBytes;
+        byte[] part = new byte[256 * 128 * pixelSize];
+        ByteBuffer source = panorama.getBuffer();
+        for (int y = 0; y < 128; y++) {
+            source.position(((panorama.height / 2 - 64 + y) * panorama.width) * pixelSize);
+            source.get(part, y * 256 * pixelSize, 256 * pixelSize);
+        }
+        panorama.destroy();
+        ImageBuffer image = ImageBuffer.create(part, panorama.format, 1, 256, 128, null);
+        float[] expected = image.getAsFloatArray(0);
+        double previousError = Double.MAX_VALUE;
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            BlockImageBuffer encoded = new BC7Encoder(ForkJoinPool.commonPool(), quality).encode(image,
+                    ImageFormat.VK_FORMAT_BC7_SRGB_BLOCK);
+            double error = getBC7Error(encoded, expected, image.format.typeSize);
+            System.out.println("BC7 " + quality + " rms error " + error);
+            assertTrue(error < 4);
+            assertTrue(error <= previousError);
+            previousError = error;
+            encoded.destroy();
+        }
+
+        // Gradients with alpha, width and height not a multiple of the block size
+        int width = 26;
+        int height = 18;
+        byte[] pixels = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                pixels[i] = (byte) (x * 9);
+                pixels[i + 1] = (byte) (y * 14);
+                pixels[i + 2] = (byte) (x < 13 ? 40 : 200);
+                pixels[i + 3] = (byte) (255 - x * y / 2);
+            }
+        }
+        ImageBuffer rgba = ImageBuffer.create(pixels, ImageFormat.VK_FORMAT_R8G8B8A8_UNORM, 1, width, height, null);
+        BlockImageBuffer encoded = new BC7Encoder(ForkJoinPool.commonPool()).encode(rgba,
+                ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK);
+        assertTrue(encoded.getBuffer().capacity() == 7 * 5 * 16);
+        assertTrue(getBC7Error(encoded, rgba.getAsFloatArray(0), 4) < 4);
+        assertThrows(IllegalArgumentException.class, () -> new BC7Encoder(ForkJoinPool.commonPool())
+                .encode(rgba, ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new KTXSerializer().serializeFaces(out, new ImageBuffer[] { encoded }, SuperCompression.ZStandard);
+        ImageHeader header = new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(header.getFormat() == ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK);
+        assertTrue(header.getWidth() == width && header.getHeight() == height);
+        DataFormatDescriptorBlock dfd = ((KTXHeader) header).getDFDBlocks()[0];
+        assertTrue(dfd.getColorModel() == KTX.KHR_DF_MODEL_BC7);
+        assertTrue(dfd.getTexelBlockDimension(0) == 4 && dfd.getTexelBlockDimension(1) == 4);
+        assertTrue(Arrays.equals(ImageUtils.byteBufferToArray(encoded.getBuffer()),
+                ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        header.destroy();
+        encoded.destroy();
+        image.destroy();
+    }
+
+    @Test
+    public void testBC7ReferenceBlock() {
+        // Mode 6 block, 7 bit endpoints with a p-bit: the first endpoint is 0x00, 0x40, 0x7f and 0x7f with p-bit 1,
+        // the second 0x7f, 0x10, 0x20 and 0x40 with p-bit 0. Texel i has index i * 5 modulo 16.
+        byte[] block = toBlock(0x40, 0xc0, 0x1f, 0x08, 0xf9, 0x83, 0xfe, 0xc0, 0x50, 0xfa, 0x94, 0x3e, 0xd8, 0x72,
+                0x1c, 0xb6);
+        // The 8 bit endpoints interpolated with the weight of each index
+        int[] expected = new int[] { 0x01, 0x81, 0xff, 0xff, 0x54, 0x61, 0xc0, 0xd5, 0xab, 0x40, 0x7f, 0xaa, 0xfe,
+                0x20, 0x40, 0x80, 0x44, 0x67, 0xcc, 0xdd, 0x97, 0x47, 0x8e, 0xb4, 0xee, 0x26, 0x4c, 0x88, 0x34, 0x6d,
+                0xd8, 0xe5, 0x87, 0x4d, 0x9a, 0xbc, 0xda, 0x2e, 0x5b, 0x92, 0x25, 0x73, 0xe4, 0xed, 0x78, 0x54, 0xa5,
+                0xc3, 0xcb, 0x34, 0x67, 0x9a, 0x11, 0x7b, 0xf3, 0xf7, 0x68, 0x5a, 0xb1, 0xcb, 0xbb, 0x3a, 0x73,
+                0xa2 };
+        int[] rgba = new int[64];
+        BlockDecoder.decodeBC7(block, 0, rgba);
+        assertTrue(Arrays.equals(expected, rgba));
+        // The decoded texels are exactly represented by the block, all qualities shall encode the same block
+        float[] texels = new float[64];
+        for (int i = 0; i < texels.length; i++) {
+            texels[i] = rgba[i] / 255f;
+        }
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            byte[] encoded = new byte[16];
+            new BC7Encoder(ForkJoinPool.commonPool(), quality).encodeBlock(texels,
+                    ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK, encoded);
+            assertTrue(Arrays.equals(block, encoded));
+        }
+    }
+
+    @Test
+    public void testETC2Encoder() throws IOException {
+        int width = 26;
+        int height = 18;
+        float[] pixels = new float[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                pixels[i] = x / (width - 1f);
+                pixels[i + 1] = y / (height - 1f);
+                pixels[i + 2] = x < 13 ? 0.2f : 0.8f;
+                pixels[i + 3] = 1 - x * y / 500f;
+            }
+        }
+        byte[] bytes = new byte[pixels.length];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Math.round(pixels[i] * 255);
+        }
+        ImageBuffer rgba = ImageBuffer.create(bytes, ImageFormat.VK_FORMAT_R8G8B8A8_UNORM, 1, width, height, null);
+        double previousError = Double.MAX_VALUE;
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            BlockImageBuffer encoded = new ETC2Encoder(ForkJoinPool.commonPool(), quality).encode(rgba,
+                    ImageFormat.VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK);
+            assertTrue(encoded.getBuffer().capacity() == 7 * 5 * 16);
+            double error = getETC2Error(encoded, rgba.getAsFloatArray(0));
+            System.out.println("ETC2 " + quality + " rms error " + error);
+            assertTrue(error < (quality == BlockEncoder.Quality.FAST ? 30 : 10));
+            assertTrue(error <= previousError);
+            previousError = error;
+            encoded.destroy();
+        }
+
+        // Signed and unsigned R11 and RG11
+        float[] rgb = new float[width * height * 3];
+        for (int i = 0; i < width * height; i++) {
+            System.arraycopy(pixels, i * 4, rgb, i * 3, 3);
+        }
+        ImageBuffer floats = ImageBuffer.createFloatBuffer(rgb, ImageFormat.VK_FORMAT_R32G32B32_SFLOAT, 0, 1,
+                new int[] { width, height, 0 }, null);
+        ImageFormat[] formats = { ImageFormat.VK_FORMAT_EAC_R11_UNORM_BLOCK, ImageFormat.VK_FORMAT_EAC_R11_SNORM_BLOCK,
+                ImageFormat.VK_FORMAT_EAC_R11G11_UNORM_BLOCK, ImageFormat.VK_FORMAT_EAC_R11G11_SNORM_BLOCK };
+        for (ImageFormat format : formats) {
+            BlockImageBuffer encoded = new ETC2Encoder(ForkJoinPool.commonPool()).encode(floats, format);
+            boolean signed = format == ImageFormat.VK_FORMAT_EAC_R11_SNORM_BLOCK
+                    || format == ImageFormat.VK_FORMAT_EAC_R11G11_SNORM_BLOCK;
+            int channels = format.getBlockSizeInBytes() / 8;
+            byte[] blocks = ImageUtils.byteBufferToArray(encoded.getBuffer());
+            int[] values = new int[16];
+            double error = 0;
+            for (int block = 0; block < blocks.length / (channels * 8); block++) {
+                for (int c = 0; c < channels; c++) {
+                    BlockDecoder.decodeEACR11(blocks, (block * channels + c) * 8, signed, values);
+                    for (int i = 0; i < 16; i++) {
+                        int x = Math.min(width - 1, (block % 7) * 4 + (i & 3));
+                        int y = Math.min(height - 1, (block / 7) * 4 + (i >> 2));
+                        error += Math.abs(values[i] / (signed ? 1023f : 2047f) - rgb[(y * width + x) * 3 + c]);
+                    }
+                }
+            }
+            System.out.println(format + " mean error " + error / (blocks.length * 2));
+            assertTrue(error / (blocks.length * 2) < 0.005);
+            encoded.destroy();
+        }
+        assertThrows(IllegalArgumentException.class, () -> new ETC2Encoder(ForkJoinPool.commonPool())
+                .encode(rgba, ImageFormat.VK_FORMAT_ETC2_R8G8B8A1_UNORM_BLOCK));
+
+        BlockImageBuffer encoded = new ETC2Encoder(ForkJoinPool.commonPool(), BlockEncoder.Quality.FAST).encode(rgba,
+                ImageFormat.VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new KTXSerializer().serializeFaces(out, new ImageBuffer[] { encoded }, SuperCompression.ZLIB);
+        KTXHeader header = (KTXHeader) new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(header.getFormat() == ImageFormat.VK_FORMAT_ETC2_R8G8B8A8_SRGB_BLOCK);
+        DataFormatDescriptorBlock dfd = header.getDFDBlocks()[0];
+        assertTrue(dfd.getColorModel() == KTX.KHR_DF_MODEL_ETC2);
+        assertTrue(dfd.getDescriptorBlockSize() == KTX.DFD_HEADER + 2 * KTX.DFD_COMPONENT_SIZE);
+        assertTrue(dfd.getSampleCount() == 2);
+        assertTrue(dfd.getSampleChannel(0) == KTX.KHR_DF_CHANNEL_ETC2_ALPHA && dfd.getSampleBitOffset(0) == 0);
+        assertTrue(dfd.getSampleChannel(1) == KTX.KHR_DF_CHANNEL_ETC2_COLOR && dfd.getSampleBitOffset(1) == 64);
+        assertTrue(Arrays.equals(ImageUtils.byteBufferToArray(encoded.getBuffer()),
+                ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        header.destroy();
+        encoded.destroy();
+    }
+
+    @Test
+    public void testETC2HModeBlock() {
+        // H mode block from the fields in the Khronos data format specification: R1 0xA, G1 0x5, B1 0x9, R2 0x3,
+        // G2 0xC, B2 0x6, distance index 5. The green channel overflows in differential mode, red does not.
+        // Each column uses the paint color with the same index.
+        byte[] block = new byte[] { (byte) 0x52, (byte) 0x1c, (byte) 0x9e, (byte) 0x36, (byte) 0xff, (byte) 0x00,
+                (byte) 0xf0, (byte) 0xf0 };
+        int[][] paint = new int[][] { { 202, 117, 185 }, { 138, 53, 121 }, { 83, 236, 134 }, { 19, 172, 70 } };
+        ImageBuffer decoded = new BlockDecoder(Runnable::run).decode(new BlockImageBuffer(ByteBuffer.wrap(block),
+                ImageFormat.VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK, 0, 1, new int[] { 4, 4, 0 }, null, null));
+        byte[] texels = ImageUtils.byteBufferToArray(decoded.getBuffer());
+        for (int i = 0; i < 16; i++) {
+            int[] expected = paint[i & 3];
+            for (int c = 0; c < 3; c++) {
+                assertTrue((texels[i * 4 + c] & 0xff) == expected[c]);
+            }
+            assertTrue((texels[i * 4 + 3] & 0xff) == 255);
+        }
+        decoded.destroy();
+    }
+
+    @Test
+    public void testETC2ReferenceBlock() {
+        // RGBA block. Alpha: base 128, multiplier 3, table 12, texel i has index i * 3 modulo 8. Color: differential
+        // mode, flip 0, first base color 10, 20, 12 with table 3, difference 2, -3, 1 with table 5. The texels of each
+        // sub block use the indices 0, 1, 2 and 3 twice.
+        byte[] block = toBlock(0x80, 0x3c, 0x10, 0x47, 0xdf, 0xcb, 0x23, 0x4d, 0x52, 0xa5, 0x61, 0x76, 0x5a, 0xaa,
+                0x0f, 0xf0);
+        // The 5 bit base colors expanded to 8 bits plus the modifiers, rows 2 and 3 are the same as 0 and 1
+        int[] expectedRGB = new int[] { 95, 178, 112, 124, 207, 141, 179, 220, 187, 75, 116, 83, 69, 152, 86, 40, 123,
+                57, 19, 60, 27, 123, 164, 131, 95, 178, 112, 124, 207, 141, 179, 220, 187, 75, 116, 83, 69, 152, 86,
+                40, 123, 57, 19, 60, 27, 123, 164, 131 };
+        int[] expectedAlpha = new int[] { 119, 98, 146, 116, 134, 155, 107, 137, 119, 98, 146, 116, 134, 155, 107,
+                137 };
+        int[] rgb = new int[48];
+        int[] alpha = new int[16];
+        BlockDecoder.decodeETC2(block, 8, rgb);
+        BlockDecoder.decodeEACAlpha(block, 0, alpha);
+        assertTrue(Arrays.equals(expectedRGB, rgb));
+        assertTrue(Arrays.equals(expectedAlpha, alpha));
+        // The alpha block read as R11: base * 8 + 4 plus the modifiers times multiplier * 8
+        int[] r11 = new int[16];
+        BlockDecoder.decodeEACR11(block, 0, false, r11);
+        assertTrue(Arrays.equals(new int[] { 956, 788, 1172, 932, 1076, 1244, 860, 1100, 956, 788, 1172, 932, 1076,
+                1244, 860, 1100 }, r11));
+        // The decoded texels are exactly represented by the block, all qualities shall encode the same block
+        float[] texels = new float[64];
+        for (int i = 0; i < 16; i++) {
+            for (int c = 0; c < 3; c++) {
+                texels[i * 4 + c] = rgb[i * 3 + c] / 255f;
+            }
+            texels[i * 4 + 3] = alpha[i] / 255f;
+        }
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            byte[] encoded = new byte[16];
+            new ETC2Encoder(ForkJoinPool.commonPool(), quality).encodeBlock(texels,
+                    ImageFormat.VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK, encoded);
+            assertTrue(Arrays.equals(block, encoded));
+        }
+    }
+
+    @Test
+    public void testASTCEncoder() throws IOException {
+        // Part of the panorama around the horizon
+        ImageBuffer panorama = new ImageIOReader().read(Paths.get(getPath("Chromatic_mini.jpg"))).getData();
+        int pixelSize = panorama.format.sizeInBytes;
+        byte[] part = new byte[128 * 64 * pixelSize];
+        ByteBuffer source = panorama.getBuffer();
+        for (int y = 0; y < 64; y++) {
+            source.position(((panorama.height / 2 - 32 + y) * panorama.width) * pixelSize);
+            source.get(part, y * 128 * pixelSize, 128 * pixelSize);
+        }
+        panorama.destroy();
+        ImageBuffer image = ImageBuffer.create(part, panorama.format, 1, 128, 64, null);
+        float[] expected = image.getAsFloatArray(0);
+        double previousError = Double.MAX_VALUE;
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            BlockImageBuffer encoded = new ASTCEncoder(ForkJoinPool.commonPool(), quality).encode(image,
+                    ImageFormat.VK_FORMAT_ASTC_6x6_SRGB_BLOCK);
+            assertTrue(encoded.getBuffer().capacity() == 22 * 11 * 16);
+            double error = getASTCError(encoded, expected, image.format.typeSize);
+            System.out.println("ASTC 6x6 " + quality + " rms error " + error);
+            assertTrue(error < 5);
+            assertTrue(error <= previousError);
+            previousError = error;
+            encoded.destroy();
+        }
+        BlockImageBuffer encoded = new ASTCEncoder(ForkJoinPool.commonPool()).encode(image,
+                ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK);
+        assertTrue(getASTCError(encoded, expected, image.format.typeSize) < 3);
+        encoded.destroy();
+        image.destroy();
+
+        // HDR gradient, width and height not a multiple of the block size
+        int width = 26;
+        int height = 18;
+        float[] rgb = new float[width * height * 3];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 3;
+                rgb[i] = (float) Math.pow(2, x / 2f - 4);
+                rgb[i + 1] = 0.5f + x / 4f;
+                rgb[i + 2] = 0.05f + x * x / 10f;
+            }
+        }
+        ImageBuffer floats = ImageBuffer.createFloatBuffer(rgb, ImageFormat.VK_FORMAT_R32G32B32_SFLOAT, 0, 1,
+                new int[] { width, height, 0 }, null);
+        encoded = new ASTCEncoder(ForkJoinPool.commonPool()).encode(floats,
+                ImageFormat.VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK);
+        byte[] blocks = ImageUtils.byteBufferToArray(encoded.getBuffer());
+        int[] rgba = new int[64];
+        double error = 0;
+        for (int block = 0; block < blocks.length / 16; block++) {
+            BlockDecoder.decodeASTC(blocks, block * 16, ImageFormat.VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK, rgba);
+            for (int i = 0; i < 16; i++) {
+                int x = Math.min(width - 1, (block % 7) * 4 + (i & 3));
+                int y = Math.min(height - 1, (block / 7) * 4 + (i >> 2));
+                for (int c = 0; c < 3; c++) {
+                    float value = rgb[(y * width + x) * 3 + c];
+                    error += Math.abs(toFloat(rgba[i * 4 + c]) - value) / value;
+                }
+                assertTrue(rgba[i * 4 + 3] == 0x3c00);
+            }
+        }
+        System.out.println("ASTC HDR mean relative error " + error / (blocks.length * 3));
+        assertTrue(error / (blocks.length * 3) < 0.05);
+        encoded.destroy();
+        assertThrows(IllegalArgumentException.class, () -> new ASTCEncoder(ForkJoinPool.commonPool())
+                .encode(floats, ImageFormat.VK_FORMAT_ASTC_10x10_UNORM_BLOCK));
+
+        // One color is stored as void extent blocks
+        byte[] gray = new byte[8 * 8 * 3];
+        Arrays.fill(gray, (byte) 100);
+        encoded = new ASTCEncoder(ForkJoinPool.commonPool()).encode(
+                ImageBuffer.create(gray, ImageFormat.VK_FORMAT_R8G8B8_UNORM, 1, 8, 8, null),
+                ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK);
+        blocks = ImageUtils.byteBufferToArray(encoded.getBuffer());
+        for (int block = 0; block < 4; block++) {
+            assertTrue(blocks[block * 16] == (byte) 0xfc && blocks[block * 16 + 1] == (byte) 0xfd);
+            BlockDecoder.decodeASTC(blocks, block * 16, ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK, rgba);
+            assertTrue(rgba[0] >> 8 == 100 && rgba[63] == 0xffff);
+        }
+        encoded.destroy();
+
+        encoded = new ASTCEncoder(ForkJoinPool.commonPool(), BlockEncoder.Quality.FAST).encode(floats,
+                ImageFormat.VK_FORMAT_ASTC_6x5_SFLOAT_BLOCK);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new KTXSerializer().serializeFaces(out, new ImageBuffer[] { encoded }, SuperCompression.ZStandard);
+        ImageHeader header = new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+        assertTrue(header.getFormat() == ImageFormat.VK_FORMAT_ASTC_6x5_SFLOAT_BLOCK);
+        assertTrue(header.getWidth() == width && header.getHeight() == height);
+        DataFormatDescriptorBlock dfd = ((KTXHeader) header).getDFDBlocks()[0];
+        assertTrue(dfd.getColorModel() == KTX.KHR_DF_MODEL_ASTC);
+        assertTrue(dfd.getTexelBlockDimension(0) == 6 && dfd.getTexelBlockDimension(1) == 5);
+        assertTrue(Arrays.equals(ImageUtils.byteBufferToArray(encoded.getBuffer()),
+                ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        header.destroy();
+        encoded.destroy();
+        floats.destroy();
+    }
+
+    /**
+     * Returns the root mean square error of the decoded ASTC LDR blocks compared to the RGB pixels
+     */
+    private double getASTCError(BlockImageBuffer encoded, float[] pixels, int channels) {
+        byte[] blocks = ImageUtils.byteBufferToArray(encoded.getBuffer());
+        int blockWidth = encoded.format.getBlockWidth();
+        int blockHeight = encoded.format.getBlockHeight();
+        int blocksX = (encoded.width + blockWidth - 1) / blockWidth;
+        int[] rgba = new int[blockWidth * blockHeight * 4];
+        double error = 0;
+        for (int block = 0; block < blocks.length / 16; block++) {
+            BlockDecoder.decodeASTC(blocks, block * 16, encoded.format, rgba);
+            for (int i = 0; i < blockWidth * blockHeight; i++) {
+                int x = (block % blocksX) * blockWidth + i % blockWidth;
+                int y = (block / blocksX) * blockHeight + i / blockWidth;
+                if (x < encoded.width && y < encoded.height) {
+                    for (int c = 0; c < 3; c++) {
+                        int expected = Math.round(pixels[(y * encoded.width + x) * channels + c] * 255);
+                        int decoded = rgba[i * 4 + c] >> 8;
+                        error += (decoded - expected) * (decoded - expected);
+                    }
+                }
+            }
+        }
+        return Math.sqrt(error / (encoded.width * encoded.height * 3));
+    }
+
+    /**
+     * Returns the float value of the half float bits
+     */
+    private float toFloat(int half) {
+        int exponent = (half >> 10) & 0x1f;
+        float mantissa = (half & 0x3ff) / 1024f;
+        return (float) (exponent == 0 ? mantissa * Math.pow(2, -14) : (1 + mantissa) * Math.pow(2, exponent - 15));
+    }
+
+    /**
+     * Returns the root mean square error of ETC2 RGBA blocks compared to the pixels
+     */
+    private double getETC2Error(BlockImageBuffer encoded, float[] pixels) {
+        byte[] blocks = ImageUtils.byteBufferToArray(encoded.getBuffer());
+        int blocksX = (encoded.width + 3) / 4;
+        int[] alpha = new int[16];
+        int[] rgb = new int[48];
+        double error = 0;
+        for (int block = 0; block < blocks.length / 16; block++) {
+            BlockDecoder.decodeEACAlpha(blocks, block * 16, alpha);
+            BlockDecoder.decodeETC2(blocks, block * 16 + 8, rgb);
+            for (int i = 0; i < 16; i++) {
+                int x = (block % blocksX) * 4 + (i & 3);
+                int y = (block / blocksX) * 4 + (i >> 2);
+                if (x < encoded.width && y < encoded.height) {
+                    for (int c = 0; c < 4; c++) {
+                        int expected = Math.round(pixels[(y * encoded.width + x) * 4 + c] * 255);
+                        int decoded = c < 3 ? rgb[i * 3 + c] : alpha[i];
+                        error += (decoded - expected) * (decoded - expected);
+                    }
+                }
+            }
+        }
+        return Math.sqrt(error / (encoded.width * encoded.height * 4));
+    }
+
+    /**
+     * Returns the root mean square error of the decoded blocks compared to the pixels, alpha is 255 if the
+     * pixels have 3 channels
+     */
+    private double getBC7Error(BlockImageBuffer encoded, float[] pixels, int channels) {
+        byte[] blocks = ImageUtils.byteBufferToArray(encoded.getBuffer());
+        int blocksX = (encoded.width + 3) / 4;
+        int[] rgba = new int[64];
+        double error = 0;
+        for (int block = 0; block < blocks.length / 16; block++) {
+            BlockDecoder.decodeBC7(blocks, block * 16, rgba);
+            for (int i = 0; i < 16; i++) {
+                int x = (block % blocksX) * 4 + (i & 3);
+                int y = (block / blocksX) * 4 + (i >> 2);
+                if (x < encoded.width && y < encoded.height) {
+                    for (int c = 0; c < 4; c++) {
+                        int index = (y * encoded.width + x) * channels + c;
+                        int expected = c < channels ? Math.round(pixels[index] * 255) : 255;
+                        error += (rgba[i * 4 + c] - expected) * (rgba[i * 4 + c] - expected);
+                    }
+                }
+            }
+        }
+        return Math.sqrt(error / (encoded.width * encoded.height * 4));
+    }
+
+    @Test
+    public void testBlockDecoder() throws IOException {
+        // Gradients with alpha, width and height not a multiple of the block size
+        int width = 26;
+        int height = 18;
+        byte[] pixels = new byte[width * height * 4];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * 4;
+                pixels[i] = (byte) (x * 9);
+                pixels[i + 1] = (byte) (y * 14);
+                pixels[i + 2] = (byte) (x < 13 ? 40 : 200);
+                pixels[i + 3] = (byte) (255 - x * y / 2);
+            }
+        }
+        ImageBuffer rgba = ImageBuffer.create(pixels, ImageFormat.VK_FORMAT_R8G8B8A8_UNORM, 1, width, height, null);
+        float[] expected = rgba.getAsFloatArray(0);
+        BlockDecoder decoder = new BlockDecoder(ForkJoinPool.commonPool());
+        BlockEncoder[] encoders = new BlockEncoder[] { new BC7Encoder(ForkJoinPool.commonPool()),
+                new ETC2Encoder(ForkJoinPool.commonPool()), new ASTCEncoder(ForkJoinPool.commonPool()) };
+        ImageFormat[] formats = new ImageFormat[] { ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK,
+                ImageFormat.VK_FORMAT_ETC2_R8G8B8A8_UNORM_BLOCK, ImageFormat.VK_FORMAT_ASTC_5x4_UNORM_BLOCK };
+        for (int i = 0; i < encoders.length; i++) {
+            BlockImageBuffer encoded = encoders[i].encode(rgba, formats[i]);
+            ImageBuffer decoded = decoder.decode(encoded);
+            assertTrue(decoded.format == ImageFormat.VK_FORMAT_R8G8B8A8_UNORM);
+            assertTrue(decoded.width == width && decoded.height == height);
+            double error = getRMSError(decoded.getAsFloatArray(0), expected) * 255;
+            System.out.println("Decoded " + formats[i] + " rms error " + error);
+            assertTrue(error < 10);
+            assertTrue(Arrays.equals(encoded.getAsFloatArray(0), decoded.getAsFloatArray(0)));
+            decoded.destroy();
+            encoded.destroy();
+        }
+
+        // HDR cubemap, the spherical harmonics of the decoded BC6H faces are close to those of the source
+        int size = 16;
+        float[] rgb = new float[size * size * 3 * 6];
+        for (int i = 0; i < rgb.length; i += 3) {
+            int face = i / (size * size * 3);
+            rgb[i] = 0.25f + face + (i / 3 % size) / 8f;
+            rgb[i + 1] = 0.5f + (i / 3 % size) / 4f;
+            rgb[i + 2] = face == 2 ? 8 : 0.125f;
+        }
+        ImageBuffer cubemap = ImageBuffer.createFloatBuffer(rgb, ImageFormat.VK_FORMAT_R32G32B32_SFLOAT, 0, 6,
+                new int[] { size, size, 0 }, null);
+        BlockImageBuffer encoded = new BC6HEncoder(ForkJoinPool.commonPool()).encode(cubemap,
+                ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] blocks = new byte[encoded.getBuffer().capacity()];
+        encoded.getBuffer().duplicate().rewind().get(blocks);
+        new KTXSerializer().serialize(out, null, new Settings(encoded.format, 0, 6, 1, size, size, 0,
+                SuperCompression.ZStandard), blocks);
+        ImageHeader header = new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+        ImageBuffer data = header.getData();
+        assertTrue(data instanceof BlockImageBuffer && data.faceCount == 6);
+        ImageBuffer decoded = decoder.decode(data);
+        assertTrue(decoded instanceof HalfFloatImageBuffer && decoded.faceCount == 6);
+        for (int face = 0; face < 6; face++) {
+            float[] source = cubemap.getAsFloatArray(face);
+            assertTrue(getRMSError(decoded.getAsFloatArray(face), source) < 0.02f);
+            assertTrue(Arrays.equals(data.getAsFloatArray(face), decoded.getAsFloatArray(face)));
+        }
+        float[][] expectedSH = new SphericalHarmonics().fromCubeMap(cubemap, 1);
+        float[][] sh = new SphericalHarmonics().fromCubeMap(data, 1);
+        for (int i = 0; i < sh.length; i++) {
+            for (int c = 0; c < 3; c++) {
+                assertTrue(Math.abs(sh[i][c] - expectedSH[i][c]) <= 0.01f * Math.abs(expectedSH[0][c]));
+            }
+        }
+        decoded.destroy();
+        header.destroy();
+        encoded.destroy();
+        cubemap.destroy();
+
+        // Handmade blocks: BC1 three color mode, BC5 signed, BC6H two region mode, ETC2 punchthrough and ASTC
+        // reserved block mode
+        byte[] block = new byte[] { 0x1f, 0, 0, (byte) 0xf8, 0, 0x01, 0x02, (byte) 0xc0 };
+        float[] texels = decodeBlock(decoder, block, ImageFormat.VK_FORMAT_BC1_RGBA_UNORM_BLOCK);
+        assertTrue(Arrays.equals(Arrays.copyOf(texels, 4), new float[] { 0, 0, 1, 1 }));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(texels, 16, 20), new float[] { 1, 0, 0, 1 }));
+        assertTrue(texels[32] == 128f / 255 && texels[33] == 0 && texels[34] == 128f / 255);
+        assertTrue(Arrays.equals(Arrays.copyOfRange(texels, 60, 64), new float[4]));
+        block = new byte[] { 127, -127, 0, 0, 0, 0, 0, 0, -128, 0, 0, 0, 0, 0, 0, 0 };
+        texels = decodeBlock(decoder, block, ImageFormat.VK_FORMAT_BC5_SNORM_BLOCK);
+        assertTrue(texels[0] == 1 && texels[1] == -1 && texels[2] == 0);
+        block = new byte[16];
+        block[0] = (byte) 0xfe;
+        block[1] = 0x07;
+        texels = decodeBlock(decoder, block, ImageFormat.VK_FORMAT_BC6H_UFLOAT_BLOCK);
+        assertTrue(texels[0] == 65504 && texels[1] == 0 && texels[2] == 0);
+        block = new byte[8];
+        block[5] = 1;
+        texels = decodeBlock(decoder, block, ImageFormat.VK_FORMAT_ETC2_R8G8B8A1_UNORM_BLOCK);
+        assertTrue(texels[3] == 0 && texels[7] == 1);
+        texels = decodeBlock(decoder, new byte[16], ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK);
+        assertTrue(Arrays.equals(Arrays.copyOf(texels, 4), new float[] { 1, 0, 1, 1 }));
+        assertThrows(IllegalArgumentException.class, () -> BlockDecoder.getDecodedFormat(
+                ImageFormat.VK_FORMAT_R8G8B8A8_UNORM));
+        rgba.destroy();
+    }
+
+    @Test
+    public void testASTCReferenceBlock() {
+        // Block mode 0x53, a 4 x 4 grid of 3 bit weights, one partition with endpoint mode 8 (LDR RGB direct) and
+        // 8 bit endpoint values 0x20, 0xf0, 0x80, 0x60, 0xe0 and 0x40. Texel i has weight i * 3 modulo 8.
+        byte[] block = toBlock(0x53, 0x00, 0x41, 0xe0, 0x01, 0xc1, 0xc0, 0x81, 0x00, 0x00, 0xd5, 0xc3, 0x19, 0xd5,
+                0xc3, 0x19);
+        // The endpoints expanded to 16 bits and interpolated with the unquantized weights, rows 2 and 3 are the
+        // same as 0 and 1
+        int[] row = new int[] { 0x2020, 0x8080, 0xe0e0, 0xffff, 0x7838, 0x72f3, 0x9d1d, 0xffff, 0xd393, 0x64e5,
+                0x56d7, 0xffff, 0x3d7d, 0x7bfc, 0xca4a, 0xffff, 0x98d8, 0x6dee, 0x8404, 0xffff, 0xf0f0, 0x6060, 0x4040,
+                0xffff, 0x5adb, 0x7777, 0xb3b3, 0xffff, 0xb636, 0x6969, 0x6d6d, 0xffff };
+        int[] rgba = new int[64];
+        BlockDecoder.decodeASTC(block, 0, ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK, rgba);
+        for (int i = 0; i < rgba.length; i++) {
+            assertTrue(rgba[i] == row[i % row.length]);
+        }
+        // The decoded texels are exactly represented by the block, all qualities shall encode the same block
+        float[] texels = new float[64];
+        for (int i = 0; i < texels.length; i++) {
+            texels[i] = rgba[i] / 65535f;
+        }
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            byte[] encoded = new byte[16];
+            new ASTCEncoder(ForkJoinPool.commonPool(), quality).encodeBlock(texels,
+                    ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK, encoded);
+            assertTrue(Arrays.equals(block, encoded));
+        }
+        // One color is stored as a void extent block, with all extent coordinates set and 16 bit UNORM RGBA
+        for (int i = 0; i < 16; i++) {
+            System.arraycopy(new float[] { 0.2f, 0.4f, 0.6f, 1f }, 0, texels, i * 4, 4);
+        }
+        byte[] encoded = new byte[16];
+        new ASTCEncoder(ForkJoinPool.commonPool()).encodeBlock(texels, ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK,
+                encoded);
+        assertTrue(Arrays.equals(toBlock(0xfc, 0xfd, 0xff, 0xff, 0xff, 0xff, 0xff, 0xff, 0x33, 0x33, 0x66, 0x66,
+                0x99, 0x99, 0xff, 0xff), encoded));
+        BlockDecoder.decodeASTC(encoded, 0, ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK, rgba);
+        for (int i = 0; i < rgba.length; i++) {
+            assertTrue(rgba[i] == new int[] { 0x3333, 0x6666, 0x9999, 0xffff }[i & 3]);
+        }
+    }
+
+    @Test
+    public void testASTCHDREndpointModes() {
+        // Blocks with one partition and a 4 x 4 grid of 2 bit weights, block mode 0x42, endpoint values stored as
+        // 8 bits. The weights are 0 in the two left columns and 3 in the two right, so that texels are the first
+        // or second endpoint. The endpoints are unpacked as in the HDR endpoint decoding of the ASTC specification.
+        int[][] blocks = new int[][] {
+                // Mode 7, RGB base and scale: submode 5, red 96, green 64, blue 32 and scale 16 shifted by 5
+                { 0x42, 0xe0, 0xc0, 0x81, 0x41, 0x21, 0x01, 0, 0, 0, 0, 0, 0x0f, 0x0f, 0x0f, 0x0f },
+                // Mode 7, submode 2 with green and blue stored as differences to red
+                { 0x42, 0xe0, 0x2a, 0x67, 0x90, 0x98, 0, 0, 0, 0, 0, 0, 0x0f, 0x0f, 0x0f, 0x0f },
+                // Mode 11, RGB: submode 1, blue is the major component
+                { 0x42, 0x60, 0xe1, 0x0b, 0x11, 0x18, 0x06, 0x04, 0x01, 0, 0, 0, 0x0f, 0x0f, 0x0f, 0x0f },
+                // Mode 14, RGB with LDR alpha 0x40 and 0xc0: submode 0, red is the major component
+                { 0x42, 0xc0, 0x01, 0x21, 0x40, 0x60, 0x0a, 0x14, 0x80, 0x80, 0x01, 0, 0x0f, 0x0f, 0x0f, 0x0f },
+                // Mode 15, RGBA: submode 2, green is the major component, alpha submode 0
+                { 0x42, 0xe0, 0x41, 0x8b, 0x20, 0x19, 0x06, 0xfd, 0x60, 0x8a, 0, 0, 0x0f, 0x0f, 0x0f, 0x0f } };
+        // Half float RGBA of the first and second endpoint
+        int[][] expected = new int[][] {
+                { 0x5000, 0x3000, 0x1000, 0x3c00, 0x6000, 0x4000, 0x2000, 0x3c00 },
+                { 0x28e0, 0x2680, 0x2818, 0x3c00, 0x3260, 0x3030, 0x3160, 0x3c00 },
+                { 0x3710, 0x3800, 0x3a80, 0x3c00, 0x38c0, 0x39c0, 0x3c00, 0x3c00 },
+                { 0x1c00, 0x1280, 0x0d40, 0x3404, 0x2000, 0x1800, 0x1400, 0x3a06 },
+                { 0x30c0, 0x3338, 0x31e0, 0x5800, 0x31c0, 0x3400, 0x3240, 0x5a40 } };
+        int[] rgba = new int[64];
+        for (int b = 0; b < blocks.length; b++) {
+            byte[] block = toBlock(blocks[b]);
+            BlockDecoder.decodeASTC(block, 0, ImageFormat.VK_FORMAT_ASTC_4x4_SFLOAT_BLOCK, rgba);
+            for (int i = 0; i < 16; i++) {
+                int endpoint = (i & 3) < 2 ? 0 : 4;
+                assertTrue(Arrays.equals(Arrays.copyOfRange(rgba, i * 4, i * 4 + 4),
+                        Arrays.copyOfRange(expected[b], endpoint, endpoint + 4)));
+            }
+            // HDR endpoint modes are not valid in LDR blocks and decode to the error color
+            BlockDecoder.decodeASTC(block, 0, ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK, rgba);
+            assertTrue(rgba[0] == 0xffff && rgba[1] == 0 && rgba[2] == 0xffff && rgba[3] == 0xffff);
+        }
+    }
+
+    /**
+     * Decodes one block and returns the texels as floats
+     */
+    private float[] decodeBlock(BlockDecoder decoder, byte[] block, ImageFormat format) {
+        ByteBuffer blocks = ByteBuffer.allocateDirect(block.length);
+        blocks.put(block);
+        try (ImageBuffer decoded = decoder.decode(new BlockImageBuffer(blocks, format, 0, 1,
+                new int[] { format.getBlockWidth(), format.getBlockHeight(), 0 }, null, null))) {
+            return decoded.getAsFloatArray(0);
+        }
+    }
+
+    private double getRMSError(float[] values, float[] expected) {
+        double error = 0;
+        for (int i = 0; i < expected.length; i++) {
+            error += (values[i] - expected[i]) * (values[i] - expected[i]);
+        }
+        return Math.sqrt(error / expected.length);
+    }
+
+    @Test
+    public void testBasisTranscoder() throws IOException {
+        // ETC1S 8 x 8, two endpoints and two selectors, the blocks use all endpoint predictions and selector codings
+        BitWriter endpoints = new BitWriter();
+        int[] colorSizes = new int[32];
+        Arrays.fill(colorSizes, 5);
+        int[] intensitySizes = new int[8];
+        Arrays.fill(intensitySizes, 3);
+        for (int i = 0; i < 3; i++) {
+            endpoints.putTable(colorSizes);
+        }
+        endpoints.putTable(intensitySizes);
+        endpoints.put(0, 1);
+        int[][] colors = new int[][] { { 20, 10, 5, 2 }, { 3, 28, 16, 5 } };
+        int[] previous = new int[] { 16, 16, 16, 0 };
+        for (int[] color : colors) {
+            endpoints.putCode(intensitySizes, (color[3] - previous[3]) & 7);
+            for (int c = 0; c < 3; c++) {
+                endpoints.putCode(colorSizes, (color[c] - previous[c]) & 31);
+            }
+            previous = color;
+        }
+        BitWriter selectors = new BitWriter();
+        selectors.put(0, 1);
+        selectors.put(0, 1);
+        selectors.put(1, 1);
+        for (int value : new int[] { 0x1b, 0xe4, 0x4e, 0xb1, 0xff, 0x00, 0xaa, 0x55 }) {
+            selectors.put(value, 8);
+        }
+        // Predictions delta, delta, upper, upper - endpoint deltas 0 and 1 - selectors 0, 1, history 3 and a run
+        int[] predictionSizes = new int[257];
+        predictionSizes[0x5f] = 1;
+        int[] deltaSizes = new int[] { 1, 1 };
+        int[] selectorSizes = new int[] { 3, 3, 3, 3, 3, 3, 3 };
+        int[] runSizes = new int[] { 1 };
+        BitWriter tables = new BitWriter();
+        tables.putTable(predictionSizes);
+        tables.putTable(deltaSizes);
+        tables.putTable(selectorSizes);
+        tables.putTable(runSizes);
+        tables.put(4, 13);
+        BitWriter slice = new BitWriter();
+        slice.putCode(predictionSizes, 0x5f);
+        slice.putCode(deltaSizes, 0);
+        slice.putCode(selectorSizes, 0);
+        slice.putCode(deltaSizes, 1);
+        slice.putCode(selectorSizes, 1);
+        slice.putCode(selectorSizes, 2 + 3);
+        slice.putCode(selectorSizes, 2 + 4);
+        slice.putCode(runSizes, 0);
+        byte[] sliceData = slice.toByteArray();
+        byte[][] parts = new byte[][] { endpoints.toByteArray(), selectors.toByteArray(), tables.toByteArray() };
+        ByteBuffer sgd = ByteBuffer.allocate(40 + parts[0].length + parts[1].length + parts[2].length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        sgd.putShort((short) 2).putShort((short) 2).putInt(parts[0].length).putInt(parts[1].length)
+                .putInt(parts[2].length).putInt(0);
+        sgd.putInt(0).putInt(0).putInt(sliceData.length).putInt(0).putInt(0);
+        for (byte[] part : parts) {
+            sgd.put(part);
+        }
+        KTXHeader header = createBasisHeader(KTX.KHR_DF_MODEL_ETC1S, KTX.KHR_DF_CHANNEL_ETC1S_RGB, 8, 8,
+                SuperCompression.BasisLZ, sgd.array(), sliceData);
+        assertTrue(header.isBasisUniversal() && header.getFormat() == ImageFormat.VK_FORMAT_R8G8B8A8_UNORM);
+        ImageBuffer rgba = header.getData();
+        byte[] pixels = new byte[8 * 8 * 4];
+        rgba.getBuffer().duplicate().rewind().get(pixels);
+        // Selector 3 of the first texel uses the largest positive modifier of intensity table 2
+        assertTrue(Arrays.equals(Arrays.copyOf(pixels, 4), new byte[] { (byte) 194, 111, 70, (byte) 255 }));
+        BasisTranscoder transcoder = new BasisTranscoder(ForkJoinPool.commonPool());
+        ImageBuffer etc1 = transcoder.transcode(header, 0, ImageFormat.VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK);
+        assertTrue(etc1 instanceof BlockImageBuffer && etc1.format == ImageFormat.VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK);
+        ImageBuffer decoded = new BlockDecoder(ForkJoinPool.commonPool()).decode(etc1);
+        float[] expected = rgba.getAsFloatArray(0);
+        assertTrue(Arrays.equals(decoded.getAsFloatArray(0), expected));
+        // Block 0, 1 uses the endpoint above and selector 1 from the history, block 1, 1 the selector of the run
+        assertTrue(Arrays.equals(Arrays.copyOfRange(pixels, 5 * 8 * 4, 5 * 8 * 4 + 4),
+                new byte[] { (byte) 136, 53, 12, (byte) 255 }));
+        assertTrue(Arrays.equals(Arrays.copyOfRange(pixels, (4 * 8 + 4) * 4, (4 * 8 + 5) * 4),
+                new byte[] { 104, (byte) 255, (byte) 212, (byte) 255 }));
+        assertThrows(IllegalArgumentException.class, () -> header.getImage(0, 0, 0));
+        assertThrows(IllegalArgumentException.class, () -> BasisTranscoder.getTargetFormat(header,
+                ImageFormat.VK_FORMAT_BC7_SRGB_BLOCK));
+        decoded.destroy();
+        etc1.destroy();
+        rgba.destroy();
+        header.destroy();
+
+        // UASTC 8 x 4, a single subset block with a red gradient to endpoint value 191 and a solid block
+        byte[] blocks = new byte[32];
+        setBits(blocks, 0, 4, 0x1);
+        setBits(blocks, 4 + 15, 8, 2 * 3);
+        setBits(blocks, 4 + 15 + 10 + 6, 6, 63);
+        for (int i = 1; i < 16; i++) {
+            setBits(blocks, 4 + 15 + 10 + 36 + 3 + (i - 1) * 4, 4, i);
+        }
+        setBits(blocks, 128, 5, 0x17);
+        for (int c = 0; c < 4; c++) {
+            setBits(blocks, 128 + 5 + c * 8, 8, 10 + c * 10);
+        }
+        KTXHeader uastc = createBasisHeader(KTX.KHR_DF_MODEL_UASTC, KTX.KHR_DF_CHANNEL_UASTC_RGBA, 8, 4,
+                SuperCompression.None, null, blocks);
+        rgba = uastc.getData();
+        rgba.getBuffer().duplicate().rewind().get(pixels, 0, 8 * 4 * 4);
+        assertTrue(pixels[0] == 0 && (pixels[(3 * 8 + 3) * 4] & 0xff) == ASTCFormat.COLOR_UNQUANTIZATION[19][191]);
+        for (int i = 1; i < 16; i++) {
+            int texel = ((i >> 2) * 8 + (i & 3)) * 4;
+            int previousTexel = (((i - 1) >> 2) * 8 + ((i - 1) & 3)) * 4;
+            assertTrue((pixels[texel] & 0xff) > (pixels[previousTexel] & 0xff));
+            assertTrue(pixels[texel + 1] == 0 && pixels[texel + 2] == 0 && pixels[texel + 3] == (byte) 255);
+        }
+        assertTrue(Arrays.equals(Arrays.copyOfRange(pixels, 4 * 4, 5 * 4), new byte[] { 10, 20, 30, 40 }));
+        uastc.setTranscodeFormats(ImageFormat.VK_FORMAT_ETC2_R8G8B8_UNORM_BLOCK, ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK);
+        assertTrue(uastc.getFormat() == ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK);
+        ImageBuffer bc7 = uastc.getLevels(0, 1, ForkJoinPool.commonPool())[0];
+        assertTrue(bc7 instanceof BlockImageBuffer && bc7.format == ImageFormat.VK_FORMAT_BC7_UNORM_BLOCK);
+        assertTrue(getRMSError(bc7.getAsFloatArray(0), rgba.getAsFloatArray(0)) * 255 < 4);
+        bc7.destroy();
+        rgba.destroy();
+        uastc.destroy();
+    }
+
+    @Test
+    public void testUASTCReferenceBlocks() {
+        // Mode 2 block, two subsets with partition pattern 0 (the left and right halves) and 4 bit endpoints. The
+        // left subset has endpoints 2, 12, 5, 3, 9, 7 and the right 15, 4, 14, 8, 1, 10 as r0, r1, g0, g1, b0, b1.
+        // Texels of each subset, in order, have the weights 0, 7, 1, 6, 2, 5, 3 and 4. The ETC1 hints are the
+        // differential mode with intensity tables 1 and 2.
+        byte[] block = toBlock(0x1d, 0x23, 0x00, 0x84, 0x6b, 0xf2, 0x9e, 0x1c, 0x43, 0x39, 0x8f, 0x63, 0x55, 0x1d,
+                0x47, 0x00);
+        // The endpoints expanded to 8 bits and interpolated with the unquantized 3 bit weights
+        int[] expected = new int[] { 34, 85, 153, 255, 204, 51, 119, 255, 255, 238, 17, 255, 68, 136, 170, 255, 58, 80,
+                148, 255, 180, 56, 124, 255, 229, 224, 38, 255, 94, 150, 149, 255, 82, 75, 143, 255, 156, 60, 129,
+                255, 203, 210, 60, 255, 121, 165, 127, 255, 106, 70, 139, 255, 132, 65, 133, 255, 176, 195, 81, 255,
+                147, 179, 105, 255 };
+        int[] rgba = new int[64];
+        BasisTranscoder.decodeUASTCBlock(block, 0, rgba);
+        assertTrue(Arrays.equals(expected, rgba));
+        // The decoded texels are exactly represented by the block, the qualities that try the two subset mode shall
+        // encode the same block and fast quality uses mode 0
+        float[] texels = new float[64];
+        for (int i = 0; i < texels.length; i++) {
+            texels[i] = rgba[i] / 255f;
+        }
+        for (BlockEncoder.Quality quality : BlockEncoder.Quality.values()) {
+            byte[] encoded = new byte[16];
+            new UASTCEncoder(ForkJoinPool.commonPool(), quality).encodeBlock(texels,
+                    ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK, encoded);
+            if (quality == BlockEncoder.Quality.FAST) {
+                assertTrue(BasisTranscoder.getUASTCMode(encoded, 0) == 0);
+            } else {
+                assertTrue(Arrays.equals(block, encoded));
+            }
+        }
+        // One color is stored as a solid block, mode 8, with the RGBA and the ETC1 hint closest to the color:
+        // table 1, index 0 and 5 bit color 7, 15, 23
+        for (int i = 0; i < 16; i++) {
+            System.arraycopy(new float[] { 0x40 / 255f, 0x80 / 255f, 0xc0 / 255f, 1f }, 0, texels, i * 4, 4);
+        }
+        byte[] encoded = new byte[16];
+        new UASTCEncoder(ForkJoinPool.commonPool()).encodeBlock(texels, ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK,
+                encoded);
+        assertTrue(Arrays.equals(toBlock(0x17, 0x08, 0x10, 0xf8, 0x7f, 0x38, 0xef, 0x02, 0, 0, 0, 0, 0, 0, 0, 0),
+                encoded));
+        BasisTranscoder.decodeUASTCBlock(encoded, 0, rgba);
+        for (int i = 0; i < rgba.length; i++) {
+            assertTrue(rgba[i] == new int[] { 0x40, 0x80, 0xc0, 0xff }[i & 3]);
+        }
+    }
+
+    @Test
+    public void testUASTCEncoder() throws IOException {
+        // Gradients with alpha and an opaque noisy image, base level and one mip-level
+        ImageBuffer[] rgba = new ImageBuffer[] { createGradient(26, 18, true), createGradient(13, 9, true) };
+        ImageBuffer[] rgb = new ImageBuffer[] { createGradient(40, 24, false) };
+        double[] errors = new double[2];
+        int[] sizes = new int[2];
+        for (int i = 0; i < 2; i++) {
+            UASTCEncoder encoder = new UASTCEncoder(ForkJoinPool.commonPool(), Quality.NORMAL, i * 8);
+            for (ImageBuffer[] levels : new ImageBuffer[][] { rgba, rgb }) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                new KTXSerializer().serializeUASTC(Channels.newChannel(out), levels, encoder,
+                        SuperCompression.ZStandard);
+                KTXHeader header = (KTXHeader) new KTXDeserializer().read(new ByteArrayInputStream(out.toByteArray()));
+                assertTrue(header.isBasisUniversal() && header.getSuperCompression() == SuperCompression.ZStandard);
+                assertTrue(header.getDFDBlocks()[0].getColorModel() == KTX.KHR_DF_MODEL_UASTC);
+                assertTrue(BasisTranscoder.hasAlpha(header) == (levels == rgba));
+                for (int level = 0; level < levels.length; level++) {
+                    ImageBuffer decoded = header.getLevel(level);
+                    assertTrue(decoded.width == levels[level].width && decoded.height == levels[level].height);
+                    float[] source = levels[level].getAsFloatArray(0);
+                    if (levels == rgb) {
+                        float[] opaque = new float[source.length / 3 * 4];
+                        for (int texel = 0; texel < source.length / 3; texel++) {
+                            System.arraycopy(source, texel * 3, opaque, texel * 4, 3);
+                            opaque[texel * 4 + 3] = 1;
+                        }
+                        source = opaque;
+                    }
+                    double error = getRMSError(decoded.getAsFloatArray(0), source) * 255;
+                    System.out.println("UASTC level " + level + " rms error " + error + ", rdo " + (i > 0));
+                    assertTrue(error < (i == 0 ? 8 : 16));
+                    errors[i] += error;
+                    decoded.destroy();
+                }
+                sizes[i] += out.size();
+                header.setTranscodeFormats(ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK);
+                ImageBuffer astc = header.getLevels(0, 1, ForkJoinPool.commonPool())[0];
+                assertTrue(astc.format == ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK);
+                astc.destroy();
+                header.destroy();
+            }
+        }
+        // Rate distortion optimization trades quality for size
+        assertTrue(sizes[1] < sizes[0] && errors[1] >= errors[0]);
+        UASTCEncoder encoder = new UASTCEncoder(ForkJoinPool.commonPool());
+        assertThrows(IllegalArgumentException.class, () -> encoder.encode(rgb[0],
+                ImageFormat.VK_FORMAT_ASTC_4x4_UNORM_BLOCK));
+        assertThrows(IllegalArgumentException.class, () -> new UASTCEncoder(ForkJoinPool.commonPool(),
+                Quality.FAST, -1));
+        for (ImageBuffer buffer : new ImageBuffer[] { rgba[0], rgba[1], rgb[0] }) {
+            buffer.destroy();
+        }
+    }
+
+    /**
+     * Creates an 8 bit image with gradients, a step and noise, with alpha if alpha is true
+     */
+    private ImageBuffer createGradient(int width, int height, boolean alpha) {
+        int channels = alpha ? 4 : 3;
+        byte[] pixels = new byte[width * height * channels];
+        Random random = new Random(width);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int i = (y * width + x) * channels;
+                pixels[i] = (byte) (x * 255 / width);
+                pixels[i + 1] = (byte) (y * 255 / height + random.nextInt(8));
+                pixels[i + 2] = (byte) (x < width / 2 ? 40 : 200);
+                if (alpha) {
+                    pixels[i + 3] = (byte) (255 - x * y * 255 / (width * height));
+                }
+            }
+        }
+        return ImageBuffer.create(pixels, alpha ? ImageFormat.VK_FORMAT_R8G8B8A8_UNORM
+                : ImageFormat.VK_FORMAT_R8G8B8_UNORM, 1, width, height, null);
+    }
+
+    /**
+     * Creates the header of a single level Basis Universal file
+     */
+    private KTXHeader createBasisHeader(int model, int channel, int width, int height,
+            SuperCompression superCompression, byte[] sgd, byte[] levelData) {
+        int dfdSize = 4 + 24 + 16;
+        int sgdOffset = (KTX.LEVEL_INDEX_OFFSET + KTX.LEVEL_STRUCT_SIZE + dfdSize + 7) & ~7;
+        int sgdSize = sgd != null ? sgd.length : 0;
+        int levelOffset = (sgdOffset + sgdSize + 7) & ~7;
+        ByteBuffer file = ByteBuffer.allocate(levelOffset + levelData.length).order(ByteOrder.LITTLE_ENDIAN);
+        file.put(KTX.FILEIDENTIFIER);
+        file.putInt(0).putInt(1).putInt(width).putInt(height).putInt(0).putInt(0).putInt(1).putInt(1)
+                .putInt(superCompression.value);
+        file.putInt(KTX.LEVEL_INDEX_OFFSET + KTX.LEVEL_STRUCT_SIZE).putInt(dfdSize).putInt(0).putInt(0);
+        file.putLong(sgdSize > 0 ? sgdOffset : 0).putLong(sgdSize);
+        file.putLong(levelOffset).putLong(levelData.length).putLong(levelData.length);
+        file.putInt(dfdSize).putInt(0).putInt((40 << 16) | 2).putInt(model | (1 << 8) | (1 << 16)).putInt(3 | (3 << 8))
+                .putInt(0).putInt(0);
+        file.putInt((channel << 24) | (127 << 16)).putInt(0).putInt(0).putInt(-1);
+        if (sgd != null) {
+            file.position(sgdOffset);
+            file.put(sgd);
+        }
+        file.position(levelOffset);
+        file.put(levelData);
+        file.rewind();
+        return (KTXHeader) new KTXDeserializer().read(file);
+    }
+
+    private void setBits(byte[] block, int position, int count, int value) {
+        for (int i = 0; i < count; i++) {
+            int bit = position + i;
+            block[bit >> 3] |= ((value >> i) & 1) << (bit & 7);
+        }
+    }
+
+    /**
+     * Writes bits starting at the least significant bit of each byte, and canonical Huffman codes as read by
+     * {@link BasisTranscoder}
+     */
+    private static final class BitWriter {
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private int bits;
+        private int count;
+
+        private void put(int value, int size) {
+            for (int i = 0; i < size; i++) {
+                bits |= ((value >> i) & 1) << count++;
+                if (count == 8) {
+                    out.write(bits);
+                    bits = 0;
+                    count = 0;
+                }
+            }
+        }
+
+        private void putCode(int[] sizes, int symbol) {
+            int code = 0;
+            for (int size = 1; size < sizes[symbol]; size++) {
+                for (int s : sizes) {
+                    code += s == size ? 1 : 0;
+                }
+                code <<= 1;
+            }
+            for (int s = 0; s < symbol; s++) {
+                code += sizes[s] == sizes[symbol] ? 1 : 0;
+            }
+            for (int i = sizes[symbol] - 1; i >= 0; i--) {
+                put(code >> i, 1);
+            }
+        }
+
+        /**
+         * Writes the code sizes of a table, each size is sent as a literal code length code
+         */
+        private void putTable(int[] sizes) {
+            int[] codeLengthSizes = new int[21];
+            for (int size : sizes) {
+                codeLengthSizes[size] = 5;
+            }
+            put(sizes.length, 14);
+            int[] order = { 17, 18, 19, 20, 0, 8, 7, 9, 6, 10, 5, 11, 4, 12, 3, 13, 2, 14, 1, 15, 16 };
+            put(order.length, 5);
+            for (int code : order) {
+                put(codeLengthSizes[code], 3);
+            }
+            for (int size : sizes) {
+                putCode(codeLengthSizes, size);
+            }
+        }
+
+        private byte[] toByteArray() {
+            if (count > 0) {
+                out.write(bits);
+                count = 0;
+            }
+            return out.toByteArray();
+        }
+    }
+
+    @Test
+    public void testKTXImageIndex() throws IOException {
+        int width = 64;
+        int height = 64;
+        int faces = 6;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, faces, 0, width, height, 0);
+        byte[] data = createRandomData(settings);
+        int imageSize = width * height * settings.getFormat().sizeInBytes;
+        ImageBuffer base = ImageBuffer.createFloatBuffer(ByteBuffer.allocateDirect(data.length).put(data),
+                ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, faces, new int[] { width, height, 0 });
+        ImageBuffer[] levels = new MipmapGenerator(MipmapGenerator.Filter.BOX).generate(base, 3);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktximageindex")));
+        for (SuperCompression sc : new SuperCompression[] { SuperCompression.None, SuperCompression.ZLIB,
+                SuperCompression.ZStandard }) {
+            KTXSerializer serializer = new KTXSerializer();
+            serializer.setImageIndex(true);
+            serializer.serializeLevels(filepath, levels, sc);
+            KTXHeader header = (KTXHeader) new KTXDeserializer().read(filepath);
+            assertTrue((header.getImageOffsets(1) != null) == (sc == SuperCompression.ZLIB));
+            for (int level = 0; level < levels.length; level++) {
+                byte[] expected = ImageUtils.byteBufferToArray(levels[level].getBuffer());
+                int levelImageSize = imageSize >> (level * 2);
+                for (int face = 0; face < faces; face++) {
+                    ImageBuffer image = header.getImage(level, 0, face);
+                    assertTrue(image.faceCount == 1);
+                    assertTrue(image.width == width >> level);
+                    assertTrue(Arrays.equals(Arrays.copyOfRange(expected, face * levelImageSize,
+                            (face + 1) * levelImageSize), ImageUtils.byteBufferToArray(image.getBuffer())));
+                    image.destroy();
+                }
+            }
+            // Whole level still readable
+            assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+            assertThrows(IllegalArgumentException.class, () -> header.getImage(0, 0, faces));
+            header.destroy();
+        }
+    }
+
+    @Test
+    public void testKTXLargeFile() throws IOException {
+        ImageFormat format = ImageFormat.VK_FORMAT_R16G16B16_SFLOAT;
+        // Lower the max buffer size of the serializers and headers so that the levels are segmented as levels larger
+        // than 2 GB would be. The 64 x 32 image is larger than one buffer so each segment holds whole rows, the
+        // 32 x 16 cubemap segments hold whole faces.
+        long maxBufferSize = 4096;
+        for (int[] size : new int[][] { { 64, 32, 1 }, { 32, 16, 6 } }) {
+            // Random bytes so that the supercompressed level is also larger than one buffer
+            byte[] data = new byte[size[0] * size[1] * size[2] * format.sizeInBytes];
+            new Random(size[2]).nextBytes(data);
+            long imageSize = format.getImageSize(size[0], size[1]);
+            SegmentedBuffer level = SegmentedBuffer.allocateDirect(data.length, SegmentedBuffer
+                    .getAlignedSegmentSize(size[2] == 1 ? size[0] * format.sizeInBytes : imageSize, maxBufferSize));
+            level.put(0, ByteBuffer.wrap(data));
+            assertTrue(level.getSegmentCount() > 1);
+            for (SuperCompression sc : new SuperCompression[] { SuperCompression.None, SuperCompression.ZLIB,
+                    SuperCompression.ZStandard }) {
+                Settings settings = new Settings(format, 0, size[2], 1, size[0], size[1], 0, sc);
+                Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxlarge" + sc)));
+                KTXSerializer serializer = new KTXSerializer(ForkJoinPool.commonPool());
+                serializer.setMaxBufferSize(maxBufferSize);
+                serializer.serialize(filepath, null, settings, level);
+                assertTrue(Files.size(filepath) > maxBufferSize);
+                // The file is larger than one buffer, the header is probed and the level mapped in segments
+                KTXDeserializer deserializer = new KTXDeserializer();
+                deserializer.setMaxBufferSize(maxBufferSize);
+                KTXHeader header = (KTXHeader) deserializer.read(filepath);
+                assertLargeLevel(header, data, imageSize);
+                if (sc == SuperCompression.None) {
+                    ImageBuffer region = header.readRegion(0, 0, size[2] - 1, 8, 4, 16, 8);
+                    byte[] regionData = ImageUtils.byteBufferToArray(region.getBuffer());
+                    int pixelSize = format.sizeInBytes;
+                    for (int y = 0; y < 8; y++) {
+                        int from = (int) imageSize * (size[2] - 1) + ((4 + y) * size[0] + 8) * pixelSize;
+                        assertTrue(Arrays.equals(Arrays.copyOfRange(data, from, from + 16 * pixelSize),
+                                Arrays.copyOfRange(regionData, y * 16 * pixelSize, (y + 1) * 16 * pixelSize)));
+                    }
+                    region.destroy();
+                }
+                header.destroy();
+                // File data in memory, the level segments are views of the data
+                byte[] file = Files.readAllBytes(filepath);
+                KTXHeader memoryHeader = new KTXHeader(ByteBuffer.wrap(file).order(ByteOrder.LITTLE_ENDIAN));
+                memoryHeader.setMaxBufferSize(maxBufferSize);
+                assertLargeLevel(memoryHeader, data, imageSize);
+                // Not seekable, the compressed level is kept in memory until the header is written
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                KTXSerializer streamSerializer = new KTXSerializer();
+                streamSerializer.setMaxBufferSize(maxBufferSize);
+                streamSerializer.serialize(Channels.newChannel(out), null, settings, level);
+                assertTrue(Arrays.equals(file, out.toByteArray()));
+                Files.delete(filepath);
+            }
+            level.destroy();
+            assertThrows(IllegalArgumentException.class, () -> level.get(0));
+        }
+        // The max buffer size is per serializer and header, the default is unchanged
+        assertTrue(new KTXDeserializer().getMaxBufferSize() == KTX.MAX_BUFFER_SIZE);
+        // Sizes that do not fit in one buffer are rejected instead of overflowing
+        assertThrows(IllegalArgumentException.class, () -> KTX.toBufferSize(maxBufferSize + 1, maxBufferSize, "test"));
+        assertThrows(IllegalArgumentException.class, () -> KTX.toBufferSize(KTX.MAX_BUFFER_SIZE + 1, "test"));
+    }
+
+    private void assertLargeLevel(KTXHeader header, byte[] data, long imageSize) {
+        assertThrows(IllegalArgumentException.class, () -> header.getLevel(0));
+        try (SegmentedBuffer level = header.getSegmentedLevel(0)) {
+            assertTrue(level.size() == data.length && level.getSegmentCount() > 1);
+            byte[] levelData = new byte[data.length];
+            level.get(0, ByteBuffer.wrap(levelData));
+            assertTrue(Arrays.equals(data, levelData));
+        }
+        for (int face = 0; face < data.length / imageSize; face++) {
+            if (imageSize > header.getMaxBufferSize()) {
+                assertThrows(IllegalArgumentException.class, () -> header.getImage(0, 0, 0));
+            } else {
+                ImageBuffer image = header.getImage(0, 0, face);
+                int from = (int) imageSize * face;
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, from, from + (int) imageSize),
+                        ImageUtils.byteBufferToArray(image.getBuffer())));
+                image.destroy();
+            }
+        }
+    }
+
+    @Test
+    public void testKTXProbe() throws IOException {
+        int width = 200;
+        int height = 100;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, width, height, 0,
+                SuperCompression.ZStandard);
+        KeyValue[] keyValues = new KeyValue[] { new KeyValue("Key", "Value") };
+        byte[] data = createRandomData(settings);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxprobe")));
+        new KTXSerializer().serialize(filepath, new KeyValueData(keyValues), settings, data);
+
+        ImageHeader header = new KTXDeserializer().probe(filepath);
+        assertTrue(header.getWidth() == width);
+        assertTrue(header.getHeight() == height);
+        assertTrue(header.getFaceCount() == 6);
+        assertTrue(header.getFormat() == ImageFormat.VK_FORMAT_R16G16B16_SFLOAT);
+        assertTrue(((KeyValueData) header.getMetaData()).keyValues[0].value.equals("Value"));
+        assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        header.destroy();
+        assertThrows(IllegalArgumentException.class, () -> header.getLevel(0));
+        assertThrows(IOException.class,
+                () -> new KTXDeserializer().probe(Paths.get(getPath("wide_street_01_1k.hdr"))));
+    }
+
+    @Test
+    public void testKTXReadRegion() throws IOException {
+        int width = 64;
+        int height = 48;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, width, height, 0,
+                SuperCompression.None);
+        byte[] data = createRandomData(settings);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxregion")));
+        new KTXSerializer().serialize(filepath, null, settings, data);
+
+        int pixelSize = settings.getFormat().sizeInBytes;
+        int face = 3;
+        int x = 10;
+        int y = 20;
+        int w = 16;
+        int h = 8;
+        byte[] expected = new byte[w * h * pixelSize];
+        for (int row = 0; row < h; row++) {
+            System.arraycopy(data, ((face * height + y + row) * width + x) * pixelSize, expected, row * w * pixelSize,
+                    w * pixelSize);
+        }
+        KTXDeserializer deserializer = new KTXDeserializer();
+        for (ImageHeader header : new ImageHeader[] { deserializer.read(filepath), deserializer.probe(filepath) }) {
+            ImageBuffer region = ((KTXHeader) header).readRegion(0, 0, face, x, y, w, h);
+            assertTrue(region.width == w);
+            assertTrue(region.height == h);
+            assertTrue(Arrays.equals(expected, ImageUtils.byteBufferToArray(region.getBuffer())));
+            assertThrows(IllegalArgumentException.class,
+                    () -> ((KTXHeader) header).readRegion(0, 0, 6, 0, 0, w, h));
+            assertThrows(IllegalArgumentException.class,
+                    () -> ((KTXHeader) header).readRegion(0, 0, 0, width - w + 1, 0, w, h));
+            header.destroy();
+        }
+    }
+
+    @Test
+    public void testKTXRelease() throws IOException {
+        int width = 64;
+        int height = 32;
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 1, 0, width, height, 0,
+                SuperCompression.None);
+        byte[] data = createRandomData(settings);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testktxrelease")));
+        new KTXSerializer().serialize(filepath, null, settings, data);
+
+        assertTrue(SharedBuffer.isExplicitRelease());
+        ImageHeader header = new KTXDeserializer().read(filepath);
+        ImageBuffer level = header.getLevel(0);
+        SharedBuffer mapping = level.getOwner();
+        header.close();
+        header.close();
+        assertThrows(IllegalArgumentException.class, () -> header.getLevel(0));
+        // The level shares the mapped file and must be usable after the header is closed
+        assertTrue(!mapping.isReleased());
+        assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(level.getBuffer())));
+        level.close();
+        level.close();
+        assertThrows(IllegalArgumentException.class, () -> level.getBuffer());
+        // The mapping is unmapped at once, not when the buffer is garbage collected, so the file can be replaced
+        assertTrue(mapping.isReleased());
+        Files.delete(filepath);
+
+        settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 1, 0, width, height, 0,
+                SuperCompression.ZStandard);
+        new KTXSerializer().serialize(filepath, null, settings, data);
+        SharedBuffer decompressed;
+        try (ImageHeader zstdHeader = new KTXDeserializer().read(filepath); ImageBuffer buffer = zstdHeader.getData()) {
+            assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(buffer.getBuffer())));
+            decompressed = buffer.getOwner();
+        }
+        assertTrue(decompressed.isReleased());
+        Files.delete(filepath);
+    }
+
+    @Test
+    public void testCodecs() throws IOException, DataFormatException {
+        byte[] data = createRandomData(300, 200, KTXFormat.VK_FORMAT_R16G16B16_SFLOAT);
+        for (SuperCompression sc : new SuperCompression[] { SuperCompression.ZLIB, SuperCompression.ZStandard }) {
+            SuperCompressionCodec codec = KTX.getCodec(sc);
+            assertTrue(codec.getScheme() == sc);
+            ByteBuffer source = ByteBuffer.wrap(data);
+            ByteBuffer compressed = codec.compress(source.duplicate().limit(1000), source.duplicate().position(1000));
+            ByteBuffer destination = ByteBuffer.allocateDirect(data.length);
+            assertTrue(codec.decompress(compressed, destination) == data.length);
+            assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(destination.flip())));
+            // Streamed to channel
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            long written = codec.compress(Channels.newChannel(out), source.duplicate().limit(1000),
+                    source.duplicate().position(1000));
+            assertTrue(written == out.size());
+            destination.clear();
+            assertTrue(codec.decompress(ByteBuffer.wrap(out.toByteArray()), destination) == data.length);
+            assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(destination.flip())));
+        }
+        assertThrows(IllegalArgumentException.class, () -> KTX.getCodec(SuperCompression.BasisLZ));
+    }
+
+    @Test
+    public void testCompressionPolicy() throws IOException {
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, 128, 128, 0,
+                CompressionPolicy.smallest());
+        byte[] data = createRandomData(settings);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testcompressionpolicy")));
+        KTXSerializer serializer = new KTXSerializer();
+        serializer.serialize(filepath, null, settings, data);
+        CompressionPolicy.Choice smallest = serializer.getCompressionChoice();
+        assertTrue(smallest.candidate.scheme != SuperCompression.None);
+        assertTrue(smallest.ratio < 1f);
+        assertTrue(smallest.sampleSize == CompressionPolicy.SAMPLE_SIZE);
+        KTXHeader header = (KTXHeader) new KTXDeserializer().read(filepath);
+        assertTrue(header.getSuperCompression() == smallest.candidate.scheme);
+        assertTrue(Arrays.equals(data, ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        header.destroy();
+
+        ByteBuffer[] level = new ByteBuffer[] { ByteBuffer.wrap(data) };
+        CompressionPolicy.Choice fastest = CompressionPolicy.fastest().select(level);
+        assertTrue(fastest.ratio < 1f);
+        // No codec is this fast
+        assertTrue(CompressionPolicy.budget(0.000001f).select(level).candidate.scheme == SuperCompression.None);
+        assertThrows(IllegalArgumentException.class, () -> CompressionPolicy.budget(0));
+        // Incompressible data is stored as is
+        byte[] random = new byte[100000];
+        new Random(1).nextBytes(random);
+        assertTrue(CompressionPolicy.fastest().select(ByteBuffer.wrap(random)).candidate.scheme
+                == SuperCompression.None);
+        serializer.serialize(filepath, null, new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, 128, 128,
+                0, SuperCompression.ZLIB), data);
+        assertTrue(serializer.getCompressionChoice() == null);
+    }
+
+    @Test
+    public void testParallelDeflate() throws IOException, DataFormatException {
+        byte[] data = createRandomData(700, 300, KTXFormat.VK_FORMAT_R16G16B16_SFLOAT);
+        int[] sizes = new int[] { 0, 100, ParallelDeflater.DEFAULT_CHUNK_SIZE * 2, data.length };
+        for (int level : new int[] { 0, 1, 6, 9 }) {
+            ParallelDeflater deflater = new ParallelDeflater(level, ForkJoinPool.commonPool());
+            for (int size : sizes) {
+                ByteBuffer source = ByteBuffer.wrap(data, 0, size);
+                ByteBuffer compressed = deflater.deflate(source);
+                assertTrue(!source.hasRemaining());
+                // Inflater checks the zlib header and Adler-32
+                ByteBuffer destination = ByteBuffer.allocateDirect(size);
+                assertTrue(KTX.inflate(compressed, destination) == size);
+                assertTrue(Arrays.equals(Arrays.copyOf(data, size), ImageUtils.byteBufferToArray(destination.flip())));
+            }
+        }
+        Settings settings = new Settings(ImageFormat.VK_FORMAT_R16G16B16_SFLOAT, 0, 6, 0, 256, 256, 0,
+                SuperCompression.ZLIB);
+        byte[] faces = createRandomData(settings);
+        Path filepath = Paths.get(getOutputPath(MimeFormat.KTX2.getFilename("testparalleldeflate")));
+        new KTXSerializer(ForkJoinPool.commonPool()).serialize(filepath, null, settings, faces);
+        ImageHeader header = new KTXDeserializer().read(filepath);
+        assertTrue(Arrays.equals(faces, ImageUtils.byteBufferToArray(header.getData().getBuffer())));
+        header.destroy();
+    }
+
     private void saveLoadAssert(byte[] data, Settings settings, KeyValueData metaData, String filename)
             throws IOException {
         KTXSerializer serializer = new KTXSerializer();
-        Path filepath = Paths.get(getPath(filename));
+        Path filepath = Paths.get(getOutputPath(filename));
         serializer.serialize(filepath, metaData, settings, data);
 
         KTXDeserializer deserializer = new KTXDeserializer();
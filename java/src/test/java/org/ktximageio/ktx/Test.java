@@ -1,15 +1,46 @@
 package org.ktximageio.ktx;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Comparator;
+import java.util.stream.Stream;
 
 import org.ktximageio.output.TonemappWindow.WindowListener;
 
 public class Test implements WindowListener {
 
+    private static Path outputDirectory;
+
     static String getPath(String filename) {
         return Paths.get(filename).isAbsolute() ? filename : "src/test/resources/" + filename;
     }
 
+    /**
+     * Returns the path of a file written by a test, test output goes to a temporary directory - not to the resources.
+     */
+    static synchronized String getOutputPath(String filename) {
+        try {
+            if (outputDirectory == null) {
+                outputDirectory = Files.createTempDirectory("ktximageio");
+                Runtime.getRuntime().addShutdownHook(new Thread(() -> deleteOutput(outputDirectory)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return outputDirectory.resolve(Paths.get(filename).getFileName()).toString();
+    }
+
+    private static void deleteOutput(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            paths.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            System.out.println("Could not delete test output in " + directory);
+        }
+    }
+
     @Override
     public boolean windowEvent(WindowEvent event) {
         System.out.println("Event: " + event.action);
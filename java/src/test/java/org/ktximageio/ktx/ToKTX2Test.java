@@ -19,20 +19,20 @@ public class ToKTX2Test extends org.ktximageio.ktx.Test {
 
     public void testBinaryInput() throws IOException {
         // Not implemented
-        ToKTX2 main = new ToKTX2(new String[] { "--binary", getPath("binary"), getPath("binary.bin") });
+        ToKTX2 main = new ToKTX2(new String[] { "--binary", getOutputPath("binary"), getPath("binary.bin") });
         main.run();
         ImageReader deserializer = new KTXDeserializer();
-        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getPath("binary"))));
+        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getOutputPath("binary"))));
     }
 
     @Test
     public void testHDRInput() throws IOException {
         String filename = getPath("wide_street_01_1k.hdr");
-        ToKTX2 main = new ToKTX2(new String[] { getPath("WideStreetHDR"), filename });
+        ToKTX2 main = new ToKTX2(new String[] { getOutputPath("WideStreetHDR"), filename });
         main.run();
 
         ImageReader deserializer = new KTXDeserializer();
-        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getPath("WideStreetHDR"))));
+        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getOutputPath("WideStreetHDR"))));
         ImageBuffer ktx2Image = header.getData();
 
         assertTrue(ktx2Image.depth == 0);
@@ -55,13 +55,13 @@ public class ToKTX2Test extends org.ktximageio.ktx.Test {
     @Test
     public void testKTXCubemapHDR() throws IOException {
         ToKTX2 main = new ToKTX2(
-                new String[] { getPath("cubemaphdr"), getPath("px.hdr"), getPath("nx.hdr"), getPath("py.hdr"),
+                new String[] { getOutputPath("cubemaphdr"), getPath("px.hdr"), getPath("nx.hdr"), getPath("py.hdr"),
                         getPath("ny.hdr"),
                         getPath("pz.hdr"), getPath("nz.hdr") });
         main.run();
 
         ImageReader deserializer = new KTXDeserializer();
-        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getPath("cubemaphdr"))));
+        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getOutputPath("cubemaphdr"))));
         ImageBuffer ktx2Image = header.getData();
 
         assertTrue(ktx2Image.depth == 0);
@@ -80,12 +80,12 @@ public class ToKTX2Test extends org.ktximageio.ktx.Test {
     @Test
     public void testKTXCubemapPNG() throws IOException {
         ToKTX2 main = new ToKTX2(
-                new String[] { getPath("cubemapsdr"), getPath("left.png"), getPath("right.png"), getPath("top.png"),
+                new String[] { getOutputPath("cubemapsdr"), getPath("left.png"), getPath("right.png"), getPath("top.png"),
                         getPath("bottom.png"),
                         getPath("front.png"), getPath("back.png") });
         main.run();
         ImageReader deserializer = new KTXDeserializer();
-        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getPath("cubemapsdr"))));
+        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getOutputPath("cubemapsdr"))));
         ImageBuffer ktx2Image = header.getData();
 
         assertTrue(ktx2Image.depth == 0);
@@ -103,7 +103,7 @@ public class ToKTX2Test extends org.ktximageio.ktx.Test {
 
     @Test
     public void testDisplayKTX() throws IOException {
-        ToKTX2 main = new ToKTX2(new String[] { "--displayktx", MimeFormat.KTX2.getFilename(getPath("cubemapsdr")) });
+        ToKTX2 main = new ToKTX2(new String[] { "--displayktx", MimeFormat.KTX2.getFilename(getOutputPath("cubemapsdr")) });
         main.run();
         System.out.println("done");
     }
@@ -118,10 +118,10 @@ public class ToKTX2Test extends org.ktximageio.ktx.Test {
     public void testPanoramaToCubemap() throws IOException {
         String[] names = { "chromatic_mini", "Chromatic_mini.jpg" };
 
-        ToKTX2 main = new ToKTX2(new String[] { "--tocubemap", getPath(names[0]), getPath(names[1]) });
+        ToKTX2 main = new ToKTX2(new String[] { "--tocubemap", getOutputPath(names[0]), getPath(names[1]) });
         main.run();
         ImageReader deserializer = new KTXDeserializer();
-        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getPath(names[0]))));
+        ImageHeader header = deserializer.read(Paths.get(MimeFormat.KTX2.getFilename(getOutputPath(names[0]))));
         ImageBuffer ktx2Image = header.getData();
         if (ktx2Image.getFormat() == ImageFormat.VK_FORMAT_R16G16B16_SFLOAT) {
             assertTrue(HalfFloatImageBuffer.class.isInstance(ktx2Image));
@@ -0,0 +1,124 @@
+package org.ktximageio.zstd;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.DataFormatException;
+
+import org.junit.jupiter.api.Test;
+import org.ktximageio.ktx.ImageUtils;
+
+public class ZstdTest {
+
+    // Frame created by the reference implementation, Huffman compressed literals and FSE compressed sequences
+    private static final String REFERENCE_FRAME = "28b52ffd6420021d030042c61012a0070c781fbf17ed58a8f2161140ba2648c9"
+            + "42f8353bce3e3c3dbd0e3f8f0e3f4f4faf83b38f5fb3e3d8cc6fb7e436667ebb258598148441412686e250184410000"
+            + "44ea811e0ef7f00e027108c21041f98aaaa2a555555955455671af7ff1f3fe4361f";
+
+    private byte[] createReferenceData() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 40; i++) {
+            sb.append("KTX level ").append(i % 7).append(" face ").append(i % 6).append(", ");
+        }
+        return sb.toString().getBytes();
+    }
+
+    private byte[] createData(int size, int seed) {
+        // Mix of repeated runs, repeated sequences and noise
+        Random random = new Random(seed);
+        byte[] data = new byte[size];
+        int index = 0;
+        while (index < size) {
+            int length = Math.min(size - index, 1 + random.nextInt(300));
+            switch (random.nextInt(4)) {
+                case 0:
+                    Arrays.fill(data, index, index + length, (byte) random.nextInt(4));
+                    break;
+                case 1:
+                    if (index > 0) {
+                        int from = random.nextInt(index);
+                        for (int i = 0; i < length; i++) {
+                            data[index + i] = data[from + i];
+                        }
+                        break;
+                    }
+                    // fall through
+                default:
+                    for (int i = 0; i < length; i++) {
+                        data[index + i] = (byte) random.nextInt(16);
+                    }
+            }
+            index += length;
+        }
+        return data;
+    }
+
+    private byte[] roundTrip(byte[] data, int level) throws DataFormatException {
+        ByteBuffer compressed = new ZstdCompressor(level).compress(ByteBuffer.wrap(data));
+        assertTrue(compressed.remaining() <= ZstdCompressor.getMaxCompressedSize(data.length));
+        ByteBuffer result = ByteBuffer.allocateDirect(data.length);
+        int size = new ZstdDecompressor().decompress(compressed, result);
+        assertTrue(size == data.length);
+        assertTrue(!compressed.hasRemaining());
+        return ImageUtils.byteBufferToArray(result.flip());
+    }
+
+    @Test
+    public void testReferenceFrame() throws DataFormatException {
+        byte[] frame = new byte[REFERENCE_FRAME.length() / 2];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) Integer.parseInt(REFERENCE_FRAME.substring(i * 2, i * 2 + 2), 16);
+        }
+        byte[] expected = createReferenceData();
+        ByteBuffer result = ByteBuffer.allocate(expected.length);
+        new ZstdDecompressor().decompress(ByteBuffer.wrap(frame), result);
+        assertTrue(Arrays.equals(expected, result.array()));
+    }
+
+    @Test
+    public void testRoundTrip() throws DataFormatException {
+        int[] sizes = new int[] { 0, 1, 7, 100, 128 * 1024, 128 * 1024 + 1, 1000000 };
+        for (int level : new int[] { ZstdCompressor.MIN_LEVEL, ZstdCompressor.DEFAULT_LEVEL, 9,
+                ZstdCompressor.MAX_LEVEL }) {
+            for (int size : sizes) {
+                byte[] data = createData(size, size + level);
+                assertTrue(Arrays.equals(data, roundTrip(data, level)));
+            }
+        }
+    }
+
+    @Test
+    public void testIncompressible() throws DataFormatException {
+        byte[] random = new byte[300000];
+        new Random(1).nextBytes(random);
+        assertTrue(Arrays.equals(random, roundTrip(random, ZstdCompressor.DEFAULT_LEVEL)));
+        byte[] rle = new byte[300000];
+        Arrays.fill(rle, (byte) 0x55);
+        ByteBuffer compressed = new ZstdCompressor().compress(ByteBuffer.wrap(rle));
+        assertTrue(compressed.remaining() < 100);
+        assertTrue(Arrays.equals(rle, roundTrip(rle, ZstdCompressor.DEFAULT_LEVEL)));
+    }
+
+    @Test
+    public void testInvalidData() {
+        byte[] data = createData(50000, 3);
+        ByteBuffer compressed = new ZstdCompressor().compress(ByteBuffer.wrap(data));
+        ZstdDecompressor decompressor = new ZstdDecompressor();
+        // Truncated
+        assertThrows(DataFormatException.class, () -> decompressor.decompress(
+                compressed.duplicate().limit(compressed.limit() - 10), ByteBuffer.allocate(data.length)));
+        // Destination too small
+        assertThrows(DataFormatException.class, () -> decompressor.decompress(compressed.duplicate(),
+                ByteBuffer.allocate(data.length - 1)));
+        // Wrong magic
+        ByteBuffer corrupt = ByteBuffer.allocate(compressed.remaining());
+        corrupt.put(compressed.duplicate()).flip();
+        corrupt.put(0, (byte) 0);
+        assertThrows(DataFormatException.class, () -> decompressor.decompress(corrupt,
+                ByteBuffer.allocate(data.length)));
+    }
+
+}